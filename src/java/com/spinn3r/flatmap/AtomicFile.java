@@ -0,0 +1,82 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Writers never build a file in place.  They write to a temp file in the
+ * same directory and rename it over the target once it's complete, so a
+ * reader opening the path (e.g. ReloadableFlatMap) sees either the old file
+ * or the whole new one and never a partial write.  A reader which already
+ * has the old file mapped keeps it, since the rename only changes which
+ * inode the name points at.
+ */
+class AtomicFile {
+
+    /**
+     * A temp file next to the given one.  It has to be on the same file
+     * system for the rename to be atomic.
+     */
+    static File temp( File file ) throws IOException {
+
+        File dir = file.getAbsoluteFile().getParentFile();
+
+        return File.createTempFile( "." + file.getName() + ".", ".tmp", dir );
+
+    }
+
+    /**
+     * Flush the temp file to disk and rename it over the target.  Without
+     * the flush a crash right after the rename could leave an empty or
+     * partial file under the target name.  The directory is flushed after
+     * the rename so that once this returns the new file survives a crash.
+     */
+    static void commit( File temp, File file ) throws IOException {
+
+        FileChannel channel = new RandomAccessFile( temp, "rw" ).getChannel();
+
+        try {
+            channel.force( true );
+        } finally {
+            channel.close();
+        }
+
+        try {
+
+            Files.move( temp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+
+        } catch ( AtomicMoveNotSupportedException e ) {
+            Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+        }
+
+        syncDirectory( file.getAbsoluteFile().getParentFile() );
+
+    }
+
+    /**
+     * Flush a directory so that the files created, renamed or deleted in it
+     * so far survive a crash.  Does nothing on platforms where a directory
+     * can't be opened (e.g. Windows).
+     */
+    static void syncDirectory( File dir ) throws IOException {
+
+        FileChannel channel;
+
+        try {
+            channel = FileChannel.open( dir.toPath(), StandardOpenOption.READ );
+        } catch ( IOException e ) {
+            //not supported here.
+            return;
+        }
+
+        try {
+            channel.force( true );
+        } finally {
+            channel.close();
+        }
+
+    }
+
+}
@@ -4,95 +4,1199 @@ import java.io.*;
 import java.nio.*;
 import java.util.*;
 
-import java.nio.*;
-import java.nio.channels.*;
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Shared reader code for FlatMap and FlatSet.
+ *
+ * Current (version 2) files start with a 32 byte header:
+ *
+ * <pre>
+ *  0  4 bytes  magic (FM02 or FS02)
+ *  4  4 bytes  layout of the records (LAYOUT_SORTED, LAYOUT_BLOCKED, LAYOUT_BTREE,
+ *              LAYOUT_PACKED or LAYOUT_ELIAS_FANO)
+ *  8  8 bytes  number of entries
+ * 16  4 bytes  key type
+ * 20  4 bytes  value type (0 for sets)
+ * 24  4 bytes  flags
+ * 28  4 bytes  reserved
+ * </pre>
+ *
+ * followed by the sorted key/value records.  Version 1 files (FM01/FS01) used
+ * a 32 bit entry count and are still readable.
+ *
+ * Variable width values (strings, byte arrays, serialized objects) can't be
+ * stored in a fixed width record.  Instead the record holds a 4 byte (or 8
+ * byte with FLAG_LONG_POINTERS) pointer into a data section which directly
+ * follows the records.  Each value in the data section is a varint length
+ * followed by the encoded bytes.
+ *
+ * Files with FLAG_DIRECTORY end with a section directory: a count followed by
+ * (4 byte id, 8 byte offset, 8 byte length) for each section, and then an 8
+ * byte pointer to the directory as the last 8 bytes of the file.
+ *
+ * LAYOUT_BLOCKED is used for variable width keys.  The keys section holds
+ * blocks of front coded keys (the first key in full, the rest as a varint
+ * shared prefix length, varint suffix length and suffix).  Values are kept in
+ * a separate fixed width array (SECTION_VALUES) in key order and the first
+ * key of every block is kept in SECTION_BLOCK_INDEX.
+ *
+ * LAYOUT_BTREE keeps fixed width keys in their own sorted array
+ * (SECTION_KEYS) with the values in a separate array (SECTION_VALUES).
+ * SECTION_TREE holds the internal levels of a static B+tree over the key
+ * array, with nodes the size of a cache line or a page, so a lookup touches
+ * one node per level instead of one cache line per step of a binary search.
+ *
+ * LAYOUT_PACKED compresses fixed width keys and values: SECTION_KEYS holds
+ * blocks of bit packed key differences and values, found through
+ * SECTION_PACKED_INDEX.  Decoded blocks are kept in a bounded cache on the
+ * reader (see PackedIndex and OpenOptions.setBlockCacheSize).
+ *
+ * LAYOUT_ELIAS_FANO is for sets of fixed width keys: SECTION_KEYS holds the
+ * low bits of every key and SECTION_ELIAS_FANO the high bits as a bit vector
+ * with select samples.  Lookups and iteration read the mapping directly
+ * (see EliasFano).
+ *
+ * LAYOUT_SORTED files with a directory may carry a LinearModel
+ * (SECTION_MODEL) which predicts the position of a key to within a small
+ * window.  Readers use it automatically when it's present.
+ *
+ * Any layout may carry a blocked Bloom filter over its keys (SECTION_BLOOM)
+ * which is checked before searching so that most misses never touch the
+ * keys.
+ *
+ * The file is closed as soon as it's mapped but the mapping itself is held
+ * until close(), or until the garbage collector gets around to it if close
+ * is never called.  Lookups, cursors, iterators and streams throw
+ * IllegalStateException once it's closed, including ones started before.
+ * close() must not race with readers on
+ * other threads (reading unmapped memory crashes the JVM), so shared maps
+ * which are replaced while in use should go through ReloadableFlatMap.
+ */
+public abstract class BaseFlatCollection implements Closeable {
+
+    public static final int HEADER_SIZE = 32;
+
+    /**
+     * Fixed width key/value records sorted by key.
+     */
+    public static final int LAYOUT_SORTED = 0;
+
+    /**
+     * Front coded blocks of variable width keys with a separate value array.
+     */
+    public static final int LAYOUT_BLOCKED = 1;
+
+    /**
+     * Fixed width keys in a separate array, searched through a static B+tree
+     * of cache line or page sized nodes.
+     */
+    public static final int LAYOUT_BTREE = 2;
+
+    /**
+     * Blocks of bit packed fixed width keys and values, decoded into a cache
+     * on the reader.
+     */
+    public static final int LAYOUT_PACKED = 3;
+
+    /**
+     * Elias-Fano coded sets, searched without decoding.
+     */
+    public static final int LAYOUT_ELIAS_FANO = 4;
+
+    /**
+     * Pointers into the data section are 8 bytes instead of 4.
+     */
+    public static final int FLAG_LONG_POINTERS = 1;
+
+    /**
+     * The file ends with a section directory.
+     */
+    public static final int FLAG_DIRECTORY = 2;
+
+    public static final int SECTION_KEYS         = 1;
+    public static final int SECTION_VALUES       = 2;
+    public static final int SECTION_DATA         = 3;
+    public static final int SECTION_BLOCK_INDEX  = 4;
+    public static final int SECTION_TREE         = 5;
+    public static final int SECTION_MODEL        = 6;
+    public static final int SECTION_BLOOM        = 7;
+    public static final int SECTION_PACKED_INDEX = 8;
+    public static final int SECTION_ELIAS_FANO   = 9;
+
+    private static final int MAX_SECTION = 16;
+
+    long size           = 0;
+
+    int layout          = LAYOUT_SORTED;
+    int flags           = 0;
+
+    int key_type        = -1;
+    int value_type      = 0;
+
+    int key_width       = -1;
+    int value_width     = 0;
+
+    TypeHandler key_type_handler    = null;
+    TypeHandler value_type_handler  = null;
+
+    /**
+     * Where the first record starts and the distance between records.
+     */
+    long offset         = HEADER_SIZE;
+    int stride          = 0;
+
+    /**
+     * True when records hold pointers into the data section rather than the
+     * values themselves.
+     */
+    boolean value_pointers  = false;
+
+    long data_offset    = -1;
+
+    /**
+     * Where the first value starts and the distance between values.  For
+     * LAYOUT_SORTED values are interleaved with the keys.
+     */
+    long value_base     = -1;
+    int value_stride    = 0;
+
+    long[] section_offsets  = null;
+    long[] section_lengths  = null;
+
+    /**
+     * Only used with LAYOUT_BLOCKED.
+     */
+    BlockIndex block_index  = null;
+
+    /**
+     * Only used with LAYOUT_BTREE.
+     */
+    TreeIndex tree_index    = null;
+
+    /**
+     * Only used with LAYOUT_SORTED, and only when the writer found the keys
+     * regular enough.
+     */
+    LinearModel model       = null;
+
+    /**
+     * Only used with LAYOUT_PACKED.
+     */
+    PackedIndex packed      = null;
+
+    /**
+     * Only used with LAYOUT_ELIAS_FANO.
+     */
+    EliasFano elias_fano    = null;
+
+    BloomFilter bloom       = null;
+
+    /**
+     * Only used with LAYOUT_SORTED files which have no model.
+     */
+    PrefixTable prefix_table = null;
+
+    /**
+     * Only set when opened with OpenOptions.WARM.
+     */
+    Warmer warmer           = null;
+
+    /**
+     * Internal backed region for our data.
+     */
+    MappedRegion region = null;
+
+    File file = null;
+
+    private boolean closed = false;
+
+    /**
+     * Open a file as a FlatMap or a FlatSet depending on its magic number.
+     */
+    static BaseFlatCollection open( File file, OpenOptions options ) throws IOException {
+
+        byte[] magic = new byte[4];
+
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+
+        try {
+            in.readFully( magic );
+        } finally {
+            in.close();
+        }
+
+        if ( Arrays.equals( magic, FlatSet.MAGIC ) || Arrays.equals( magic, FlatSet.MAGIC_V1 ) )
+            return new FlatSet( file, options );
+
+        return new FlatMap( file, options );
+
+    }
+
+    /**
+     * Map the file and parse the header.  Files written with the legacy magic
+     * are handed to readLegacyHeader.  options decides whether the file is
+     * loaded up front, on demand or in the background.
+     */
+    protected void open( File file, byte[] legacy_magic, byte[] magic, OpenOptions options ) throws IOException {
+
+        this.file = file;
+
+        region = new MappedRegion( file );
+
+        boolean opened = false;
+
+        try {
+            parse( file, legacy_magic, magic, options );
+            opened = true;
+        } finally {
+
+            //don't leave a rejected file mapped.
+            if ( ! opened )
+                region.unmap();
+
+        }
+
+    }
+
+    private void parse( File file, byte[] legacy_magic, byte[] magic, OpenOptions options ) throws IOException {
+
+        if ( options.getMode() == OpenOptions.EAGER ) {
+
+            // force this buffer to load so that it doesn't load lazily.
+            region.load();
+
+            if ( options.getListener() != null )
+                options.getListener().progress( file, region.length(), region.length() );
+
+        }
+
+        if ( region.length() < magic.length )
+            throw new IOException( "Truncated file: " + file.getPath() );
+
+        byte[] data = region.get( 0, magic.length );
+
+        if ( Arrays.equals( data, magic ) ) {
+
+            if ( region.length() < HEADER_SIZE )
+                throw new IOException( "Truncated file: " + file.getPath() );
+
+            layout      = region.getInt( 4 );
+            size        = region.getLong( 8 );
+            key_type    = region.getInt( 16 );
+            value_type  = region.getInt( 20 );
+            flags       = region.getInt( 24 );
+            offset      = HEADER_SIZE;
+
+        } else if ( Arrays.equals( data, legacy_magic ) ) {
+            readLegacyHeader();
+        } else {
+            throw new IOException( "Invalid magic number in: " + file.getPath() );
+        }
+
+        if ( size < 0 )
+            throw new IOException( "Invalid entry count in: " + file.getPath() );
+
+        if ( (flags & FLAG_DIRECTORY) != 0 )
+            readDirectory( file );
+
+        key_type_handler = lookupTypeHandler( key_type );
+        key_width        = key_type_handler.sizeOf();
+
+        if ( value_type > 0 ) {
+
+            value_type_handler = lookupTypeHandler( value_type );
+            value_width        = value_type_handler.sizeOf();
+
+            if ( value_width == VARIABLE ) {
+                value_pointers = true;
+                value_width    = (flags & FLAG_LONG_POINTERS) != 0 ? 8 : 4;
+            }
+
+        }
+
+        switch( layout ) {
+
+            case LAYOUT_SORTED:
+
+                if ( key_width == VARIABLE )
+                    throw new IOException( "Variable width keys require LAYOUT_BLOCKED" );
+
+                stride       = key_width + value_width;
+                value_base   = offset + key_width;
+                value_stride = stride;
+                data_offset  = offset + size * stride;
+
+                if ( getSectionOffset( SECTION_MODEL ) >= 0 )
+                    model = new LinearModel( region, getSectionOffset( SECTION_MODEL ) );
+
+                break;
+
+            case LAYOUT_BLOCKED:
+
+                if ( options.isSequential() )
+                    block_index = new BlockIndex( region, getSectionOffset( SECTION_BLOCK_INDEX ), getSectionOffset( SECTION_KEYS ), size );
+                else
+                    block_index = new BlockIndex( region, getSectionOffset( SECTION_BLOCK_INDEX ), size );
+
+                value_base   = getSectionOffset( SECTION_VALUES );
+                value_stride = value_width;
+                data_offset  = getSectionOffset( SECTION_DATA );
+                break;
+
+            case LAYOUT_BTREE:
+
+                if ( key_width == VARIABLE )
+                    throw new IOException( "Variable width keys require LAYOUT_BLOCKED" );
+
+                offset       = getSectionOffset( SECTION_KEYS );
+                stride       = key_width;
+                value_base   = getSectionOffset( SECTION_VALUES );
+                value_stride = value_width;
+                data_offset  = getSectionOffset( SECTION_DATA );
+                tree_index   = new TreeIndex( region, getSectionOffset( SECTION_TREE ), offset, size, key_width );
+                break;
+
+            case LAYOUT_PACKED:
+
+                if ( key_width == VARIABLE || value_pointers )
+                    throw new IOException( "LAYOUT_PACKED requires fixed width keys and values" );
+
+                if ( getSectionOffset( SECTION_KEYS ) < 0 || getSectionOffset( SECTION_PACKED_INDEX ) < 0 )
+                    throw new IOException( "Missing packed sections in: " + file.getPath() );
+
+                offset       = getSectionOffset( SECTION_KEYS );
+                data_offset  = offset + section_lengths[ SECTION_KEYS ];
+                packed       = new PackedIndex( region, getSectionOffset( SECTION_PACKED_INDEX ), data_offset, size,
+                                                value_type > 0, options.getBlockCacheSize() );
+                break;
+
+            case LAYOUT_ELIAS_FANO:
+
+                if ( key_width == VARIABLE || value_type > 0 )
+                    throw new IOException( "LAYOUT_ELIAS_FANO is only for sets of fixed width keys" );
+
+                if ( getSectionOffset( SECTION_KEYS ) < 0 || getSectionOffset( SECTION_ELIAS_FANO ) < 0 )
+                    throw new IOException( "Missing Elias-Fano sections in: " + file.getPath() );
+
+                offset       = getSectionOffset( SECTION_KEYS );
+                elias_fano   = new EliasFano( region, offset, getSectionOffset( SECTION_ELIAS_FANO ), size );
+                break;
+
+            default:
+                throw new IOException( "Unknown layout: " + layout );
+
+        }
+
+        //a file cut short (e.g. copied into place while still being written)
+        //would otherwise only fail once a lookup lands past the end.
+        if ( data_offset > region.length() )
+            throw new IOException( "Truncated file: " + file.getPath() );
+
+        if ( getSectionOffset( SECTION_BLOOM ) >= 0 )
+            bloom = new BloomFilter( region, getSectionOffset( SECTION_BLOOM ) );
+
+        if ( layout == LAYOUT_SORTED && model == null && size > 0 ) {
+
+            int bits = options.getPrefixBits();
+
+            //by default skip the first levels of the search but keep the
+            //table small enough that building it doesn't slow down opening.
+            if ( bits == OpenOptions.AUTO )
+                bits = Math.max( 0, Math.min( OpenOptions.DEFAULT_PREFIX_BITS, 63 - Long.numberOfLeadingZeros( size ) - 4 ) );
+
+            if ( bits > 0 )
+                prefix_table = new PrefixTable( this, bits );
+
+        }
+
+        if ( options.getMode() == OpenOptions.WARM ) {
+
+            List<long[]> ranges = new ArrayList();
+
+            //every lookup goes through these so they come first.
+            int[] index_sections = { SECTION_TREE, SECTION_MODEL, SECTION_BLOOM, SECTION_BLOCK_INDEX, SECTION_PACKED_INDEX, SECTION_ELIAS_FANO };
+
+            for( int id : index_sections ) {
+
+                if ( getSectionOffset( id ) >= 0 )
+                    ranges.add( new long[] { section_offsets[id], section_lengths[id] } );
+
+            }
+
+            ranges.add( new long[] { 0, region.length() } );
+
+            warmer = new Warmer( file, region, ranges, options.getListener() );
+            warmer.start();
+
+        }
+
+    }
+
+    /**
+     * False while a background warm up (OpenOptions.WARM) is still running.
+     */
+    public boolean isWarm() {
+        return warmer == null || warmer.isWarm();
+    }
+
+    /**
+     * Block until a background warm up has finished.
+     */
+    public void awaitWarmup() throws InterruptedException {
+
+        if ( warmer != null )
+            warmer.join();
+
+    }
+
+    private void readDirectory( File file ) throws IOException {
+
+        section_offsets = new long[ MAX_SECTION ];
+        section_lengths = new long[ MAX_SECTION ];
+
+        Arrays.fill( section_offsets, -1 );
+
+        long length = region.length();
+
+        long ptr = region.getLong( length - 8 );
+
+        if ( ptr < HEADER_SIZE || ptr > length - 12 )
+            throw new IOException( "Invalid section directory in: " + file.getPath() );
+
+        int count = region.getInt( ptr );
+        ptr += 4;
+
+        if ( count < 0 || ptr + count * 20L > length - 8 )
+            throw new IOException( "Invalid section directory in: " + file.getPath() );
+
+        for( int i = 0; i < count; ++i ) {
+
+            int id = region.getInt( ptr );
+
+            long section_offset = region.getLong( ptr + 4 );
+            long section_length = region.getLong( ptr + 12 );
+
+            if ( section_offset < 0 || section_length < 0 || section_offset + section_length > length )
+                throw new IOException( "Section " + id + " out of bounds in: " + file.getPath() );
+
+            //ignore sections written by a newer version.
+            if ( id < MAX_SECTION ) {
+                section_offsets[id] = section_offset;
+                section_lengths[id] = section_length;
+            }
+
+            ptr += 20;
+
+        }
+
+    }
+
+    /**
+     * Stop any background warm up and release the mapping.  Only safe once
+     * nothing reads from this collection any more (see ReloadableFlatMap).
+     * Closing more than once does nothing.
+     */
+    public void close() {
+
+        if ( closed )
+            return;
+
+        closed = true;
+
+        boolean interrupted = false;
+
+        if ( warmer != null ) {
+
+            warmer.interrupt();
+
+            //the warmer must not touch the region once it's unmapped.
+            while ( warmer.isAlive() ) {
+
+                try {
+                    warmer.join();
+                } catch ( InterruptedException e ) {
+                    interrupted = true;
+                }
+
+            }
+
+        }
+
+        region.unmap();
+
+        if ( interrupted )
+            Thread.currentThread().interrupt();
+
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Called on the way into every lookup, iterator and stream.  It's a
+     * plain field read so it costs next to nothing on the hot path.
+     */
+    protected void checkOpen() {
+
+        if ( closed )
+            throw new IllegalStateException( "Closed: " + file.getPath() );
+
+    }
+
+    /**
+     * Offset of the given section or -1 if the file doesn't have it.
+     */
+    protected long getSectionOffset( int id ) {
+
+        if ( section_offsets == null )
+            return -1;
+
+        return section_offsets[id];
+
+    }
+
+    /**
+     * Parse a version 1 header.  It has to set size, key_type, value_type and
+     * offset.
+     */
+    protected abstract void readLegacyHeader();
+
+    public int size() {
+        return (int)Math.min( size, Integer.MAX_VALUE );
+    }
+
+    /**
+     * The number of entries, which may be larger than Integer.MAX_VALUE.
+     */
+    public long sizeAsLong() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    protected int getKeyType() {
+        return key_type;
+    }
+
+    protected TypeHandler getKeyTypeHandler() {
+        return key_type_handler;
+    }
+
+    /**
+     * Absolute offset within the region of the key stored at the given
+     * position.
+     */
+    protected long getKeyOffset( long pos ) {
+        return offset + pos * stride;
+    }
+
+    protected long getValueOffset( long pos ) {
+        return value_base + pos * value_stride;
+    }
+
+    protected byte[] getKeyFromPosition( long pos ) {
+
+        checkOpen();
+
+        if ( block_index != null )
+            return block_index.getKey( pos );
+
+        if ( packed != null || elias_fano != null )
+            return toBytes( getRawKeyFromPosition( pos ), key_width );
+
+        return region.get( getKeyOffset( pos ), key_width );
+
+    }
+
+    /**
+     * Perform a binary search of the key space in this flat map, return -1 if
+     * the key was not found or the position of the key in the set/map if it was
+     * found.
+     *
+     */
+    protected long find( Object key ) {
+
+        checkOpen();
+
+        if ( block_index != null )
+            return findEncoded( key_type_handler.toByteArray( key ) );
+
+        return findRaw( key_type_handler.toRawLong( key ) );
+
+    }
 
-import static com.spinn3r.flatmap.FlatMapWriter.*;
+    /**
+     * Find a variable width key given in its encoded form.
+     */
+    protected long findEncoded( byte[] key ) {
 
-/**
- *
- */
-public abstract class BaseFlatCollection  {
+        checkOpen();
 
-    public abstract int size();
+        if ( bloom != null && ! bloom.mightContain( BloomFilter.hash( key ) ) )
+            return -1;
 
-    protected abstract TypeHandler getKeyTypeHandler();
+        return block_index.find( key );
 
-    protected abstract byte[] getKeyFromPosition( int pos );
+    }
 
     /**
-     * Perform a binary search of the key space in this flat map, return -1 if
-     * the key was not found or the position of the key in the set/map if it was
-     * found.
+     * Return the first position whose key is greater than or equal to the
+     * given key (or strictly greater when inclusive is false), or size if
+     * there is none.  This is where the key would be inserted so range
+     * views can be expressed as a pair of positions.
+     */
+    protected long ceilingPosition( Object key, boolean inclusive ) {
+
+        checkOpen();
+
+        if ( block_index != null ) {
+
+            byte[] bytes = key_type_handler.toByteArray( key );
+
+            long pos = block_index.lowerBound( bytes );
+
+            if ( ! inclusive && pos < size &&
+                 ByteArrayComparator.compare( block_index.getKey( pos ), bytes ) == 0 )
+                ++pos;
+
+            return pos;
+
+        }
+
+        return ceilingPositionRaw( key_type_handler.toRawLong( key ), inclusive );
+
+    }
+
+    /**
+     * ceilingPosition for a fixed width key given as its raw value, without
+     * boxing.
+     */
+    protected long ceilingPositionRaw( long raw, boolean inclusive ) {
+
+        checkOpen();
+
+        long sort_key = ByteArrayComparator.sortKey( raw, key_width );
+
+        if ( packed != null )
+            return packed.ceiling( sort_key, inclusive );
+
+        if ( elias_fano != null )
+            return elias_fano.rank( sort_key, inclusive );
+
+        long low = 0;
+        long high = size;
+
+        while ( low < high ) {
+
+            long mid = (low + high) >>> 1;
+            long midVal = getSortKeyFromPosition( mid );
+
+            if ( midVal < sort_key || ( ! inclusive && midVal == sort_key ) )
+                low = mid + 1;
+            else
+                high = mid;
+
+        }
+
+        return low;
+
+    }
+
+    /**
+     * Decode the key at the given position.  Fixed width keys are read
+     * directly from the region.
+     */
+    protected Object getKeyObjectFromPosition( long pos ) {
+
+        checkOpen();
+
+        if ( block_index != null )
+            return key_type_handler.toValue( block_index.getKey( pos ) );
+
+        return key_type_handler.fromRawLong( getRawKeyFromPosition( pos ) );
+
+    }
+
+    /**
+     * Decode the value at the given position.  Only valid for maps.
+     */
+    protected Object getValueObjectFromPosition( long pos ) {
+
+        checkOpen();
+
+        if ( value_type_handler == null )
+            throw new RuntimeException( "Not a map" );
+
+        if ( value_pointers )
+            return value_type_handler.toValue( getValueBytesFromPosition( pos ) );
+
+        return value_type_handler.fromRawLong( getRawValueFromPosition( pos ) );
+
+    }
+
+    /**
+     * Comparator giving the order keys are stored in.  That's the order of
+     * their encoded bytes compared as signed bytes so it isn't the natural
+     * order of the key type, e.g. 128 sorts before 127.
+     */
+    protected Comparator getKeyComparator() {
+        return new ByteArrayComparator( key_type_handler );
+    }
+
+    /*
+     * Spliterators over the positions [from, to), for streams.  Keys are
+     * reported as SORTED by getKeyComparator().
+     */
+
+    protected Spliterator keySpliterator( long from, long to ) {
+
+        checkOpen();
+
+        return new PositionSpliterator( from, to, PositionSpliterator.KEYS, getKeyComparator(),
+                                        this::getKeyObjectFromPosition );
+
+    }
+
+    /**
+     * TYPE_LONG keys, or TYPE_INT keys widened to a long.
+     */
+    protected Spliterator.OfLong longKeySpliterator( long from, long to ) {
+
+        checkOpen();
+
+        if ( key_type != TYPE_INT )
+            requireKeyType( TYPE_LONG );
+
+        return new PositionSpliterator.OfLong( from, to, PositionSpliterator.KEYS, getKeyComparator(),
+                                               this::getRawKeyFromPosition );
+
+    }
+
+    protected Spliterator.OfInt intKeySpliterator( long from, long to ) {
+
+        checkOpen();
+        requireKeyType( TYPE_INT );
+
+        return new PositionSpliterator.OfInt( from, to, PositionSpliterator.KEYS, getKeyComparator(),
+                                              pos -> (int)getRawKeyFromPosition( pos ) );
+
+    }
+
+    /**
+     * TYPE_LONG values, or TYPE_INT values widened to a long.
+     */
+    protected Spliterator.OfLong longValueSpliterator( long from, long to ) {
+
+        checkOpen();
+
+        if ( value_type != TYPE_INT )
+            requireValueType( TYPE_LONG );
+
+        return new PositionSpliterator.OfLong( from, to, PositionSpliterator.BASE, null,
+                                               this::getRawValueFromPosition );
+
+    }
+
+    protected Spliterator.OfInt intValueSpliterator( long from, long to ) {
+
+        checkOpen();
+        requireValueType( TYPE_INT );
+
+        return new PositionSpliterator.OfInt( from, to, PositionSpliterator.BASE, null,
+                                              pos -> (int)getRawValueFromPosition( pos ) );
+
+    }
+
+    /**
+     * Find a key stored as TYPE_LONG without boxing.
+     */
+    protected long findLong( long key ) {
+
+        requireKeyType( TYPE_LONG );
+        return findRaw( key );
+
+    }
+
+    /**
+     * Find a key stored as TYPE_INT without boxing.  An int can be widened
+     * to a TYPE_LONG key exactly so those are accepted as well.
+     */
+    protected long findInt( int key ) {
+
+        if ( key_type != TYPE_LONG )
+            requireKeyType( TYPE_INT );
+
+        return findRaw( key );
+
+    }
+
+    /**
+     * Find a batch of TYPE_LONG or TYPE_INT keys in one pass.  positions[i]
+     * is set to the position of keys[i] or -1 if it isn't present.
      *
+     * The probes are sorted and then found in order by galloping forward
+     * from the previous match, so the file is walked once front to back and
+     * each probe costs log of the distance to the next one rather than log
+     * of the whole file.  Files with a model or a tree use their own search
+     * for each probe, still in sorted order.
+     */
+    protected void findAll( long[] keys, long[] positions ) {
+
+        checkOpen();
+
+        if ( key_type != TYPE_INT )
+            requireKeyType( TYPE_LONG );
+
+        if ( positions.length < keys.length )
+            throw new RuntimeException( "Output array too small: " + positions.length + " < " + keys.length );
+
+        long[] probes = new long[ keys.length ];
+        long[] order  = new long[ keys.length ];
+
+        int count = 0;
+
+        for( int i = 0; i < keys.length; ++i ) {
+
+            long raw = keys[i];
+
+            positions[i] = -1;
+
+            //can't be stored in an int key.
+            if ( key_type == TYPE_INT && raw != (int)raw )
+                continue;
+
+            if ( bloom != null && ! bloom.mightContain( BloomFilter.hash( raw ) ) )
+                continue;
+
+            probes[count] = ByteArrayComparator.sortKey( raw, key_width );
+            order[count]  = i;
+            ++count;
+
+        }
+
+        ParallelSort.radixSort( probes, order, count );
+
+        long pos = 0;
+
+        for( int i = 0; i < count; ++i ) {
+
+            long key = probes[i];
+
+            if ( i > 0 && key == probes[i - 1] ) {
+                positions[ (int)order[i] ] = positions[ (int)order[i - 1] ];
+                continue;
+            }
+
+            //the model and the tree already narrow each search down to a
+            //few nearby reads so there is nothing to gain from galloping.
+            if ( model != null || tree_index != null || packed != null || elias_fano != null ) {
+                positions[ (int)order[i] ] = search( key );
+                continue;
+            }
+
+            pos = gallop( key, pos );
+
+            //everything left sorts after the last key.
+            if ( pos >= size )
+                break;
+
+            if ( getSortKeyFromPosition( pos ) == key )
+                positions[ (int)order[i] ] = pos;
+
+        }
+
+    }
+
+    /**
+     * Return the first position at or after from whose key is not less than
+     * the given sort key, or size if there is none.  Steps forward 1, 2, 4...
+     * positions until it passes the key and then binary searches the last
+     * step.
+     */
+    long gallop( long key, long from ) {
+
+        if ( from >= size || getSortKeyFromPosition( from ) >= key )
+            return from;
+
+        //key(low) < key and high is either size or key(high) >= key.
+        long low = from;
+        long high;
+
+        for( long step = 1; ; step <<= 1 ) {
+
+            high = low + step;
+
+            if ( high >= size ) {
+                high = size;
+                break;
+            }
+
+            if ( getSortKeyFromPosition( high ) >= key )
+                break;
+
+            low = high;
+
+        }
+
+        while ( high - low > 1 ) {
+
+            long mid = (low + high) >>> 1;
+
+            if ( getSortKeyFromPosition( mid ) < key )
+                low = mid;
+            else
+                high = mid;
+
+        }
+
+        return high;
+
+    }
+
+    /**
+     * Binary search comparing directly against the region, narrowed to the
+     * window predicted by the model when there is one.  Nothing is
+     * allocated here which matters since this is on the hot path of every
+     * lookup.
      */
-    protected int find( Object key ) {
+    protected long findRaw( long raw ) {
 
-        TypeHandler key_type_handler = getKeyTypeHandler();
-                
-        //make the key a byte array
-        byte[] key_data = key_type_handler.toByteArray( key );
+        checkOpen();
 
-    	int low = 0;
-    	int high = size() -1;
+        if ( bloom != null && ! bloom.mightContain( BloomFilter.hash( raw ) ) )
+            return -1;
+
+        return search( ByteArrayComparator.sortKey( raw, key_width ) );
+
+    }
+
+    /**
+     * Find the position of the given sort key, or -1.
+     */
+    private long search( long key ) {
+
+        if ( tree_index != null )
+            return tree_index.find( key );
+
+        if ( packed != null )
+            return packed.find( key );
+
+        if ( elias_fano != null )
+            return elias_fano.find( key );
+
+    	long low = 0;
+    	long high = size -1;
+
+        if ( prefix_table != null ) {
+
+            low = prefix_table.getStart( key );
+
+            if ( low < 0 )
+                return -1;
+
+            high = prefix_table.getEnd( key ) - 1;
+
+        }
+
+        if ( model != null ) {
+
+            long guess = model.predict( key );
+
+            if ( guess < 0 )
+                return -1;
+
+            guess = Math.min( guess, size - 1 );
+
+            int max_error = model.getMaxError();
+
+            low  = Math.max( 0, guess - max_error );
+            high = Math.min( size - 1, guess + max_error );
+
+            //rounding can put a key just outside the window so widen it
+            //until it brackets the key.
+            for( long step = max_error + 1; low > 0 && getSortKeyFromPosition( low ) > key; step <<= 1 ) {
+                low = Math.max( 0, low - step );
+            }
+
+            for( long step = max_error + 1; high < size - 1 && getSortKeyFromPosition( high ) < key; step <<= 1 ) {
+                high = Math.min( size - 1, high + step );
+            }
+
+        }
 
     	while (low <= high) {
 
-    	    int mid = (low + high) >>> 1;
-    	    byte[] midVal = getKeyFromPosition(mid);
-            
-    	    int cmp = ByteArrayComparator.compare( midVal, key_data );
-            
-    	    if (cmp < 0) {
+    	    long mid = (low + high) >>> 1;
+    	    long midVal = getSortKeyFromPosition( mid );
+
+    	    if (midVal < key) {
                 low = mid + 1;
-            } else if (cmp > 0) {
+            } else if (midVal > key) {
                 high = mid - 1;
             } else {
                 // key found
-                return mid; 
+                return mid;
             }
-            
+
     	}
 
     	return -1;  // key not found
-        
+
+    }
+
+    /**
+     * Return a read only view of a variable width value directly from the
+     * mapped data section.
+     */
+    protected ByteBuffer getValueBufferFromPosition( long pos ) {
+
+        long ptr = data_offset + getValuePointer( pos );
+
+        //varint length prefix
+        int length = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            b = region.get( ptr++ );
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ( b < 0 );
+
+        return region.slice( ptr, length );
+
+    }
+
+    protected byte[] getValueBytesFromPosition( long pos ) {
+
+        ByteBuffer buff = getValueBufferFromPosition( pos );
+
+        byte[] result = new byte[ buff.remaining() ];
+        buff.get( result );
+
+        return result;
+
+    }
+
+    /**
+     * The value at the given position exactly as it was encoded by the
+     * writer.
+     */
+    protected byte[] getEncodedValueFromPosition( long pos ) {
+
+        if ( value_pointers )
+            return getValueBytesFromPosition( pos );
+
+        if ( packed != null )
+            return toBytes( packed.getRawValue( pos ), value_width );
+
+        return region.get( getValueOffset( pos ), value_width );
+
+    }
+
+    private long getValuePointer( long pos ) {
+
+        if ( value_width == 8 )
+            return region.getLong( getValueOffset( pos ) );
+
+        //4 byte pointers are unsigned.
+        return region.getInt( getValueOffset( pos ) ) & 0xFFFFFFFFL;
+
+    }
+
+    /**
+     * Read the key at the given position as a sign extended long.
+     */
+    long getSortKeyFromPosition( long pos ) {
+
+        checkOpen();
+
+        if ( packed != null )
+            return packed.getSortKey( pos );
+
+        if ( elias_fano != null )
+            return elias_fano.select( pos );
+
+        return ByteArrayComparator.sortKey( getRawKeyFromPosition( pos ), key_width );
+
+    }
+
+    protected long getRawKeyFromPosition( long pos ) {
+
+        checkOpen();
+
+        if ( packed != null || elias_fano != null )
+            return ByteArrayComparator.fromSortKey( getSortKeyFromPosition( pos ), key_width );
+
+        return getRaw( getKeyOffset( pos ), key_width );
+
     }
 
-    protected ByteBuffer getByteBuffer( File file ) throws IOException {
+    protected long getRawValueFromPosition( long pos ) {
 
-        FileInputStream in = new FileInputStream( file );
-        FileChannel channel = in.getChannel();
+        checkOpen();
 
-        /*
-         * http://en.wikipedia.org/wiki/Mmap
-         * 
-         * "In computing, mmap is a POSIX-compliant Unix system call that maps
-         * files or devices into memory. It is a method of memory-mapped file
-         * I/O. It naturally implements demand paging, because initially file
-         * contents are not entirely read from disk and don't use physical RAM at
-         * all. The actual reads from disk are done just in time.
-         */
-        MappedByteBuffer bbuf = channel.map( FileChannel.MapMode.READ_ONLY, 0, (int)channel.size() );
-        // force this buffer to load so that it doesn't load lazily.
-        bbuf.load();
+        if ( packed != null )
+            return packed.getRawValue( pos );
+
+        return getRaw( getValueOffset( pos ), value_width );
 
-        return bbuf;
-        
     }
 
     /**
-     * Given an offset, and a length, fetch the given blocks.
+     * Encode a raw value of the given width as it's stored in a record.
      */
-    protected byte[] get( ByteBuffer bbuf, int offset, int length ) {
-        byte[] buff = new byte[length];
+    private static byte[] toBytes( long raw, int width ) {
+
+        byte[] result = new byte[ width ];
 
-        //this is what ByteBuffer does internally anyway.
-        for( int i = 0; i < length; ++i ) {
-            buff[i] = bbuf.get( offset + i );
+        for( int i = width - 1; i >= 0; --i ) {
+            result[i] = (byte)raw;
+            raw >>= 8;
         }
 
-        return buff;
+        return result;
+
     }
 
-}
+    /**
+     * Read a value of the given width (in bytes) as a sign extended long.
+     */
+    protected long getRaw( long offset, int width ) {
 
+        switch( width ) {
+
+            case 8:
+                return region.getLong( offset );
+            case 4:
+                return region.getInt( offset );
+            case 2:
+                return region.getShort( offset );
+            case 1:
+                return region.get( offset );
+
+        }
+
+        throw new RuntimeException( "Unsupported width: " + width );
+
+    }
+
+    protected void requireKeyType( int type ) {
+
+        if ( key_type != type )
+            throw new RuntimeException( "Key type mismatch: " + key_type + " vs " + type );
+
+    }
+
+    protected void requireValueType( int type ) {
+
+        if ( value_type != type )
+            throw new RuntimeException( "Value type mismatch: " + value_type + " vs " + type );
+
+    }
+
+}
@@ -0,0 +1,1098 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Simple benchmark harness.  Reports throughput and the number of bytes
+ * allocated per lookup (as measured by the JVM's per thread allocation
+ * counter) for the boxed and primitive FlatMap lookup paths.
+ *
+ * Usage: Benchmark [entries] [lookups] [prefix table file sizes...]
+ *
+ * The prefix table benchmark builds files of hashed keys of each given size
+ * (1M and 10M by default, pass e.g. 1000000 100000000 1000000000 to go up to
+ * 1B entries given the disk space) and compares binary search with prefix
+ * tables of several sizes.
+ */
+public class Benchmark {
+
+    static com.sun.management.ThreadMXBean threadBean =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    static long allocated() {
+        return threadBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+
+    static void report( String name, long lookups, long before_time, long before_alloc ) {
+
+        long duration = System.nanoTime() - before_time;
+        long alloc    = allocated() - before_alloc;
+
+        System.out.printf( "%-30s %,12d lookups/sec %8.2f bytes/lookup\n",
+                           name,
+                           (long)(lookups / (duration / 1000000000.0)),
+                           alloc / (double)lookups );
+
+    }
+
+    public static void benchmarkLookup( FlatMap<Long,Integer> fmap, int entries, int lookups ) {
+
+        Random r = new Random( 42 );
+        long sum = 0;
+
+        //warm up both paths so that we measure compiled code.
+        for( int i = 0; i < lookups; ++i ) {
+            sum += fmap.get( (long)r.nextInt( entries ) );
+            sum += fmap.getInt( (long)r.nextInt( entries ), -1 );
+        }
+
+        long before_time  = System.nanoTime();
+        long before_alloc = allocated();
+
+        for( int i = 0; i < lookups; ++i ) {
+            sum += fmap.get( (long)r.nextInt( entries ) );
+        }
+
+        report( "get(Long)", lookups, before_time, before_alloc );
+
+        before_time  = System.nanoTime();
+        before_alloc = allocated();
+
+        for( int i = 0; i < lookups; ++i ) {
+            sum += fmap.getInt( r.nextInt( entries ), -1 );
+        }
+
+        report( "getInt(long,int)", lookups, before_time, before_alloc );
+
+        //keep the JIT from eliminating the loops.
+        if ( sum == 42 )
+            System.out.printf( "%d\n", sum );
+
+    }
+
+    /**
+     * Compare primitive lookups against the sorted layout (with and without
+     * a learned index) and against B+tree layouts with cache line and page
+     * sized nodes.
+     */
+    public static void benchmarkLayouts( Map<Long,Integer> map, int entries, int lookups ) throws Exception {
+
+        String[] names = { "sorted", "sorted (learned index)", "btree (64 byte nodes)", "btree (4096 byte nodes)" };
+        int[] layouts = { BaseFlatCollection.LAYOUT_SORTED, BaseFlatCollection.LAYOUT_SORTED, BaseFlatCollection.LAYOUT_BTREE, BaseFlatCollection.LAYOUT_BTREE };
+        int[] node_sizes = { 0, 0, 64, 4096 };
+        boolean[] learned = { false, true, false, false };
+
+        for( int i = 0; i < names.length; ++i ) {
+
+            File file = File.createTempFile( "benchmark", ".fmp" );
+            file.deleteOnExit();
+
+            FlatMapWriter writer = new FlatMapWriter();
+            writer.setLayout( layouts[i] );
+            writer.setLearnedIndex( learned[i] );
+
+            if ( node_sizes[i] > 0 )
+                writer.setNodeSize( node_sizes[i] );
+
+            writer.write( map, file );
+
+            FlatMap<Long,Integer> fmap = new FlatMap( file );
+
+            Random r = new Random( 42 );
+            long sum = 0;
+
+            //warm up so that we measure compiled code.
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( r.nextInt( entries ), -1 );
+            }
+
+            long before_time  = System.nanoTime();
+            long before_alloc = allocated();
+
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( r.nextInt( entries ), -1 );
+            }
+
+            report( names[i], lookups, before_time, before_alloc );
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+    }
+
+    /**
+     * Lookups of keys which aren't in the map, with and without a Bloom
+     * filter.  The map holds even keys and the lookups are for odd ones so
+     * every miss lands inside the key range.
+     */
+    public static void benchmarkMisses( int entries, int lookups ) throws Exception {
+
+        Map<Long,Integer> map = new HashMap();
+
+        for( int i = 0; i < entries; ++i ) {
+            map.put( i * 2L, i );
+        }
+
+        double[] fpps = { 0, 0.01 };
+
+        for( double fpp : fpps ) {
+
+            File file = File.createTempFile( "benchmark", ".fmp" );
+            file.deleteOnExit();
+
+            FlatMapWriter writer = new FlatMapWriter();
+            writer.setBloomFilter( fpp );
+            writer.write( map, file );
+
+            FlatMap<Long,Integer> fmap = new FlatMap( file );
+
+            Random r = new Random( 42 );
+            long sum = 0;
+
+            //warm up so that we measure compiled code.
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( r.nextInt( entries ) * 2L + 1, -1 );
+            }
+
+            long before_time  = System.nanoTime();
+            long before_alloc = allocated();
+
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( r.nextInt( entries ) * 2L + 1, -1 );
+            }
+
+            report( fpp > 0 ? "misses (bloom " + fpp + ")" : "misses", lookups, before_time, before_alloc );
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+    }
+
+    /**
+     * Looking up batches of keys one at a time vs with getAll, with and
+     * without the learned index.
+     */
+    public static void benchmarkBatch( Map<Long,Integer> map, int entries, int lookups ) throws Exception {
+
+        int batch_size = 10000;
+
+        boolean[] learned = { false, true };
+
+        for( boolean learned_index : learned ) {
+
+            File file = File.createTempFile( "benchmark", ".fmp" );
+            file.deleteOnExit();
+
+            FlatMapWriter writer = new FlatMapWriter();
+            writer.setLearnedIndex( learned_index );
+            writer.write( map, file );
+
+            FlatMap<Long,Integer> fmap = new FlatMap( file );
+
+            String suffix = learned_index ? " (learned index)" : "";
+
+            Random r = new Random( 42 );
+            long[] keys = new long[ batch_size ];
+            int[] values = new int[ batch_size ];
+            long sum = 0;
+
+            for( int pass = 0; pass < 2; ++pass ) {
+
+                long before_time  = System.nanoTime();
+                long before_alloc = allocated();
+
+                for( int done = 0; done < lookups; done += batch_size ) {
+
+                    for( int i = 0; i < batch_size; ++i ) {
+                        keys[i] = r.nextInt( entries );
+                    }
+
+                    for( int i = 0; i < batch_size; ++i ) {
+                        sum += fmap.getInt( keys[i], -1 );
+                    }
+
+                }
+
+                //the first pass is a warm up.
+                if ( pass > 0 )
+                    report( "getInt x " + batch_size + suffix, lookups, before_time, before_alloc );
+
+                before_time  = System.nanoTime();
+                before_alloc = allocated();
+
+                for( int done = 0; done < lookups; done += batch_size ) {
+
+                    for( int i = 0; i < batch_size; ++i ) {
+                        keys[i] = r.nextInt( entries );
+                    }
+
+                    fmap.getAll( keys, values, -1 );
+                    sum += values[0];
+
+                }
+
+                if ( pass > 0 )
+                    report( "getAll(" + batch_size + ")" + suffix, lookups, before_time, before_alloc );
+
+            }
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+    }
+
+    /**
+     * Scanning every entry through the entry set vs a cursor vs streams.
+     */
+    public static void benchmarkScan( FlatMap<Long,Integer> fmap, int entries ) {
+
+        long sum = 0;
+
+        for( int pass = 0; pass < 2; ++pass ) {
+
+            long before_time  = System.nanoTime();
+            long before_alloc = allocated();
+
+            for( Map.Entry<Long,Integer> entry : fmap.entrySet() ) {
+                sum += entry.getValue();
+            }
+
+            //the first pass is a warm up.
+            if ( pass > 0 )
+                report( "scan entrySet()", entries, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            Cursor cursor = fmap.cursor();
+
+            while ( cursor.next() ) {
+                sum += cursor.valueAsInt();
+            }
+
+            if ( pass > 0 )
+                report( "scan cursor()", entries, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            sum += fmap.intValueStream().sum();
+
+            if ( pass > 0 )
+                report( "scan intValueStream()", entries, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            sum += fmap.intValueStream().parallel().sum();
+
+            if ( pass > 0 )
+                report( "scan parallel()", entries, before_time, before_alloc );
+
+        }
+
+        if ( sum == 42 )
+            System.out.printf( "%d\n", sum );
+
+    }
+
+    /**
+     * "Seen today but not yesterday" by iterating one set and calling
+     * contains on the other vs a merge with SetOperations.  Also a small set
+     * intersected with a large one, which gallops.
+     */
+    public static void benchmarkSetOperations( int entries ) throws Exception {
+
+        Random r = new Random( 42 );
+
+        Set<Long> today = new HashSet();
+        Set<Long> yesterday = new HashSet();
+        Set<Long> sample = new HashSet();
+
+        while ( today.size() < entries ) {
+            today.add( (long)r.nextInt( entries * 2 ) );
+            yesterday.add( (long)r.nextInt( entries * 2 ) );
+        }
+
+        while ( sample.size() < 1000 ) {
+            sample.add( (long)r.nextInt( entries * 2 ) );
+        }
+
+        File today_file = File.createTempFile( "benchmark", ".fst" );
+        File yesterday_file = File.createTempFile( "benchmark", ".fst" );
+        File sample_file = File.createTempFile( "benchmark", ".fst" );
+        File out = File.createTempFile( "benchmark", ".fst" );
+
+        today_file.deleteOnExit();
+        yesterday_file.deleteOnExit();
+        sample_file.deleteOnExit();
+        out.deleteOnExit();
+
+        new FlatSetWriter().write( today, today_file );
+        new FlatSetWriter().write( yesterday, yesterday_file );
+        new FlatSetWriter().write( sample, sample_file );
+
+        today = yesterday = sample = null;
+
+        FlatSet<Long> ftoday = new FlatSet( today_file );
+        FlatSet<Long> fyesterday = new FlatSet( yesterday_file );
+        FlatSet<Long> fsample = new FlatSet( sample_file );
+
+        long count = 0;
+
+        for( int pass = 0; pass < 2; ++pass ) {
+
+            long before_time  = System.nanoTime();
+            long before_alloc = allocated();
+
+            Cursor cursor = ftoday.cursor();
+
+            while ( cursor.next() ) {
+
+                if ( ! fyesterday.containsLong( cursor.keyAsLong() ) )
+                    ++count;
+
+            }
+
+            //the first pass is a warm up.
+            if ( pass > 0 )
+                report( "difference with contains", entries, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            count += ftoday.sizeAsLong() - SetOperations.intersectionSize( ftoday, fyesterday );
+
+            if ( pass > 0 )
+                report( "difference with merge", entries, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            count += SetOperations.difference( ftoday, fyesterday, out );
+
+            if ( pass > 0 )
+                report( "difference written to a file", entries, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            for( int i = 0; i < 100; ++i ) {
+                count += SetOperations.intersectionSize( fsample, ftoday );
+            }
+
+            if ( pass > 0 )
+                report( "intersect 1000 x " + entries, 100 * 1000, before_time, before_alloc );
+
+        }
+
+        if ( count == 42 )
+            System.out.printf( "%d\n", count );
+
+    }
+
+    /**
+     * Lookups in a base file alone vs the base plus 24 hourly deltas.  The
+     * deltas either update random keys (skipped by their Bloom filters) or
+     * append new IDs (skipped by their key ranges).
+     */
+    public static void benchmarkStack( int entries, int lookups ) throws Exception {
+
+        List<File> files = new ArrayList();
+
+        FlatMapBuilder<Long,Integer> builder = new FlatMapBuilder( tempFile( files ) );
+
+        for( long i = 0; i < entries; ++i ) {
+            builder.add( i, (int)i );
+        }
+
+        builder.finish();
+
+        FlatMap<Long,Integer> base = new FlatMap( files.get( 0 ) );
+
+        String[] kinds = { "updates", "appends" };
+
+        for( String kind : kinds ) {
+
+            List<File> stack_files = new ArrayList( files.subList( 0, 1 ) );
+
+            Random r = new Random( 42 );
+
+            for( int hour = 0; hour < 24; ++hour ) {
+
+                Map<Long,Integer> delta = new HashMap();
+
+                for( int i = 0; i < entries / 100; ++i ) {
+
+                    if ( kind.equals( "updates" ) )
+                        delta.put( (long)r.nextInt( entries ), -i );
+                    else
+                        delta.put( (long)entries + hour * ( entries / 100 ) + i, -i );
+
+                }
+
+                FlatMapWriter writer = new FlatMapWriter();
+                writer.setBloomFilter( 0.01 );
+                writer.write( delta, tempFile( stack_files ) );
+
+            }
+
+            FlatMapStack<Long,Integer> stack = new FlatMapStack( stack_files );
+
+            long sum = 0;
+
+            for( int pass = 0; pass < 2; ++pass ) {
+
+                long before_time  = System.nanoTime();
+                long before_alloc = allocated();
+
+                for( int i = 0; i < lookups; ++i ) {
+                    sum += base.getInt( (long)r.nextInt( entries ), -1 );
+                }
+
+                //the first pass is a warm up.
+                if ( pass > 0 )
+                    report( "single file", lookups, before_time, before_alloc );
+
+                before_time  = System.nanoTime();
+                before_alloc = allocated();
+
+                for( int i = 0; i < lookups; ++i ) {
+                    sum += stack.getInt( (long)r.nextInt( entries ), -1 );
+                }
+
+                if ( pass > 0 )
+                    report( "stack of 25 (" + kind + ")", lookups, before_time, before_alloc );
+
+            }
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+    }
+
+    /**
+     * Cost of going through a ReloadableFlatMap: a lease per lookup, a lease
+     * per batch, and lookups while generations are swapped in underneath.
+     */
+    public static void benchmarkReload( int entries, int lookups ) throws Exception {
+
+        List<File> files = new ArrayList();
+
+        final File file = tempFile( files );
+
+        FlatMapBuilder<Long,Integer> builder = new FlatMapBuilder( file );
+
+        for( long i = 0; i < entries; ++i ) {
+            builder.add( i, (int)i );
+        }
+
+        builder.finish();
+
+        final ReloadableFlatMap<Long,Integer> handle = new ReloadableFlatMap( file );
+
+        Random r = new Random( 42 );
+
+        long sum = 0;
+
+        for( int pass = 0; pass < 2; ++pass ) {
+
+            long before_time  = System.nanoTime();
+            long before_alloc = allocated();
+
+            try ( ReloadableFlatMap.Lease<Long,Integer> lease = handle.acquire() ) {
+
+                FlatMap<Long,Integer> map = lease.get();
+
+                for( int i = 0; i < lookups; ++i ) {
+                    sum += map.getInt( (long)r.nextInt( entries ), -1 );
+                }
+
+            }
+
+            if ( pass > 0 )
+                report( "one lease", lookups, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            for( int i = 0; i < lookups; ++i ) {
+                sum += handle.getInt( (long)r.nextInt( entries ), -1 );
+            }
+
+            if ( pass > 0 )
+                report( "lease per lookup", lookups, before_time, before_alloc );
+
+        }
+
+        //swap a new copy in every 100ms while looking up.
+        final AtomicBoolean done = new AtomicBoolean( false );
+
+        Thread reloader = new Thread() {
+
+            public void run() {
+
+                try {
+
+                    while ( ! done.get() ) {
+                        Thread.sleep( 100 );
+
+                        File temp = AtomicFile.temp( file );
+                        Files.copy( file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING );
+                        AtomicFile.commit( temp, file );
+
+                        handle.reload();
+                    }
+
+                } catch ( Exception e ) {
+                    e.printStackTrace();
+                }
+
+            }
+
+        };
+
+        reloader.start();
+
+        long before_time  = System.nanoTime();
+        long before_alloc = allocated();
+
+        for( int i = 0; i < lookups; ++i ) {
+            sum += handle.getInt( (long)r.nextInt( entries ), -1 );
+        }
+
+        report( "lease per lookup, reloading", lookups, before_time, before_alloc );
+
+        done.set( true );
+        reloader.join();
+
+        System.out.printf( "%,d generations\n", handle.getGeneration() );
+
+        handle.close();
+
+        if ( sum == 42 )
+            System.out.printf( "%d\n", sum );
+
+    }
+
+    /**
+     * Sustained updates into a MutableFlatMap (including any time spent
+     * waiting for flushes) and lookups which have to check the memtables
+     * and newer files before the compacted base.
+     */
+    public static void benchmarkMutable( int entries, int lookups ) throws Exception {
+
+        File directory = Files.createTempDirectory( "benchmark" ).toFile();
+
+        MutableFlatMap<Long,Integer> map = new MutableFlatMap( directory );
+
+        map.setFlushThreshold( 16 * 1024 * 1024 );
+
+        //single threaded, so waiting for every fsync would measure the disk.
+        //See benchmarkLog.
+        map.setSyncInterval( 100 );
+
+        long before_time = System.nanoTime();
+
+        for( long i = 0; i < entries; ++i ) {
+            map.put( i, (int)i );
+        }
+
+        map.compact();
+
+        reportUpdates( "initial load", entries, before_time );
+
+        Random r = new Random( 42 );
+
+        before_time = System.nanoTime();
+
+        for( int i = 0; i < entries / 2; ++i ) {
+            map.put( (long)r.nextInt( entries ), -i );
+        }
+
+        reportUpdates( "random updates", entries / 2, before_time );
+
+        long sum = 0;
+
+        //with the last memtable still in memory, then written out, then
+        //merged into the base.
+        for( int stage = 0; stage < 3; ++stage ) {
+
+            if ( stage == 1 )
+                map.flush();
+
+            if ( stage == 2 )
+                map.compact();
+
+            String name = stage == 0 ? "memtable" : "no memtable";
+
+            for( int pass = 0; pass < 2; ++pass ) {
+
+                long before_alloc = allocated();
+
+                before_time = System.nanoTime();
+
+                for( int i = 0; i < lookups; ++i ) {
+                    sum += map.getInt( (long)r.nextInt( entries ), -1 );
+                }
+
+                if ( pass > 0 )
+                    report( name + ", " + map.getFileCount() + " files", lookups, before_time, before_alloc );
+
+            }
+
+        }
+
+        map.close();
+
+        for( File file : directory.listFiles() ) {
+            file.delete();
+        }
+
+        directory.delete();
+
+        if ( sum == 42 )
+            System.out.printf( "%d\n", sum );
+
+    }
+
+    /**
+     * Updates to a MutableFlatMap which wait for the write ahead log to be
+     * on disk, with more and more writers sharing each fsync, compared with
+     * syncing in the background.
+     */
+    public static void benchmarkLog( int updates ) throws Exception {
+
+        int[] thread_counts = { 1, 4, 16, 64 };
+
+        for( int threads : thread_counts ) {
+            benchmarkLog( "log sync, " + threads + " writers", threads, updates, 0 );
+        }
+
+        benchmarkLog( "log sync every 100ms", 1, updates, 100 );
+
+    }
+
+    private static void benchmarkLog( String name, int threads, final int updates, long sync_interval ) throws Exception {
+
+        File directory = Files.createTempDirectory( "benchmark" ).toFile();
+
+        final MutableFlatMap<Long,Integer> map = new MutableFlatMap( directory );
+
+        map.setSyncInterval( sync_interval );
+
+        Thread[] writers = new Thread[ threads ];
+
+        final int per_thread = updates / threads;
+
+        long before_time = System.nanoTime();
+
+        for( int i = 0; i < threads; ++i ) {
+
+            final long base = (long)i * per_thread;
+
+            writers[i] = new Thread() {
+
+                public void run() {
+
+                    for( long key = base; key < base + per_thread; ++key ) {
+                        map.put( key, (int)key );
+                    }
+
+                }
+
+            };
+
+            writers[i].start();
+
+        }
+
+        for( Thread writer : writers ) {
+            writer.join();
+        }
+
+        reportUpdates( name, per_thread * threads, before_time );
+
+        map.close();
+
+        for( File file : directory.listFiles() ) {
+            file.delete();
+        }
+
+        directory.delete();
+
+    }
+
+    /**
+     * Building one file against building shards in parallel, and lookups
+     * routed to a shard against a search of the one file.
+     */
+    public static void benchmarkSharded( Map<Long,Integer> map, int entries, int lookups ) throws Exception {
+
+        File file = File.createTempFile( "benchmark", ".fmp" );
+        file.deleteOnExit();
+
+        long before_build = System.nanoTime();
+        new FlatMapWriter().write( map, file );
+        long build_ms = ( System.nanoTime() - before_build ) / 1000000;
+
+        System.out.printf( "%-30s %,12d ms to build\n", "single file", build_ms );
+
+        file.delete();
+
+        int[] partitionings = { ShardedFlatMap.PARTITION_HASH, ShardedFlatMap.PARTITION_RANGE };
+
+        for( int partitioning : partitionings ) {
+
+            File directory = Files.createTempDirectory( "benchmark" ).toFile();
+
+            ShardedFlatMapWriter writer = new ShardedFlatMapWriter();
+            writer.setPartitioning( partitioning );
+            writer.setShards( 16 );
+
+            before_build = System.nanoTime();
+            writer.write( map, directory );
+            build_ms = ( System.nanoTime() - before_build ) / 1000000;
+
+            String name = partitioning == ShardedFlatMap.PARTITION_HASH ? "16 hash shards" : "16 range shards";
+
+            System.out.printf( "%-30s %,12d ms to build\n", name, build_ms );
+
+            ShardedFlatMap<Long,Integer> sharded = new ShardedFlatMap( directory );
+
+            Random r = new Random( 42 );
+            long sum = 0;
+
+            for( int pass = 0; pass < 2; ++pass ) {
+
+                long before_time  = System.nanoTime();
+                long before_alloc = allocated();
+
+                for( int i = 0; i < lookups; ++i ) {
+                    sum += sharded.getInt( r.nextInt( entries ), -1 );
+                }
+
+                if ( pass > 0 )
+                    report( name + ", getInt", lookups, before_time, before_alloc );
+
+            }
+
+            sharded.close();
+
+            for( File shard : directory.listFiles() ) {
+                shard.delete();
+            }
+
+            directory.delete();
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+    }
+
+    /**
+     * File size and lookups for LAYOUT_PACKED against LAYOUT_SORTED, with a
+     * block cache large enough for the whole map and with one holding a
+     * fraction of it.
+     */
+    public static void benchmarkPacked( Map<Long,Integer> map, int entries, int lookups ) throws Exception {
+
+        File sorted = File.createTempFile( "benchmark", ".fmp" );
+        sorted.deleteOnExit();
+
+        File packed = File.createTempFile( "benchmark", ".fmp" );
+        packed.deleteOnExit();
+
+        new FlatMapWriter().write( map, sorted );
+
+        FlatMapWriter writer = new FlatMapWriter();
+        writer.setLayout( BaseFlatCollection.LAYOUT_PACKED );
+        writer.write( map, packed );
+
+        System.out.printf( "%-30s %,12d bytes\n", "sorted file", sorted.length() );
+        System.out.printf( "%-30s %,12d bytes\n", "packed file", packed.length() );
+
+        String[] names = { "packed, 32MB cache", "packed, 1MB cache" };
+        long[] cache_sizes = { OpenOptions.DEFAULT_BLOCK_CACHE_SIZE, 1024 * 1024 };
+
+        for( int i = 0; i < names.length; ++i ) {
+
+            OpenOptions options = new OpenOptions();
+            options.setBlockCacheSize( cache_sizes[i] );
+
+            FlatMap<Long,Integer> fmap = new FlatMap( packed, options );
+
+            Random r = new Random( 42 );
+            long sum = 0;
+
+            //warm up so that we measure compiled code and a full cache.
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( r.nextInt( entries ), -1 );
+            }
+
+            long before_decoded = fmap.packed.decoded;
+            long before_time    = System.nanoTime();
+            long before_alloc   = allocated();
+
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( r.nextInt( entries ), -1 );
+            }
+
+            report( names[i], lookups, before_time, before_alloc );
+
+            System.out.printf( "%-30s %,12d blocks decoded\n", names[i], fmap.packed.decoded - before_decoded );
+
+            fmap.close();
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+    }
+
+    /**
+     * File size, membership and a full scan of a seen-set of IDs (every
+     * other ID of a dense range) as LAYOUT_SORTED and LAYOUT_ELIAS_FANO.
+     */
+    public static void benchmarkEliasFano( int entries, int lookups ) throws Exception {
+
+        Set<Long> set = new HashSet();
+
+        for( long i = 0; i < entries; ++i ) {
+            set.add( i * 2 );
+        }
+
+        String[] names = { "sorted set", "elias-fano set" };
+        int[] layouts = { BaseFlatCollection.LAYOUT_SORTED, BaseFlatCollection.LAYOUT_ELIAS_FANO };
+
+        for( int i = 0; i < names.length; ++i ) {
+
+            File file = File.createTempFile( "benchmark", ".fst" );
+            file.deleteOnExit();
+
+            FlatSetWriter writer = new FlatSetWriter();
+            writer.setLayout( layouts[i] );
+            writer.write( set, file );
+
+            System.out.printf( "%-30s %,12d bytes\n", names[i], file.length() );
+
+            FlatSet<Long> fset = new FlatSet( file );
+
+            Random r = new Random( 42 );
+            long sum = 0;
+
+            //warm up so that we measure compiled code.
+            for( int j = 0; j < lookups; ++j ) {
+
+                if ( fset.containsLong( r.nextInt( entries * 2 ) ) )
+                    ++sum;
+
+            }
+
+            long before_time  = System.nanoTime();
+            long before_alloc = allocated();
+
+            for( int j = 0; j < lookups; ++j ) {
+
+                if ( fset.containsLong( r.nextInt( entries * 2 ) ) )
+                    ++sum;
+
+            }
+
+            report( names[i] + ", containsLong", lookups, before_time, before_alloc );
+
+            before_time  = System.nanoTime();
+            before_alloc = allocated();
+
+            Cursor cursor = fset.cursor();
+
+            while ( cursor.next() ) {
+                sum += cursor.keyAsLong();
+            }
+
+            report( names[i] + ", scan", entries, before_time, before_alloc );
+
+            fset.close();
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+    }
+
+    static void reportUpdates( String name, long updates, long before_time ) {
+
+        long duration = System.nanoTime() - before_time;
+
+        System.out.printf( "%-30s %,12d updates/sec\n",
+                           name,
+                           (long)(updates / (duration / 1000000000.0)) );
+
+    }
+
+    private static File tempFile( List<File> files ) throws IOException {
+
+        File file = File.createTempFile( "benchmark", ".fmp" );
+        file.deleteOnExit();
+
+        files.add( file );
+
+        return file;
+
+    }
+
+    public static void benchmarkPrefixTable( long entries, int lookups ) throws Exception {
+
+        File file = File.createTempFile( "benchmark", ".fmp" );
+        file.deleteOnExit();
+
+        //no learned index since it replaces the prefix table.
+        FlatMapBuilder<Long,Integer> builder = new FlatMapBuilder( file );
+        builder.setLearnedIndex( false );
+
+        for( long i = 0; i < entries; ++i ) {
+            builder.add( BloomFilter.hash( i ), (int)i );
+        }
+
+        builder.finish();
+
+        int[] bits = { 0, 8, 12, 16, 20 };
+
+        for( int b : bits ) {
+
+            OpenOptions options = new OpenOptions();
+            options.setPrefixBits( b );
+
+            long before_open = System.nanoTime();
+            FlatMap<Long,Integer> fmap = new FlatMap( file, options );
+            long open_ms = ( System.nanoTime() - before_open ) / 1000000;
+
+            Random r = new Random( 42 );
+            long sum = 0;
+
+            //warm up so that we measure compiled code.
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( BloomFilter.hash( (long)( r.nextDouble() * entries ) ), -1 );
+            }
+
+            long before_time  = System.nanoTime();
+            long before_alloc = allocated();
+
+            for( int j = 0; j < lookups; ++j ) {
+                sum += fmap.getInt( BloomFilter.hash( (long)( r.nextDouble() * entries ) ), -1 );
+            }
+
+            report( String.format( "%,d entries, %d bits", entries, b ), lookups, before_time, before_alloc );
+            System.out.printf( "%-30s %,12d ms to open\n", "", open_ms );
+
+            if ( sum == 42 )
+                System.out.printf( "%d\n", sum );
+
+        }
+
+        file.delete();
+
+    }
+
+    public static void benchmarkWrite( Map<Long,Integer> map ) throws Exception {
+
+        File file = File.createTempFile( "benchmark", ".fmp" );
+        file.deleteOnExit();
+
+        int[] threads = { 1, Math.max( 2, Runtime.getRuntime().availableProcessors() ) };
+
+        for( int t : threads ) {
+
+            FlatMapWriter writer = new FlatMapWriter();
+            writer.setThreads( t );
+
+            //warm up
+            writer.write( map, file );
+
+            long before = System.nanoTime();
+            writer.write( map, file );
+
+            System.out.printf( "%-30s %,12d ms\n",
+                               "write (" + t + " threads)",
+                               (System.nanoTime() - before) / 1000000 );
+
+        }
+
+    }
+
+    public static void main( String[] args ) throws Exception {
+
+        int entries = 1000000;
+        int lookups = 10000000;
+
+        if ( args.length > 0 )
+            entries = Integer.parseInt( args[0] );
+
+        if ( args.length > 1 )
+            lookups = Integer.parseInt( args[1] );
+
+        Map<Long,Integer> map = new TreeMap();
+
+        for( long i = 0; i < entries; ++i ) {
+            map.put( i, (int)i );
+        }
+
+        benchmarkWrite( map );
+        benchmarkLayouts( map, entries, lookups );
+        benchmarkMisses( entries, lookups );
+        benchmarkBatch( map, entries, lookups );
+        benchmarkSharded( map, entries, lookups );
+        benchmarkPacked( map, entries, lookups );
+        benchmarkEliasFano( entries, lookups );
+
+        File file = File.createTempFile( "benchmark", ".fmp" );
+        file.deleteOnExit();
+
+        new FlatMapWriter().write( map, file );
+        map = null;
+
+        FlatMap<Long,Integer> fmap = new FlatMap( file );
+
+        benchmarkLookup( fmap, entries, lookups );
+        benchmarkScan( fmap, entries );
+        benchmarkSetOperations( entries );
+        benchmarkStack( entries, lookups );
+        benchmarkReload( entries, lookups );
+        benchmarkMutable( entries, lookups );
+        benchmarkLog( 20000 );
+
+        long[] prefix_sizes = { 1000000, 10000000 };
+
+        if ( args.length > 2 ) {
+
+            prefix_sizes = new long[ args.length - 2 ];
+
+            for( int i = 2; i < args.length; ++i ) {
+                prefix_sizes[i - 2] = Long.parseLong( args[i] );
+            }
+
+        }
+
+        for( long size : prefix_sizes ) {
+            benchmarkPrefixTable( size, lookups );
+        }
+
+    }
+
+}
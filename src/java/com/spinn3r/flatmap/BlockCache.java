@@ -0,0 +1,90 @@
+package com.spinn3r.flatmap;
+
+import java.util.*;
+
+/**
+ * Bounded cache of decoded LAYOUT_PACKED blocks, evicted with the CLOCK
+ * algorithm (an approximation of LRU which needs no list shuffling on a
+ * hit).
+ *
+ * Resident blocks are found by block number in a plain array, so a hit is
+ * one array read and, the first time since the hand last passed, setting
+ * the block's referenced flag.  No lock is taken on a hit.  On a miss the
+ * caller decodes the block and put() takes the lock to find it a slot: the
+ * hand sweeps the slots, clearing the flag of referenced blocks and
+ * evicting the first unreferenced one.
+ *
+ * Readers racing with an eviction may still hold the evicted block; it's
+ * immutable, so they finish with it and the garbage collector frees it.
+ * Two threads missing on the same block both decode it and the second put
+ * returns the first one's copy.
+ */
+class BlockCache {
+
+    /**
+     * Indexed by block number; null when not resident.
+     */
+    private PackedIndex.Block[] resident;
+
+    /**
+     * Block number held by each slot, or -1.
+     */
+    private int[] slots;
+
+    private int hand = 0;
+
+    public BlockCache( int blocks, int capacity ) {
+
+        resident = new PackedIndex.Block[ blocks ];
+        slots    = new int[ capacity ];
+
+        Arrays.fill( slots, -1 );
+
+    }
+
+    public PackedIndex.Block get( int block ) {
+
+        PackedIndex.Block result = resident[block];
+
+        //only write when it changes so hits don't bounce the cache line
+        //between cores.
+        if ( result != null && ! result.referenced )
+            result.referenced = true;
+
+        return result;
+
+    }
+
+    public synchronized PackedIndex.Block put( PackedIndex.Block block ) {
+
+        if ( resident[ block.number ] != null )
+            return resident[ block.number ];
+
+        while ( slots[hand] >= 0 ) {
+
+            PackedIndex.Block current = resident[ slots[hand] ];
+
+            if ( ! current.referenced ) {
+                resident[ slots[hand] ] = null;
+                break;
+            }
+
+            current.referenced = false;
+            hand = ( hand + 1 ) % slots.length;
+
+        }
+
+        slots[hand] = block.number;
+        resident[ block.number ] = block;
+
+        hand = ( hand + 1 ) % slots.length;
+
+        return block;
+
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+}
@@ -0,0 +1,322 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+
+/**
+ * In memory index over the front coded key blocks of LAYOUT_BLOCKED files.
+ *
+ * Only the first key of every block is kept on the heap.  A lookup binary
+ * searches those keys and then scans a single block in the mapped file,
+ * which keeps each lookup down to one or two page touches even for long,
+ * similar keys like URLs.
+ */
+class BlockIndex {
+
+    private MappedRegion region;
+
+    private long size;
+
+    private int block_size;
+
+    private long[] offsets;
+
+    /**
+     * The first key of each block, concatenated.  Block i's key starts at
+     * key_offsets[i] and ends at key_offsets[i+1].
+     */
+    private byte[] keys;
+
+    private int[] key_offsets;
+
+    /**
+     * Start of the keys section, for reading every key in order.
+     */
+    private long keys_offset = -1;
+
+    /**
+     * One scanner per thread for find, lowerBound and getKey, so lookups
+     * don't allocate one (and its key buffer) every time.
+     */
+    private ThreadLocal<Scanner> scanners = ThreadLocal.withInitial( () -> new Scanner( -1 ) );
+
+    /**
+     * Only scan the keys front to back (see newScanner()) without loading
+     * anything onto the heap.  Nothing else may be called.
+     */
+    public BlockIndex( MappedRegion region, long index_offset, long keys_offset, long size ) throws IOException {
+
+        this.region      = region;
+        this.size        = size;
+        this.keys_offset = keys_offset;
+
+        block_size       = readBlockSize( region, index_offset );
+
+    }
+
+    public BlockIndex( MappedRegion region, long index_offset, long size ) throws IOException {
+
+        this.region = region;
+        this.size   = size;
+
+        block_size  = readBlockSize( region, index_offset );
+
+        long count  = region.getLong( index_offset + 4 );
+
+        if ( count < 0 || count > Integer.MAX_VALUE - 1 )
+            throw new IOException( "Corrupt block index: " + count + " blocks" );
+
+        offsets     = new long[ (int)count ];
+        key_offsets = new int[ (int)count + 1 ];
+
+        ByteArrayOutputStream buff = new ByteArrayOutputStream();
+
+        Scanner scanner = new Scanner( index_offset + 12 );
+
+        for( int i = 0; i < count; ++i ) {
+
+            offsets[i] = region.getLong( scanner.ptr );
+            scanner.ptr += 8;
+
+            int length = scanner.readVarInt();
+            byte[] key = region.get( scanner.ptr, length );
+            scanner.ptr += length;
+
+            key_offsets[i] = buff.size();
+            buff.write( key, 0, length );
+
+        }
+
+        key_offsets[ (int)count ] = buff.size();
+        keys = buff.toByteArray();
+
+        keys_offset = count > 0 ? offsets[0] : -1;
+
+    }
+
+    private static int readBlockSize( MappedRegion region, long index_offset ) throws IOException {
+
+        int block_size = region.getInt( index_offset );
+
+        //positions are divided by it.
+        if ( block_size < 1 )
+            throw new IOException( "Corrupt block index: block size " + block_size );
+
+        return block_size;
+
+    }
+
+    public int getBlockSize() {
+        return block_size;
+    }
+
+    /**
+     * Return the position of the key or -1 if it isn't present.
+     */
+    public long find( byte[] key ) {
+
+        int block = findBlock( key );
+
+        if ( block < 0 )
+            return -1;
+
+        Scanner scanner = scanner( offsets[block] );
+
+        long base = (long)block * block_size;
+        long end  = Math.min( size, base + block_size );
+
+        for( long pos = base; pos < end; ++pos ) {
+
+            scanner.next( pos == base );
+
+            int cmp = ByteArrayComparator.compare( scanner.key, 0, scanner.length,
+                                                   key, 0, key.length );
+
+            if ( cmp == 0 )
+                return pos;
+
+            //keys are sorted so we've gone past it.
+            if ( cmp > 0 )
+                return -1;
+
+        }
+
+        return -1;
+
+    }
+
+    /**
+     * Return the position of the first key greater than or equal to the
+     * given key, or size if there is none.
+     */
+    public long lowerBound( byte[] key ) {
+
+        int block = findBlock( key );
+
+        if ( block < 0 )
+            return 0;
+
+        Scanner scanner = scanner( offsets[block] );
+
+        long base = (long)block * block_size;
+        long end  = Math.min( size, base + block_size );
+
+        for( long pos = base; pos < end; ++pos ) {
+
+            scanner.next( pos == base );
+
+            if ( ByteArrayComparator.compare( scanner.key, 0, scanner.length,
+                                              key, 0, key.length ) >= 0 )
+                return pos;
+
+        }
+
+        //the first key of the next block is greater.
+        return end;
+
+    }
+
+    /**
+     * Decode the key at the given position.
+     */
+    public byte[] getKey( long pos ) {
+
+        requireIndex();
+
+        int block = (int)(pos / block_size);
+
+        Scanner scanner = scanner( offsets[block] );
+
+        for( long i = (long)block * block_size; i <= pos; ++i ) {
+            scanner.next( i == (long)block * block_size );
+        }
+
+        byte[] result = new byte[ scanner.length ];
+        System.arraycopy( scanner.key, 0, result, 0, scanner.length );
+
+        return result;
+
+    }
+
+    /**
+     * Return a scanner at the start of the block holding the given position.
+     * The first call to next() has to pass first = true.
+     */
+    Scanner newScanner( long pos ) {
+        requireIndex();
+        return new Scanner( offsets[ (int)(pos / block_size) ] );
+    }
+
+    /**
+     * Return a scanner at the first key.  Blocks follow each other in the
+     * file so every key can be decoded in order by calling next( pos %
+     * getBlockSize() == 0 ) for each position.
+     */
+    Scanner newScanner() {
+        return new Scanner( keys_offset );
+    }
+
+    /**
+     * This thread's scanner, moved to the given offset.
+     */
+    private Scanner scanner( long ptr ) {
+
+        Scanner scanner = scanners.get();
+
+        scanner.ptr = ptr;
+        scanner.length = 0;
+
+        return scanner;
+
+    }
+
+    private void requireIndex() {
+
+        if ( offsets == null )
+            throw new IllegalStateException( "Opened for sequential reads only" );
+
+    }
+
+    /**
+     * Find the last block whose first key is less than or equal to the given
+     * key, or -1 if the key sorts before every block.
+     */
+    private int findBlock( byte[] key ) {
+
+        requireIndex();
+
+        int low = 0;
+        int high = offsets.length - 1;
+        int result = -1;
+
+        while ( low <= high ) {
+
+            int mid = (low + high) >>> 1;
+
+            int cmp = ByteArrayComparator.compare( keys, key_offsets[mid], key_offsets[mid + 1] - key_offsets[mid],
+                                                   key, 0, key.length );
+
+            if ( cmp <= 0 ) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+
+        }
+
+        return result;
+
+    }
+
+    /**
+     * Decodes keys sequentially from a block.
+     */
+    class Scanner {
+
+        long ptr;
+
+        byte[] key = new byte[ 64 ];
+
+        int length = 0;
+
+        Scanner( long ptr ) {
+            this.ptr = ptr;
+        }
+
+        void next( boolean first ) {
+
+            int shared = first ? 0 : readVarInt();
+            int suffix = readVarInt();
+
+            length = shared + suffix;
+
+            if ( length > key.length ) {
+                byte[] grown = new byte[ Math.max( length, key.length * 2 ) ];
+                System.arraycopy( key, 0, grown, 0, shared );
+                key = grown;
+            }
+
+            region.get( ptr, key, shared, suffix );
+            ptr += suffix;
+
+        }
+
+        int readVarInt() {
+
+            int result = 0;
+            int shift = 0;
+            byte b;
+
+            do {
+                b = region.get( ptr++ );
+                result |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ( b < 0 );
+
+            return result;
+
+        }
+
+    }
+
+}
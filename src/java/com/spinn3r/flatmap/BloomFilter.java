@@ -0,0 +1,228 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+
+/**
+ * Blocked Bloom filter over the keys of a file, read straight from the
+ * mapping.
+ *
+ * Every key sets all of its bits within a single 64 byte block so a probe
+ * touches one cache line (and at most one page) rather than one per hash
+ * function.  Most misses stop here without searching the keys at all.
+ *
+ * The section (SECTION_BLOOM) is the number of bits set per key, 4 reserved
+ * bytes and the number of blocks followed by the blocks themselves, which
+ * start on a 64 byte boundary.
+ */
+class BloomFilter {
+
+    public static final int BLOCK_BYTES = 64;
+
+    private static final int BLOCK_BITS = BLOCK_BYTES * 8;
+
+    private static final int MAX_HASHES = 16;
+
+    private MappedRegion region;
+
+    private int hashes;
+
+    private long blocks;
+
+    private long bits_offset;
+
+    public BloomFilter( MappedRegion region, long section_offset ) throws IOException {
+
+        this.region  = region;
+
+        hashes       = region.getInt( section_offset );
+        blocks       = region.getLong( section_offset + 8 );
+        bits_offset  = section_offset + 16;
+
+        if ( hashes < 1 || hashes > MAX_HASHES || blocks < 1 )
+            throw new IOException( "Corrupt bloom filter" );
+
+    }
+
+    /**
+     * False if the key with the given hash is definitely not in the file.
+     */
+    public boolean mightContain( long hash ) {
+
+        long base = bits_offset + blockOf( hash, blocks ) * BLOCK_BYTES;
+
+        long h = mix( hash );
+        int a = (int)h;
+        int b = (int)(h >>> 32) | 1;
+
+        for( int i = 0; i < hashes; ++i ) {
+
+            int bit = (a + i * b) & (BLOCK_BITS - 1);
+
+            if ( ( region.getLong( base + (bit >>> 6) * 8 ) & (1L << bit) ) == 0 )
+                return false;
+
+        }
+
+        return true;
+
+    }
+
+    private static long blockOf( long hash, long blocks ) {
+        return (hash >>> 1) % blocks;
+    }
+
+    /**
+     * Hash of a fixed width key given as its raw value (see
+     * TypeHandler.toRawLong).
+     */
+    static long hash( long raw ) {
+        return mix( raw );
+    }
+
+    /**
+     * Hash of a variable width key.
+     */
+    static long hash( byte[] key ) {
+
+        //FNV-1a
+        long h = 0xcbf29ce484222325L;
+
+        for( int i = 0; i < key.length; ++i ) {
+            h ^= key[i] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+
+        return mix( h );
+
+    }
+
+    /**
+     * Final mix from MurmurHash3.
+     */
+    private static long mix( long h ) {
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9a53e63b9f9L;
+        h ^= h >>> 33;
+
+        return h;
+
+    }
+
+    /**
+     * Collects key hashes while a file is written and builds the filter once
+     * the number of keys is known.  Hashes are spooled to disk so only the
+     * filter itself has to fit on the heap.
+     */
+    static class Builder {
+
+        private double fpp;
+
+        private DataOutputStream hashes;
+
+        private RecordWriter.Spool spool;
+
+        private long count = 0;
+
+        /**
+         * @param fpp The target false positive probability, e.g. 0.01.
+         */
+        Builder( double fpp ) throws IOException {
+
+            if ( fpp <= 0 || fpp >= 1 )
+                throw new IllegalArgumentException( "False positive probability must be between 0 and 1: " + fpp );
+
+            this.fpp = fpp;
+
+            spool = new RecordWriter.Spool();
+            hashes = new DataOutputStream( spool );
+
+        }
+
+        void add( long hash ) throws IOException {
+            hashes.writeLong( hash );
+            ++count;
+        }
+
+        /**
+         * Add a key in its encoded form.
+         */
+        void add( byte[] key, boolean fixed ) throws IOException {
+
+            if ( fixed )
+                add( hash( TypeManager.toRawLong( key ) ) );
+            else
+                add( hash( key ) );
+
+        }
+
+        /**
+         * Write the section to out, which is currently at the given offset.
+         * Padding is written first so that the blocks are cache line
+         * aligned.  Returns the offset at which the section starts.
+         */
+        long write( DataOutputStream out, long offset ) throws IOException {
+
+            double bits_per_key = -Math.log( fpp ) / ( Math.log( 2 ) * Math.log( 2 ) );
+
+            int k = (int)Math.round( bits_per_key * Math.log( 2 ) );
+            k = Math.max( 1, Math.min( MAX_HASHES, k ) );
+
+            long blocks = Math.max( 1, (long)Math.ceil( count * bits_per_key / BLOCK_BITS ) );
+
+            if ( blocks * (BLOCK_BITS / 64) > Integer.MAX_VALUE )
+                throw new IOException( "Bloom filter too large: " + blocks + " blocks" );
+
+            long[] bits = new long[ (int)( blocks * (BLOCK_BITS / 64) ) ];
+
+            DataInputStream in = new DataInputStream( new BufferedInputStream( spool.read() ) );
+
+            try {
+
+                for( long i = 0; i < count; ++i ) {
+
+                    long hash = in.readLong();
+
+                    int base = (int)( blockOf( hash, blocks ) * (BLOCK_BITS / 64) );
+
+                    long h = mix( hash );
+                    int a = (int)h;
+                    int b = (int)(h >>> 32) | 1;
+
+                    for( int j = 0; j < k; ++j ) {
+
+                        int bit = (a + j * b) & (BLOCK_BITS - 1);
+                        bits[ base + (bit >>> 6) ] |= 1L << bit;
+
+                    }
+
+                }
+
+            } finally {
+                in.close();
+                spool.delete();
+            }
+
+            int padding = (int)( ( BLOCK_BYTES - ( offset + 16 ) % BLOCK_BYTES ) % BLOCK_BYTES );
+
+            out.write( new byte[ padding ] );
+
+            out.writeInt( k );
+            out.writeInt( 0 );
+            out.writeLong( blocks );
+
+            for( int i = 0; i < bits.length; ++i ) {
+                out.writeLong( bits[i] );
+            }
+
+            out.flush();
+
+            return offset + padding;
+
+        }
+
+    }
+
+}
@@ -26,35 +26,76 @@ public class ByteArrayComparator implements Comparator {
     
     public static int compare( byte[] b1, byte[] b2 ) {
 
-        if ( b1.length != b2.length ) {
+        return compare( b1, 0, b1.length, b2, 0, b2.length );
 
-            String msg = String.format( "differing lengths: %d vs %d", b1.length, b2.length );
-            
-            throw new RuntimeException( msg );
-        }
-        
-        for( int i = 0; i < b1.length; ++i ) {
+    }
+
+    /**
+     * Compare two ranges byte by byte (as signed bytes).  When one range is a
+     * prefix of the other the shorter one sorts first which gives variable
+     * length keys like strings a total order.  Fixed width keys always have
+     * the same length so their order is unchanged.
+     */
+    public static int compare( byte[] b1, int off1, int len1,
+                               byte[] b2, int off2, int len2 ) {
+
+        int len = Math.min( len1, len2 );
+
+        for( int i = 0; i < len; ++i ) {
 
-            if ( b1[i] < b2[i] )
+            if ( b1[off1 + i] < b2[off2 + i] )
                 return -1;
 
-            if ( b1[i] > b2[i] )
+            if ( b1[off1 + i] > b2[off2 + i] )
                 return 1;
 
-            if ( b1[i] == b2[i] ) {
+        }
 
-                //we're not done comparing yet.
-                if ( i < b1.length - 1 )
-                    continue;
+        if ( len1 < len2 )
+            return -1;
+
+        if ( len1 > len2 )
+            return 1;
+
+        return 0;
+
+    }
+
+    /**
+     * Map the sign extended raw bits of a big endian key (as returned by
+     * ByteBuffer.getLong/getInt/getShort/get) onto a long which sorts, as a
+     * signed long, in exactly the same order that compare( byte[], byte[] )
+     * sorts the encoded key.
+     *
+     * compare() treats every byte as signed so the high byte already sorts
+     * correctly when sign extended.  Flipping the top bit of every remaining
+     * byte turns the signed byte order into an unsigned one.  This lets the
+     * readers binary search directly against the buffer without allocating.
+     */
+    public static long sortKey( long raw, int width ) {
+        return raw ^ ( 0x0080808080808080L >>> ((8 - width) * 8) );
+    }
+
+    /**
+     * Inverse of sortKey.
+     */
+    public static long fromSortKey( long sort_key, int width ) {
+        return sortKey( sort_key, width );
+    }
+
+    /**
+     * Compare two values produced by sortKey.
+     */
+    public static int compare( long k1, long k2 ) {
+
+        if ( k1 < k2 )
+            return -1;
+
+        if ( k1 > k2 )
+            return 1;
+
+        return 0;
 
-                return 0;
-                
-            }
-            
-        }
-        
-        throw new RuntimeException();
-        
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,353 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Merges many FlatMap files into one so that lookups only have to search a
+ * single file.
+ *
+ * Inputs are added oldest first and the newest value wins when a key is in
+ * more than one of them.  A FlatSet among the inputs is a set of
+ * tombstones: its keys delete the entries for those keys in older inputs.
+ *
+ * The merge is a single k-way pass over the mapped inputs, reading each one
+ * sequentially, and writes the output as it goes.  Memory use only depends
+ * on the number of inputs.  The output uses the same record layout as
+ * FlatMapWriter.
+ *
+ * When only some of the files are compacted (e.g. the last day's deltas but
+ * not the base file) the tombstones still have to hide keys in the older
+ * files, so setTombstoneOutput keeps them in a FlatSet of their own rather
+ * than dropping them.
+ *
+ * Also usable from the command line:
+ *
+ * <pre>
+ * java com.spinn3r.flatmap.Compactor [--tombstones FILE] [--bloom FPP] OUTPUT INPUT...
+ * </pre>
+ */
+public class Compactor {
+
+    private List<File> inputs = new ArrayList();
+
+    private File tombstone_output = null;
+
+    private int block_size = RecordWriter.DEFAULT_BLOCK_SIZE;
+
+    private boolean learned_index = true;
+
+    private double bloom_fpp = 0;
+
+    /**
+     * Add the next input, newer than all those added so far.  FlatSet files
+     * are tombstones.
+     */
+    public void add( File file ) {
+        inputs.add( file );
+    }
+
+    /**
+     * Write the tombstones which win to this FlatSet instead of dropping
+     * them.
+     */
+    public void setTombstoneOutput( File tombstone_output ) {
+        this.tombstone_output = tombstone_output;
+    }
+
+    /**
+     * See FlatMapWriter.setBlockSize.
+     */
+    public void setBlockSize( int block_size ) {
+        this.block_size = block_size;
+    }
+
+    /**
+     * See FlatMapWriter.setLearnedIndex.
+     */
+    public void setLearnedIndex( boolean learned_index ) {
+        this.learned_index = learned_index;
+    }
+
+    /**
+     * See FlatMapWriter.setBloomFilter.
+     */
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    /**
+     * Merge the inputs into the given file.  Returns the number of entries
+     * written.
+     */
+    public long compact( File output ) throws IOException {
+
+        List<Input> opened = new ArrayList();
+
+        try {
+            return compact( output, opened );
+        } finally {
+
+            //unmap the inputs now so they can be deleted or replaced.
+            for( Input input : opened ) {
+                input.cursor.collection.close();
+            }
+
+        }
+
+    }
+
+    private long compact( File output, List<Input> opened ) throws IOException {
+
+        int key_type = -1;
+        int value_type = -1;
+
+        long data_length = 0;
+
+        for( int i = 0; i < inputs.size(); ++i ) {
+
+            File file = inputs.get( i );
+
+            if ( file.getCanonicalFile().equals( output.getCanonicalFile() ) ||
+                 ( tombstone_output != null && file.getCanonicalFile().equals( tombstone_output.getCanonicalFile() ) ) )
+                throw new IOException( "Can't overwrite an input: " + file.getPath() );
+
+            //inputs are read once, front to back.
+            OpenOptions options = new OpenOptions( OpenOptions.LAZY );
+            options.setPrefixBits( 0 );
+
+            BaseFlatCollection collection = BaseFlatCollection.open( file, options );
+
+            opened.add( new Input( i, collection, collection instanceof FlatSet ) );
+
+            if ( key_type < 0 )
+                key_type = collection.key_type;
+
+            if ( collection.key_type != key_type )
+                throw new IOException( "Key type mismatch in " + file.getPath() + ": " + collection.key_type + " vs " + key_type );
+
+            if ( ! ( collection instanceof FlatSet ) ) {
+
+                if ( value_type < 0 )
+                    value_type = collection.value_type;
+
+                if ( collection.value_type != value_type )
+                    throw new IOException( "Value type mismatch in " + file.getPath() + ": " + collection.value_type + " vs " + value_type );
+
+                //an upper bound on the data section.
+                data_length += collection.region.length();
+
+            }
+
+        }
+
+        if ( value_type < 0 )
+            throw new IOException( "No FlatMap inputs" );
+
+        //both outputs are renamed into place only once the merge is done.
+        File temp = AtomicFile.temp( output );
+        File tombstone_temp = tombstone_output != null ? AtomicFile.temp( tombstone_output ) : null;
+
+        try {
+
+            long count = merge( opened, key_type, value_type, data_length, temp, tombstone_temp );
+
+            //the tombstones go first so that no reader sees the compacted
+            //output without the tombstones which hide keys in older files.
+            if ( tombstone_temp != null )
+                AtomicFile.commit( tombstone_temp, tombstone_output );
+
+            AtomicFile.commit( temp, output );
+
+            return count;
+
+        } finally {
+
+            temp.delete();
+
+            if ( tombstone_temp != null )
+                tombstone_temp.delete();
+
+        }
+
+    }
+
+    private long merge( List<Input> opened, int key_type, int value_type, long data_length,
+                        File temp, File tombstone_temp ) throws IOException {
+
+        int layout = FlatMapWriter.layoutOf( lookupTypeHandler( key_type ) );
+
+        RecordWriter writer = new RecordWriter( new FileOutputStream( temp ),
+                                                FlatMap.MAGIC,
+                                                layout,
+                                                -1,
+                                                key_type,
+                                                value_type,
+                                                data_length );
+
+        writer.setBlockSize( block_size );
+        writer.setLearnedIndex( learned_index );
+        writer.setBloomFilter( bloom_fpp );
+
+        RecordWriter tombstone_writer = null;
+
+        boolean complete = false;
+
+        try {
+
+            if ( tombstone_temp != null ) {
+
+                tombstone_writer = new RecordWriter( new FileOutputStream( tombstone_temp ),
+                                                     FlatSet.MAGIC,
+                                                     layout,
+                                                     -1,
+                                                     key_type,
+                                                     0,
+                                                     0 );
+
+                tombstone_writer.setBlockSize( block_size );
+
+            }
+
+            PriorityQueue<Input> queue = new PriorityQueue( Math.max( 1, opened.size() ) );
+
+            for( Input input : opened ) {
+
+                if ( input.cursor.valid() )
+                    queue.add( input );
+
+            }
+
+            while( queue.size() > 0 ) {
+
+                Input newest = queue.poll();
+
+                if ( ! newest.tombstones )
+                    writer.add( newest.cursor.key(), newest.cursor.value() );
+                else if ( tombstone_writer != null )
+                    tombstone_writer.add( newest.cursor.key(), null );
+
+                //older copies of the same key.
+                while( queue.size() > 0 && queue.peek().cursor.compareTo( newest.cursor ) == 0 ) {
+
+                    Input older = queue.poll();
+                    older.cursor.next();
+
+                    if ( older.cursor.valid() )
+                        queue.add( older );
+
+                }
+
+                newest.cursor.next();
+
+                if ( newest.cursor.valid() )
+                    queue.add( newest );
+
+            }
+
+            writer.close();
+            RecordWriter.writeSize( temp, writer.getCount() );
+
+            if ( tombstone_writer != null ) {
+                tombstone_writer.close();
+                RecordWriter.writeSize( tombstone_temp, tombstone_writer.getCount() );
+            }
+
+            complete = true;
+
+        } finally {
+
+            if ( ! complete ) {
+
+                writer.abort();
+
+                if ( tombstone_writer != null )
+                    tombstone_writer.abort();
+
+            }
+
+        }
+
+        return writer.getCount();
+
+    }
+
+    /**
+     * One input of the merge.  Orders by key and then newest first so that
+     * the newest copy of a key is polled before the older ones.
+     */
+    static class Input implements Comparable<Input> {
+
+        int index;
+
+        MergeCursor cursor;
+
+        boolean tombstones;
+
+        Input( int index, BaseFlatCollection collection, boolean tombstones ) {
+            this.index       = index;
+            this.cursor      = new MergeCursor( collection );
+            this.tombstones  = tombstones;
+        }
+
+        public int compareTo( Input other ) {
+
+            int cmp = cursor.compareTo( other.cursor );
+
+            if ( cmp != 0 )
+                return cmp;
+
+            return other.index - index;
+
+        }
+
+    }
+
+    public static void main( String[] args ) throws Exception {
+
+        Compactor compactor = new Compactor();
+
+        int i = 0;
+
+        for( ; i < args.length && args[i].startsWith( "--" ); i += 2 ) {
+
+            if ( i + 1 >= args.length )
+                usage();
+
+            if ( args[i].equals( "--tombstones" ) )
+                compactor.setTombstoneOutput( new File( args[i + 1] ) );
+            else if ( args[i].equals( "--bloom" ) )
+                compactor.setBloomFilter( Double.parseDouble( args[i + 1] ) );
+            else
+                usage();
+
+        }
+
+        if ( args.length - i < 2 )
+            usage();
+
+        File output = new File( args[i++] );
+
+        for( ; i < args.length; ++i ) {
+            compactor.add( new File( args[i] ) );
+        }
+
+        long count = compactor.compact( output );
+
+        System.out.printf( "Wrote %,d entries to %s\n", count, output.getPath() );
+
+    }
+
+    private static void usage() {
+
+        System.err.printf( "Usage: Compactor [--tombstones FILE] [--bloom FPP] OUTPUT INPUT...\n" );
+        System.err.printf( "\n" );
+        System.err.printf( "Inputs are listed oldest first.  FlatSet inputs are tombstones.\n" );
+
+        System.exit( 1 );
+
+    }
+
+}
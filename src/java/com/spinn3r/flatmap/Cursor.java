@@ -0,0 +1,305 @@
+package com.spinn3r.flatmap;
+
+import java.nio.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Scans the records of a FlatMap or FlatSet in key order straight off the
+ * mapped file.  The primitive accessors read the current record from the
+ * region without boxing or allocating, so a scan over long or int keys and
+ * values runs at close to memory bandwidth.
+ *
+ * <pre>
+ * Cursor cursor = map.cursor();
+ *
+ * cursor.seek( from );
+ * cursor.setEnd( to );
+ *
+ * while ( cursor.next() ) {
+ *     total += cursor.valueAsLong();
+ * }
+ * </pre>
+ *
+ * seek and setEnd are binary searches, after which the scan itself never
+ * compares keys.  Ranges follow the order the keys are stored in, which is
+ * their encoded bytes compared as signed bytes (see FlatMap.comparator())
+ * and isn't numeric order.
+ *
+ * A cursor isn't thread safe.  Use one per thread.
+ */
+public class Cursor {
+
+    private BaseFlatCollection collection;
+
+    /**
+     * The current position, valid once next() has returned true.
+     */
+    private long pos = -1;
+
+    /**
+     * The position next() moves to.
+     */
+    private long next = 0;
+
+    /**
+     * The scan stops before this position.
+     */
+    private long end;
+
+    private boolean valid = false;
+
+    /**
+     * Decodes keys sequentially with LAYOUT_BLOCKED, positioned at
+     * scanner_pos.
+     */
+    private BlockIndex.Scanner scanner = null;
+
+    private long scanner_pos = -1;
+
+    Cursor( BaseFlatCollection collection ) {
+
+        collection.checkOpen();
+
+        this.collection = collection;
+        end = collection.size;
+
+    }
+
+    /**
+     * Move to the next record.  Returns false once the end of the file or
+     * the end set by setEnd is reached.
+     */
+    public boolean next() {
+
+        collection.checkOpen();
+
+        if ( next >= end ) {
+            valid = false;
+            return false;
+        }
+
+        pos = next++;
+        valid = true;
+
+        return true;
+
+    }
+
+    /**
+     * Position of the current record in key order.
+     */
+    public long getPosition() {
+        return pos;
+    }
+
+    /**
+     * Go back to before the first record.
+     */
+    public void seekToFirst() {
+        next = 0;
+        valid = false;
+    }
+
+    /**
+     * Position the cursor so that next() moves to the first key greater than
+     * or equal to the given key.
+     */
+    public void seek( Object key ) {
+        next = collection.ceilingPosition( key, true );
+        valid = false;
+    }
+
+    /**
+     * seek for TYPE_LONG keys without boxing.
+     */
+    public void seek( long key ) {
+
+        collection.requireKeyType( TYPE_LONG );
+
+        next = collection.ceilingPositionRaw( key, true );
+        valid = false;
+
+    }
+
+    /**
+     * seek for TYPE_INT (or TYPE_LONG) keys without boxing.
+     */
+    public void seek( int key ) {
+
+        requireIntKey();
+
+        next = collection.ceilingPositionRaw( key, true );
+        valid = false;
+
+    }
+
+    /**
+     * Stop the scan before the first key greater than or equal to the given
+     * key.
+     */
+    public void setEnd( Object key ) {
+        end = collection.ceilingPosition( key, true );
+    }
+
+    public void setEnd( long key ) {
+
+        collection.requireKeyType( TYPE_LONG );
+
+        end = collection.ceilingPositionRaw( key, true );
+
+    }
+
+    public void setEnd( int key ) {
+
+        requireIntKey();
+
+        end = collection.ceilingPositionRaw( key, true );
+
+    }
+
+    /**
+     * Scan to the end of the file again.
+     */
+    public void clearEnd() {
+        end = collection.size;
+    }
+
+    /*
+     * Accessors for the current record.
+     */
+
+    /**
+     * The key of a FlatMap&lt;Long,?&gt;, or of a FlatMap&lt;Integer,?&gt;
+     * widened to a long.
+     */
+    public long keyAsLong() {
+
+        requireValid();
+
+        if ( collection.key_type != TYPE_INT )
+            collection.requireKeyType( TYPE_LONG );
+
+        return collection.getRawKeyFromPosition( pos );
+
+    }
+
+    public int keyAsInt() {
+
+        requireValid();
+        collection.requireKeyType( TYPE_INT );
+
+        return (int)collection.getRawKeyFromPosition( pos );
+
+    }
+
+    /**
+     * The key decoded as an object.  Variable width keys are decoded
+     * sequentially from their block rather than searched for.
+     */
+    public Object key() {
+
+        requireValid();
+
+        if ( collection.block_index == null )
+            return collection.getKeyObjectFromPosition( pos );
+
+        scanTo( pos );
+
+        byte[] key = new byte[ scanner.length ];
+        System.arraycopy( scanner.key, 0, key, 0, scanner.length );
+
+        return collection.key_type_handler.toValue( key );
+
+    }
+
+    /**
+     * The value of a FlatMap&lt;?,Long&gt;, or of a FlatMap&lt;?,Integer&gt;
+     * widened to a long.
+     */
+    public long valueAsLong() {
+
+        requireValid();
+
+        if ( collection.value_type != TYPE_INT )
+            collection.requireValueType( TYPE_LONG );
+
+        return collection.getRawValueFromPosition( pos );
+
+    }
+
+    public int valueAsInt() {
+
+        requireValid();
+        collection.requireValueType( TYPE_INT );
+
+        return (int)collection.getRawValueFromPosition( pos );
+
+    }
+
+    public Object value() {
+
+        requireValid();
+
+        return collection.getValueObjectFromPosition( pos );
+
+    }
+
+    /**
+     * The encoded value as a read only view of the mapped file.  Only valid
+     * for variable width values.
+     */
+    public ByteBuffer valueBuffer() {
+
+        requireValid();
+
+        if ( ! collection.value_pointers )
+            throw new RuntimeException( "Not a variable width value type: " + collection.value_type );
+
+        return collection.getValueBufferFromPosition( pos );
+
+    }
+
+    private void requireValid() {
+
+        collection.checkOpen();
+
+        if ( ! valid )
+            throw new NoSuchElementException( "Cursor isn't on a record" );
+
+    }
+
+    private void requireIntKey() {
+
+        if ( collection.key_type != TYPE_LONG )
+            collection.requireKeyType( TYPE_INT );
+
+    }
+
+    /**
+     * Bring the block scanner up to the given position, continuing from
+     * where it is when that's in the same block.
+     */
+    private void scanTo( long target ) {
+
+        int block_size = collection.block_index.getBlockSize();
+
+        long block_start = target - target % block_size;
+
+        if ( scanner == null || scanner_pos < block_start || scanner_pos > target ) {
+
+            scanner = collection.block_index.newScanner( target );
+            scanner.next( true );
+            scanner_pos = block_start;
+
+        }
+
+        while ( scanner_pos < target ) {
+            scanner.next( false );
+            ++scanner_pos;
+        }
+
+    }
+
+}
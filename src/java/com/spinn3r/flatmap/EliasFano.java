@@ -0,0 +1,240 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+
+/**
+ * Reader for LAYOUT_ELIAS_FANO sets, which works directly on the mapped
+ * file.  Nothing is decoded onto the heap.
+ *
+ * Each key is stored as its sort key (see ByteArrayComparator.sortKey) less
+ * the smallest one, split into low_bits low bits and the remaining high
+ * bits.  The low bits of every key are packed one after the other into
+ * SECTION_KEYS.  The high bits go into a bit vector as unary gaps: key i
+ * sets bit (high + i), so each bucket of keys sharing the same high bits is
+ * a run of ones ended by a zero.  With low_bits = log2(universe / size)
+ * that's under 2 + low_bits bits per key, so a dense set of IDs takes a
+ * couple of bits per key rather than 8 bytes.
+ *
+ * select(i), the position of the i-th one, gives key i.  rank(key), the
+ * number of keys less than it, finds the bucket through the position of its
+ * zero and binary searches the low bits within it.  Every sample_rate-th one
+ * and zero has its position stored so that either select only scans a few
+ * words.  SECTION_ELIAS_FANO is:
+ *
+ * <pre>
+ * 8 bytes  smallest sort key
+ * 8 bytes  largest sort key
+ * 4 bytes  low_bits
+ * 4 bytes  log2 of sample_rate
+ * 8 bytes  length of the high bit vector in bits
+ *          position of every sample_rate-th one (8 bytes each)
+ *          position of every sample_rate-th zero (8 bytes each)
+ *          the high bit vector as longs, least significant bit first
+ * </pre>
+ */
+class EliasFano {
+
+    public static final int DEFAULT_SAMPLE_SHIFT = 8;
+
+    private static final int HEADER_SIZE = 32;
+
+    private MappedRegion region;
+
+    private long size;
+
+    private long min;
+
+    private long max;
+
+    private int low_bits;
+
+    private long low_mask;
+
+    private int sample_shift;
+
+    private long lower_offset;
+
+    private long ones_offset;
+
+    private long zeros_offset;
+
+    private long upper_offset;
+
+    /**
+     * Number of zeros in the high bit vector, i.e. one more than the largest
+     * high part.
+     */
+    private long buckets;
+
+    public EliasFano( MappedRegion region, long lower_offset, long offset, long size ) throws IOException {
+
+        this.region       = region;
+        this.lower_offset = lower_offset;
+        this.size         = size;
+
+        min               = region.getLong( offset );
+        max               = region.getLong( offset + 8 );
+        low_bits          = region.getInt( offset + 16 );
+        sample_shift      = region.getInt( offset + 20 );
+
+        long upper_length = region.getLong( offset + 24 );
+
+        if ( low_bits < 0 || low_bits > 63 || sample_shift < 6 || sample_shift > 30 || upper_length < size )
+            throw new IOException( "Corrupt Elias-Fano index" );
+
+        low_mask          = ( 1L << low_bits ) - 1;
+        buckets           = upper_length - size;
+
+        ones_offset       = offset + HEADER_SIZE;
+        zeros_offset      = ones_offset + samples( size, sample_shift ) * 8;
+        upper_offset      = zeros_offset + samples( buckets, sample_shift ) * 8;
+
+    }
+
+    /**
+     * Number of samples kept for count ones (or zeros).
+     */
+    static long samples( long count, int sample_shift ) {
+        return ( count + ( 1L << sample_shift ) - 1 ) >>> sample_shift;
+    }
+
+    /**
+     * The sort key at the given position.
+     */
+    public long select( long pos ) {
+
+        long high = selectOne( pos ) - pos;
+
+        return min + ( ( high << low_bits ) | getLow( pos ) );
+
+    }
+
+    /**
+     * The number of keys less than the given sort key (or at most equal to
+     * it when inclusive is false), which is also the position of the first
+     * one not less than it.
+     */
+    public long rank( long key, boolean inclusive ) {
+
+        if ( size == 0 || key < min )
+            return 0;
+
+        if ( key > max )
+            return size;
+
+        long u = key - min;
+        long high = u >>> low_bits;
+        long low = u & low_mask;
+
+        //bucket high is the run of ones between zero high - 1 and zero high.
+        long start = high == 0 ? 0 : selectZero( high - 1 ) - ( high - 1 );
+        long end   = selectZero( high ) - high;
+
+        while ( start < end ) {
+
+            long mid = ( start + end ) >>> 1;
+            long current = getLow( mid );
+
+            if ( current < low || ( ! inclusive && current == low ) )
+                start = mid + 1;
+            else
+                end = mid;
+
+        }
+
+        return start;
+
+    }
+
+    /**
+     * The position of the given sort key or -1 if it isn't present.
+     */
+    public long find( long key ) {
+
+        long pos = rank( key, true );
+
+        if ( pos < size && select( pos ) == key )
+            return pos;
+
+        return -1;
+
+    }
+
+    private long getLow( long pos ) {
+
+        if ( low_bits == 0 )
+            return 0;
+
+        long bit = pos * low_bits;
+        long word = bit >>> 6;
+        int offset = (int)( bit & 63 );
+
+        long result = region.getLong( lower_offset + word * 8 ) >>> offset;
+
+        if ( offset + low_bits > 64 )
+            result |= region.getLong( lower_offset + ( word + 1 ) * 8 ) << ( 64 - offset );
+
+        return result & low_mask;
+
+    }
+
+    /**
+     * Position in the high bit vector of the given one.
+     */
+    private long selectOne( long rank ) {
+        return select( rank, ones_offset, false );
+    }
+
+    /**
+     * Position in the high bit vector of the given zero.
+     */
+    private long selectZero( long rank ) {
+        return select( rank, zeros_offset, true );
+    }
+
+    private long select( long rank, long samples_offset, boolean zeros ) {
+
+        long pos = region.getLong( samples_offset + ( rank >>> sample_shift ) * 8 );
+        long remaining = rank & ( ( 1L << sample_shift ) - 1 );
+
+        //the sample is the position of a matching bit, so start there.
+        long word_index = pos >>> 6;
+        long word = getWord( word_index, zeros ) & ( -1L << ( pos & 63 ) );
+
+        while ( true ) {
+
+            int count = Long.bitCount( word );
+
+            if ( remaining < count )
+                return word_index * 64 + selectInWord( word, (int)remaining );
+
+            remaining -= count;
+
+            word = getWord( ++word_index, zeros );
+
+        }
+
+    }
+
+    private long getWord( long word_index, boolean zeros ) {
+
+        long word = region.getLong( upper_offset + word_index * 8 );
+
+        return zeros ? ~word : word;
+
+    }
+
+    /**
+     * Index of the given set bit of a word.
+     */
+    private static int selectInWord( long word, int rank ) {
+
+        for( int i = 0; i < rank; ++i ) {
+            word &= word - 1;
+        }
+
+        return Long.numberOfTrailingZeros( word );
+
+    }
+
+}
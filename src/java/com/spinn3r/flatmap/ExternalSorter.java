@@ -0,0 +1,575 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.FlatMapWriter.*;
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Sorts encoded records which don't fit in memory.  Records are buffered in a
+ * byte arena until the memory budget is used up, then sorted and spilled to a
+ * temp file as a sorted run in the regular FlatMap/FlatSet format.  finish()
+ * k-way merges the runs into the final file.
+ *
+ * When the same key is added more than once the last value added wins.
+ */
+class ExternalSorter {
+
+    private byte[] magic;
+
+    private int key_type;
+
+    private int value_type;
+
+    private int key_width;
+
+    private long memory;
+
+    private File temp_directory = null;
+
+    private int block_size = RecordWriter.DEFAULT_BLOCK_SIZE;
+
+    private boolean learned_index = true;
+
+    private double bloom_fpp = 0;
+
+    /**
+     * Encoded records: 4 byte key length, key, 4 byte value length, value.
+     */
+    private byte[] arena = new byte[ 4096 ];
+
+    private int arena_used = 0;
+
+    /**
+     * Start of each record in the arena.
+     */
+    private int[] offsets = new int[ 1024 ];
+
+    /**
+     * Sort keys for fixed width keys so that the sort doesn't have to touch
+     * the arena.
+     */
+    private long[] sort_keys = null;
+
+    private int count = 0;
+
+    private List<File> runs = new ArrayList();
+
+    /**
+     * Upper bound on the size of the final data section.
+     */
+    private long data_length = 0;
+
+    public ExternalSorter( byte[] magic, int key_type, int value_type, long memory ) {
+
+        this.magic       = magic;
+        this.key_type    = key_type;
+        this.value_type  = value_type;
+        this.key_width   = lookupTypeHandler( key_type ).sizeOf();
+
+        //a single arena is indexed with an int.
+        this.memory      = Math.min( memory, Integer.MAX_VALUE - 16 );
+
+        if ( key_width != VARIABLE )
+            sort_keys = new long[ offsets.length ];
+
+    }
+
+    public void setTempDirectory( File temp_directory ) {
+        this.temp_directory = temp_directory;
+    }
+
+    public void setBlockSize( int block_size ) {
+        this.block_size = block_size;
+    }
+
+    public void setLearnedIndex( boolean learned_index ) {
+        this.learned_index = learned_index;
+    }
+
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    public void add( byte[] key, byte[] value ) throws IOException {
+
+        int value_length = value == null ? 0 : value.length;
+        int length = 8 + key.length + value_length;
+
+        //each record also costs an offset and maybe a sort key.
+        if ( count > 0 && arena_used + length + (count + 1) * 12L > memory )
+            spill();
+
+        ensureCapacity( length );
+
+        int offset = arena_used;
+
+        writeInt( key.length );
+        System.arraycopy( key, 0, arena, arena_used, key.length );
+        arena_used += key.length;
+
+        writeInt( value_length );
+
+        if ( value != null ) {
+            System.arraycopy( value, 0, arena, arena_used, value_length );
+            arena_used += value_length;
+        }
+
+        offsets[count] = offset;
+
+        if ( sort_keys != null )
+            sort_keys[count] = ByteArrayComparator.sortKey( readRaw( offset + 4 ), key_width );
+
+        ++count;
+
+    }
+
+    /**
+     * Write everything added so far to the given file.  It's written under a
+     * temp name and renamed into place once complete.
+     */
+    public void finish( File file ) throws IOException {
+
+        if ( count == 0 && runs.size() == 0 )
+            throw new IOException( "No entries added" );
+
+        File temp = AtomicFile.temp( file );
+
+        try {
+
+            if ( runs.size() == 0 ) {
+
+                //everything fit in memory so there is nothing to merge.
+                writeBuffer( temp, false );
+
+            } else {
+
+                if ( count > 0 )
+                    spill();
+
+                merge( temp );
+
+            }
+
+            AtomicFile.commit( temp, file );
+
+        } finally {
+            temp.delete();
+        }
+
+    }
+
+    private void spill() throws IOException {
+
+        File run = File.createTempFile( "flatmap", ".run", temp_directory );
+        run.deleteOnExit();
+
+        writeBuffer( run, true );
+
+        runs.add( run );
+
+        arena_used = 0;
+        count = 0;
+
+    }
+
+    /**
+     * Sort the buffered records, drop all but the last of any duplicates and
+     * write them out, either as a run or as the final file.
+     */
+    private void writeBuffer( File file, boolean run ) throws IOException {
+
+        OutputStream out = new FileOutputStream( file );
+
+        try {
+            writeBuffer( out, run );
+        } finally {
+            //already closed unless the write failed.
+            out.close();
+        }
+
+    }
+
+    private void writeBuffer( OutputStream out, boolean run ) throws IOException {
+
+        int[] order = sort();
+
+        //drop all but the last (the sort is stable) of each run of equal keys.
+        int unique = 0;
+        long buffer_data_length = 0;
+
+        for( int i = 0; i < count; ++i ) {
+
+            if ( i + 1 < count && compare( order[i], order[i + 1] ) == 0 )
+                continue;
+
+            order[unique++] = order[i];
+
+            int value_length = readInt( valueOffset( order[i] ) - 4 );
+            buffer_data_length += sizeOfVarInt( value_length ) + value_length;
+
+        }
+
+        data_length += buffer_data_length;
+
+        RecordWriter writer = new RecordWriter( out,
+                                                magic,
+                                                layoutOf( lookupTypeHandler( key_type ) ),
+                                                unique,
+                                                key_type,
+                                                value_type,
+                                                buffer_data_length );
+
+        writer.setBlockSize( block_size );
+
+        //runs are only read sequentially.
+        if ( run ) {
+            writer.setLearnedIndex( false );
+        } else {
+            writer.setLearnedIndex( learned_index );
+            writer.setBloomFilter( bloom_fpp );
+        }
+
+        boolean complete = false;
+
+        try {
+
+            for( int i = 0; i < unique; ++i ) {
+
+                int offset = offsets[ order[i] ];
+                byte[] key = new byte[ readInt( offset ) ];
+                System.arraycopy( arena, offset + 4, key, 0, key.length );
+
+                byte[] value = null;
+
+                if ( value_type > 0 ) {
+
+                    int value_offset = valueOffset( order[i] );
+                    value = new byte[ readInt( value_offset - 4 ) ];
+                    System.arraycopy( arena, value_offset, value, 0, value.length );
+
+                }
+
+                writer.add( key, value );
+
+            }
+
+            writer.close();
+            complete = true;
+
+        } finally {
+
+            if ( ! complete )
+                writer.abort();
+
+        }
+
+    }
+
+    /**
+     * K-way merge of the sorted runs.  On duplicate keys the newest run wins.
+     */
+    private void merge( File file ) throws IOException {
+
+        List<BaseFlatCollection> opened = new ArrayList();
+
+        try {
+
+            PriorityQueue<RunCursor> queue = new PriorityQueue( runs.size() );
+
+            for( int i = 0; i < runs.size(); ++i ) {
+
+                BaseFlatCollection run = open( runs.get( i ) );
+                opened.add( run );
+
+                RunCursor cursor = new RunCursor( i, run );
+
+                if ( cursor.next() )
+                    queue.add( cursor );
+
+            }
+
+            RecordWriter writer = new RecordWriter( new FileOutputStream( file ),
+                                                    magic,
+                                                    layoutOf( lookupTypeHandler( key_type ) ),
+                                                    -1,
+                                                    key_type,
+                                                    value_type,
+                                                    data_length );
+
+            writer.setBlockSize( block_size );
+            writer.setLearnedIndex( learned_index );
+            writer.setBloomFilter( bloom_fpp );
+
+            boolean complete = false;
+
+            try {
+
+                while( queue.size() > 0 ) {
+
+                    RunCursor cursor = queue.poll();
+
+                    byte[] key = cursor.key;
+
+                    writer.add( key, cursor.value() );
+
+                    if ( cursor.next() )
+                        queue.add( cursor );
+
+                    //older copies of the same key.
+                    while( queue.size() > 0 && ByteArrayComparator.compare( queue.peek().key, key ) == 0 ) {
+
+                        RunCursor older = queue.poll();
+
+                        if ( older.next() )
+                            queue.add( older );
+
+                    }
+
+                }
+
+                writer.close();
+                complete = true;
+
+            } finally {
+
+                if ( ! complete )
+                    writer.abort();
+
+            }
+
+            RecordWriter.writeSize( file, writer.getCount() );
+
+        } finally {
+
+            //unmap the runs rather than waiting for the GC to do it, and
+            //don't leave them on disk if the merge failed.
+            for( BaseFlatCollection run : opened ) {
+                run.close();
+            }
+
+            for( File run : runs ) {
+                run.delete();
+            }
+
+            runs.clear();
+
+        }
+
+    }
+
+    private BaseFlatCollection open( File run ) throws IOException {
+
+        //runs are read once, front to back, so there's no point loading
+        //them up front or holding an index of their keys: every run is open
+        //at once during the merge.
+        OpenOptions options = new OpenOptions( OpenOptions.LAZY );
+        options.setSequential( true );
+
+        if ( value_type > 0 )
+            return new FlatMap( run, options );
+
+        return new FlatSet( run, options );
+
+    }
+
+    /**
+     * Stable merge sort of the record indexes.
+     */
+    private int[] sort() {
+
+        int[] order = new int[ count ];
+
+        for( int i = 0; i < count; ++i ) {
+            order[i] = i;
+        }
+
+        mergeSort( order, new int[ count ], 0, count );
+
+        return order;
+
+    }
+
+    private void mergeSort( int[] order, int[] tmp, int low, int high ) {
+
+        if ( high - low < 2 )
+            return;
+
+        int mid = (low + high) >>> 1;
+
+        mergeSort( order, tmp, low, mid );
+        mergeSort( order, tmp, mid, high );
+
+        //already in order
+        if ( compare( order[mid - 1], order[mid] ) <= 0 )
+            return;
+
+        System.arraycopy( order, low, tmp, low, high - low );
+
+        int i = low;
+        int j = mid;
+
+        for( int k = low; k < high; ++k ) {
+
+            if ( j >= high || ( i < mid && compare( tmp[i], tmp[j] ) <= 0 ) )
+                order[k] = tmp[i++];
+            else
+                order[k] = tmp[j++];
+
+        }
+
+    }
+
+    private int compare( int r1, int r2 ) {
+
+        if ( sort_keys != null )
+            return ByteArrayComparator.compare( sort_keys[r1], sort_keys[r2] );
+
+        int o1 = offsets[r1];
+        int o2 = offsets[r2];
+
+        return ByteArrayComparator.compare( arena, o1 + 4, readInt( o1 ),
+                                            arena, o2 + 4, readInt( o2 ) );
+
+    }
+
+    private int valueOffset( int record ) {
+
+        int offset = offsets[record];
+        return offset + 4 + readInt( offset ) + 4;
+
+    }
+
+    private void ensureCapacity( int length ) {
+
+        if ( arena_used + length > arena.length ) {
+
+            long needed = arena_used + (long)length;
+
+            //double but don't go past the memory budget unless we have to.
+            long grown = Math.min( arena.length * 2L, Math.max( memory, needed ) );
+            grown = Math.max( grown, needed );
+
+            arena = Arrays.copyOf( arena, (int)grown );
+
+        }
+
+        if ( count == offsets.length ) {
+
+            offsets = Arrays.copyOf( offsets, count * 2 );
+
+            if ( sort_keys != null )
+                sort_keys = Arrays.copyOf( sort_keys, count * 2 );
+
+        }
+
+    }
+
+    private void writeInt( int v ) {
+
+        arena[arena_used++] = (byte)(v >>> 24);
+        arena[arena_used++] = (byte)(v >>> 16);
+        arena[arena_used++] = (byte)(v >>> 8);
+        arena[arena_used++] = (byte)v;
+
+    }
+
+    private int readInt( int offset ) {
+
+        return ((arena[offset] & 0xFF) << 24) |
+               ((arena[offset + 1] & 0xFF) << 16) |
+               ((arena[offset + 2] & 0xFF) << 8) |
+               (arena[offset + 3] & 0xFF);
+
+    }
+
+    /**
+     * Read a big endian key of key_width bytes as a sign extended long.
+     */
+    private long readRaw( int offset ) {
+
+        long v = arena[offset];
+
+        for( int i = 1; i < key_width; ++i ) {
+            v = (v << 8) | (arena[offset + i] & 0xFF);
+        }
+
+        return v;
+
+    }
+
+    /**
+     * Reads the records of one run in order.
+     */
+    class RunCursor implements Comparable<RunCursor> {
+
+        int index;
+
+        BaseFlatCollection run;
+
+        long pos = -1;
+
+        byte[] key = null;
+
+        /**
+         * Decodes variable width keys in order.
+         */
+        BlockIndex.Scanner scanner = null;
+
+        RunCursor( int index, BaseFlatCollection run ) {
+
+            this.index = index;
+            this.run = run;
+
+            if ( run.block_index != null )
+                scanner = run.block_index.newScanner();
+
+        }
+
+        boolean next() {
+
+            ++pos;
+
+            if ( pos >= run.sizeAsLong() )
+                return false;
+
+            if ( scanner != null ) {
+
+                scanner.next( pos % run.block_index.getBlockSize() == 0 );
+
+                key = new byte[ scanner.length ];
+                System.arraycopy( scanner.key, 0, key, 0, scanner.length );
+
+            } else {
+                key = run.getKeyFromPosition( pos );
+            }
+
+            return true;
+
+        }
+
+        byte[] value() {
+
+            if ( value_type == 0 )
+                return null;
+
+            return run.getEncodedValueFromPosition( pos );
+
+        }
+
+        public int compareTo( RunCursor other ) {
+
+            int cmp = ByteArrayComparator.compare( key, other.key );
+
+            if ( cmp != 0 )
+                return cmp;
+
+            //newer runs first so that their value wins.
+            return other.index - index;
+
+        }
+
+    }
+
+}
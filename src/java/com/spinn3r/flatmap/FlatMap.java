@@ -3,6 +3,7 @@ package com.spinn3r.flatmap;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.stream.*;
 
 import java.nio.*;
 import java.nio.channels.*;
@@ -11,157 +12,305 @@ import static com.spinn3r.flatmap.FlatMapWriter.*;
 import static com.spinn3r.flatmap.TypeManager.*;
 
 /**
- *
- *
- * TODO: how do we implement variable width values?  Variable length keys are
- * fine as I can use truncated SHA1.  Variable length data is FINE but I have to
- * allocate 4 bytes per entry for the pointer to the data section.  I can get
- * around this problem by simply storing a DataPointer object in as the value
- * and adding this as an indirection to the underlying value.
+ * Variable width values (String, byte[] or any Serializable) are stored as a 4
+ * or 8 byte pointer into a data section after the records so that the records
+ * themselves stay fixed width.  Variable width keys are stored as front coded
+ * blocks (see BlockIndex).
  */
-public class FlatMap<K,V> extends ReadOnlyMap<K,V> {
-    //implements Map<K,V> {
+public class FlatMap<K,V> extends ReadOnlyMap<K,V> implements NavigableMap<K,V> {
 
     /**
      * Use the first four bytes to denote the file version.
      */
-    public static final byte[] MAGIC = "FM01".getBytes();
+    public static final byte[] MAGIC = "FM02".getBytes();
+
+    /**
+     * Version 1 files with a 32 bit count.
+     */
+    public static final byte[] MAGIC_V1 = "FM01".getBytes();
 
     // 4 bytes for header
     // 4 bytes for count of items
     // 4 bytes for key type
     // 4 bytes for value type
-    public static final int OFFSET = 16;
+    public static final int OFFSET_V1 = 16;
 
-    int size        = 0;
+    /**
+     * The whole map as a NavigableMap.  The navigation methods and views
+     * are all delegated to it.
+     */
+    private FlatNavigableMap<K,V> view;
 
-    int key_width   = -1;
-    int value_width = -1;
+    public FlatMap( File file ) throws IOException {
+        this( file, new OpenOptions() );
+    }
 
-    int key_type    = -1;
-    int value_type  = -1;
+    /**
+     * Open with explicit options, e.g. OpenOptions.WARM to return straight
+     * away and warm the file up in the background.
+     */
+    public FlatMap( File file, OpenOptions options ) throws IOException {
 
-    //note, for fully in-memory buffers we can call ByteByffer.wrap()
-    MappedByteBuffer bbuf = null;
+        open( file, MAGIC_V1, MAGIC, options );
+
+        view = new FlatNavigableMap( this, 0, size, false );
+        
+    }
 
-    TypeHandler key_type_handler    = null;
-    TypeHandler value_type_handler  = null;
+    protected void readLegacyHeader() {
 
-    public FlatMap( File file ) throws IOException {
+        size        = region.getInt( 4 );
+        key_type    = region.getInt( 8 );
+        value_type  = region.getInt( 12 );
+        offset      = OFFSET_V1;
 
-        FileInputStream in = new FileInputStream( file );
-        FileChannel channel = in.getChannel();
+    }
 
-        /*
-         * http://en.wikipedia.org/wiki/Mmap
-         * 
-         * "In computing, mmap is a POSIX-compliant Unix system call that maps
-         * files or devices into memory. It is a method of memory-mapped file
-         * I/O. It naturally implements demand paging, because initially file
-         * contents are not entirely read from disk and don't use physical RAM at
-         * all. The actual reads from disk are done just in time.
-         */
-        bbuf = channel.map( FileChannel.MapMode.READ_ONLY, 0, (int)channel.size() );
-        // force this buffer to load so that it doesn't load lazily.
-        bbuf.load();
+    V getValueFromPosition( long pos ) {
+        return (V)getValueObjectFromPosition( pos );
+    }
 
-        byte[] magic = new byte[MAGIC.length];
-        magic = get( 0, magic.length );
+    /**
+     * Perform a binary search of the key space in this flat map, return null if
+     * the key was not found.
+     *
+     */
+    public V get( Object key ) {
 
-        size = toInt( get( 4, 4 ) );
+        long pos = find( key );
 
-        key_type    = toInt( get( 8, 4 ) );
-        value_type  = toInt( get( 12, 4 ) );
+        if ( pos < 0 )
+            return null;
 
-        key_type_handler    = lookupTypeHandler( key_type );
-        value_type_handler  = lookupTypeHandler( value_type );
+        return getValueFromPosition( pos );
         
     }
 
     /**
-     * Given an offset, and a length, fetch the given blocks.
+     * Return the encoded value for the given key as a read only view of the
+     * mapped file without copying or decoding it, or null if the key was not
+     * found.  Strings are UTF-8.  Only valid for variable width values.
      */
-    private byte[] get( int offset, int length ) {
-        byte[] buff = new byte[length];
+    public ByteBuffer getValueBuffer( K key ) {
 
-        //this is what ByteBuffer does internally anyway.
-        for( int i = 0; i < length; ++i ) {
-            buff[i] = bbuf.get( offset + i );
-        }
+        if ( ! value_pointers )
+            throw new RuntimeException( "Not a variable width value type: " + value_type );
+
+        long pos = find( key );
+
+        if ( pos < 0 )
+            return null;
+
+        return getValueBufferFromPosition( pos );
 
-        return buff;
     }
 
-    private byte[] getKeyFromPosition( int pos ) {
+    /**
+     * Return a cursor which scans the entries in key order.  For long and int
+     * keys and values the scan doesn't box or allocate.
+     */
+    public Cursor cursor() {
+        return new Cursor( this );
+    }
 
-        int offset = OFFSET +
-            (pos * (key_type_handler.sizeOf() + value_type_handler.sizeOf()));
-        
-        return get( offset, key_type_handler.sizeOf() );
+    /*
+     * Streams.  These are split by position so parallel streams scan a
+     * separate range of the file in each fork-join task.  The primitive
+     * streams read straight from the region and never box; call parallel()
+     * on them to spread them across cores.
+     */
+
+    /**
+     * The entries in key order.  Each entry is a separate immutable snapshot
+     * so they're safe to collect.
+     */
+    public Stream<Map.Entry<K,V>> stream() {
+        return StreamSupport.stream( view.entrySet().spliterator(), false );
     }
 
-    private V getValueFromPosition( int pos ) {
+    public Stream<Map.Entry<K,V>> parallelStream() {
+        return StreamSupport.stream( view.entrySet().spliterator(), true );
+    }
 
-        int offset = OFFSET +
-            (pos * (key_type_handler.sizeOf() + value_type_handler.sizeOf()));
-        offset += key_type_handler.sizeOf();
-        
-        byte[] data = get( offset, value_type_handler.sizeOf() );
+    /**
+     * Keys of a FlatMap&lt;Long,?&gt; (or FlatMap&lt;Integer,?&gt;).
+     */
+    public LongStream longKeyStream() {
+        return StreamSupport.longStream( longKeySpliterator( 0, size ), false );
+    }
 
-        return (V)value_type_handler.toValue( data );
+    /**
+     * Keys of a FlatMap&lt;Integer,?&gt;.
+     */
+    public IntStream intKeyStream() {
+        return StreamSupport.intStream( intKeySpliterator( 0, size ), false );
+    }
 
+    /**
+     * Values of a FlatMap&lt;?,Long&gt; (or FlatMap&lt;?,Integer&gt;) in key
+     * order.
+     */
+    public LongStream longValueStream() {
+        return StreamSupport.longStream( longValueSpliterator( 0, size ), false );
     }
-    
+
     /**
-     * Perform a binary search of the key space in this flat map, return null if
-     * the key was not found.
-     *
+     * Values of a FlatMap&lt;?,Integer&gt; in key order.
      */
-    public V get( K key ) {
-
-        //make the key a byte array
-        byte[] key_data = key_type_handler.toByteArray( key );
-
-    	int low = 0;
-    	int high = size -1;
-
-    	while (low <= high) {
-
-    	    int mid = (low + high) >>> 1;
-    	    byte[] midVal = getKeyFromPosition(mid);
-            
-    	    int cmp = ByteArrayComparator.compare( midVal, key_data );
-            
-    	    if (cmp < 0) {
-                low = mid + 1;
-            } else if (cmp > 0) {
-                high = mid - 1;
-            } else {
-                // key found
-                return getValueFromPosition( mid ); 
-            }
-            
-    	}
-
-    	return null;  // key not found
-        
+    public IntStream intValueStream() {
+        return StreamSupport.intStream( intValueSpliterator( 0, size ), false );
+    }
+
+    /*
+     * Primitive lookups.  These never box the key or the value and compare
+     * directly against the buffer so nothing is allocated per call.  The
+     * default value is returned when the key isn't present.
+     */
+
+    /**
+     * Lookup for a FlatMap&lt;Long,Integer&gt;.
+     */
+    public int getInt( long key, int defaultValue ) {
+
+        requireValueType( TYPE_INT );
+
+        long pos = findLong( key );
+
+        if ( pos < 0 )
+            return defaultValue;
+
+        return (int)getRawValueFromPosition( pos );
+
+    }
+
+    /**
+     * Lookup for a FlatMap&lt;Long,Long&gt;.
+     */
+    public long getLong( long key, long defaultValue ) {
+
+        requireValueType( TYPE_LONG );
+
+        long pos = findLong( key );
+
+        if ( pos < 0 )
+            return defaultValue;
+
+        return getRawValueFromPosition( pos );
+
+    }
+
+    /**
+     * Lookup for a FlatMap&lt;Integer,Integer&gt;.
+     */
+    public int getInt( int key, int defaultValue ) {
+
+        requireValueType( TYPE_INT );
+
+        long pos = findInt( key );
+
+        if ( pos < 0 )
+            return defaultValue;
+
+        return (int)getRawValueFromPosition( pos );
+
+    }
+
+    /**
+     * Lookup for a FlatMap&lt;Integer,Long&gt;.
+     */
+    public long getLong( int key, long defaultValue ) {
+
+        requireValueType( TYPE_LONG );
+
+        long pos = findInt( key );
+
+        if ( pos < 0 )
+            return defaultValue;
+
+        return getRawValueFromPosition( pos );
+
     }
 
-    public int size() {
-        return size;
+    /*
+     * Batch lookups.  The keys are sorted and found in a single pass over the
+     * file which is much cheaper than a separate search per key when looking
+     * up thousands of keys at once.  Results are in the same order as the
+     * keys.
+     */
+
+    /**
+     * Batch lookup for a FlatMap&lt;Long,Integer&gt; or
+     * FlatMap&lt;Integer,Integer&gt;.
+     */
+    public void getAll( long[] keys, int[] values, int defaultValue ) {
+
+        requireValueType( TYPE_INT );
+
+        long[] positions = new long[ keys.length ];
+        findAll( keys, positions );
+
+        for( int i = 0; i < keys.length; ++i ) {
+
+            if ( positions[i] < 0 )
+                values[i] = defaultValue;
+            else
+                values[i] = (int)getRawValueFromPosition( positions[i] );
+
+        }
+
     }
 
-    public boolean isEmpty() {
-        return size == 0;
+    /**
+     * Batch lookup for a FlatMap&lt;Long,Long&gt; or
+     * FlatMap&lt;Integer,Long&gt;.
+     */
+    public void getAll( long[] keys, long[] values, long defaultValue ) {
+
+        requireValueType( TYPE_LONG );
+
+        long[] positions = new long[ keys.length ];
+        findAll( keys, positions );
+
+        for( int i = 0; i < keys.length; ++i ) {
+
+            if ( positions[i] < 0 )
+                values[i] = defaultValue;
+            else
+                values[i] = getRawValueFromPosition( positions[i] );
+
+        }
+
     }
 
-    public boolean containsKey(K key) {
-        return get( key ) != null;
+    /**
+     * Batch containsKey for long or int keys.
+     */
+    public void containsAll( long[] keys, boolean[] result ) {
+
+        long[] positions = new long[ keys.length ];
+        findAll( keys, positions );
+
+        for( int i = 0; i < keys.length; ++i ) {
+            result[i] = positions[i] >= 0;
+        }
+
+    }
+
+    public boolean containsKey( long key ) {
+        return findLong( key ) >= 0;
+    }
+
+    public boolean containsKey( int key ) {
+        return findInt( key ) >= 0;
+    }
+
+    public boolean containsKey(Object key) {
+        return find( key ) >= 0;
     }
 
     public boolean containsValue(Object value) {
 
-        for( int i = 0; i < size; ++i ) {
+        for( long i = 0; i < size; ++i ) {
             if ( getValueFromPosition( i ).equals( value ) )
                 return true;
         }
@@ -170,44 +319,126 @@ public class FlatMap<K,V> extends ReadOnlyMap<K,V> {
         
     }
     
-    public Set<K> keySet() {
+    /*
+     * SortedMap/NavigableMap.  Keys are in the order of their encoded bytes,
+     * see comparator().  Views are backed by the mapped file and nothing is
+     * copied; the entry set iterator reuses a single entry.
+     */
 
-        /*
-        //it's a shame we can't use a linked list here.
-        Set<K> result = new TreeSet();
+    public Comparator<? super K> comparator() {
+        return view.comparator();
+    }
 
-        for( int i = 0; i < size; ++i ) {
-            result.add( (K)key_type_handler.toValue( getKeyFromPosition( i ) ) );
-        }
+    public K firstKey() {
+        return view.firstKey();
+    }
 
-        return result;
-        */
-        throw new RuntimeException( "not implemented yet" );
-        
+    public K lastKey() {
+        return view.lastKey();
     }
 
-    public Collection<V> values() {
+    public Map.Entry<K,V> firstEntry() {
+        return view.firstEntry();
+    }
 
-        /*
-        //it's a shame we can't use a linked list here.
-        Set<V> result = new TreeSet();
+    public Map.Entry<K,V> lastEntry() {
+        return view.lastEntry();
+    }
 
-        for( int i = 0; i < size; ++i ) {
-            result.add( (V)getValueFromPosition( i ) );
-        }
+    public Map.Entry<K,V> pollFirstEntry() {
+        return view.pollFirstEntry();
+    }
 
-        return result;
-        */
-        throw new RuntimeException( "not implemented yet" );
+    public Map.Entry<K,V> pollLastEntry() {
+        return view.pollLastEntry();
+    }
+
+    public Map.Entry<K,V> lowerEntry( K key ) {
+        return view.lowerEntry( key );
+    }
+
+    public K lowerKey( K key ) {
+        return view.lowerKey( key );
+    }
+
+    public Map.Entry<K,V> floorEntry( K key ) {
+        return view.floorEntry( key );
+    }
+
+    public K floorKey( K key ) {
+        return view.floorKey( key );
+    }
+
+    public Map.Entry<K,V> ceilingEntry( K key ) {
+        return view.ceilingEntry( key );
+    }
 
+    public K ceilingKey( K key ) {
+        return view.ceilingKey( key );
+    }
+
+    public Map.Entry<K,V> higherEntry( K key ) {
+        return view.higherEntry( key );
+    }
+
+    public K higherKey( K key ) {
+        return view.higherKey( key );
+    }
+
+    public NavigableMap<K,V> subMap( K fromKey, boolean fromInclusive, K toKey, boolean toInclusive ) {
+        return view.subMap( fromKey, fromInclusive, toKey, toInclusive );
+    }
+
+    public NavigableMap<K,V> headMap( K toKey, boolean inclusive ) {
+        return view.headMap( toKey, inclusive );
+    }
+
+    public NavigableMap<K,V> tailMap( K fromKey, boolean inclusive ) {
+        return view.tailMap( fromKey, inclusive );
+    }
+
+    public SortedMap<K,V> subMap( K fromKey, K toKey ) {
+        return view.subMap( fromKey, toKey );
+    }
+
+    public SortedMap<K,V> headMap( K toKey ) {
+        return view.headMap( toKey );
+    }
+
+    public SortedMap<K,V> tailMap( K fromKey ) {
+        return view.tailMap( fromKey );
+    }
+
+    public NavigableMap<K,V> descendingMap() {
+        return view.descendingMap();
+    }
+
+    public NavigableSet<K> navigableKeySet() {
+        return view.navigableKeySet();
+    }
+
+    public NavigableSet<K> descendingKeySet() {
+        return view.descendingKeySet();
+    }
+
+    public Set<K> keySet() {
+        return view.keySet();
+    }
+
+    public Collection<V> values() {
+        return view.values();
     }
 
     public Set<Map.Entry<K, V>> entrySet() {
+        return view.entrySet();
+    }
 
-        /*
-        Set<Map.Entry<K, V>> result = new TreeSet();
-        */
-        throw new RuntimeException( "not implemented yet" );
+    public boolean equals( Object o ) {
+        return o == this || view.equals( o );
+    }
+
+    public int hashCode() {
+        return view.hashCode();
     }
     
     private String format( byte[] b ) {
@@ -221,7 +452,5 @@ public class FlatMap<K,V> extends ReadOnlyMap<K,V> {
         
     }
     
-    //FIXME: hashCode, equals
-    
 }
 
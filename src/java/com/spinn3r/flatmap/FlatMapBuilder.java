@@ -0,0 +1,124 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Builds a FlatMap from entries added one at a time, in any order, without
+ * holding the whole map on the heap.  Entries are sorted in memory until the
+ * memory budget is used up and then spilled to disk as sorted runs which are
+ * merged by finish().
+ *
+ * <code>
+ * FlatMapBuilder builder = new FlatMapBuilder( file );
+ * builder.add( key, value );
+ * ...
+ * builder.finish();
+ * </code>
+ *
+ * If a key is added more than once the last value added wins.
+ */
+public class FlatMapBuilder<K,V> {
+
+    /**
+     * 64MB of buffered entries by default.
+     */
+    public static final long DEFAULT_MEMORY = 64L * 1024 * 1024;
+
+    private File file = null;
+
+    private long memory;
+
+    private File temp_directory = null;
+
+    private int block_size = RecordWriter.DEFAULT_BLOCK_SIZE;
+
+    private boolean learned_index = true;
+
+    private double bloom_fpp = 0;
+
+    private TypeHandler key_type_handler = null;
+
+    private TypeHandler value_type_handler = null;
+
+    private ExternalSorter sorter = null;
+
+    public FlatMapBuilder( File file ) {
+        this( file, DEFAULT_MEMORY );
+    }
+
+    /**
+     * @param memory Approximate number of bytes of entries to buffer before
+     * spilling a sorted run to disk.
+     */
+    public FlatMapBuilder( File file, long memory ) {
+        this.file = file;
+        this.memory = memory;
+    }
+
+    /**
+     * Where to write sorted runs.  Defaults to java.io.tmpdir.
+     */
+    public void setTempDirectory( File temp_directory ) {
+        this.temp_directory = temp_directory;
+    }
+
+    /**
+     * Number of keys per front coded block when writing variable width keys.
+     */
+    public void setBlockSize( int block_size ) {
+        this.block_size = block_size;
+    }
+
+    /**
+     * See FlatMapWriter.setLearnedIndex.
+     */
+    public void setLearnedIndex( boolean learned_index ) {
+        this.learned_index = learned_index;
+    }
+
+    /**
+     * See FlatMapWriter.setBloomFilter.
+     */
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    public void add( K key, V value ) throws IOException {
+
+        if ( sorter == null ) {
+
+            int key_type   = typeOf( key );
+            int value_type = typeOf( value );
+
+            key_type_handler   = lookupTypeHandler( key_type );
+            value_type_handler = lookupTypeHandler( value_type );
+
+            sorter = new ExternalSorter( FlatMap.MAGIC, key_type, value_type, memory );
+            sorter.setTempDirectory( temp_directory );
+            sorter.setBlockSize( block_size );
+            sorter.setLearnedIndex( learned_index );
+            sorter.setBloomFilter( bloom_fpp );
+
+        }
+
+        sorter.add( key_type_handler.toByteArray( key ),
+                    value_type_handler.toByteArray( value ) );
+
+    }
+
+    /**
+     * Merge everything added so far into the output file.
+     */
+    public void finish() throws IOException {
+
+        if ( sorter == null )
+            throw new IOException( "No entries added" );
+
+        sorter.finish( file );
+
+    }
+
+}
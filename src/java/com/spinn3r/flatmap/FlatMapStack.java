@@ -0,0 +1,342 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Reads a base FlatMap plus any number of newer deltas as if they were one
+ * map, so small updates can be published without rewriting the base file.
+ *
+ * Files are given oldest first, as with Compactor, and a lookup checks them
+ * newest to oldest, returning the first hit.  A FlatSet among the files is a
+ * set of tombstones: a key found there reads as absent no matter what the
+ * older files hold.
+ *
+ * Most layers can't hold a given key, so each layer's smallest and largest
+ * key (read from its first and last records at open) are kept on the heap
+ * and layers whose range doesn't cover the key are skipped without touching
+ * the file.  Layers with a Bloom filter then reject most of the remaining
+ * misses before searching, which keeps a lookup close to the cost of a
+ * single file probe.  Once the number of deltas grows, merge them with
+ * Compactor.
+ *
+ * close() closes every file in the stack.
+ */
+public class FlatMapStack<K,V> implements Closeable {
+
+    /**
+     * Newest first.
+     */
+    private Layer[] layers;
+
+    private int key_type = -1;
+
+    private int value_type = -1;
+
+    private TypeHandler key_type_handler;
+
+    private int key_width;
+
+    public FlatMapStack( List<File> files ) throws IOException {
+        this( files, new OpenOptions() );
+    }
+
+    public FlatMapStack( List<File> files, OpenOptions options ) throws IOException {
+
+        layers = new Layer[ files.size() ];
+
+        boolean opened = false;
+
+        try {
+            open( files, options );
+            opened = true;
+        } finally {
+
+            //don't leave the files opened so far mapped.
+            if ( ! opened )
+                close();
+
+        }
+
+        key_type_handler = lookupTypeHandler( key_type );
+        key_width        = key_type_handler.sizeOf();
+
+    }
+
+    /**
+     * A stack over layers which are already open, newest first.  Used by
+     * MutableFlatMap, which shares its layers between generations and
+     * closes them itself.
+     */
+    FlatMapStack( Layer[] layers, int key_type, int value_type ) {
+
+        this.layers      = layers;
+        this.key_type    = key_type;
+        this.value_type  = value_type;
+
+        key_type_handler = lookupTypeHandler( key_type );
+        key_width        = key_type_handler.sizeOf();
+
+    }
+
+    private void open( List<File> files, OpenOptions options ) throws IOException {
+
+        for( int i = 0; i < files.size(); ++i ) {
+
+            File file = files.get( i );
+
+            BaseFlatCollection collection = BaseFlatCollection.open( file, options );
+
+            layers[ files.size() - 1 - i ] = new Layer( collection );
+
+            if ( key_type < 0 )
+                key_type = collection.key_type;
+
+            if ( collection.key_type != key_type )
+                throw new IOException( "Key type mismatch in " + file.getPath() + ": " + collection.key_type + " vs " + key_type );
+
+            if ( collection instanceof FlatMap ) {
+
+                if ( value_type < 0 )
+                    value_type = collection.value_type;
+
+                if ( collection.value_type != value_type )
+                    throw new IOException( "Value type mismatch in " + file.getPath() + ": " + collection.value_type + " vs " + value_type );
+
+            }
+
+        }
+
+        if ( value_type < 0 )
+            throw new IOException( "No FlatMap files" );
+
+    }
+
+    public void close() {
+
+        for( Layer layer : layers ) {
+
+            if ( layer != null )
+                layer.collection.close();
+
+        }
+
+    }
+
+    /**
+     * Number of files in the stack.
+     */
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    public V get( Object key ) {
+
+        if ( key_width == VARIABLE ) {
+
+            byte[] bytes = key_type_handler.toByteArray( key );
+
+            for( Layer layer : layers ) {
+
+                long pos = layer.find( bytes );
+
+                if ( pos >= 0 )
+                    return layer.tombstones ? null : (V)layer.collection.getValueObjectFromPosition( pos );
+
+            }
+
+            return null;
+
+        }
+
+        long raw = key_type_handler.toRawLong( key );
+        long sort_key = ByteArrayComparator.sortKey( raw, key_width );
+
+        for( Layer layer : layers ) {
+
+            long pos = layer.find( raw, sort_key );
+
+            if ( pos >= 0 )
+                return layer.tombstones ? null : (V)layer.collection.getValueObjectFromPosition( pos );
+
+        }
+
+        return null;
+
+    }
+
+    public boolean containsKey( Object key ) {
+
+        if ( key_width == VARIABLE ) {
+
+            byte[] bytes = key_type_handler.toByteArray( key );
+
+            for( Layer layer : layers ) {
+
+                if ( layer.find( bytes ) >= 0 )
+                    return ! layer.tombstones;
+
+            }
+
+            return false;
+
+        }
+
+        long raw = key_type_handler.toRawLong( key );
+        long sort_key = ByteArrayComparator.sortKey( raw, key_width );
+
+        for( Layer layer : layers ) {
+
+            if ( layer.find( raw, sort_key ) >= 0 )
+                return ! layer.tombstones;
+
+        }
+
+        return false;
+
+    }
+
+    /**
+     * Lookup for a stack of FlatMap&lt;Long,Long&gt; without boxing.
+     */
+    public long getLong( long key, long defaultValue ) {
+
+        requireKeyType( TYPE_LONG );
+        requireValueType( TYPE_LONG );
+
+        long sort_key = ByteArrayComparator.sortKey( key, key_width );
+
+        for( Layer layer : layers ) {
+
+            long pos = layer.find( key, sort_key );
+
+            if ( pos >= 0 ) {
+
+                if ( layer.tombstones )
+                    return defaultValue;
+
+                return layer.collection.getRawValueFromPosition( pos );
+
+            }
+
+        }
+
+        return defaultValue;
+
+    }
+
+    /**
+     * Lookup for a stack of FlatMap&lt;Long,Integer&gt; without boxing.
+     */
+    public int getInt( long key, int defaultValue ) {
+
+        requireKeyType( TYPE_LONG );
+        requireValueType( TYPE_INT );
+
+        long sort_key = ByteArrayComparator.sortKey( key, key_width );
+
+        for( Layer layer : layers ) {
+
+            long pos = layer.find( key, sort_key );
+
+            if ( pos >= 0 ) {
+
+                if ( layer.tombstones )
+                    return defaultValue;
+
+                return (int)layer.collection.getRawValueFromPosition( pos );
+
+            }
+
+        }
+
+        return defaultValue;
+
+    }
+
+    private void requireKeyType( int type ) {
+
+        if ( key_type != type )
+            throw new RuntimeException( "Key type mismatch: " + key_type + " vs " + type );
+
+    }
+
+    private void requireValueType( int type ) {
+
+        if ( value_type != type )
+            throw new RuntimeException( "Value type mismatch: " + value_type + " vs " + type );
+
+    }
+
+    /**
+     * One file of the stack along with its key range.
+     */
+    static class Layer {
+
+        BaseFlatCollection collection;
+
+        boolean tombstones;
+
+        boolean empty;
+
+        /**
+         * Sort keys of the first and last keys for fixed width keys.
+         */
+        long min_sort_key;
+
+        long max_sort_key;
+
+        /**
+         * First and last keys for variable width keys.
+         */
+        byte[] min_key;
+
+        byte[] max_key;
+
+        Layer( BaseFlatCollection collection ) {
+
+            this.collection  = collection;
+            this.tombstones  = collection instanceof FlatSet;
+
+            long size = collection.size;
+
+            empty = size == 0;
+
+            if ( empty )
+                return;
+
+            if ( collection.block_index != null ) {
+                min_key = collection.getKeyFromPosition( 0 );
+                max_key = collection.getKeyFromPosition( size - 1 );
+            } else {
+                min_sort_key = collection.getSortKeyFromPosition( 0 );
+                max_sort_key = collection.getSortKeyFromPosition( size - 1 );
+            }
+
+        }
+
+        long find( long raw, long sort_key ) {
+
+            if ( empty || sort_key < min_sort_key || sort_key > max_sort_key )
+                return -1;
+
+            return collection.findRaw( raw );
+
+        }
+
+        long find( byte[] key ) {
+
+            if ( empty ||
+                 ByteArrayComparator.compare( key, min_key ) < 0 ||
+                 ByteArrayComparator.compare( key, max_key ) > 0 )
+                return -1;
+
+            return collection.findEncoded( key );
+
+        }
+
+    }
+
+}
@@ -3,57 +3,286 @@ package com.spinn3r.flatmap;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.spinn3r.flatmap.TypeManager.*;
 
 /**
  * Used to serialize a Map into a FlatMap capable of being mmap'd into memory
  * for high performance key lookup with a FlatMap.
+ *
+ * Maps with variable width values (String, byte[] or other Serializable
+ * objects) are written with a pointer per record and a separate data section.
+ * Maps with variable width keys (String or byte[]) are written as front coded
+ * blocks of keys with a separate value array.
  */
 public class FlatMapWriter {
 
+    private int block_size = RecordWriter.DEFAULT_BLOCK_SIZE;
+
+    private int threads = 1;
+
+    private int layout = BaseFlatCollection.LAYOUT_SORTED;
+
+    private int node_size = RecordWriter.DEFAULT_NODE_SIZE;
+
+    private boolean learned_index = true;
+
+    private double bloom_fpp = 0;
+
+    /**
+     * Layout for fixed width keys: LAYOUT_SORTED (the default),
+     * LAYOUT_BTREE or LAYOUT_PACKED.  Variable width keys are always written
+     * as LAYOUT_BLOCKED.  LAYOUT_PACKED maps with variable width values
+     * are written as LAYOUT_SORTED.
+     */
+    public void setLayout( int layout ) {
+        this.layout = layout;
+    }
+
+    /**
+     * Node size in bytes for LAYOUT_BTREE.  The default of 64 matches a cache
+     * line, 4096 (a page) suits files much larger than memory.
+     */
+    public void setNodeSize( int node_size ) {
+        this.node_size = node_size;
+    }
+
+    /**
+     * Whether LAYOUT_SORTED files carry a model of where each key sits so
+     * that lookups search a small window instead of the whole file.  On by
+     * default and only written when the keys are regular enough (hashes,
+     * sequential IDs) for it to pay off.
+     */
+    public void setLearnedIndex( boolean learned_index ) {
+        this.learned_index = learned_index;
+    }
+
+    /**
+     * Store a Bloom filter over the keys with the given false positive
+     * probability (e.g. 0.01) so that lookups of missing keys can usually
+     * skip the search.  0, the default, writes no filter.
+     */
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    /**
+     * Number of threads to encode, sort and write with.  With more than one
+     * thread fixed width keys and values take a fork/join build path which
+     * scales with the number of cores.
+     */
+    public void setThreads( int threads ) {
+        this.threads = threads;
+    }
+
+    /**
+     * Number of keys per front coded block when writing variable width keys.
+     * Larger blocks compress better but have to be scanned further.
+     */
+    public void setBlockSize( int block_size ) {
+        this.block_size = block_size;
+    }
+
+    /**
+     * The map is written to a temp file which is renamed over the given one
+     * once it's complete, so readers never see a partial file.
+     */
     public void write( Map map, File file ) throws IOException {
-        write( map, new FileOutputStream( file ) );        
+
+        File temp = AtomicFile.temp( file );
+
+        try {
+
+            OutputStream out = new FileOutputStream( temp );
+
+            try {
+                write( map, out );
+            } finally {
+                //already closed unless the write failed.
+                out.close();
+            }
+
+            AtomicFile.commit( temp, file );
+
+        } finally {
+            temp.delete();
+        }
+
     }
 
     public void write( Map map, OutputStream out ) throws IOException {
 
-        out.write( FlatMap.MAGIC );
-
         //sort the keys:
         List keys = new ArrayList( map.keySet() );
 
-        //write the number of items in the key.
-        out.write( toByteArray( map.size() ) );
-
         //write constants for key/value pairs
 
         Object first_key     = keys.get( 0 );
         Object first_value   = map.get( first_key );
         int key_type         = typeOf( first_key );
         int value_type       = typeOf( first_value );
-        
-        out.write( toByteArray( key_type ) );
-        out.write( toByteArray( value_type ) );
 
         TypeHandler key_type_handler   = lookupTypeHandler( key_type );
         TypeHandler value_type_handler = lookupTypeHandler( value_type );
 
+        if ( threads > 1 && layout == BaseFlatCollection.LAYOUT_SORTED && ParallelWriter.supports( key_type, value_type ) ) {
+
+            Object[] key_array   = new Object[ map.size() ];
+            Object[] value_array = new Object[ map.size() ];
+
+            int i = 0;
+
+            for( Object o : map.entrySet() ) {
+                Map.Entry entry = (Map.Entry)o;
+                key_array[i]   = entry.getKey();
+                value_array[i] = entry.getValue();
+                ++i;
+            }
+
+            ForkJoinPool pool = new ForkJoinPool( threads );
+
+            try {
+                ParallelWriter.write( pool, out, FlatMap.MAGIC, key_type, value_type, key_array, value_array, learned_index, bloom_fpp );
+            } finally {
+                pool.shutdown();
+            }
+
+            return;
+
+        }
+
         ByteArrayComparator comparator = new ByteArrayComparator( key_type_handler );
         
         Collections.sort( keys, comparator );
 
-        //now dump the whole sorted list of keys and values into the output
-        //stream:
-        for( Object key : keys ) {
-            Object value = map.get( key );
-            out.write( key_type_handler.toByteArray( key ) );
-            out.write( value_type_handler.toByteArray( value ) );
+        //variable width values need to know how large the data section is
+        //going to be so that we can pick the pointer width up front.
+        long data_length = 0;
+
+        if ( value_type_handler.sizeOf() == VARIABLE ) {
+
+            for( Object key : keys ) {
+                int length = value_type_handler.toByteArray( map.get( key ) ).length;
+                data_length += sizeOfVarInt( length ) + length;
+            }
+
         }
 
-        out.close();
+        RecordWriter writer = new RecordWriter( out,
+                                                FlatMap.MAGIC,
+                                                layoutOf( key_type_handler, value_type_handler, layout ),
+                                                map.size(),
+                                                key_type,
+                                                value_type,
+                                                data_length );
+
+        writer.setBlockSize( block_size );
+        writer.setNodeSize( node_size );
+        writer.setLearnedIndex( learned_index );
+        writer.setBloomFilter( bloom_fpp );
+
+        boolean complete = false;
+
+        try {
+
+            //now dump the whole sorted list of keys and values into the output
+            //stream:
+            for( Object key : keys ) {
+                Object value = map.get( key );
+                writer.add( key_type_handler.toByteArray( key ),
+                            value_type_handler.toByteArray( value ) );
+            }
+
+            writer.close();
+            complete = true;
+
+        } finally {
+
+            //don't leak the stream or the spooled sections.
+            if ( ! complete )
+                writer.abort();
+
+        }
         
     }
 
+    /**
+     * Variable width keys can't be stored in fixed width records so they're
+     * written as front coded blocks.
+     */
+    static int layoutOf( TypeHandler key_type_handler ) {
+        return layoutOf( key_type_handler, BaseFlatCollection.LAYOUT_SORTED );
+    }
+
+    static int layoutOf( TypeHandler key_type_handler, int layout ) {
+
+        if ( key_type_handler.sizeOf() == VARIABLE )
+            return BaseFlatCollection.LAYOUT_BLOCKED;
+
+        return layout;
+
+    }
+
+    /**
+     * Values are only bit packed when they're fixed width.
+     */
+    static int layoutOf( TypeHandler key_type_handler, TypeHandler value_type_handler, int layout ) {
+
+        if ( layout == BaseFlatCollection.LAYOUT_PACKED && value_type_handler.sizeOf() == VARIABLE )
+            layout = BaseFlatCollection.LAYOUT_SORTED;
+
+        return layoutOf( key_type_handler, layout );
+
+    }
+
+    /**
+     * Write the version 2 header shared by FlatMap and FlatSet files.  See
+     * BaseFlatCollection for the layout.
+     */
+    static void writeHeader( OutputStream out,
+                             byte[] magic,
+                             int layout,
+                             long size,
+                             int key_type,
+                             int value_type,
+                             int flags ) throws IOException {
+
+        out.write( magic );
+        out.write( toByteArray( layout ) );
+        out.write( toByteArray( size ) );
+        out.write( toByteArray( key_type ) );
+        out.write( toByteArray( value_type ) );
+        out.write( toByteArray( flags ) );
+
+        //reserved
+        out.write( toByteArray( 0 ) );
+
+    }
+
+    static void writeVarInt( OutputStream out, int v ) throws IOException {
+
+        while ( (v & ~0x7F) != 0 ) {
+            out.write( (v & 0x7F) | 0x80 );
+            v >>>= 7;
+        }
+
+        out.write( v );
+
+    }
+
+    static int sizeOfVarInt( int v ) {
+
+        int size = 1;
+
+        while ( (v & ~0x7F) != 0 ) {
+            v >>>= 7;
+            ++size;
+        }
+
+        return size;
+
+    }
+
 }
 
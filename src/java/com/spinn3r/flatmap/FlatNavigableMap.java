@@ -0,0 +1,589 @@
+package com.spinn3r.flatmap;
+
+import java.util.*;
+
+/**
+ * Read only NavigableMap view over the positions [lo, hi) of a FlatMap,
+ * optionally in descending order.
+ *
+ * Nothing is copied.  Range views (subMap, headMap, tailMap) are just a
+ * narrower pair of positions found by binary search and the iterators walk
+ * the mapped records in order, decoding each key and value only when it's
+ * asked for.
+ *
+ * The entry iterator returns the same Map.Entry object every time, moved to
+ * the next record, so iterating doesn't allocate an entry per record.  An
+ * entry is only valid until the next call to next(); copy the key and value
+ * out (or use firstEntry(), ceilingEntry() etc. which return snapshots) if
+ * they need to be kept.  The spliterators (and so streams) create a
+ * separate entry per record.
+ */
+class FlatNavigableMap<K,V> extends AbstractMap<K,V> implements NavigableMap<K,V> {
+
+    private FlatMap<K,V> map;
+
+    private long lo;
+
+    private long hi;
+
+    private boolean descending;
+
+    FlatNavigableMap( FlatMap<K,V> map, long lo, long hi, boolean descending ) {
+        this.map         = map;
+        this.lo          = lo;
+        this.hi          = hi;
+        this.descending  = descending;
+    }
+
+    public int size() {
+        return (int)Math.min( hi - lo, Integer.MAX_VALUE );
+    }
+
+    public boolean isEmpty() {
+        return hi <= lo;
+    }
+
+    public boolean containsKey( Object key ) {
+        return inRange( map.find( key ) );
+    }
+
+    public V get( Object key ) {
+
+        long pos = map.find( key );
+
+        if ( ! inRange( pos ) )
+            return null;
+
+        return map.getValueFromPosition( pos );
+
+    }
+
+    public V put( K key, V value ) {
+        throw new UnsupportedOperationException( "Read only map" );
+    }
+
+    public V remove( Object key ) {
+        throw new UnsupportedOperationException( "Read only map" );
+    }
+
+    public void putAll( Map<? extends K, ? extends V> m ) {
+        throw new UnsupportedOperationException( "Read only map" );
+    }
+
+    public void clear() {
+        throw new UnsupportedOperationException( "Read only map" );
+    }
+
+    public Comparator<? super K> comparator() {
+
+        Comparator<? super K> comparator = (Comparator<? super K>)map.getKeyComparator();
+
+        if ( descending )
+            return Collections.reverseOrder( comparator );
+
+        return comparator;
+
+    }
+
+    /*
+     * Navigation.  The *Pos methods work in ascending positions clamped to
+     * this view and return -1 when there is no such key.  A descending view
+     * swaps ceiling with floor and higher with lower.
+     */
+
+    private boolean inRange( long pos ) {
+        return pos >= lo && pos < hi;
+    }
+
+    private long ceilingPos( Object key ) {
+        return clampLow( map.ceilingPosition( key, true ) );
+    }
+
+    private long higherPos( Object key ) {
+        return clampLow( map.ceilingPosition( key, false ) );
+    }
+
+    private long floorPos( Object key ) {
+        return clampHigh( map.ceilingPosition( key, false ) - 1 );
+    }
+
+    private long lowerPos( Object key ) {
+        return clampHigh( map.ceilingPosition( key, true ) - 1 );
+    }
+
+    private long clampLow( long pos ) {
+
+        pos = Math.max( lo, pos );
+
+        return pos < hi ? pos : -1;
+
+    }
+
+    private long clampHigh( long pos ) {
+
+        pos = Math.min( hi - 1, pos );
+
+        return pos >= lo ? pos : -1;
+
+    }
+
+    private long firstPos() {
+
+        if ( isEmpty() )
+            return -1;
+
+        return descending ? hi - 1 : lo;
+
+    }
+
+    private long lastPos() {
+
+        if ( isEmpty() )
+            return -1;
+
+        return descending ? lo : hi - 1;
+
+    }
+
+    private K key( long pos ) {
+        return (K)map.getKeyObjectFromPosition( pos );
+    }
+
+    private K keyOrNull( long pos ) {
+        return pos < 0 ? null : key( pos );
+    }
+
+    private K keyOrThrow( long pos ) {
+
+        if ( pos < 0 )
+            throw new NoSuchElementException();
+
+        return key( pos );
+
+    }
+
+    private Map.Entry<K,V> entryOrNull( long pos ) {
+
+        if ( pos < 0 )
+            return null;
+
+        return new AbstractMap.SimpleImmutableEntry( key( pos ), map.getValueFromPosition( pos ) );
+
+    }
+
+    public K firstKey() {
+        return keyOrThrow( firstPos() );
+    }
+
+    public K lastKey() {
+        return keyOrThrow( lastPos() );
+    }
+
+    public Map.Entry<K,V> firstEntry() {
+        return entryOrNull( firstPos() );
+    }
+
+    public Map.Entry<K,V> lastEntry() {
+        return entryOrNull( lastPos() );
+    }
+
+    public Map.Entry<K,V> pollFirstEntry() {
+        throw new UnsupportedOperationException( "Read only map" );
+    }
+
+    public Map.Entry<K,V> pollLastEntry() {
+        throw new UnsupportedOperationException( "Read only map" );
+    }
+
+    public Map.Entry<K,V> ceilingEntry( K key ) {
+        return entryOrNull( descending ? floorPos( key ) : ceilingPos( key ) );
+    }
+
+    public K ceilingKey( K key ) {
+        return keyOrNull( descending ? floorPos( key ) : ceilingPos( key ) );
+    }
+
+    public Map.Entry<K,V> floorEntry( K key ) {
+        return entryOrNull( descending ? ceilingPos( key ) : floorPos( key ) );
+    }
+
+    public K floorKey( K key ) {
+        return keyOrNull( descending ? ceilingPos( key ) : floorPos( key ) );
+    }
+
+    public Map.Entry<K,V> higherEntry( K key ) {
+        return entryOrNull( descending ? lowerPos( key ) : higherPos( key ) );
+    }
+
+    public K higherKey( K key ) {
+        return keyOrNull( descending ? lowerPos( key ) : higherPos( key ) );
+    }
+
+    public Map.Entry<K,V> lowerEntry( K key ) {
+        return entryOrNull( descending ? higherPos( key ) : lowerPos( key ) );
+    }
+
+    public K lowerKey( K key ) {
+        return keyOrNull( descending ? higherPos( key ) : lowerPos( key ) );
+    }
+
+    /*
+     * Range views.  Bounds outside of this view are clamped to it rather
+     * than rejected.
+     */
+
+    private NavigableMap<K,V> range( long from, long to ) {
+
+        from = Math.min( Math.max( lo, from ), hi );
+        to   = Math.min( Math.max( from, to ), hi );
+
+        return new FlatNavigableMap( map, from, to, descending );
+
+    }
+
+    public NavigableMap<K,V> subMap( K fromKey, boolean fromInclusive, K toKey, boolean toInclusive ) {
+
+        if ( comparator().compare( fromKey, toKey ) > 0 )
+            throw new IllegalArgumentException( "fromKey > toKey" );
+
+        if ( descending )
+            return range( map.ceilingPosition( toKey, toInclusive ), map.ceilingPosition( fromKey, ! fromInclusive ) );
+
+        return range( map.ceilingPosition( fromKey, fromInclusive ), map.ceilingPosition( toKey, ! toInclusive ) );
+
+    }
+
+    public NavigableMap<K,V> headMap( K toKey, boolean inclusive ) {
+
+        if ( descending )
+            return range( map.ceilingPosition( toKey, inclusive ), hi );
+
+        return range( lo, map.ceilingPosition( toKey, ! inclusive ) );
+
+    }
+
+    public NavigableMap<K,V> tailMap( K fromKey, boolean inclusive ) {
+
+        if ( descending )
+            return range( lo, map.ceilingPosition( fromKey, ! inclusive ) );
+
+        return range( map.ceilingPosition( fromKey, inclusive ), hi );
+
+    }
+
+    public SortedMap<K,V> subMap( K fromKey, K toKey ) {
+        return subMap( fromKey, true, toKey, false );
+    }
+
+    public SortedMap<K,V> headMap( K toKey ) {
+        return headMap( toKey, false );
+    }
+
+    public SortedMap<K,V> tailMap( K fromKey ) {
+        return tailMap( fromKey, true );
+    }
+
+    public NavigableMap<K,V> descendingMap() {
+        return new FlatNavigableMap( map, lo, hi, ! descending );
+    }
+
+    /*
+     * Collection views.
+     */
+
+    public Set<K> keySet() {
+        return navigableKeySet();
+    }
+
+    public NavigableSet<K> navigableKeySet() {
+        return new KeySet();
+    }
+
+    public NavigableSet<K> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    public Collection<V> values() {
+
+        return new AbstractCollection<V>() {
+
+            public Iterator<V> iterator() {
+
+                return new PositionIterator<V>() {
+
+                    public V next() {
+                        return map.getValueFromPosition( nextPosition() );
+                    }
+
+                };
+
+            }
+
+            public int size() {
+                return FlatNavigableMap.this.size();
+            }
+
+            public Spliterator<V> spliterator() {
+
+                if ( descending )
+                    return super.spliterator();
+
+                return new PositionSpliterator( lo, hi, PositionSpliterator.BASE, null,
+                                                map::getValueFromPosition );
+
+            }
+
+        };
+
+    }
+
+    public Set<Map.Entry<K,V>> entrySet() {
+
+        return new AbstractSet<Map.Entry<K,V>>() {
+
+            public Iterator<Map.Entry<K,V>> iterator() {
+
+                return new PositionIterator<Map.Entry<K,V>>() {
+
+                    MutableEntry entry = new MutableEntry();
+
+                    public Map.Entry<K,V> next() {
+                        entry.pos = nextPosition();
+                        return entry;
+                    }
+
+                };
+
+            }
+
+            public int size() {
+                return FlatNavigableMap.this.size();
+            }
+
+            /**
+             * Unlike the iterator this creates an entry per record since
+             * streams may hold on to them.
+             */
+            public Spliterator<Map.Entry<K,V>> spliterator() {
+
+                if ( descending )
+                    return super.spliterator();
+
+                return new PositionSpliterator( lo, hi, PositionSpliterator.BASE | Spliterator.DISTINCT | Spliterator.NONNULL, null,
+                                                pos -> entryOrNull( pos ) );
+
+            }
+
+            public boolean contains( Object o ) {
+
+                if ( ! ( o instanceof Map.Entry ) )
+                    return false;
+
+                Map.Entry e = (Map.Entry)o;
+
+                long pos = map.find( e.getKey() );
+
+                if ( ! inRange( pos ) )
+                    return false;
+
+                V value = map.getValueFromPosition( pos );
+
+                return value == null ? e.getValue() == null : value.equals( e.getValue() );
+
+            }
+
+        };
+
+    }
+
+    /**
+     * Walks the positions of this view in order.
+     */
+    abstract class PositionIterator<T> implements Iterator<T> {
+
+        long next = descending ? hi - 1 : lo;
+
+        public boolean hasNext() {
+            return descending ? next >= lo : next < hi;
+        }
+
+        long nextPosition() {
+
+            if ( ! hasNext() )
+                throw new NoSuchElementException();
+
+            map.checkOpen();
+
+            long pos = next;
+
+            next += descending ? -1 : 1;
+
+            return pos;
+
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException( "Read only map" );
+        }
+
+    }
+
+    /**
+     * Entry which points at a position and decodes the key and value from
+     * the region when they're asked for.
+     */
+    class MutableEntry implements Map.Entry<K,V> {
+
+        long pos = -1;
+
+        public K getKey() {
+            return key( pos );
+        }
+
+        public V getValue() {
+            return map.getValueFromPosition( pos );
+        }
+
+        public V setValue( V value ) {
+            throw new UnsupportedOperationException( "Read only map" );
+        }
+
+        public boolean equals( Object o ) {
+
+            if ( ! ( o instanceof Map.Entry ) )
+                return false;
+
+            Map.Entry e = (Map.Entry)o;
+
+            K key = getKey();
+            V value = getValue();
+
+            return ( key == null ? e.getKey() == null : key.equals( e.getKey() ) ) &&
+                   ( value == null ? e.getValue() == null : value.equals( e.getValue() ) );
+
+        }
+
+        public int hashCode() {
+
+            K key = getKey();
+            V value = getValue();
+
+            return ( key == null ? 0 : key.hashCode() ) ^ ( value == null ? 0 : value.hashCode() );
+
+        }
+
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+
+    }
+
+    /**
+     * Navigable view of the keys, backed by this map.
+     */
+    class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+        public Iterator<K> iterator() {
+
+            return new PositionIterator<K>() {
+
+                public K next() {
+                    return key( nextPosition() );
+                }
+
+            };
+
+        }
+
+        public Spliterator<K> spliterator() {
+
+            if ( descending )
+                return super.spliterator();
+
+            return map.keySpliterator( lo, hi );
+
+        }
+
+        public Iterator<K> descendingIterator() {
+            return descendingSet().iterator();
+        }
+
+        public int size() {
+            return FlatNavigableMap.this.size();
+        }
+
+        public boolean isEmpty() {
+            return FlatNavigableMap.this.isEmpty();
+        }
+
+        public boolean contains( Object o ) {
+            return containsKey( o );
+        }
+
+        public Comparator<? super K> comparator() {
+            return FlatNavigableMap.this.comparator();
+        }
+
+        public K first() {
+            return firstKey();
+        }
+
+        public K last() {
+            return lastKey();
+        }
+
+        public K lower( K e ) {
+            return lowerKey( e );
+        }
+
+        public K floor( K e ) {
+            return floorKey( e );
+        }
+
+        public K ceiling( K e ) {
+            return ceilingKey( e );
+        }
+
+        public K higher( K e ) {
+            return higherKey( e );
+        }
+
+        public K pollFirst() {
+            throw new UnsupportedOperationException( "Read only map" );
+        }
+
+        public K pollLast() {
+            throw new UnsupportedOperationException( "Read only map" );
+        }
+
+        public NavigableSet<K> descendingSet() {
+            return descendingMap().navigableKeySet();
+        }
+
+        public NavigableSet<K> subSet( K fromElement, boolean fromInclusive, K toElement, boolean toInclusive ) {
+            return subMap( fromElement, fromInclusive, toElement, toInclusive ).navigableKeySet();
+        }
+
+        public NavigableSet<K> headSet( K toElement, boolean inclusive ) {
+            return headMap( toElement, inclusive ).navigableKeySet();
+        }
+
+        public NavigableSet<K> tailSet( K fromElement, boolean inclusive ) {
+            return tailMap( fromElement, inclusive ).navigableKeySet();
+        }
+
+        public SortedSet<K> subSet( K fromElement, K toElement ) {
+            return subSet( fromElement, true, toElement, false );
+        }
+
+        public SortedSet<K> headSet( K toElement ) {
+            return headSet( toElement, false );
+        }
+
+        public SortedSet<K> tailSet( K fromElement ) {
+            return tailSet( fromElement, true );
+        }
+
+    }
+
+}
@@ -3,6 +3,7 @@ package com.spinn3r.flatmap;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.stream.*;
 
 import java.nio.*;
 import java.nio.channels.*;
@@ -17,52 +18,84 @@ public class FlatSet<E> extends BaseFlatCollection {
     /**
      * Use the first four bytes to denote the file version.
      */
-    public static final byte[] MAGIC = "FS01".getBytes();
+    public static final byte[] MAGIC = "FS02".getBytes();
+
+    /**
+     * Version 1 files with a 32 bit count.
+     */
+    public static final byte[] MAGIC_V1 = "FS01".getBytes();
 
     // 4 bytes for header
     // 4 bytes for count of items
     // 4 bytes for key type
-    public static final int OFFSET = 12;
+    public static final int OFFSET_V1 = 12;
 
-    int size        = 0;
-
-    int key_type    = -1;
+    public FlatSet( File file ) throws IOException {
+        this( file, new OpenOptions() );
+    }
 
     /**
-     * Internal backed buffer for our data.  
-     *
+     * Open with explicit options, e.g. OpenOptions.WARM to return straight
+     * away and warm the file up in the background.
      */
-    ByteBuffer bbuf = null;
+    public FlatSet( File file, OpenOptions options ) throws IOException {
 
-    /**
-     * Handler for metadata round keys.
-     */
-    TypeHandler key_type_handler    = null;
+        open( file, MAGIC_V1, MAGIC, options );
+        
+    }
 
-    public FlatSet( File file ) throws IOException {
+    protected void readLegacyHeader() {
 
-        bbuf = getByteBuffer( file );
+        size                = region.getInt( 4 );
+        key_type            = region.getInt( 8 );
+        offset              = OFFSET_V1;
 
-        byte[] magic = new byte[MAGIC.length];
+    }
 
-        magic               = get( bbuf, 0, magic.length );
-        size                = toInt( get( bbuf, 4, 4 ) );
-        key_type            = toInt( get( bbuf, 8, 4 ) );
+    public Iterator<E> iterator() {
+        return new FlatSetIterator( this );
+    }
 
-        key_type_handler    = lookupTypeHandler( key_type );
-        
+    /**
+     * Spliterator over the values in order, split by position for parallel
+     * streams.
+     */
+    public Spliterator<E> spliterator() {
+        return keySpliterator( 0, size );
     }
 
-    public int size() {
-        return size;
+    public Stream<E> stream() {
+        return StreamSupport.stream( spliterator(), false );
     }
 
-    public boolean isEmpty() {
-        return size == 0;
+    /**
+     * A parallel stream where each fork-join task scans its own range of
+     * positions.
+     */
+    public Stream<E> parallelStream() {
+        return StreamSupport.stream( spliterator(), true );
     }
 
-    public Iterator<E> iterator() {
-        return new FlatSetIterator( this );
+    /**
+     * The values of a FlatSet&lt;Long&gt; (or FlatSet&lt;Integer&gt;) without
+     * boxing.
+     */
+    public LongStream longStream() {
+        return StreamSupport.longStream( longKeySpliterator( 0, size ), false );
+    }
+
+    /**
+     * The values of a FlatSet&lt;Integer&gt; without boxing.
+     */
+    public IntStream intStream() {
+        return StreamSupport.intStream( intKeySpliterator( 0, size ), false );
+    }
+
+    /**
+     * Return a cursor which scans the values in order without allocating.
+     */
+    public Cursor cursor() {
+        return new Cursor( this );
     }
     
     /**
@@ -75,16 +108,37 @@ public class FlatSet<E> extends BaseFlatCollection {
         
     }
 
-    protected TypeHandler getKeyTypeHandler() {
-        return key_type_handler;
+    /**
+     * Membership query for a FlatSet&lt;Long&gt; which doesn't box the key or
+     * allocate while searching.
+     */
+    public boolean containsLong( long val ) {
+        return findLong( val ) >= 0;
     }
-    
-    protected byte[] getKeyFromPosition( int pos ) {
 
-        int offset = OFFSET + (pos * key_type_handler.sizeOf());
-        
-        return get( bbuf, offset, key_type_handler.sizeOf() );
-        
+    /**
+     * Membership query for a FlatSet&lt;Integer&gt; which doesn't box the key or
+     * allocate while searching.
+     */
+    public boolean containsInt( int val ) {
+        return findInt( val ) >= 0;
+    }
+
+    /**
+     * Batch membership query for a FlatSet&lt;Long&gt; or
+     * FlatSet&lt;Integer&gt;.  The values are sorted and found in a single
+     * pass over the file, which is much cheaper than calling containsLong for
+     * each of thousands of values.  result[i] is set for vals[i].
+     */
+    public void containsAll( long[] vals, boolean[] result ) {
+
+        long[] positions = new long[ vals.length ];
+        findAll( vals, positions );
+
+        for( int i = 0; i < vals.length; ++i ) {
+            result[i] = positions[i] >= 0;
+        }
+
     }
 
 }
@@ -93,7 +147,7 @@ class FlatSetIterator<E> implements Iterator {
 
     FlatSet fset = null;
 
-    int idx = 0;
+    long idx = 0;
     
     public FlatSetIterator( FlatSet fset ) {
         this.fset = fset;
@@ -101,10 +155,7 @@ class FlatSetIterator<E> implements Iterator {
 
     public E next() {
 
-        byte[] b = fset.getKeyFromPosition( idx );
-        TypeHandler th = fset.getKeyTypeHandler();
-        
-        E result = (E)th.toValue( b ); 
+        E result = (E)fset.getKeyObjectFromPosition( idx );
 
         ++idx;
 
@@ -113,11 +164,11 @@ class FlatSetIterator<E> implements Iterator {
     }
     
     public boolean hasNext() {
-        return idx < fset.size();
+        return idx < fset.sizeAsLong();
     }
 
     public void remove() {
         throw new RuntimeException( "read only" );
     }
     
-}
\ No newline at end of file
+}
@@ -0,0 +1,103 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Builds a FlatSet from values added one at a time, in any order, without
+ * holding the whole set on the heap.  See FlatMapBuilder.
+ */
+public class FlatSetBuilder<E> {
+
+    private File file = null;
+
+    private long memory;
+
+    private File temp_directory = null;
+
+    private int block_size = RecordWriter.DEFAULT_BLOCK_SIZE;
+
+    private boolean learned_index = true;
+
+    private double bloom_fpp = 0;
+
+    private TypeHandler type_handler = null;
+
+    private ExternalSorter sorter = null;
+
+    public FlatSetBuilder( File file ) {
+        this( file, FlatMapBuilder.DEFAULT_MEMORY );
+    }
+
+    /**
+     * @param memory Approximate number of bytes of values to buffer before
+     * spilling a sorted run to disk.
+     */
+    public FlatSetBuilder( File file, long memory ) {
+        this.file = file;
+        this.memory = memory;
+    }
+
+    /**
+     * Where to write sorted runs.  Defaults to java.io.tmpdir.
+     */
+    public void setTempDirectory( File temp_directory ) {
+        this.temp_directory = temp_directory;
+    }
+
+    /**
+     * Number of keys per front coded block when writing variable width keys.
+     */
+    public void setBlockSize( int block_size ) {
+        this.block_size = block_size;
+    }
+
+    /**
+     * See FlatMapWriter.setLearnedIndex.
+     */
+    public void setLearnedIndex( boolean learned_index ) {
+        this.learned_index = learned_index;
+    }
+
+    /**
+     * See FlatMapWriter.setBloomFilter.
+     */
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    public void add( E value ) throws IOException {
+
+        if ( sorter == null ) {
+
+            int type = typeOf( value );
+
+            type_handler = lookupTypeHandler( type );
+
+            sorter = new ExternalSorter( FlatSet.MAGIC, type, 0, memory );
+            sorter.setTempDirectory( temp_directory );
+            sorter.setBlockSize( block_size );
+            sorter.setLearnedIndex( learned_index );
+            sorter.setBloomFilter( bloom_fpp );
+
+        }
+
+        sorter.add( type_handler.toByteArray( value ), null );
+
+    }
+
+    /**
+     * Merge everything added so far into the output file.
+     */
+    public void finish() throws IOException {
+
+        if ( sorter == null )
+            throw new IOException( "No entries added" );
+
+        sorter.finish( file );
+
+    }
+
+}
@@ -3,6 +3,7 @@ package com.spinn3r.flatmap;
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.spinn3r.flatmap.TypeManager.*;
 
@@ -13,39 +14,155 @@ import static com.spinn3r.flatmap.TypeManager.*;
  */
 public class FlatSetWriter {
 
+    private int block_size = RecordWriter.DEFAULT_BLOCK_SIZE;
+
+    private int threads = 1;
+
+    private int layout = BaseFlatCollection.LAYOUT_SORTED;
+
+    private int node_size = RecordWriter.DEFAULT_NODE_SIZE;
+
+    private boolean learned_index = true;
+
+    private double bloom_fpp = 0;
+
+    /**
+     * Layout for fixed width keys: LAYOUT_SORTED (the default),
+     * LAYOUT_BTREE, LAYOUT_PACKED or LAYOUT_ELIAS_FANO.  Variable width keys
+     * are always written as LAYOUT_BLOCKED.
+     */
+    public void setLayout( int layout ) {
+        this.layout = layout;
+    }
+
+    /**
+     * Node size in bytes for LAYOUT_BTREE.  The default of 64 matches a cache
+     * line, 4096 (a page) suits files much larger than memory.
+     */
+    public void setNodeSize( int node_size ) {
+        this.node_size = node_size;
+    }
+
+    /**
+     * Whether LAYOUT_SORTED files carry a model of where each key sits so
+     * that lookups search a small window instead of the whole file.  On by
+     * default and only written when the keys are regular enough (hashes,
+     * sequential IDs) for it to pay off.
+     */
+    public void setLearnedIndex( boolean learned_index ) {
+        this.learned_index = learned_index;
+    }
+
+    /**
+     * Store a Bloom filter over the keys with the given false positive
+     * probability (e.g. 0.01) so that lookups of missing keys can usually
+     * skip the search.  0, the default, writes no filter.
+     */
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    /**
+     * Number of threads to encode, sort and write with.  With more than one
+     * thread fixed width keys and values take a fork/join build path which
+     * scales with the number of cores.
+     */
+    public void setThreads( int threads ) {
+        this.threads = threads;
+    }
+
+    /**
+     * Number of keys per front coded block when writing variable width keys.
+     */
+    public void setBlockSize( int block_size ) {
+        this.block_size = block_size;
+    }
+
+    /**
+     * Written to a temp file and renamed into place, as with FlatMapWriter.
+     */
     public void write( Set in, File file ) throws IOException {
-        write( in, new FileOutputStream( file ) );
+
+        File temp = AtomicFile.temp( file );
+
+        try {
+
+            OutputStream out = new FileOutputStream( temp );
+
+            try {
+                write( in, out );
+            } finally {
+                //already closed unless the write failed.
+                out.close();
+            }
+
+            AtomicFile.commit( temp, file );
+
+        } finally {
+            temp.delete();
+        }
+
     }
     
     public void write( Set in, OutputStream out ) throws IOException {
 
-        //4 bytes for magic number.
-        out.write( FlatSet.MAGIC );
-
         List values = new ArrayList( in );
 
-        //4 bytes for size
-        out.write( toByteArray( in.size() ) );
-
         Object first     = values.get( 0 );
         int    type      = typeOf( first );
 
-        //4 bytes for type
-        out.write( toByteArray( type ) );
-
         TypeHandler type_handler = lookupTypeHandler( type );
 
+        if ( threads > 1 && layout == BaseFlatCollection.LAYOUT_SORTED && ParallelWriter.supports( type, 0 ) ) {
+
+            ForkJoinPool pool = new ForkJoinPool( threads );
+
+            try {
+                ParallelWriter.write( pool, out, FlatSet.MAGIC, type, 0, values.toArray(), null, learned_index, bloom_fpp );
+            } finally {
+                pool.shutdown();
+            }
+
+            return;
+
+        }
+
         ByteArrayComparator comparator = new ByteArrayComparator( type_handler );
         
         Collections.sort( values, comparator );
 
-        //now dump the whole sorted list of values and values into the output
-        //stream:
-        for( Object v : values ) {
-            out.write( type_handler.toByteArray( v ) );
-        }
+        RecordWriter writer = new RecordWriter( out,
+                                                FlatSet.MAGIC,
+                                                FlatMapWriter.layoutOf( type_handler, layout ),
+                                                in.size(),
+                                                type,
+                                                0,
+                                                0 );
+
+        writer.setBlockSize( block_size );
+        writer.setNodeSize( node_size );
+        writer.setLearnedIndex( learned_index );
+        writer.setBloomFilter( bloom_fpp );
+
+        boolean complete = false;
+
+        try {
 
-        out.close();
+            //now dump the whole sorted list of values and values into the output
+            //stream:
+            for( Object v : values ) {
+                writer.add( type_handler.toByteArray( v ), null );
+            }
+
+            writer.close();
+            complete = true;
+
+        } finally {
+
+            if ( ! complete )
+                writer.abort();
+
+        }
         
     }
 
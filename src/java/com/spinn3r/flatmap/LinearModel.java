@@ -0,0 +1,276 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Piecewise linear model of the position of each key in a LAYOUT_SORTED
+ * file.  Hashes and sequential IDs are close to uniformly spread so a
+ * handful of line segments predicts where a key sits to within max_error
+ * positions and a lookup only has to binary search that window instead of
+ * the whole file.
+ *
+ * The section (SECTION_MODEL) is the max error, the number of segments and
+ * then (first sort key, first position, slope) for each segment.  Segments
+ * are kept on the heap.
+ */
+class LinearModel {
+
+    /**
+     * Maximum distance between a predicted and an actual position.
+     */
+    public static final int DEFAULT_MAX_ERROR = 32;
+
+    /**
+     * Below this many keys a plain binary search is just as fast.
+     */
+    public static final long MIN_SIZE = 1024;
+
+    /**
+     * A model with more than one segment per this many keys isn't worth
+     * the space or the extra search.
+     */
+    public static final int KEYS_PER_SEGMENT = 32;
+
+    private int max_error;
+
+    private long[] first_keys;
+
+    private long[] first_positions;
+
+    private double[] slopes;
+
+    public LinearModel( MappedRegion region, long section_offset ) throws IOException {
+
+        max_error  = region.getInt( section_offset );
+
+        long count = region.getLong( section_offset + 4 );
+
+        if ( count > Integer.MAX_VALUE || count < 1 )
+            throw new IOException( "Corrupt model: " + count + " segments" );
+
+        first_keys      = new long[ (int)count ];
+        first_positions = new long[ (int)count ];
+        slopes          = new double[ (int)count ];
+
+        long ptr = section_offset + 12;
+
+        for( int i = 0; i < count; ++i ) {
+
+            first_keys[i]      = region.getLong( ptr );
+            first_positions[i] = region.getLong( ptr + 8 );
+            slopes[i]          = Double.longBitsToDouble( region.getLong( ptr + 16 ) );
+
+            ptr += 24;
+
+        }
+
+    }
+
+    public int getMaxError() {
+        return max_error;
+    }
+
+    /**
+     * Predicted position of the given sort key, or -1 if it sorts before the
+     * first key in the file.
+     */
+    public long predict( long key ) {
+
+        int low = 0;
+        int high = first_keys.length - 1;
+        int segment = -1;
+
+        while ( low <= high ) {
+
+            int mid = (low + high) >>> 1;
+
+            if ( first_keys[mid] <= key ) {
+                segment = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+
+        }
+
+        if ( segment < 0 )
+            return -1;
+
+        return first_positions[segment] + (long)( slopes[segment] * distance( first_keys[segment], key ) );
+
+    }
+
+    /**
+     * key - from as a double.  Sort keys span the whole signed range so the
+     * difference has to be treated as unsigned.
+     */
+    static double distance( long from, long key ) {
+
+        long d = key - from;
+
+        if ( d >= 0 )
+            return (double)d;
+
+        return (double)(d >>> 1) * 2.0 + (d & 1);
+
+    }
+
+    /**
+     * Fits segments to keys as they arrive in sorted order.  Each segment
+     * keeps the range of slopes which would still put every one of its keys
+     * within max_error of its position and a new segment starts when the next
+     * key would leave that range empty.
+     */
+    static class Builder {
+
+        private int max_error;
+
+        private long[] segment_keys = new long[ 16 ];
+
+        private long[] segment_positions = new long[ 16 ];
+
+        private double[] segment_slopes = new double[ 16 ];
+
+        private int segments = 0;
+
+        private long first_key;
+
+        private long first_position;
+
+        private double low_slope;
+
+        private double high_slope;
+
+        private long count = 0;
+
+        /**
+         * Set once the keys turn out to be too irregular for the model to pay
+         * off, after which segments are no longer kept.
+         */
+        private boolean abandoned = false;
+
+        Builder( int max_error ) {
+            this.max_error = max_error;
+        }
+
+        /**
+         * Add the next key, which must sort after the previous one.
+         */
+        void add( long key ) {
+
+            if ( count > 0 ) {
+
+                double dx = distance( first_key, key );
+                double dy = count - first_position;
+
+                double low  = Math.max( low_slope,  ( dy - max_error ) / dx );
+                double high = Math.min( high_slope, ( dy + max_error ) / dx );
+
+                if ( low <= high ) {
+
+                    low_slope  = low;
+                    high_slope = high;
+
+                    ++count;
+                    return;
+
+                }
+
+                finishSegment();
+
+                //past the limit isUseful applies there's no point keeping them.
+                if ( ! abandoned && count >= MIN_SIZE && ! fits() ) {
+
+                    abandoned = true;
+
+                    segment_keys      = null;
+                    segment_positions = null;
+                    segment_slopes    = null;
+
+                }
+
+            }
+
+            first_key      = key;
+            first_position = count;
+            low_slope      = 0;
+            high_slope     = Double.POSITIVE_INFINITY;
+
+            ++count;
+
+        }
+
+        /**
+         * Add a key given as big endian bytes.
+         */
+        void add( byte[] key ) {
+            add( ByteArrayComparator.sortKey( TypeManager.toRawLong( key ), key.length ) );
+
+        }
+
+        private void finishSegment() {
+
+            if ( abandoned )
+                return;
+
+            if ( segments == segment_keys.length ) {
+                segment_keys      = Arrays.copyOf( segment_keys, segments * 2 );
+                segment_positions = Arrays.copyOf( segment_positions, segments * 2 );
+                segment_slopes    = Arrays.copyOf( segment_slopes, segments * 2 );
+            }
+
+            double slope = high_slope == Double.POSITIVE_INFINITY ? 0 : ( low_slope + high_slope ) / 2;
+
+            segment_keys[ segments ]      = first_key;
+            segment_positions[ segments ] = first_position;
+            segment_slopes[ segments ]    = slope;
+
+            ++segments;
+
+        }
+
+        /**
+         * At most one segment per KEYS_PER_SEGMENT keys so far, counting the
+         * one in progress.
+         */
+        private boolean fits() {
+            return segments + 1 <= count / KEYS_PER_SEGMENT;
+        }
+
+        /**
+         * True if the model is small enough to be worth writing: at most one
+         * segment per KEYS_PER_SEGMENT keys.
+         */
+        boolean isUseful() {
+
+            if ( abandoned || count < MIN_SIZE )
+                return false;
+
+            return fits();
+
+        }
+
+        void write( DataOutputStream out ) throws IOException {
+
+            if ( ! isUseful() )
+                throw new IOException( "Model isn't useful" );
+
+            finishSegment();
+
+            out.writeInt( max_error );
+            out.writeLong( segments );
+
+            for( int i = 0; i < segments; ++i ) {
+                out.writeLong( segment_keys[i] );
+                out.writeLong( segment_positions[i] );
+                out.writeLong( Double.doubleToLongBits( segment_slopes[i] ) );
+            }
+
+            out.flush();
+
+        }
+
+    }
+
+}
@@ -0,0 +1,266 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * A read only file mapped into memory as a series of segments so that it can
+ * be addressed with a long offset.  A single MappedByteBuffer is limited to
+ * 2GB since it is indexed with an int.
+ *
+ * Each segment is mapped slightly larger than the segment size so that
+ * neighbouring segments overlap by OVERLAP bytes.  Any read of up to OVERLAP
+ * bytes can then be served entirely from the segment its first byte falls in
+ * which keeps every primitive read down to a single buffer access.
+ */
+public class MappedRegion {
+
+    /**
+     * Segments are 1GB by default.
+     */
+    public static final int DEFAULT_SEGMENT_SHIFT = 30;
+
+    /**
+     * Number of bytes neighbouring segments share.
+     */
+    public static final int OVERLAP = 4096;
+
+    private ByteBuffer[] segments = null;
+
+    private int shift;
+
+    private long mask;
+
+    private long length;
+
+    public MappedRegion( File file ) throws IOException {
+        this( file, DEFAULT_SEGMENT_SHIFT );
+    }
+
+    /**
+     * Map the file with a specific segment size (as a power of two).  Mostly
+     * useful for testing the segment boundary handling without creating
+     * multi-GB files.
+     */
+    public MappedRegion( File file, int shift ) throws IOException {
+
+        FileInputStream in = new FileInputStream( file );
+
+        try {
+
+            FileChannel channel = in.getChannel();
+
+            init( channel.size(), shift );
+
+            for( int i = 0; i < segments.length; ++i ) {
+
+                long start = (long)i << shift;
+                long end   = Math.min( length, start + (1L << shift) + OVERLAP );
+
+                /*
+                 * http://en.wikipedia.org/wiki/Mmap
+                 *
+                 * "In computing, mmap is a POSIX-compliant Unix system call that maps
+                 * files or devices into memory. It is a method of memory-mapped file
+                 * I/O. It naturally implements demand paging, because initially file
+                 * contents are not entirely read from disk and don't use physical RAM at
+                 * all. The actual reads from disk are done just in time.
+                 */
+                segments[i] = channel.map( FileChannel.MapMode.READ_ONLY, start, end - start );
+
+            }
+
+        } finally {
+            //the mapping remains valid after the channel is closed.
+            in.close();
+        }
+
+    }
+
+    /**
+     * Wrap a fully in-memory buffer.
+     */
+    public MappedRegion( ByteBuffer buff ) {
+
+        init( buff.limit(), 31 );
+        segments[0] = buff;
+
+    }
+
+    private void init( long length, int shift ) {
+
+        this.length = length;
+        this.shift  = shift;
+        this.mask   = (1L << shift) - 1;
+
+        int count = (int)(length >>> shift);
+
+        if ( count == 0 || (long)count << shift < length )
+            ++count;
+
+        segments = new ByteBuffer[ count ];
+
+    }
+
+    /**
+     * Force every segment into memory.
+     */
+    public void load() {
+
+        for( ByteBuffer segment : segments ) {
+
+            if ( segment instanceof MappedByteBuffer )
+                ((MappedByteBuffer)segment).load();
+
+        }
+
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Release the mapping now instead of whenever the buffers are garbage
+     * collected, which may be never for a long lived old generation.  Any
+     * read of the region (or of a buffer returned by slice) afterwards will
+     * crash the JVM so the caller has to know there are no readers left.
+     *
+     * There is no public API for this.  Java 9 and later have
+     * Unsafe.invokeCleaner and Java 8 has DirectBuffer.cleaner(); if neither
+     * can be reached the mapping is left for the garbage collector.
+     */
+    public void unmap() {
+
+        ByteBuffer[] mapped = segments;
+
+        if ( mapped == null )
+            return;
+
+        segments = null;
+
+        for( ByteBuffer segment : mapped ) {
+
+            if ( segment instanceof MappedByteBuffer )
+                clean( segment );
+
+        }
+
+    }
+
+    private static void clean( ByteBuffer buff ) {
+
+        try {
+
+            Class unsafe_class = Class.forName( "sun.misc.Unsafe" );
+
+            Method invoke_cleaner = unsafe_class.getMethod( "invokeCleaner", ByteBuffer.class );
+
+            Field field = unsafe_class.getDeclaredField( "theUnsafe" );
+            field.setAccessible( true );
+
+            invoke_cleaner.invoke( field.get( null ), buff );
+            return;
+
+        } catch ( NoSuchMethodException e ) {
+            //Java 8
+        } catch ( Exception e ) {
+            return;
+        }
+
+        try {
+
+            Method cleaner_method = buff.getClass().getMethod( "cleaner" );
+            cleaner_method.setAccessible( true );
+
+            Object cleaner = cleaner_method.invoke( buff );
+
+            if ( cleaner != null )
+                cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+
+        } catch ( Exception e ) {
+            //leave it to the garbage collector.
+        }
+
+    }
+
+    public byte get( long offset ) {
+        return segments[ (int)(offset >>> shift) ].get( (int)(offset & mask) );
+    }
+
+    public short getShort( long offset ) {
+        return segments[ (int)(offset >>> shift) ].getShort( (int)(offset & mask) );
+    }
+
+    public int getInt( long offset ) {
+        return segments[ (int)(offset >>> shift) ].getInt( (int)(offset & mask) );
+    }
+
+    public long getLong( long offset ) {
+        return segments[ (int)(offset >>> shift) ].getLong( (int)(offset & mask) );
+    }
+
+    /**
+     * Given an offset, and a length, fetch the given blocks.
+     */
+    public byte[] get( long offset, int length ) {
+
+        byte[] buff = new byte[length];
+        get( offset, buff, 0, length );
+        return buff;
+
+    }
+
+    /**
+     * Return a read only view of the given range without copying it.  Ranges
+     * which run past the overlap into the next segment are the only case
+     * where we have to fall back to a copy.
+     */
+    public ByteBuffer slice( long offset, int length ) {
+
+        ByteBuffer segment = segments[ (int)(offset >>> shift) ];
+        int pos = (int)(offset & mask);
+
+        if ( pos + length > segment.limit() )
+            return ByteBuffer.wrap( get( offset, length ) ).asReadOnlyBuffer();
+
+        ByteBuffer result = segment.duplicate();
+        result.limit( pos + length );
+        result.position( pos );
+
+        return result.slice().asReadOnlyBuffer();
+
+    }
+
+    public void get( long offset, byte[] dest, int dest_offset, int length ) {
+
+        //a corrupt length would otherwise run off the last segment.
+        if ( offset < 0 || length < 0 || offset + length > this.length )
+            throw new IndexOutOfBoundsException( "Read of " + length + " bytes at " + offset + " past the end of " + this.length );
+
+        while( length > 0 ) {
+
+            ByteBuffer segment = segments[ (int)(offset >>> shift) ];
+            int pos = (int)(offset & mask);
+
+            //this segment might not have everything once we're past the overlap.
+            int avail = Math.min( length, segment.limit() - pos );
+
+            if ( avail <= 0 )
+                throw new IndexOutOfBoundsException( "Read past the end of the mapping at " + offset );
+
+            for( int i = 0; i < avail; ++i ) {
+                dest[dest_offset + i] = segment.get( pos + i );
+            }
+
+            offset      += avail;
+            dest_offset += avail;
+            length      -= avail;
+
+        }
+
+    }
+
+}
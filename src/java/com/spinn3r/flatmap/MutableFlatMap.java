@@ -0,0 +1,1344 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * A map which can be updated without rebuilding its file.
+ *
+ * Writes go to a sorted in-memory buffer (the memtable).  Once it holds
+ * about setFlushThreshold bytes it's swapped for an empty one and a
+ * background thread writes it out as a new FlatMap (plus a FlatSet of the
+ * keys removed, as tombstones) in the map's directory.  Reads check the
+ * memtable, then any memtables still being flushed, then the files newest
+ * first, exactly like FlatMapStack.  Writers only wait when the flush
+ * thread falls more than MAX_PENDING_FLUSHES memtables behind.
+ *
+ * Every flush adds a file, so once there are more than setMaxFiles of them
+ * the flush thread merges them all into one with Compactor.  Tombstones
+ * are dropped by the merge since nothing older is left for them to hide.
+ *
+ * The memtable is a ConcurrentSkipListMap so reads never take a lock.
+ * Fixed width keys are stored in it as their sort key (see
+ * ByteArrayComparator.sortKey) rather than as the caller's object, which
+ * keeps the memtable in the same order as the files so a flush is a single
+ * sequential write with no sort.  Variable width keys are stored encoded.
+ *
+ * The files, the memtables being flushed and the memtable being written
+ * make up a generation which is swapped atomically on every flush and
+ * compaction.  As with ReloadableFlatMap each read holds a reference to the
+ * generation it started with, and files replaced by a compaction are only
+ * closed and deleted once the last read using them has finished.
+ *
+ * Files are named by a sequence number, so reopening the directory picks up
+ * where it left off.
+ *
+ * Every write is also appended to a WriteAheadLog in the directory, with
+ * one log segment per memtable, so writes survive a crash without a flush.
+ * The segment is deleted once its memtable is in a file.  Opening the
+ * directory replays whatever segments are left into a new file.  By default
+ * put and remove return once their record is on disk; concurrent writers
+ * share fsyncs (group commit), so a batch of writers pays for one fsync
+ * rather than one each.  setSyncInterval trades that for a bounded window
+ * of loss: writers don't wait and the log is synced in the background.  A
+ * write is visible to readers as soon as it's in the memtable, which may be
+ * just before it's durable.
+ */
+public class MutableFlatMap<K,V> implements Closeable {
+
+    public static final long DEFAULT_FLUSH_THRESHOLD = 64L * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_FILES = 8;
+
+    /**
+     * Writers block once this many full memtables are waiting to be
+     * flushed.
+     */
+    public static final int MAX_PENDING_FLUSHES = 2;
+
+    /**
+     * Rough heap cost of a memtable entry beyond its encoded key and value:
+     * the skip list node and index, the boxed key and the value object.
+     */
+    static final int ENTRY_OVERHEAD = 96;
+
+    /**
+     * How long the flush thread waits before retrying a failed flush.
+     */
+    static final long RETRY_INTERVAL = 1000;
+
+    private static final Pattern TABLE_NAME = Pattern.compile( "([0-9a-f]{16})\\.(fmp|fst)" );
+
+    /**
+     * Stored in the memtable for a removed key.
+     */
+    private static final Object TOMBSTONE = new Object();
+
+    private File directory;
+
+    private OpenOptions options;
+
+    private volatile State state;
+
+    private int key_type = -1;
+
+    private int value_type = -1;
+
+    private volatile TypeHandler key_type_handler = null;
+
+    private TypeHandler value_type_handler = null;
+
+    private int key_width;
+
+    private long flush_threshold = DEFAULT_FLUSH_THRESHOLD;
+
+    private int max_files = DEFAULT_MAX_FILES;
+
+    private double bloom_fpp = 0.01;
+
+    private long next_sequence = 1;
+
+    private boolean compact_requested = false;
+
+    private volatile IOException flush_error = null;
+
+    private volatile boolean closed = false;
+
+    private Flusher flusher;
+
+    private WriteAheadLog log;
+
+    private volatile long sync_interval = 0;
+
+    public MutableFlatMap( File directory ) throws IOException {
+        this( directory, new OpenOptions() );
+    }
+
+    public MutableFlatMap( File directory, OpenOptions options ) throws IOException {
+
+        this.directory  = directory;
+        this.options    = options;
+
+        if ( ! directory.isDirectory() && ! directory.mkdirs() )
+            throw new IOException( "Unable to create " + directory.getPath() );
+
+        List<Table> tables = new ArrayList();
+
+        try {
+
+            for( File file : listTables() ) {
+
+                Table table = new Table( BaseFlatCollection.open( file, options ), file );
+                tables.add( table );
+
+                setTypes( table.collection, file );
+
+                next_sequence = Math.max( next_sequence, sequenceOf( file ) + 1 );
+
+            }
+
+            recover( tables );
+
+        } catch ( IOException e ) {
+
+            for( Table table : tables ) {
+                table.collection.close();
+            }
+
+            throw e;
+
+        }
+
+        //newest first.
+        Collections.reverse( tables );
+
+        state = newState( new Memtable(), new Memtable[0], tables.toArray( new Table[ tables.size() ] ) );
+
+        log = new WriteAheadLog( directory, key_type, value_type );
+
+        flusher = new Flusher();
+        flusher.start();
+
+    }
+
+    /**
+     * Approximate number of bytes of heap a memtable may use before it's
+     * flushed.
+     */
+    public void setFlushThreshold( long flush_threshold ) {
+        this.flush_threshold = flush_threshold;
+    }
+
+    /**
+     * Merge the files into one once there are more than this many.
+     */
+    public void setMaxFiles( int max_files ) {
+        this.max_files = max_files;
+    }
+
+    /**
+     * False positive rate of the Bloom filter on flushed files (0 for
+     * none).  Most lookups miss most files so this is on by default.
+     */
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    /**
+     * 0 (the default) to have writes wait until they're on disk.  Otherwise
+     * writes return straight away and the log is synced in the background
+     * every interval_millis, so a crash loses at most the last interval.
+     */
+    public void setSyncInterval( long interval_millis ) {
+
+        this.sync_interval = interval_millis;
+
+        log.setSyncInterval( interval_millis );
+
+    }
+
+    public V get( Object key ) {
+
+        State current = acquire();
+
+        try {
+
+            if ( key_type_handler == null )
+                return null;
+
+            Object value = current.lookup( memtableKey( key ) );
+
+            if ( value != null )
+                return value == TOMBSTONE ? null : (V)value;
+
+            return current.stack == null ? null : (V)current.stack.get( key );
+
+        } finally {
+            release( current );
+        }
+
+    }
+
+    public boolean containsKey( Object key ) {
+        return get( key ) != null;
+    }
+
+    /**
+     * Lookup for a MutableFlatMap&lt;Long,Long&gt;.  Keys in the files are
+     * found without boxing.
+     */
+    public long getLong( long key, long defaultValue ) {
+
+        State current = acquire();
+
+        try {
+
+            if ( key_type_handler == null )
+                return defaultValue;
+
+            requireTypes( TYPE_LONG, TYPE_LONG );
+
+            //only box the key if there is a memtable to look in.
+            if ( current.hasMemtables() ) {
+
+                Object value = current.lookup( ByteArrayComparator.sortKey( key, key_width ) );
+
+                if ( value != null )
+                    return value == TOMBSTONE ? defaultValue : ((Long)value).longValue();
+
+            }
+
+            return current.stack == null ? defaultValue : current.stack.getLong( key, defaultValue );
+
+        } finally {
+            release( current );
+        }
+
+    }
+
+    /**
+     * Lookup for a MutableFlatMap&lt;Long,Integer&gt;.
+     */
+    public int getInt( long key, int defaultValue ) {
+
+        State current = acquire();
+
+        try {
+
+            if ( key_type_handler == null )
+                return defaultValue;
+
+            requireTypes( TYPE_LONG, TYPE_INT );
+
+            if ( current.hasMemtables() ) {
+
+                Object value = current.lookup( ByteArrayComparator.sortKey( key, key_width ) );
+
+                if ( value != null )
+                    return value == TOMBSTONE ? defaultValue : ((Integer)value).intValue();
+
+            }
+
+            return current.stack == null ? defaultValue : current.stack.getInt( key, defaultValue );
+
+        } finally {
+            release( current );
+        }
+
+    }
+
+    public void put( K key, V value ) {
+
+        long position;
+
+        synchronized( this ) {
+            position = append( key, value );
+        }
+
+        sync( position );
+
+    }
+
+    /**
+     * Write many entries with a single sync at the end.
+     */
+    public void putAll( Map<? extends K,? extends V> map ) {
+
+        long position = -1;
+
+        synchronized( this ) {
+
+            for( Map.Entry<? extends K,? extends V> entry : map.entrySet() ) {
+                position = append( entry.getKey(), entry.getValue() );
+            }
+
+        }
+
+        sync( position );
+
+    }
+
+    public void remove( Object key ) {
+
+        long position;
+
+        synchronized( this ) {
+
+            checkOpen();
+
+            //nothing has ever been stored.
+            if ( key_type_handler == null )
+                return;
+
+            if ( typeOf( key ) != key_type )
+                throw new RuntimeException( "Key type mismatch: " + typeOf( key ) + " vs " + key_type );
+
+            makeRoom();
+
+            byte[] encoded_key = key_type_handler.toByteArray( key );
+
+            position = log( WriteAheadLog.OP_REMOVE, encoded_key, null );
+
+            write( memtableKey( key, encoded_key ), TOMBSTONE, 0 );
+
+        }
+
+        sync( position );
+
+    }
+
+    /**
+     * Log and apply a put.  Returns the log position to sync to.  Called
+     * with the lock held.
+     */
+    private long append( K key, V value ) {
+
+        if ( value == null )
+            throw new NullPointerException( "null value" );
+
+        checkOpen();
+
+        if ( key_type_handler == null ) {
+
+            key_type   = typeOf( key );
+            value_type = typeOf( value );
+
+            initTypes();
+
+            log.setTypes( key_type, value_type );
+
+        } else {
+
+            if ( typeOf( key ) != key_type )
+                throw new RuntimeException( "Key type mismatch: " + typeOf( key ) + " vs " + key_type );
+
+            if ( value_type < 0 ) {
+                //only tombstones so far.
+                value_type = typeOf( value );
+                value_type_handler = lookupTypeHandler( value_type );
+                log.setTypes( key_type, value_type );
+            } else if ( typeOf( value ) != value_type ) {
+                throw new RuntimeException( "Value type mismatch: " + typeOf( value ) + " vs " + value_type );
+            }
+
+        }
+
+        makeRoom();
+
+        byte[] encoded_key = key_type_handler.toByteArray( key );
+        byte[] encoded_value = value_type_handler.toByteArray( value );
+
+        long position = log( WriteAheadLog.OP_PUT, encoded_key, encoded_value );
+
+        write( memtableKey( key, encoded_key ), value, encoded_value.length );
+
+        return position;
+
+    }
+
+    private long log( byte op, byte[] key, byte[] value ) {
+
+        try {
+            return log.append( op, key, value );
+        } catch ( IOException e ) {
+            throw new RuntimeException( "Unable to write to the log", e );
+        }
+
+    }
+
+    /**
+     * Wait for the log to be on disk up to position, unless it's synced in
+     * the background.  Called without the lock so that other writers can
+     * append meanwhile and share the fsync.
+     */
+    private void sync( long position ) {
+
+        if ( position < 0 || sync_interval > 0 )
+            return;
+
+        try {
+            log.sync( position );
+        } catch ( IOException e ) {
+            throw new RuntimeException( "Unable to sync the log", e );
+        }
+
+    }
+
+    /**
+     * Write out everything put so far and wait for it to be on disk.
+     */
+    public synchronized void flush() throws IOException {
+
+        checkOpen();
+
+        rotate();
+
+        while ( state.flushing.length > 0 ) {
+
+            if ( flush_error != null )
+                throw new IOException( "Flush failed", flush_error );
+
+            waitForFlusher();
+
+        }
+
+    }
+
+    /**
+     * Merge all the files into one now rather than waiting for there to be
+     * more than setMaxFiles.  Returns once the merge is done.
+     */
+    public synchronized void compact() throws IOException {
+
+        flush();
+
+        compact_requested = true;
+        notifyAll();
+
+        while ( compact_requested ) {
+
+            if ( flush_error != null )
+                throw new IOException( "Compaction failed", flush_error );
+
+            waitForFlusher();
+
+        }
+
+    }
+
+    /**
+     * Number of files the map currently reads from.
+     */
+    public int getFileCount() {
+        return state.tables.length;
+    }
+
+    /**
+     * The error from the last flush or compaction if it failed, otherwise
+     * null.  Failed flushes are retried.
+     */
+    public IOException getLastError() {
+        return flush_error;
+    }
+
+    /**
+     * Flush what has been written, stop the flush thread and close the
+     * files.
+     */
+    public void close() throws IOException {
+
+        IOException error = null;
+
+        synchronized( this ) {
+
+            if ( closed )
+                return;
+
+            try {
+                flush();
+            } catch ( IOException e ) {
+                error = e;
+            } catch ( RuntimeException e ) {
+                error = new IOException( "Flush failed", e );
+            }
+
+            closed = true;
+            notifyAll();
+
+        }
+
+        try {
+            flusher.join();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            log.close();
+        } catch ( IOException e ) {
+            if ( error == null )
+                error = e;
+        }
+
+        release( state );
+
+        //the files are closed either way but the caller has to know what
+        //was lost.
+        if ( error != null )
+            throw error;
+
+    }
+
+    private void checkOpen() {
+
+        if ( closed )
+            throw new IllegalStateException( "Closed: " + directory.getPath() );
+
+    }
+
+    private void requireTypes( int key_type, int value_type ) {
+
+        if ( this.key_type != key_type || ( this.value_type >= 0 && this.value_type != value_type ) )
+            throw new RuntimeException( "Type mismatch: " + this.key_type + "/" + this.value_type +
+                                        " vs " + key_type + "/" + value_type );
+
+    }
+
+    private void setTypes( BaseFlatCollection collection, File file ) throws IOException {
+
+        //a FlatSet has no values.
+        setTypes( collection.key_type, collection instanceof FlatSet ? -1 : collection.value_type, file );
+
+    }
+
+    /**
+     * Take the types from the first file (or log segment) which has them
+     * and check the rest against them.  A value_type of -1 is unknown.
+     */
+    private void setTypes( int key_type, int value_type, File file ) throws IOException {
+
+        if ( this.key_type < 0 ) {
+            this.key_type = key_type;
+            initTypes();
+        }
+
+        if ( key_type != this.key_type )
+            throw new IOException( "Key type mismatch in " + file.getPath() + ": " + key_type + " vs " + this.key_type );
+
+        if ( value_type < 0 )
+            return;
+
+        if ( this.value_type < 0 ) {
+            this.value_type = value_type;
+            value_type_handler = lookupTypeHandler( value_type );
+        }
+
+        if ( value_type != this.value_type )
+            throw new IOException( "Value type mismatch in " + file.getPath() + ": " + value_type + " vs " + this.value_type );
+
+    }
+
+    private void initTypes() {
+
+        TypeHandler handler = lookupTypeHandler( key_type );
+
+        key_width = handler.sizeOf();
+
+        if ( value_type > 0 )
+            value_type_handler = lookupTypeHandler( value_type );
+
+        //published last; readers check it before anything else.
+        key_type_handler = handler;
+
+    }
+
+    /**
+     * Fixed width keys are kept as their sort key and variable width keys
+     * encoded, so the memtable is in the same order as the files.
+     */
+    private Object memtableKey( Object key ) {
+
+        if ( key_width == VARIABLE )
+            return new EncodedKey( key_type_handler.toByteArray( key ) );
+
+        return ByteArrayComparator.sortKey( key_type_handler.toRawLong( key ), key_width );
+
+    }
+
+    /**
+     * As above when the key has already been encoded.
+     */
+    private Object memtableKey( Object key, byte[] encoded_key ) {
+
+        if ( key_width == VARIABLE )
+            return new EncodedKey( encoded_key );
+
+        return ByteArrayComparator.sortKey( key_type_handler.toRawLong( key ), key_width );
+
+    }
+
+    private byte[] encodeKey( Object memtable_key ) {
+
+        if ( key_width == VARIABLE )
+            return ((EncodedKey)memtable_key).bytes;
+
+        long raw = ByteArrayComparator.fromSortKey( (Long)memtable_key, key_width );
+
+        return key_type_handler.toByteArray( key_type_handler.fromRawLong( raw ) );
+
+    }
+
+    private void write( Object memtable_key, Object value, int value_length ) {
+
+        Memtable active = state.active;
+
+        Object previous = active.map.put( memtable_key, value );
+
+        if ( previous == null ) {
+
+            int key_length = key_width == VARIABLE ? ((EncodedKey)memtable_key).bytes.length : key_width;
+
+            active.bytes += key_length + value_length + ENTRY_OVERHEAD;
+
+        }
+
+    }
+
+    /**
+     * Hand the active memtable to the flush thread once it's full.  Called
+     * with the lock held before a write is logged, so that a write which
+     * has to wait for the flusher and then fails (or is interrupted) has no
+     * effect.
+     */
+    private void makeRoom() {
+
+        if ( state.active.bytes >= flush_threshold )
+            rotate();
+
+    }
+
+    /**
+     * Hand the memtable to the flush thread and start a new one.  Called
+     * with the lock held.
+     */
+    private void rotate() {
+
+        while ( state.flushing.length >= MAX_PENDING_FLUSHES ) {
+
+            if ( flush_error != null )
+                throw new RuntimeException( "Flush failed", flush_error );
+
+            try {
+                waitForFlusher();
+            } catch ( IOException e ) {
+                throw new RuntimeException( e );
+            }
+
+        }
+
+        State current = state;
+
+        if ( current.active.map.isEmpty() )
+            return;
+
+        //the memtable's log segment is complete; the next write starts a
+        //new one.
+        try {
+            current.active.log = log.roll();
+        } catch ( IOException e ) {
+            throw new RuntimeException( "Unable to sync the log", e );
+        }
+
+        Memtable[] flushing = new Memtable[ current.flushing.length + 1 ];
+        flushing[0] = current.active;
+        System.arraycopy( current.flushing, 0, flushing, 1, current.flushing.length );
+
+        publish( newState( new Memtable(), flushing, current.tables ) );
+
+        notifyAll();
+
+    }
+
+    private void waitForFlusher() throws IOException {
+
+        //nothing would ever wake us.
+        if ( ! flusher.isAlive() )
+            throw new IOException( "Flush thread stopped", flush_error );
+
+        try {
+            wait( RETRY_INTERVAL );
+        } catch ( InterruptedException e ) {
+            throw new InterruptedIOException();
+        }
+
+    }
+
+    private State newState( Memtable active, Memtable[] flushing, Table[] tables ) {
+
+        FlatMapStack stack = null;
+
+        boolean maps = false;
+
+        for( Table table : tables ) {
+            table.refs.incrementAndGet();
+            maps |= ! table.tombstones;
+        }
+
+        //a stack needs a value type, and with no maps every key is absent anyway.
+        if ( maps )
+            stack = new FlatMapStack( tables, key_type, value_type );
+
+        return new State( active, flushing, tables, stack );
+
+    }
+
+    /**
+     * Make the given state current.  The old one is released once the
+     * reads using it have finished.  Called with the lock held.
+     */
+    private void publish( State next ) {
+
+        State previous = state;
+        state = next;
+
+        release( previous );
+
+    }
+
+    private State acquire() {
+
+        while ( true ) {
+
+            State current = state;
+
+            int refs = current.refs.get();
+
+            //zero means it was replaced and released after we read it, or
+            //that the map was closed.
+            if ( refs > 0 && current.refs.compareAndSet( refs, refs + 1 ) )
+                return current;
+
+            if ( refs == 0 && closed )
+                throw new IllegalStateException( "Closed: " + directory.getPath() );
+
+        }
+
+    }
+
+    private void release( State released ) {
+
+        if ( released.refs.decrementAndGet() != 0 )
+            return;
+
+        //oldest first so a crash part way through never leaves tombstones
+        //without the older files they applied to, which would bring the
+        //keys back.
+        for( int i = released.tables.length - 1; i >= 0; --i ) {
+
+            Table table = released.tables[i];
+
+            if ( table.refs.decrementAndGet() == 0 ) {
+
+                table.collection.close();
+
+                if ( table.obsolete )
+                    table.file.delete();
+
+            }
+
+        }
+
+    }
+
+    /**
+     * The table files in the directory, oldest first.  Temp files left by a
+     * crash during a flush or a compaction are deleted.
+     */
+    private List<File> listTables() {
+
+        List<File> files = new ArrayList();
+
+        for( File file : directory.listFiles() ) {
+
+            String name = file.getName();
+
+            if ( name.startsWith( "." ) && name.endsWith( ".tmp" ) )
+                file.delete();
+            else if ( TABLE_NAME.matcher( name ).matches() )
+                files.add( file );
+
+        }
+
+        Collections.sort( files, new Comparator<File>() {
+
+            public int compare( File a, File b ) {
+                return Long.compare( sequenceOf( a ), sequenceOf( b ) );
+            }
+
+        } );
+
+        return files;
+
+    }
+
+    private static long sequenceOf( File file ) {
+        return Long.parseLong( file.getName().substring( 0, 16 ), 16 );
+    }
+
+    private File tableFile( long sequence, String suffix ) {
+        return new File( directory, String.format( "%016x.%s", sequence, suffix ) );
+    }
+
+    /**
+     * Write a memtable out as a FlatMap of its puts and a FlatSet of its
+     * removes.  Either may be missing.  Returns the new tables.
+     */
+    private List<Table> writeMemtable( Memtable memtable, long sequence ) throws IOException {
+
+        TableWriter puts = null;
+        TableWriter removes = null;
+
+        List<Table> tables = new ArrayList();
+
+        boolean complete = false;
+
+        try {
+
+            for( Map.Entry<Object,Object> entry : memtable.map.entrySet() ) {
+
+                byte[] key = encodeKey( entry.getKey() );
+
+                if ( entry.getValue() == TOMBSTONE ) {
+
+                    if ( removes == null )
+                        removes = new TableWriter( tableFile( sequence, "fst" ), FlatSet.MAGIC, 0, 0 );
+
+                    removes.writer.add( key, null );
+
+                } else {
+
+                    if ( puts == null ) {
+                        //the memtable's size is an upper bound on the data section.
+                        puts = new TableWriter( tableFile( sequence, "fmp" ), FlatMap.MAGIC, value_type, memtable.bytes );
+                    }
+
+                    puts.writer.add( key, value_type_handler.toByteArray( entry.getValue() ) );
+
+                }
+
+            }
+
+            //removes first, for the same reason Compactor writes its
+            //tombstones first.
+            if ( removes != null )
+                tables.add( removes.commit() );
+
+            if ( puts != null )
+                tables.add( puts.commit() );
+
+            complete = true;
+
+            return tables;
+
+        } finally {
+
+            if ( ! complete ) {
+
+                if ( puts != null )
+                    puts.abort();
+
+                if ( removes != null )
+                    removes.abort();
+
+                //committed but never read from.  The file is harmless: the
+                //retry writes the same keys to newer files.
+                for( Table table : tables ) {
+                    table.collection.close();
+                }
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Flush the oldest pending memtable.  Called by the flush thread without
+     * the lock.
+     */
+    private void flushOldest() throws IOException {
+
+        Memtable memtable;
+        long sequence;
+
+        synchronized( this ) {
+            memtable = state.flushing[ state.flushing.length - 1 ];
+            sequence = next_sequence++;
+        }
+
+        List<Table> written = writeMemtable( memtable, sequence );
+
+        synchronized( this ) {
+
+            State current = state;
+
+            Table[] tables = new Table[ current.tables.length + written.size() ];
+
+            //newest first.
+            for( int i = 0; i < written.size(); ++i ) {
+                tables[i] = written.get( written.size() - 1 - i );
+            }
+
+            System.arraycopy( current.tables, 0, tables, written.size(), current.tables.length );
+
+            //only the flush thread removes memtables so this is still the oldest.
+            Memtable[] flushing = Arrays.copyOf( current.flushing, current.flushing.length - 1 );
+
+            publish( newState( current.active, flushing, tables ) );
+
+            notifyAll();
+
+        }
+
+        //it's in the files now, and AtomicFile.commit synced the directory
+        //so their names survive a crash too.  This has to happen before the
+        //next flush: replaying it on top of newer files would bring back
+        //older values.
+        if ( memtable.log != null )
+            memtable.log.delete();
+
+    }
+
+    /**
+     * Replay the log segments left by a crash and write what they hold to a
+     * new file, which is added to the tables (oldest first).  The segments
+     * are only deleted once the file is committed, so a crash during
+     * recovery just replays them again.
+     */
+    private void recover( List<Table> tables ) throws IOException {
+
+        List<File> segments = WriteAheadLog.segments( directory );
+
+        if ( segments.isEmpty() )
+            return;
+
+        final Memtable memtable = new Memtable();
+
+        for( final File segment : segments ) {
+
+            WriteAheadLog.replay( segment, new WriteAheadLog.Visitor() {
+
+                public void types( int key_type, int value_type ) throws IOException {
+                    setTypes( key_type, value_type, segment );
+                }
+
+                public void put( byte[] key, byte[] value ) {
+                    replay( memtable, key, value_type_handler.toValue( value ), value.length );
+                }
+
+                public void remove( byte[] key ) {
+                    replay( memtable, key, TOMBSTONE, 0 );
+                }
+
+            } );
+
+        }
+
+        if ( ! memtable.map.isEmpty() )
+            tables.addAll( writeMemtable( memtable, next_sequence++ ) );
+
+        for( File segment : segments ) {
+            segment.delete();
+        }
+
+    }
+
+    private void replay( Memtable memtable, byte[] key, Object value, int value_length ) {
+
+        Object memtable_key;
+
+        if ( key_width == VARIABLE )
+            memtable_key = new EncodedKey( key );
+        else
+            memtable_key = ByteArrayComparator.sortKey( TypeManager.toRawLong( key ), key_width );
+
+        if ( memtable.map.put( memtable_key, value ) == null )
+            memtable.bytes += key.length + value_length + ENTRY_OVERHEAD;
+
+    }
+
+    /**
+     * Merge every file into one.  Called by the flush thread without the
+     * lock.  Flushes only happen on the same thread so no file is added
+     * while this runs.
+     */
+    private void compactAll() throws IOException {
+
+        Table[] inputs = state.tables;
+
+        long sequence;
+
+        synchronized( this ) {
+            sequence = next_sequence++;
+        }
+
+        Table output = null;
+
+        boolean maps = false;
+
+        for( Table table : inputs ) {
+            maps |= ! table.tombstones;
+        }
+
+        //with no maps there is nothing left once the tombstones are applied.
+        if ( maps ) {
+
+            //no Bloom filter: this is the oldest file so lookups which get
+            //this far are mostly for keys it has.
+            Compactor compactor = new Compactor();
+
+            for( int i = inputs.length - 1; i >= 0; --i ) {
+                compactor.add( inputs[i].file );
+            }
+
+            File file = tableFile( sequence, "fmp" );
+
+            //everything may have been removed.
+            if ( compactor.compact( file ) > 0 )
+                output = new Table( BaseFlatCollection.open( file, options ), file );
+            else
+                file.delete();
+
+        }
+
+        synchronized( this ) {
+
+            for( Table table : inputs ) {
+                table.obsolete = true;
+            }
+
+            State current = state;
+
+            publish( newState( current.active, current.flushing, output == null ? new Table[0] : new Table[] { output } ) );
+
+        }
+
+    }
+
+    /**
+     * One generation: the memtable being written, the full ones waiting to
+     * be flushed (newest first) and the files (newest first).
+     */
+    static class State {
+
+        Memtable active;
+
+        Memtable[] flushing;
+
+        Table[] tables;
+
+        FlatMapStack stack;
+
+        /**
+         * One while this is the current state plus one per read using it.
+         */
+        AtomicInteger refs = new AtomicInteger( 1 );
+
+        State( Memtable active, Memtable[] flushing, Table[] tables, FlatMapStack stack ) {
+            this.active    = active;
+            this.flushing  = flushing;
+            this.tables    = tables;
+            this.stack     = stack;
+        }
+
+        boolean hasMemtables() {
+            return flushing.length > 0 || ! active.map.isEmpty();
+        }
+
+        /**
+         * The newest value for the key in the memtables, TOMBSTONE if it was
+         * removed, or null if they don't have it.
+         */
+        Object lookup( Object memtable_key ) {
+
+            if ( ! active.map.isEmpty() ) {
+
+                Object value = active.map.get( memtable_key );
+
+                if ( value != null )
+                    return value;
+
+            }
+
+            for( Memtable memtable : flushing ) {
+
+                Object value = memtable.map.get( memtable_key );
+
+                if ( value != null )
+                    return value;
+
+            }
+
+            return null;
+
+        }
+
+    }
+
+    static class Memtable {
+
+        ConcurrentSkipListMap<Object,Object> map = new ConcurrentSkipListMap();
+
+        /**
+         * Approximate heap used.  Only changed with the map's lock held.
+         */
+        long bytes = 0;
+
+        /**
+         * The log segment holding this memtable's writes, set once it's
+         * full.  Null if they were never logged.
+         */
+        File log = null;
+
+    }
+
+    /**
+     * A file the map reads from.
+     */
+    static class Table extends FlatMapStack.Layer {
+
+        File file;
+
+        /**
+         * Number of states which include this table.
+         */
+        AtomicInteger refs = new AtomicInteger( 0 );
+
+        /**
+         * Replaced by a compaction, so the file goes once nothing reads it.
+         */
+        volatile boolean obsolete = false;
+
+        Table( BaseFlatCollection collection, File file ) {
+            super( collection );
+            this.file = file;
+        }
+
+    }
+
+    /**
+     * A variable width key in its encoded form, ordered as in the files.
+     */
+    static class EncodedKey implements Comparable<EncodedKey> {
+
+        byte[] bytes;
+
+        EncodedKey( byte[] bytes ) {
+            this.bytes = bytes;
+        }
+
+        public int compareTo( EncodedKey other ) {
+            return ByteArrayComparator.compare( bytes, other.bytes );
+        }
+
+        public boolean equals( Object o ) {
+            return o instanceof EncodedKey && Arrays.equals( bytes, ((EncodedKey)o).bytes );
+        }
+
+        public int hashCode() {
+            return Arrays.hashCode( bytes );
+        }
+
+    }
+
+    /**
+     * Writes one file of a flush under a temp name.
+     */
+    class TableWriter {
+
+        File file;
+
+        File temp;
+
+        RecordWriter writer;
+
+        TableWriter( File file, byte[] magic, int value_type, long data_length ) throws IOException {
+
+            this.file = file;
+
+            temp = AtomicFile.temp( file );
+
+            writer = new RecordWriter( new FileOutputStream( temp ),
+                                       magic,
+                                       FlatMapWriter.layoutOf( key_type_handler ),
+                                       -1,
+                                       key_type,
+                                       value_type,
+                                       data_length );
+
+            writer.setBloomFilter( bloom_fpp );
+
+        }
+
+        Table commit() throws IOException {
+
+            writer.close();
+
+            RecordWriter.writeSize( temp, writer.getCount() );
+
+            AtomicFile.commit( temp, file );
+
+            return new Table( BaseFlatCollection.open( file, options ), file );
+
+        }
+
+        /**
+         * Does nothing once committed.
+         */
+        void abort() {
+
+            if ( ! temp.exists() )
+                return;
+
+            writer.abort();
+            temp.delete();
+
+        }
+
+    }
+
+    /**
+     * Flushes full memtables and merges files in the background.
+     */
+    class Flusher extends Thread {
+
+        Flusher() {
+
+            super( "flatmap-flush: " + directory.getName() );
+            setDaemon( true );
+
+        }
+
+        public void run() {
+
+            while ( true ) {
+
+                boolean flush;
+
+                synchronized( MutableFlatMap.this ) {
+
+                    while ( ! closed && state.flushing.length == 0 && ! compact_requested ) {
+
+                        try {
+                            MutableFlatMap.this.wait();
+                        } catch ( InterruptedException e ) {
+                            return;
+                        }
+
+                    }
+
+                    //close() flushes before it sets closed.
+                    if ( closed )
+                        return;
+
+                    flush = state.flushing.length > 0;
+
+                }
+
+                try {
+
+                    if ( flush )
+                        flushOldest();
+                    else
+                        compactAll();
+
+                    if ( state.tables.length > max_files )
+                        compactAll();
+
+                    synchronized( MutableFlatMap.this ) {
+
+                        if ( ! flush )
+                            compact_requested = false;
+
+                        flush_error = null;
+                        MutableFlatMap.this.notifyAll();
+
+                    }
+
+                } catch ( Throwable t ) {
+
+                    synchronized( MutableFlatMap.this ) {
+
+                        if ( t instanceof IOException )
+                            flush_error = (IOException)t;
+                        else
+                            flush_error = new IOException( "Flush failed", t );
+
+                        MutableFlatMap.this.notifyAll();
+
+                    }
+
+                    //anything short of an Error is retried like an IOException.
+                    if ( t instanceof Error )
+                        throw (Error)t;
+
+                    try {
+                        Thread.sleep( RETRY_INTERVAL );
+                    } catch ( InterruptedException ie ) {
+                        return;
+                    }
+
+                }
+
+            }
+
+        }
+
+    }
+
+}
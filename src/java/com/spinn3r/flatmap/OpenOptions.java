@@ -0,0 +1,135 @@
+package com.spinn3r.flatmap;
+
+/**
+ * Controls how a FlatMap or FlatSet brings its file into memory when it is
+ * opened.
+ *
+ * <ul>
+ * <li>EAGER (the default) reads the whole file into the page cache before
+ * the constructor returns.  Lookups never fault but opening a large file can
+ * take a long time.</li>
+ * <li>LAZY maps the file and returns immediately.  Pages are read from disk
+ * as lookups touch them.</li>
+ * <li>WARM returns immediately like LAZY and touches every page on a
+ * background thread so the file ends up resident without blocking the
+ * caller.  The index sections (tree, model, Bloom filter, block index) are
+ * warmed first since every lookup goes through them.</li>
+ * </ul>
+ */
+public class OpenOptions {
+
+    public static final int EAGER = 0;
+
+    public static final int LAZY  = 1;
+
+    public static final int WARM  = 2;
+
+    /**
+     * Pick the prefix table size from the size of the file.
+     */
+    public static final int AUTO = -1;
+
+    /**
+     * Largest prefix table picked automatically: 4096 buckets, 32KB.
+     */
+    public static final int DEFAULT_PREFIX_BITS = 12;
+
+    /**
+     * Heap for decoded blocks of a LAYOUT_PACKED file: 32MB.
+     */
+    public static final long DEFAULT_BLOCK_CACHE_SIZE = 32L * 1024 * 1024;
+
+    private int mode = EAGER;
+
+    private int prefix_bits = AUTO;
+
+    private long block_cache_size = DEFAULT_BLOCK_CACHE_SIZE;
+
+    private boolean sequential = false;
+
+    private WarmupListener listener = null;
+
+    public OpenOptions() { }
+
+    public OpenOptions( int mode ) {
+        setMode( mode );
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public void setMode( int mode ) {
+
+        if ( mode != EAGER && mode != LAZY && mode != WARM )
+            throw new RuntimeException( "Unknown open mode: " + mode );
+
+        this.mode = mode;
+
+    }
+
+    public int getPrefixBits() {
+        return prefix_bits;
+    }
+
+    /**
+     * Size of the in-heap prefix table as a number of bits, so 2^bits
+     * buckets of 8 bytes each.  Binary searches start inside the bucket a
+     * key falls in, skipping roughly that many levels.  0 turns the table
+     * off, AUTO (the default) sizes it from the file up to
+     * DEFAULT_PREFIX_BITS.  Only LAYOUT_SORTED files without a learned index
+     * use one.
+     */
+    public void setPrefixBits( int prefix_bits ) {
+
+        if ( prefix_bits != AUTO && ( prefix_bits < 0 || prefix_bits > PrefixTable.MAX_BITS ) )
+            throw new RuntimeException( "Prefix bits must be between 0 and " + PrefixTable.MAX_BITS + ": " + prefix_bits );
+
+        this.prefix_bits = prefix_bits;
+
+    }
+
+    public long getBlockCacheSize() {
+        return block_cache_size;
+    }
+
+    /**
+     * Bytes of heap to keep decoded blocks of a LAYOUT_PACKED file in (per
+     * file).  Lookups in a cached block don't decode anything; the least
+     * recently used blocks are dropped once it's full.  Other layouts read
+     * the mapping directly and don't use it.
+     */
+    public void setBlockCacheSize( long block_cache_size ) {
+
+        if ( block_cache_size < 0 )
+            throw new RuntimeException( "Block cache size must not be negative: " + block_cache_size );
+
+        this.block_cache_size = block_cache_size;
+
+    }
+
+    boolean isSequential() {
+        return sequential;
+    }
+
+    /**
+     * The file will only be read front to back (see BlockIndex.newScanner()),
+     * so LAYOUT_BLOCKED files don't load the first key of every block onto
+     * the heap.  Lookups by key aren't possible.
+     */
+    void setSequential( boolean sequential ) {
+        this.sequential = sequential;
+    }
+
+    public WarmupListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Receives progress as the file is loaded (EAGER) or warmed (WARM).
+     */
+    public void setListener( WarmupListener listener ) {
+        this.listener = listener;
+    }
+
+}
@@ -0,0 +1,346 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Reader for the bit packed blocks of LAYOUT_PACKED files.
+ *
+ * Records are stored in blocks of records_per_block.  The keys (as sort
+ * keys, see ByteArrayComparator.sortKey) are stored as the differences
+ * between neighbours, less the smallest difference in the block, packed at
+ * just enough bits for the largest.  Values are stored frame of reference:
+ * less the smallest value in the block, packed the same way.  Sequential
+ * IDs with small values come out at a few bits per record instead of 12
+ * bytes.  Each block is:
+ *
+ * <pre>
+ * 1 byte   key bits
+ * 8 bytes  smallest key difference
+ * 1 byte   value bits           (maps only)
+ * 8 bytes  smallest value       (maps only)
+ *          key differences from the second key on, packed
+ *          values, packed
+ * </pre>
+ *
+ * SECTION_PACKED_INDEX is the number of records per block and the number
+ * of blocks followed by the first sort key and the offset of every block.
+ * It's kept on the heap (16 bytes per block) so a lookup binary searches it
+ * for the block and then searches the decoded block.
+ *
+ * Blocks are decoded into arrays on first use and kept in a BlockCache, so
+ * a lookup in a hot block costs the same as in an array on the heap.
+ */
+class PackedIndex {
+
+    public static final int DEFAULT_RECORDS_PER_BLOCK = 128;
+
+    /**
+     * Rough heap cost of a decoded block beyond its arrays.
+     */
+    private static final int BLOCK_OVERHEAD = 64;
+
+    private MappedRegion region;
+
+    private long size;
+
+    private int records_per_block;
+
+    private boolean has_values;
+
+    private long[] first_keys;
+
+    private long[] offsets;
+
+    private long section_end;
+
+    private BlockCache cache;
+
+    /**
+     * Number of blocks decoded so far, i.e. cache misses.
+     */
+    long decoded = 0;
+
+    public PackedIndex( MappedRegion region,
+                        long index_offset,
+                        long section_end,
+                        long size,
+                        boolean has_values,
+                        long cache_size ) throws IOException {
+
+        this.region       = region;
+        this.section_end  = section_end;
+        this.size         = size;
+        this.has_values   = has_values;
+
+        records_per_block = region.getInt( index_offset );
+
+        long count        = region.getLong( index_offset + 4 );
+
+        if ( records_per_block < 1 || count < 0 || count > Integer.MAX_VALUE - 1 ||
+             count != ( size + records_per_block - 1 ) / records_per_block )
+            throw new IOException( "Corrupt packed index" );
+
+        first_keys = new long[ (int)count ];
+        offsets    = new long[ (int)count ];
+
+        long ptr = index_offset + 12;
+
+        for( int i = 0; i < count; ++i ) {
+
+            first_keys[i] = region.getLong( ptr );
+            offsets[i]    = region.getLong( ptr + 8 );
+
+            if ( offsets[i] < 0 || offsets[i] > section_end || ( i > 0 && offsets[i] < offsets[i - 1] ) )
+                throw new IOException( "Corrupt packed index" );
+
+            ptr += 16;
+
+        }
+
+        long block_bytes = records_per_block * ( has_values ? 16L : 8L ) + BLOCK_OVERHEAD;
+
+        int capacity = (int)Math.max( 1, Math.min( count, cache_size / block_bytes ) );
+
+        cache = new BlockCache( (int)count, capacity );
+
+    }
+
+    public int getRecordsPerBlock() {
+        return records_per_block;
+    }
+
+    /**
+     * Return the position of the given sort key or -1 if it isn't present.
+     */
+    public long find( long key ) {
+
+        int block = findBlock( key );
+
+        if ( block < 0 )
+            return -1;
+
+        int i = Arrays.binarySearch( getBlock( block ).sort_keys, key );
+
+        if ( i < 0 )
+            return -1;
+
+        return (long)block * records_per_block + i;
+
+    }
+
+    /**
+     * The first position whose key is at least the given one (or greater
+     * when inclusive is false), or size if there is none.
+     */
+    public long ceiling( long key, boolean inclusive ) {
+
+        int block = findBlock( key );
+
+        //sorts before everything.
+        if ( block < 0 )
+            return 0;
+
+        long[] keys = getBlock( block ).sort_keys;
+
+        int low = 0;
+        int high = keys.length;
+
+        while ( low < high ) {
+
+            int mid = ( low + high ) >>> 1;
+
+            if ( keys[mid] < key || ( ! inclusive && keys[mid] == key ) )
+                low = mid + 1;
+            else
+                high = mid;
+
+        }
+
+        //past the end of the block is the start of the next one, whose
+        //first key is larger.
+        return Math.min( size, (long)block * records_per_block + low );
+
+    }
+
+    public long getSortKey( long pos ) {
+        return getBlock( (int)( pos / records_per_block ) ).sort_keys[ (int)( pos % records_per_block ) ];
+    }
+
+    public long getRawValue( long pos ) {
+        return getBlock( (int)( pos / records_per_block ) ).values[ (int)( pos % records_per_block ) ];
+    }
+
+    /**
+     * The last block whose first key is at most the given one, or -1.
+     */
+    private int findBlock( long key ) {
+
+        int low = 0;
+        int high = first_keys.length;
+
+        while ( low < high ) {
+
+            int mid = ( low + high ) >>> 1;
+
+            if ( first_keys[mid] <= key )
+                low = mid + 1;
+            else
+                high = mid;
+
+        }
+
+        return low - 1;
+
+    }
+
+    private Block getBlock( int block ) {
+
+        Block result = cache.get( block );
+
+        if ( result == null )
+            result = cache.put( decode( block ) );
+
+        return result;
+
+    }
+
+    private Block decode( int block ) {
+
+        ++decoded;
+
+        long start = offsets[block];
+        long end   = block + 1 < offsets.length ? offsets[block + 1] : section_end;
+
+        int count  = (int)Math.min( records_per_block, size - (long)block * records_per_block );
+
+        ByteBuffer buff = ByteBuffer.wrap( region.get( start, (int)( end - start ) ) );
+
+        int key_bits    = buff.get() & 0xFF;
+        long min_delta  = buff.getLong();
+
+        int value_bits  = 0;
+        long min_value  = 0;
+
+        if ( has_values ) {
+            value_bits  = buff.get() & 0xFF;
+            min_value   = buff.getLong();
+        }
+
+        byte[] data = buff.array();
+
+        long[] sort_keys = new long[ count ];
+
+        sort_keys[0] = first_keys[block];
+
+        long bit = buff.position() * 8L;
+
+        for( int i = 1; i < count; ++i ) {
+            sort_keys[i] = sort_keys[i - 1] + min_delta + readBits( data, bit, key_bits );
+            bit += key_bits;
+        }
+
+        long[] values = null;
+
+        if ( has_values ) {
+
+            values = new long[ count ];
+
+            bit = ( buff.position() + packedLength( count - 1, key_bits ) ) * 8L;
+
+            for( int i = 0; i < count; ++i ) {
+                values[i] = min_value + readBits( data, bit, value_bits );
+                bit += value_bits;
+            }
+
+        }
+
+        return new Block( block, sort_keys, values );
+
+    }
+
+    /**
+     * Number of bytes count values of the given width pack into.
+     */
+    static int packedLength( int count, int bits ) {
+        return (int)( ( (long)count * bits + 7 ) / 8 );
+    }
+
+    /**
+     * Number of bits needed for the given value read as unsigned.
+     */
+    static int bitsFor( long v ) {
+        return 64 - Long.numberOfLeadingZeros( v );
+    }
+
+    /**
+     * Write the low bits of v at the given bit position, least significant
+     * bit first.  The target must be zeroed.
+     */
+    static void writeBits( byte[] data, long bit, long v, int bits ) {
+
+        while ( bits > 0 ) {
+
+            int index  = (int)( bit >>> 3 );
+            int offset = (int)( bit & 7 );
+            int take   = Math.min( 8 - offset, bits );
+
+            data[index] |= (byte)( ( v & ( ( 1 << take ) - 1 ) ) << offset );
+
+            v    >>>= take;
+            bits -= take;
+            bit  += take;
+
+        }
+
+    }
+
+    static long readBits( byte[] data, long bit, int bits ) {
+
+        long result = 0;
+        int done = 0;
+
+        while ( done < bits ) {
+
+            int index  = (int)( bit >>> 3 );
+            int offset = (int)( bit & 7 );
+            int take   = Math.min( 8 - offset, bits - done );
+
+            result |= (long)( ( ( data[index] & 0xFF ) >>> offset ) & ( ( 1 << take ) - 1 ) ) << done;
+
+            done += take;
+            bit  += take;
+
+        }
+
+        return result;
+
+    }
+
+    /**
+     * One decoded block.  The arrays are never changed once built, so
+     * blocks can be handed between threads without locking.
+     */
+    static class Block {
+
+        final int number;
+
+        final long[] sort_keys;
+
+        final long[] values;
+
+        /**
+         * Set on every use and cleared by the clock hand (see BlockCache).
+         */
+        boolean referenced = true;
+
+        Block( int number, long[] sort_keys, long[] values ) {
+            this.number     = number;
+            this.sort_keys  = sort_keys;
+            this.values     = values;
+        }
+
+    }
+
+}
@@ -0,0 +1,295 @@
+package com.spinn3r.flatmap;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fork/join merge sort of parallel primitive arrays.  keys are sort keys (see
+ * ByteArrayComparator.sortKey) and values are moved along with them.  Both
+ * the sorts of each half and the merges are split across the pool so that
+ * the whole sort scales with the number of cores.
+ */
+class ParallelSort {
+
+    /**
+     * Below this many elements a range is handled by a single thread.
+     */
+    static final int THRESHOLD = 8192;
+
+    public static void sort( ForkJoinPool pool, long[] keys, long[] values ) {
+
+        long[] tmp_keys   = new long[ keys.length ];
+        long[] tmp_values = values != null ? new long[ values.length ] : null;
+
+        pool.invoke( new Sort( keys, values, tmp_keys, tmp_values, 0, keys.length ) );
+
+    }
+
+    /**
+     * Sorts [low, high) of keys/values in place, using tmp as scratch.
+     */
+    static class Sort extends RecursiveAction {
+
+        long[] keys, values, tmp_keys, tmp_values;
+
+        int low, high;
+
+        Sort( long[] keys, long[] values, long[] tmp_keys, long[] tmp_values, int low, int high ) {
+            this.keys = keys;
+            this.values = values;
+            this.tmp_keys = tmp_keys;
+            this.tmp_values = tmp_values;
+            this.low = low;
+            this.high = high;
+        }
+
+        protected void compute() {
+
+            if ( high - low <= THRESHOLD ) {
+                sequentialSort( keys, values, tmp_keys, tmp_values, low, high );
+                return;
+            }
+
+            int mid = (low + high) >>> 1;
+
+            invokeAll( new Sort( keys, values, tmp_keys, tmp_values, low, mid ),
+                       new Sort( keys, values, tmp_keys, tmp_values, mid, high ) );
+
+            //already in order
+            if ( keys[mid - 1] <= keys[mid] )
+                return;
+
+            System.arraycopy( keys, low, tmp_keys, low, high - low );
+
+            if ( values != null )
+                System.arraycopy( values, low, tmp_values, low, high - low );
+
+            new Merge( tmp_keys, tmp_values, keys, values, low, mid, mid, high, low ).compute();
+
+        }
+
+    }
+
+    /**
+     * Merge two sorted ranges of src into dest starting at dest_low.  Large
+     * merges split the larger range at its midpoint, binary search for the
+     * matching split point in the other range and merge both halves in
+     * parallel.
+     */
+    static class Merge extends RecursiveAction {
+
+        long[] src_keys, src_values, dest_keys, dest_values;
+
+        int a_low, a_high, b_low, b_high, dest_low;
+
+        Merge( long[] src_keys, long[] src_values, long[] dest_keys, long[] dest_values,
+               int a_low, int a_high, int b_low, int b_high, int dest_low ) {
+
+            this.src_keys = src_keys;
+            this.src_values = src_values;
+            this.dest_keys = dest_keys;
+            this.dest_values = dest_values;
+            this.a_low = a_low;
+            this.a_high = a_high;
+            this.b_low = b_low;
+            this.b_high = b_high;
+            this.dest_low = dest_low;
+
+        }
+
+        protected void compute() {
+
+            int a_length = a_high - a_low;
+            int b_length = b_high - b_low;
+
+            if ( a_length + b_length <= THRESHOLD ) {
+                sequentialMerge();
+                return;
+            }
+
+            int a_mid, b_mid;
+
+            if ( a_length >= b_length ) {
+                a_mid = (a_low + a_high) >>> 1;
+                b_mid = lowerBound( src_keys, b_low, b_high, src_keys[a_mid] );
+            } else {
+                b_mid = (b_low + b_high) >>> 1;
+                a_mid = lowerBound( src_keys, a_low, a_high, src_keys[b_mid] );
+            }
+
+            int dest_mid = dest_low + (a_mid - a_low) + (b_mid - b_low);
+
+            invokeAll( new Merge( src_keys, src_values, dest_keys, dest_values, a_low, a_mid, b_low, b_mid, dest_low ),
+                       new Merge( src_keys, src_values, dest_keys, dest_values, a_mid, a_high, b_mid, b_high, dest_mid ) );
+
+        }
+
+        private void sequentialMerge() {
+
+            int i = a_low;
+            int j = b_low;
+            int k = dest_low;
+
+            while ( i < a_high || j < b_high ) {
+
+                int next;
+
+                if ( j >= b_high || ( i < a_high && src_keys[i] <= src_keys[j] ) )
+                    next = i++;
+                else
+                    next = j++;
+
+                dest_keys[k] = src_keys[next];
+
+                if ( dest_values != null )
+                    dest_values[k] = src_values[next];
+
+                ++k;
+
+            }
+
+        }
+
+    }
+
+    static int lowerBound( long[] keys, int low, int high, long key ) {
+
+        while ( low < high ) {
+
+            int mid = (low + high) >>> 1;
+
+            if ( keys[mid] < key )
+                low = mid + 1;
+            else
+                high = mid;
+
+        }
+
+        return low;
+
+    }
+
+    /**
+     * Single threaded LSD radix sort of the first count keys and values,
+     * one byte per pass.  Passes over a byte which is the same for every key
+     * are skipped so narrow key ranges only take a few passes.  Much faster
+     * than the merge sort for the modest, randomly ordered batches
+     * BaseFlatCollection.findAll sorts.
+     */
+    static void radixSort( long[] keys, long[] values, int count ) {
+
+        int[][] histograms = new int[ 8 ][ 256 ];
+
+        for( int i = 0; i < count; ++i ) {
+
+            //flip the sign bit so that signed order is unsigned order.
+            long key = keys[i] ^ Long.MIN_VALUE;
+
+            for( int pass = 0; pass < 8; ++pass ) {
+                ++histograms[pass][ (int)( key >>> (pass * 8) ) & 0xFF ];
+            }
+
+        }
+
+        long[] src_keys = keys;
+        long[] src_values = values;
+        long[] dest_keys = new long[ count ];
+        long[] dest_values = new long[ count ];
+
+        for( int pass = 0; pass < 8; ++pass ) {
+
+            int[] histogram = histograms[pass];
+
+            if ( count == 0 || histogram[ (int)( ( src_keys[0] ^ Long.MIN_VALUE ) >>> (pass * 8) ) & 0xFF ] == count )
+                continue;
+
+            int sum = 0;
+
+            for( int i = 0; i < 256; ++i ) {
+                int c = histogram[i];
+                histogram[i] = sum;
+                sum += c;
+            }
+
+            for( int i = 0; i < count; ++i ) {
+
+                int digit = (int)( ( src_keys[i] ^ Long.MIN_VALUE ) >>> (pass * 8) ) & 0xFF;
+                int dest = histogram[digit]++;
+
+                dest_keys[dest] = src_keys[i];
+                dest_values[dest] = src_values[i];
+
+            }
+
+            long[] tmp = src_keys;
+            src_keys = dest_keys;
+            dest_keys = tmp;
+
+            tmp = src_values;
+            src_values = dest_values;
+            dest_values = tmp;
+
+        }
+
+        if ( src_keys != keys ) {
+            System.arraycopy( src_keys, 0, keys, 0, count );
+            System.arraycopy( src_values, 0, values, 0, count );
+        }
+
+    }
+
+    /**
+     * Single threaded merge sort of a small range.
+     */
+    static void sequentialSort( long[] keys, long[] values, long[] tmp_keys, long[] tmp_values, int low, int high ) {
+
+        if ( high - low < 32 ) {
+
+            //insertion sort
+            for( int i = low + 1; i < high; ++i ) {
+
+                long key = keys[i];
+                long value = values != null ? values[i] : 0;
+
+                int j = i - 1;
+
+                while ( j >= low && keys[j] > key ) {
+
+                    keys[j + 1] = keys[j];
+
+                    if ( values != null )
+                        values[j + 1] = values[j];
+
+                    --j;
+
+                }
+
+                keys[j + 1] = key;
+
+                if ( values != null )
+                    values[j + 1] = value;
+
+            }
+
+            return;
+
+        }
+
+        int mid = (low + high) >>> 1;
+
+        sequentialSort( keys, values, tmp_keys, tmp_values, low, mid );
+        sequentialSort( keys, values, tmp_keys, tmp_values, mid, high );
+
+        if ( keys[mid - 1] <= keys[mid] )
+            return;
+
+        System.arraycopy( keys, low, tmp_keys, low, high - low );
+
+        if ( values != null )
+            System.arraycopy( values, low, tmp_values, low, high - low );
+
+        new Merge( tmp_keys, tmp_values, keys, values, low, mid, mid, high, low ).sequentialMerge();
+
+    }
+
+}
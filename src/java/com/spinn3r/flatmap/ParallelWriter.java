@@ -0,0 +1,333 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.spinn3r.flatmap.BaseFlatCollection.*;
+import static com.spinn3r.flatmap.FlatMapWriter.*;
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Multi-core build path for fixed width keys and values.
+ *
+ * Keys and values are encoded in parallel into primitive arrays (keys as sort
+ * keys so that they can be compared as plain longs), sorted with a fork/join
+ * merge sort and then encoded into large buffers, again in parallel, which
+ * are handed to the channel with a single gathering write per batch.
+ */
+class ParallelWriter {
+
+    /**
+     * Records per output buffer.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Elements per task when encoding.
+     */
+    static final int ENCODE_THRESHOLD = 16 * 1024;
+
+    /**
+     * True if the given key and value types can take the parallel path.
+     */
+    static boolean supports( int key_type, int value_type ) {
+
+        if ( lookupTypeHandler( key_type ).sizeOf() == VARIABLE )
+            return false;
+
+        return value_type == 0 || lookupTypeHandler( value_type ).sizeOf() != VARIABLE;
+
+    }
+
+    /**
+     * @param values null when writing a set.
+     */
+    static void write( ForkJoinPool pool,
+                       OutputStream out,
+                       byte[] magic,
+                       int key_type,
+                       int value_type,
+                       Object[] keys,
+                       Object[] values,
+                       boolean learned_index,
+                       double bloom_fpp ) throws IOException {
+
+        final TypeHandler key_type_handler   = lookupTypeHandler( key_type );
+        final TypeHandler value_type_handler = value_type > 0 ? lookupTypeHandler( value_type ) : null;
+
+        final int key_width   = key_type_handler.sizeOf();
+        final int value_width = value_type_handler != null ? value_type_handler.sizeOf() : 0;
+
+        int count = keys.length;
+
+        long[] sort_keys  = new long[ count ];
+        long[] raw_values = values != null ? new long[ count ] : null;
+
+        pool.invoke( new Encode( keys, values, key_type_handler, value_type_handler, sort_keys, raw_values, 0, count ) );
+
+        ParallelSort.sort( pool, sort_keys, raw_values );
+
+        //same rules as RecordWriter so that both paths write the same file.
+        LinearModel.Builder model = null;
+        int flags = 0;
+
+        if ( learned_index && count >= LinearModel.MIN_SIZE ) {
+
+            model = new LinearModel.Builder( LinearModel.DEFAULT_MAX_ERROR );
+
+            for( int i = 0; i < count; ++i ) {
+                model.add( sort_keys[i] );
+            }
+
+            flags |= FLAG_DIRECTORY;
+
+        }
+
+        BloomFilter.Builder bloom = null;
+
+        if ( bloom_fpp > 0 ) {
+
+            bloom = new BloomFilter.Builder( bloom_fpp );
+
+            //sortKey is its own inverse.
+            for( int i = 0; i < count; ++i ) {
+                bloom.add( BloomFilter.hash( ByteArrayComparator.sortKey( sort_keys[i], key_width ) ) );
+            }
+
+            flags |= FLAG_DIRECTORY;
+
+        }
+
+        WritableByteChannel channel;
+
+        if ( out instanceof FileOutputStream )
+            channel = ((FileOutputStream)out).getChannel();
+        else
+            channel = Channels.newChannel( out );
+
+        try {
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeHeader( header, magic, LAYOUT_SORTED, count, key_type, value_type, flags );
+
+            writeFully( channel, new ByteBuffer[] { ByteBuffer.wrap( header.toByteArray() ) } );
+
+            int stride = key_width + value_width;
+
+            //one batch of buffers per pass, reused across passes.
+            ByteBuffer[] batch = new ByteBuffer[ pool.getParallelism() * 2 ];
+
+            for( int i = 0; i < batch.length; ++i ) {
+                batch[i] = ByteBuffer.allocateDirect( CHUNK_SIZE * stride );
+            }
+
+            for( int start = 0; start < count; start += batch.length * CHUNK_SIZE ) {
+
+                List<ForkJoinTask> tasks = new ArrayList();
+                int used = 0;
+
+                for( int i = 0; i < batch.length; ++i ) {
+
+                    int chunk_start = start + i * CHUNK_SIZE;
+
+                    if ( chunk_start >= count )
+                        break;
+
+                    int chunk_end = Math.min( count, chunk_start + CHUNK_SIZE );
+
+                    tasks.add( pool.submit( new Fill( batch[i], sort_keys, raw_values, key_width, value_width, chunk_start, chunk_end ) ) );
+                    ++used;
+
+                }
+
+                for( ForkJoinTask task : tasks ) {
+                    task.join();
+                }
+
+                ByteBuffer[] buffers = new ByteBuffer[ used ];
+                System.arraycopy( batch, 0, buffers, 0, used );
+
+                writeFully( channel, buffers );
+
+            }
+
+            if ( ( flags & FLAG_DIRECTORY ) != 0 ) {
+
+                long keys_length = (long)count * stride;
+
+                List<long[]> sections = new ArrayList();
+                sections.add( new long[] { SECTION_KEYS, HEADER_SIZE, keys_length } );
+
+                //the footer sections are small next to the records so they
+                //go through a plain stream.
+                RecordWriter.CountingOutputStream footer_bytes =
+                    new RecordWriter.CountingOutputStream( new BufferedOutputStream( Channels.newOutputStream( channel ), 65536 ) );
+
+                DataOutputStream dout = new DataOutputStream( footer_bytes );
+
+                long base = HEADER_SIZE + keys_length;
+
+                if ( model != null && model.isUseful() ) {
+                    model.write( dout );
+                    sections.add( new long[] { SECTION_MODEL, base, footer_bytes.getCount() } );
+                }
+
+                if ( bloom != null ) {
+
+                    long bloom_offset = bloom.write( dout, base + footer_bytes.getCount() );
+                    sections.add( new long[] { SECTION_BLOOM, bloom_offset, base + footer_bytes.getCount() - bloom_offset } );
+
+                }
+
+                RecordWriter.writeDirectory( dout, base + footer_bytes.getCount(), sections );
+
+            }
+
+        } finally {
+            channel.close();
+        }
+
+    }
+
+    private static void writeFully( WritableByteChannel channel, ByteBuffer[] buffers ) throws IOException {
+
+        if ( channel instanceof GatheringByteChannel ) {
+
+            GatheringByteChannel gathering = (GatheringByteChannel)channel;
+
+            while ( buffers[ buffers.length - 1 ].hasRemaining() ) {
+                gathering.write( buffers );
+            }
+
+            return;
+
+        }
+
+        for( ByteBuffer buff : buffers ) {
+
+            while ( buff.hasRemaining() ) {
+                channel.write( buff );
+            }
+
+        }
+
+    }
+
+    /**
+     * Convert objects to sort keys and raw values.
+     */
+    static class Encode extends RecursiveAction {
+
+        Object[] keys, values;
+        TypeHandler key_type_handler, value_type_handler;
+        long[] sort_keys, raw_values;
+        int low, high;
+
+        Encode( Object[] keys, Object[] values,
+                TypeHandler key_type_handler, TypeHandler value_type_handler,
+                long[] sort_keys, long[] raw_values,
+                int low, int high ) {
+
+            this.keys = keys;
+            this.values = values;
+            this.key_type_handler = key_type_handler;
+            this.value_type_handler = value_type_handler;
+            this.sort_keys = sort_keys;
+            this.raw_values = raw_values;
+            this.low = low;
+            this.high = high;
+
+        }
+
+        protected void compute() {
+
+            if ( high - low > ENCODE_THRESHOLD ) {
+
+                int mid = (low + high) >>> 1;
+
+                invokeAll( new Encode( keys, values, key_type_handler, value_type_handler, sort_keys, raw_values, low, mid ),
+                           new Encode( keys, values, key_type_handler, value_type_handler, sort_keys, raw_values, mid, high ) );
+
+                return;
+
+            }
+
+            int width = key_type_handler.sizeOf();
+
+            for( int i = low; i < high; ++i ) {
+
+                sort_keys[i] = ByteArrayComparator.sortKey( key_type_handler.toRawLong( keys[i] ), width );
+
+                if ( values != null )
+                    raw_values[i] = value_type_handler.toRawLong( values[i] );
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Encode a range of sorted records into an output buffer.
+     */
+    static class Fill extends RecursiveAction {
+
+        ByteBuffer buff;
+        long[] sort_keys, raw_values;
+        int key_width, value_width, low, high;
+
+        Fill( ByteBuffer buff, long[] sort_keys, long[] raw_values, int key_width, int value_width, int low, int high ) {
+            this.buff = buff;
+            this.sort_keys = sort_keys;
+            this.raw_values = raw_values;
+            this.key_width = key_width;
+            this.value_width = value_width;
+            this.low = low;
+            this.high = high;
+        }
+
+        protected void compute() {
+
+            buff.clear();
+
+            for( int i = low; i < high; ++i ) {
+
+                //sortKey is its own inverse.
+                put( buff, ByteArrayComparator.sortKey( sort_keys[i], key_width ), key_width );
+
+                if ( raw_values != null )
+                    put( buff, raw_values[i], value_width );
+
+            }
+
+            buff.flip();
+
+        }
+
+        private static void put( ByteBuffer buff, long raw, int width ) {
+
+            switch( width ) {
+
+                case 8:
+                    buff.putLong( raw );
+                    break;
+                case 4:
+                    buff.putInt( (int)raw );
+                    break;
+                case 2:
+                    buff.putShort( (short)raw );
+                    break;
+                case 1:
+                    buff.put( (byte)raw );
+                    break;
+
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,285 @@
+package com.spinn3r.flatmap;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Spliterator over the positions [pos, end) of a FlatMap or FlatSet.
+ *
+ * Records are fixed width (or at least addressed by position) so a range
+ * splits exactly in half without reading anything, and every half knows its
+ * exact size.  That's what lets a parallel stream hand each fork-join worker
+ * its own slice of the mapped file.  The reader turns a position into the
+ * element.
+ *
+ * OfLong and OfInt are the primitive versions, which read straight from the
+ * region and never box.
+ */
+class PositionSpliterator<T> implements Spliterator<T> {
+
+    /**
+     * Ranges smaller than this aren't split any further.  Below it the cost
+     * of a fork-join task outweighs the scan.
+     */
+    static final long MIN_SPLIT = 1024;
+
+    /**
+     * Characteristics of every position range.
+     */
+    static final int BASE = ORDERED | SIZED | SUBSIZED | IMMUTABLE;
+
+    /**
+     * Characteristics of a range of keys.
+     */
+    static final int KEYS = BASE | DISTINCT | SORTED | NONNULL;
+
+    private long pos;
+
+    private long end;
+
+    private int characteristics;
+
+    private Comparator<? super T> comparator;
+
+    private LongFunction<T> reader;
+
+    PositionSpliterator( long pos, long end, int characteristics,
+                         Comparator<? super T> comparator, LongFunction<T> reader ) {
+
+        this.pos              = pos;
+        this.end              = end;
+        this.characteristics  = characteristics;
+        this.comparator       = comparator;
+        this.reader           = reader;
+
+    }
+
+    public boolean tryAdvance( Consumer<? super T> action ) {
+
+        if ( pos >= end )
+            return false;
+
+        action.accept( reader.apply( pos++ ) );
+
+        return true;
+
+    }
+
+    public void forEachRemaining( Consumer<? super T> action ) {
+
+        long i = pos;
+
+        //update pos first in case the action throws.
+        pos = end;
+
+        for( ; i < end; ++i ) {
+            action.accept( reader.apply( i ) );
+        }
+
+    }
+
+    public Spliterator<T> trySplit() {
+
+        long mid = split( pos, end );
+
+        if ( mid < 0 )
+            return null;
+
+        Spliterator<T> prefix = new PositionSpliterator( pos, mid, characteristics, comparator, reader );
+
+        pos = mid;
+
+        return prefix;
+
+    }
+
+    public long estimateSize() {
+        return end - pos;
+    }
+
+    public int characteristics() {
+        return characteristics;
+    }
+
+    public Comparator<? super T> getComparator() {
+
+        if ( ( characteristics & SORTED ) == 0 )
+            throw new IllegalStateException();
+
+        return comparator;
+
+    }
+
+    /**
+     * Where to split [pos, end), or -1 if it's too small.
+     */
+    static long split( long pos, long end ) {
+
+        if ( end - pos < MIN_SPLIT * 2 )
+            return -1;
+
+        return (pos + end) >>> 1;
+
+    }
+
+    static class OfLong implements Spliterator.OfLong {
+
+        private long pos;
+
+        private long end;
+
+        private int characteristics;
+
+        private Comparator<? super Long> comparator;
+
+        private LongUnaryOperator reader;
+
+        OfLong( long pos, long end, int characteristics,
+                Comparator<? super Long> comparator, LongUnaryOperator reader ) {
+
+            this.pos              = pos;
+            this.end              = end;
+            this.characteristics  = characteristics;
+            this.comparator       = comparator;
+            this.reader           = reader;
+
+        }
+
+        public boolean tryAdvance( LongConsumer action ) {
+
+            if ( pos >= end )
+                return false;
+
+            action.accept( reader.applyAsLong( pos++ ) );
+
+            return true;
+
+        }
+
+        public void forEachRemaining( LongConsumer action ) {
+
+            long i = pos;
+
+            pos = end;
+
+            for( ; i < end; ++i ) {
+                action.accept( reader.applyAsLong( i ) );
+            }
+
+        }
+
+        public Spliterator.OfLong trySplit() {
+
+            long mid = split( pos, end );
+
+            if ( mid < 0 )
+                return null;
+
+            Spliterator.OfLong prefix = new PositionSpliterator.OfLong( pos, mid, characteristics, comparator, reader );
+
+            pos = mid;
+
+            return prefix;
+
+        }
+
+        public long estimateSize() {
+            return end - pos;
+        }
+
+        public int characteristics() {
+            return characteristics;
+        }
+
+        public Comparator<? super Long> getComparator() {
+
+            if ( ( characteristics & SORTED ) == 0 )
+                throw new IllegalStateException();
+
+            return comparator;
+
+        }
+
+    }
+
+    static class OfInt implements Spliterator.OfInt {
+
+        private long pos;
+
+        private long end;
+
+        private int characteristics;
+
+        private Comparator<? super Integer> comparator;
+
+        private LongToIntFunction reader;
+
+        OfInt( long pos, long end, int characteristics,
+               Comparator<? super Integer> comparator, LongToIntFunction reader ) {
+
+            this.pos              = pos;
+            this.end              = end;
+            this.characteristics  = characteristics;
+            this.comparator       = comparator;
+            this.reader           = reader;
+
+        }
+
+        public boolean tryAdvance( IntConsumer action ) {
+
+            if ( pos >= end )
+                return false;
+
+            action.accept( reader.applyAsInt( pos++ ) );
+
+            return true;
+
+        }
+
+        public void forEachRemaining( IntConsumer action ) {
+
+            long i = pos;
+
+            pos = end;
+
+            for( ; i < end; ++i ) {
+                action.accept( reader.applyAsInt( i ) );
+            }
+
+        }
+
+        public Spliterator.OfInt trySplit() {
+
+            long mid = split( pos, end );
+
+            if ( mid < 0 )
+                return null;
+
+            Spliterator.OfInt prefix = new PositionSpliterator.OfInt( pos, mid, characteristics, comparator, reader );
+
+            pos = mid;
+
+            return prefix;
+
+        }
+
+        public long estimateSize() {
+            return end - pos;
+        }
+
+        public int characteristics() {
+            return characteristics;
+        }
+
+        public Comparator<? super Integer> getComparator() {
+
+            if ( ( characteristics & SORTED ) == 0 )
+                throw new IllegalStateException();
+
+            return comparator;
+
+        }
+
+    }
+
+}
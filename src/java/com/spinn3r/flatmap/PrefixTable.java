@@ -0,0 +1,111 @@
+package com.spinn3r.flatmap;
+
+/**
+ * Small in-heap table which maps the top bits of a key to the range of
+ * positions holding keys with those bits, so a binary search can start
+ * inside one bucket instead of at the whole file.  Those first probes of
+ * every search otherwise land on the same widely spaced pages.
+ *
+ * The bits are taken from the key's offset from the smallest key in the
+ * file (rather than from the key itself) so that narrow ranges of keys, like
+ * sequential IDs in a 64 bit key, still spread across all the buckets.
+ *
+ * Built when the file is opened with one binary search per bucket.
+ */
+class PrefixTable {
+
+    /**
+     * Upper limit on the table size, 16M buckets or 128MB of heap.
+     */
+    public static final int MAX_BITS = 24;
+
+    /**
+     * Sort keys of the first and last keys in the file.  Offsets from min
+     * are treated as unsigned since they can span the whole range of a long.
+     */
+    private long min;
+
+    private long max;
+
+    private int shift;
+
+    /**
+     * starts[b] is the first position whose key falls in bucket b or later.
+     * starts[buckets] is the size of the file.
+     */
+    private long[] starts;
+
+    public PrefixTable( BaseFlatCollection collection, int bits ) {
+
+        long size = collection.size;
+
+        min = collection.getSortKeyFromPosition( 0 );
+        max = collection.getSortKeyFromPosition( size - 1 );
+
+        //number of significant bits in the spread of keys.
+        int spread = 64 - Long.numberOfLeadingZeros( max - min );
+
+        bits  = Math.min( bits, spread );
+        shift = spread - bits;
+
+        int buckets = (int)( ( max - min ) >>> shift ) + 1;
+
+        starts = new long[ buckets + 1 ];
+
+        starts[ buckets ] = size;
+
+        for( int b = 1; b < buckets; ++b ) {
+
+            //first key of this bucket.
+            long key = min + ( (long)b << shift );
+
+            long low = starts[b - 1];
+            long high = size;
+
+            while ( low < high ) {
+
+                long mid = (low + high) >>> 1;
+
+                if ( collection.getSortKeyFromPosition( mid ) < key )
+                    low = mid + 1;
+                else
+                    high = mid;
+
+            }
+
+            starts[b] = low;
+
+        }
+
+    }
+
+    /**
+     * Number of buckets.
+     */
+    public int size() {
+        return starts.length - 1;
+    }
+
+    /**
+     * First position of the bucket the given sort key falls in, or -1 if it
+     * is outside the range of keys in the file.  The bucket ends at
+     * getEnd( key ).
+     */
+    public long getStart( long key ) {
+
+        if ( key < min || key > max )
+            return -1;
+
+        return starts[ (int)( ( key - min ) >>> shift ) ];
+
+    }
+
+    /**
+     * Position just past the end of the bucket the given sort key falls in.
+     * Only valid if getStart returned a position.
+     */
+    public long getEnd( long key ) {
+        return starts[ (int)( ( key - min ) >>> shift ) + 1 ];
+    }
+
+}
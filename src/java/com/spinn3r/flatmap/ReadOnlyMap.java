@@ -10,24 +10,26 @@ import java.nio.channels.*;
 import static com.spinn3r.flatmap.FlatMapWriter.*;
 
 /**
- *
+ * Base class for maps which can't be modified.  Extends BaseFlatCollection so
+ * that the key search code is shared with FlatSet.  The mutators throw
+ * UnsupportedOperationException as java.util.Map asks of read only maps.
  */
-public abstract class ReadOnlyMap<K,V> {
+public abstract class ReadOnlyMap<K,V> extends BaseFlatCollection implements Map<K,V> {
 
     public V put(K key, V value) {
-        throw new RuntimeException( "Read only map" );
+        throw new UnsupportedOperationException( "Read only map" );
     }
 
-    public V remove(K key) {
-        throw new RuntimeException( "Read only map" );
+    public V remove(Object key) {
+        throw new UnsupportedOperationException( "Read only map" );
     }
 
     public void putAll(Map<? extends K, ? extends V> m) {
-        throw new RuntimeException( "Read only map" );
+        throw new UnsupportedOperationException( "Read only map" );
     }
     
     public void clear() {
-        throw new RuntimeException( "Read only map" );
+        throw new UnsupportedOperationException( "Read only map" );
     }
 
 }
@@ -0,0 +1,1050 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.BaseFlatCollection.*;
+import static com.spinn3r.flatmap.FlatMapWriter.*;
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Writes already sorted, already encoded records in one of the on disk
+ * layouts.  FlatMapWriter and FlatSetWriter handle typing and sorting and
+ * hand each record to add() in key order.
+ *
+ * Sections which have to follow the keys (the value array and the data
+ * section) are spooled to temp files as records arrive and appended when the
+ * writer is closed, so records only have to be seen once.
+ */
+class RecordWriter {
+
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    /**
+     * One cache line.
+     */
+    public static final int DEFAULT_NODE_SIZE = 64;
+
+    private CountingOutputStream out = null;
+
+    private byte[] magic;
+
+    private int key_type;
+
+    private int layout;
+
+    private long size;
+
+    private int value_type;
+
+    private int flags = 0;
+
+    private boolean value_pointers = false;
+
+    private boolean long_pointers = false;
+
+    private int block_size = DEFAULT_BLOCK_SIZE;
+
+    private int node_size = DEFAULT_NODE_SIZE;
+
+    private int key_width;
+
+    /**
+     * Start of the keys section.
+     */
+    private long keys_offset = HEADER_SIZE;
+
+    /**
+     * The first key of every node of the key array (LAYOUT_BTREE).
+     */
+    private Spool tree_level = null;
+
+    private boolean learned_index = true;
+
+    private double bloom_fpp = 0;
+
+    private BloomFilter.Builder bloom = null;
+
+    /**
+     * Built as keys arrive when a LAYOUT_SORTED file may get a model.
+     */
+    private LinearModel.Builder model = null;
+
+    private long count = 0;
+
+    /**
+     * Offset of the next value in the data section.
+     */
+    private long pointer = 0;
+
+    private byte[] previous = null;
+
+    private Spool values = null;
+
+    private Spool data = null;
+
+    private DataOutputStream index = null;
+
+    private ByteArrayOutputStream index_bytes = null;
+
+    /**
+     * The block being built (LAYOUT_PACKED): sort keys and raw values.
+     */
+    private long[] packed_keys = null;
+
+    private long[] packed_values = null;
+
+    private int packed_count = 0;
+
+    /**
+     * Sort keys as they arrive (LAYOUT_ELIAS_FANO), read back once the
+     * largest is known.
+     */
+    private Spool sort_keys = null;
+
+    private DataOutputStream sort_keys_out = null;
+
+    private long min_sort_key = 0;
+
+    private long max_sort_key = 0;
+
+    /**
+     * The high bit vector and its samples (LAYOUT_ELIAS_FANO).  See
+     * EliasFano.
+     */
+    private Spool upper = null;
+
+    private long[] one_samples = null;
+
+    private long[] zero_samples = null;
+
+    private int low_bits = 0;
+
+    private long buckets = 0;
+
+    /**
+     * @param size Number of records which will be added, or -1 if it isn't
+     * known yet.  In that case the caller has to fix up the header with
+     * writeSize once the writer is closed.
+     *
+     * @param data_length Total number of bytes the data section may need (an
+     * upper bound is fine).  Decides between 4 and 8 byte pointers.
+     */
+    public RecordWriter( OutputStream out,
+                         byte[] magic,
+                         int layout,
+                         long size,
+                         int key_type,
+                         int value_type,
+                         long data_length ) throws IOException {
+
+        this.out         = new CountingOutputStream( new BufferedOutputStream( out, 65536 ) );
+        this.magic       = magic;
+        this.layout      = layout;
+        this.size        = size;
+        this.key_type    = key_type;
+        this.value_type  = value_type;
+        this.key_width   = lookupTypeHandler( key_type ).sizeOf();
+
+        if ( value_type > 0 && lookupTypeHandler( value_type ).sizeOf() == VARIABLE ) {
+
+            value_pointers = true;
+
+            //4 byte pointers are unsigned so they cover 4GB of data.
+            long_pointers = data_length > 0xFFFFFFFFL;
+
+            if ( long_pointers )
+                flags |= FLAG_LONG_POINTERS;
+
+            data = new Spool();
+
+        }
+
+        if ( layout == LAYOUT_BLOCKED ) {
+
+            flags |= FLAG_DIRECTORY;
+
+            if ( value_type > 0 )
+                values = new Spool();
+
+            index_bytes = new ByteArrayOutputStream();
+            index = new DataOutputStream( index_bytes );
+
+        }
+
+        if ( layout == LAYOUT_BTREE ) {
+
+            flags |= FLAG_DIRECTORY;
+
+            if ( value_type > 0 )
+                values = new Spool();
+
+            tree_level = new Spool();
+
+        }
+
+        if ( layout == LAYOUT_PACKED ) {
+
+            if ( key_width == VARIABLE || value_pointers )
+                throw new IOException( "LAYOUT_PACKED requires fixed width keys and values" );
+
+            flags |= FLAG_DIRECTORY;
+
+            packed_keys = new long[ PackedIndex.DEFAULT_RECORDS_PER_BLOCK ];
+
+            if ( value_type > 0 )
+                packed_values = new long[ PackedIndex.DEFAULT_RECORDS_PER_BLOCK ];
+
+            index_bytes = new ByteArrayOutputStream();
+            index = new DataOutputStream( index_bytes );
+
+        }
+
+        if ( layout == LAYOUT_ELIAS_FANO ) {
+
+            if ( key_width == VARIABLE || value_type > 0 )
+                throw new IOException( "LAYOUT_ELIAS_FANO is only for sets of fixed width keys" );
+
+            flags |= FLAG_DIRECTORY;
+
+            sort_keys = new Spool();
+            sort_keys_out = new DataOutputStream( sort_keys );
+
+        }
+
+    }
+
+    /**
+     * Whether LAYOUT_SORTED files get a LinearModel so that readers can
+     * predict where a key is rather than binary search for it.  On by
+     * default.  The model is only kept if the keys are regular enough for it
+     * to pay off.
+     */
+    public void setLearnedIndex( boolean learned_index ) {
+        this.learned_index = learned_index;
+    }
+
+    /**
+     * Build a Bloom filter over the keys with the given false positive
+     * probability so that readers can skip the search for most misses.  0
+     * (the default) means no filter.
+     */
+    public void setBloomFilter( double bloom_fpp ) {
+        this.bloom_fpp = bloom_fpp;
+    }
+
+    /**
+     * Write the header.  Deferred until the first record so that the setters
+     * can still change the flags.
+     */
+    private void begin() throws IOException {
+
+        if ( layout == LAYOUT_SORTED && learned_index && ( size < 0 || size >= LinearModel.MIN_SIZE ) ) {
+            model = new LinearModel.Builder( LinearModel.DEFAULT_MAX_ERROR );
+            flags |= FLAG_DIRECTORY;
+        }
+
+        if ( bloom_fpp > 0 ) {
+            bloom = new BloomFilter.Builder( bloom_fpp );
+            flags |= FLAG_DIRECTORY;
+        }
+
+        writeHeader( out, magic, layout, size, key_type, value_type, flags );
+
+    }
+
+    /**
+     * Number of keys per front coded block in LAYOUT_BLOCKED.
+     */
+    public void setBlockSize( int block_size ) {
+        this.block_size = block_size;
+    }
+
+    /**
+     * Size in bytes of each node in LAYOUT_BTREE.  64 for a cache line, 4096
+     * for a page.
+     */
+    public void setNodeSize( int node_size ) {
+        this.node_size = node_size;
+    }
+
+    /**
+     * Add the next record.  value is null for sets.
+     */
+    public void add( byte[] key, byte[] value ) throws IOException {
+
+        if ( count == 0 )
+            begin();
+
+        if ( bloom != null )
+            bloom.add( key, key_width != VARIABLE );
+
+        if ( layout == LAYOUT_PACKED ) {
+            addPacked( key, value );
+            ++count;
+            return;
+        }
+
+        if ( layout == LAYOUT_ELIAS_FANO ) {
+
+            max_sort_key = ByteArrayComparator.sortKey( TypeManager.toRawLong( key ), key_width );
+
+            if ( count == 0 )
+                min_sort_key = max_sort_key;
+
+            sort_keys_out.writeLong( max_sort_key );
+
+            ++count;
+            return;
+
+        }
+
+        if ( layout == LAYOUT_BLOCKED ) {
+
+            writeBlockedKey( key );
+
+        } else if ( layout == LAYOUT_BTREE ) {
+
+            if ( count == 0 ) {
+                pad();
+                keys_offset = out.getCount();
+            }
+
+            if ( count % keysPerNode() == 0 )
+                tree_level.write( key );
+
+            out.write( key );
+
+        } else {
+
+            if ( model != null )
+                model.add( key );
+
+            out.write( key );
+
+        }
+
+        if ( value_type > 0 ) {
+
+            OutputStream vout = values != null ? values : out;
+
+            if ( value_pointers ) {
+
+                if ( long_pointers )
+                    vout.write( toByteArray( pointer ) );
+                else
+                    vout.write( toByteArray( (int)pointer ) );
+
+                writeVarInt( data, value.length );
+                data.write( value );
+
+                pointer += sizeOfVarInt( value.length ) + value.length;
+
+            } else {
+                vout.write( value );
+            }
+
+        }
+
+        ++count;
+
+    }
+
+    /**
+     * The first key in each block is written in full, the rest as the length
+     * of the prefix shared with the previous key and the remaining suffix.
+     * The first key of every block also goes into the block index.
+     */
+    private void writeBlockedKey( byte[] key ) throws IOException {
+
+        if ( count % block_size == 0 ) {
+
+            index.writeLong( out.getCount() );
+            writeVarInt( index, key.length );
+            index.write( key );
+
+            writeVarInt( out, key.length );
+            out.write( key );
+
+        } else {
+
+            int shared = 0;
+            int max = Math.min( previous.length, key.length );
+
+            while ( shared < max && previous[shared] == key[shared] ) {
+                ++shared;
+            }
+
+            writeVarInt( out, shared );
+            writeVarInt( out, key.length - shared );
+            out.write( key, shared, key.length - shared );
+
+        }
+
+        previous = key;
+
+    }
+
+    private void addPacked( byte[] key, byte[] value ) throws IOException {
+
+        packed_keys[ packed_count ] = ByteArrayComparator.sortKey( TypeManager.toRawLong( key ), key_width );
+
+        if ( packed_values != null )
+            packed_values[ packed_count ] = TypeManager.toRawLong( value );
+
+        if ( ++packed_count == packed_keys.length )
+            writePackedBlock();
+
+    }
+
+    /**
+     * Write the block being built.  See PackedIndex for the format.  The
+     * first key only goes in the index.
+     */
+    private void writePackedBlock() throws IOException {
+
+        int n = packed_count;
+
+        index.writeLong( packed_keys[0] );
+        index.writeLong( out.getCount() );
+
+        //differences are unsigned: keys are distinct and ascending but may
+        //span the whole range.
+        long min_delta = n > 1 ? -1 : 0;
+
+        for( int i = 1; i < n; ++i ) {
+
+            long delta = packed_keys[i] - packed_keys[i - 1];
+
+            if ( Long.compareUnsigned( delta, min_delta ) < 0 )
+                min_delta = delta;
+
+        }
+
+        long max_delta = 0;
+
+        for( int i = 1; i < n; ++i ) {
+
+            long offset = packed_keys[i] - packed_keys[i - 1] - min_delta;
+
+            if ( Long.compareUnsigned( offset, max_delta ) > 0 )
+                max_delta = offset;
+
+        }
+
+        int key_bits = PackedIndex.bitsFor( max_delta );
+
+        DataOutputStream dout = new DataOutputStream( out );
+
+        dout.writeByte( key_bits );
+        dout.writeLong( min_delta );
+
+        byte[] packed = new byte[ PackedIndex.packedLength( n - 1, key_bits ) ];
+
+        for( int i = 1; i < n; ++i ) {
+            PackedIndex.writeBits( packed, (long)( i - 1 ) * key_bits, packed_keys[i] - packed_keys[i - 1] - min_delta, key_bits );
+        }
+
+        if ( packed_values != null ) {
+
+            long min_value = Long.MAX_VALUE;
+
+            for( int i = 0; i < n; ++i ) {
+                min_value = Math.min( min_value, packed_values[i] );
+            }
+
+            long max_offset = 0;
+
+            for( int i = 0; i < n; ++i ) {
+
+                if ( Long.compareUnsigned( packed_values[i] - min_value, max_offset ) > 0 )
+                    max_offset = packed_values[i] - min_value;
+
+            }
+
+            int value_bits = PackedIndex.bitsFor( max_offset );
+
+            dout.writeByte( value_bits );
+            dout.writeLong( min_value );
+
+            dout.write( packed );
+
+            packed = new byte[ PackedIndex.packedLength( n, value_bits ) ];
+
+            for( int i = 0; i < n; ++i ) {
+                PackedIndex.writeBits( packed, (long)i * value_bits, packed_values[i] - min_value, value_bits );
+            }
+
+        }
+
+        dout.write( packed );
+        dout.flush();
+
+        packed_count = 0;
+
+    }
+
+    /**
+     * Finish the file and close the output.  If that fails the output is
+     * closed and the spooled sections deleted anyway.
+     */
+    public void close() throws IOException {
+
+        boolean closed = false;
+
+        try {
+            finish();
+            closed = true;
+        } finally {
+
+            if ( ! closed )
+                abort();
+
+        }
+
+    }
+
+    /**
+     * Give up on the file: close the output and delete the spooled sections
+     * without writing the rest.  For when an add fails part way through.
+     */
+    public void abort() {
+
+        try {
+            out.close();
+        } catch ( IOException e ) {
+            //the file is being thrown away anyway.
+        }
+
+        Spool[] spools = { values, data, tree_level, sort_keys, upper };
+
+        for( Spool spool : spools ) {
+
+            if ( spool == null )
+                continue;
+
+            try {
+                spool.delete();
+            } catch ( IOException e ) { }
+
+        }
+
+    }
+
+    /**
+     * Write the low bits of every key as the keys section and spool the high
+     * bit vector, sampling the position of every sample_rate-th one and zero
+     * as it goes.  See EliasFano for the format.
+     */
+    private void writeEliasFano() throws IOException {
+
+        keys_offset = out.getCount();
+
+        //unsigned: the keys may span the whole range.
+        long universe = max_sort_key - min_sort_key;
+
+        if ( count > 0 )
+            low_bits = Math.max( 0, PackedIndex.bitsFor( Long.divideUnsigned( universe, count ) ) - 1 );
+
+        buckets = count > 0 ? ( universe >>> low_bits ) + 1 : 0;
+
+        int shift = EliasFano.DEFAULT_SAMPLE_SHIFT;
+        long rate = 1L << shift;
+
+        one_samples  = new long[ (int)EliasFano.samples( count, shift ) ];
+        zero_samples = new long[ (int)EliasFano.samples( buckets, shift ) ];
+
+        upper = new Spool();
+
+        BitOutput lower_bits = new BitOutput( new DataOutputStream( out ) );
+        BitOutput upper_bits = new BitOutput( new DataOutputStream( upper ) );
+
+        DataInputStream in = new DataInputStream( new BufferedInputStream( sort_keys.read(), 65536 ) );
+
+        try {
+
+            //zeros written so far.
+            long zeros = 0;
+
+            for( long i = 0; i < count; ++i ) {
+
+                long u = in.readLong() - min_sort_key;
+                long high = u >>> low_bits;
+
+                //zero j lands at j + i as i ones precede it.
+                for( long j = ( zeros + rate - 1 ) & -rate; j < high; j += rate ) {
+                    zero_samples[ (int)( j >>> shift ) ] = j + i;
+                }
+
+                upper_bits.writeZeros( high - zeros );
+                zeros = high;
+
+                if ( ( i & ( rate - 1 ) ) == 0 )
+                    one_samples[ (int)( i >>> shift ) ] = high + i;
+
+                upper_bits.write( 1, 1 );
+
+                lower_bits.write( u & ( ( 1L << low_bits ) - 1 ), low_bits );
+
+            }
+
+            //the zero ending every bucket up to the last.
+            for( long j = ( zeros + rate - 1 ) & -rate; j < buckets; j += rate ) {
+                zero_samples[ (int)( j >>> shift ) ] = j + count;
+            }
+
+            upper_bits.writeZeros( buckets - zeros );
+
+            lower_bits.flush();
+            upper_bits.flush();
+
+        } finally {
+            in.close();
+            sort_keys.delete();
+        }
+
+    }
+
+    private void finish() throws IOException {
+
+        if ( size >= 0 && count != size )
+            throw new IOException( "Expected " + size + " records but only " + count + " were added" );
+
+        if ( count == 0 )
+            begin();
+
+        if ( packed_count > 0 )
+            writePackedBlock();
+
+        if ( layout == LAYOUT_ELIAS_FANO )
+            writeEliasFano();
+
+        if ( layout == LAYOUT_SORTED && ( flags & FLAG_DIRECTORY ) == 0 ) {
+
+            //the data section directly follows the records.
+            if ( data != null )
+                data.copyTo( out );
+
+            out.close();
+            return;
+
+        }
+
+        List<long[]> sections = new ArrayList();
+
+        sections.add( new long[] { SECTION_KEYS, keys_offset, out.getCount() - keys_offset } );
+
+        if ( values != null )
+            sections.add( append( SECTION_VALUES, values ) );
+
+        if ( data != null )
+            sections.add( append( SECTION_DATA, data ) );
+
+        DataOutputStream dout = new DataOutputStream( out );
+
+        if ( layout == LAYOUT_SORTED && model != null && model.isUseful() ) {
+
+            long model_offset = out.getCount();
+            model.write( dout );
+            sections.add( new long[] { SECTION_MODEL, model_offset, out.getCount() - model_offset } );
+
+        }
+
+        if ( layout == LAYOUT_BTREE ) {
+
+            long tree_offset = out.getCount();
+            writeTree( dout );
+            sections.add( new long[] { SECTION_TREE, tree_offset, out.getCount() - tree_offset } );
+
+        }
+
+        if ( layout == LAYOUT_BLOCKED ) {
+
+            index.close();
+
+            long index_offset = out.getCount();
+
+            dout.writeInt( block_size );
+            dout.writeLong( (count + block_size - 1) / block_size );
+            index_bytes.writeTo( dout );
+            dout.flush();
+
+            sections.add( new long[] { SECTION_BLOCK_INDEX, index_offset, out.getCount() - index_offset } );
+
+        }
+
+        if ( layout == LAYOUT_PACKED ) {
+
+            index.close();
+
+            long index_offset = out.getCount();
+
+            dout.writeInt( packed_keys.length );
+            dout.writeLong( (count + packed_keys.length - 1) / packed_keys.length );
+            index_bytes.writeTo( dout );
+            dout.flush();
+
+            sections.add( new long[] { SECTION_PACKED_INDEX, index_offset, out.getCount() - index_offset } );
+
+        }
+
+        if ( layout == LAYOUT_ELIAS_FANO ) {
+
+            long elias_fano_offset = out.getCount();
+
+            dout.writeLong( min_sort_key );
+            dout.writeLong( max_sort_key );
+            dout.writeInt( low_bits );
+            dout.writeInt( EliasFano.DEFAULT_SAMPLE_SHIFT );
+            dout.writeLong( count + buckets );
+
+            for( long sample : one_samples ) {
+                dout.writeLong( sample );
+            }
+
+            for( long sample : zero_samples ) {
+                dout.writeLong( sample );
+            }
+
+            dout.flush();
+
+            upper.copyTo( out );
+
+            sections.add( new long[] { SECTION_ELIAS_FANO, elias_fano_offset, out.getCount() - elias_fano_offset } );
+
+        }
+
+        if ( bloom != null ) {
+
+            long bloom_offset = bloom.write( dout, out.getCount() );
+            sections.add( new long[] { SECTION_BLOOM, bloom_offset, out.getCount() - bloom_offset } );
+
+        }
+
+        writeDirectory( dout, sections );
+
+        out.close();
+
+    }
+
+    private int keysPerNode() {
+        return Math.max( 2, node_size / key_width );
+    }
+
+    /**
+     * Pad the output so that the next byte starts a new node.  The mapping is
+     * page aligned so this aligns nodes in memory too.
+     */
+    private void pad() throws IOException {
+
+        int remainder = (int)(out.getCount() % node_size);
+
+        if ( remainder != 0 )
+            out.write( new byte[ node_size - remainder ] );
+
+    }
+
+    /**
+     * Write the internal levels of the tree, root first.  Each level holds the
+     * first key of every node in the level below it so a lookup reads one
+     * node per level and then a single node of the key array.
+     *
+     * The section starts with the number of keys per node and the number of
+     * levels followed by (offset, count) for each level.  Every level starts
+     * on a node boundary.
+     */
+    private void writeTree( DataOutputStream dout ) throws IOException {
+
+        int keys_per_node = keysPerNode();
+
+        List<Spool> levels = new ArrayList();
+        List<Long> counts = new ArrayList();
+
+        long level_count = (count + keys_per_node - 1) / keys_per_node;
+
+        //a level which fits in a single node is the root.
+        if ( count > keys_per_node ) {
+
+            levels.add( tree_level );
+            counts.add( level_count );
+
+            while ( level_count > keys_per_node ) {
+
+                Spool next = new Spool();
+                DataInputStream in = new DataInputStream( new BufferedInputStream( levels.get( levels.size() - 1 ).read() ) );
+
+                byte[] key = new byte[ key_width ];
+
+                try {
+
+                    for( long i = 0; i < level_count; ++i ) {
+
+                        in.readFully( key );
+
+                        if ( i % keys_per_node == 0 )
+                            next.write( key );
+
+                    }
+
+                } finally {
+                    in.close();
+                }
+
+                level_count = (level_count + keys_per_node - 1) / keys_per_node;
+
+                levels.add( next );
+                counts.add( level_count );
+
+            }
+
+        }
+
+        Collections.reverse( levels );
+        Collections.reverse( counts );
+
+        dout.writeInt( keys_per_node );
+        dout.writeInt( levels.size() );
+
+        long pos = out.getCount() + levels.size() * 16L;
+
+        for( int i = 0; i < levels.size(); ++i ) {
+
+            pos += (node_size - pos % node_size) % node_size;
+
+            dout.writeLong( pos );
+            dout.writeLong( counts.get( i ) );
+
+            pos += counts.get( i ) * key_width;
+
+        }
+
+        for( Spool level : levels ) {
+
+            pad();
+            level.copyTo( dout );
+
+        }
+
+        dout.flush();
+
+        if ( levels.size() == 0 )
+            tree_level.delete();
+
+    }
+
+    /**
+     * Number of records added so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Rewrite the entry count in the header of a file which was written
+     * without knowing its size up front.
+     */
+    static void writeSize( File file, long size ) throws IOException {
+
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+        try {
+            raf.seek( 8 );
+            raf.writeLong( size );
+        } finally {
+            raf.close();
+        }
+
+    }
+
+    private long[] append( int id, Spool spool ) throws IOException {
+
+        long offset = out.getCount();
+        spool.copyTo( out );
+
+        return new long[] { id, offset, out.getCount() - offset };
+
+    }
+
+    /**
+     * The directory is a count followed by (id, offset, length) for each
+     * section.  The last 8 bytes of the file point to it.
+     */
+    private void writeDirectory( DataOutputStream dout, List<long[]> sections ) throws IOException {
+        writeDirectory( dout, out.getCount(), sections );
+    }
+
+    static void writeDirectory( DataOutputStream dout, long directory_offset, List<long[]> sections ) throws IOException {
+
+        dout.writeInt( sections.size() );
+
+        for( long[] section : sections ) {
+            dout.writeInt( (int)section[0] );
+            dout.writeLong( section[1] );
+            dout.writeLong( section[2] );
+        }
+
+        dout.writeLong( directory_offset );
+        dout.flush();
+
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+
+        private long count = 0;
+
+        public CountingOutputStream( OutputStream out ) {
+            super( out );
+        }
+
+        public void write( int b ) throws IOException {
+            out.write( b );
+            ++count;
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+    }
+
+    /**
+     * Appends bit fields least significant bit first and writes them out as
+     * longs.
+     */
+    static class BitOutput {
+
+        private DataOutputStream out;
+
+        private long word = 0;
+
+        private int used = 0;
+
+        public BitOutput( DataOutputStream out ) {
+            this.out = out;
+        }
+
+        /**
+         * Append the low bits of v (at most 63).
+         */
+        public void write( long v, int bits ) throws IOException {
+
+            if ( bits == 0 )
+                return;
+
+            word |= v << used;
+
+            if ( used + bits < 64 ) {
+                used += bits;
+                return;
+            }
+
+            out.writeLong( word );
+
+            int remaining = used + bits - 64;
+
+            word = remaining > 0 ? v >>> ( bits - remaining ) : 0;
+            used = remaining;
+
+        }
+
+        public void writeZeros( long count ) throws IOException {
+
+            while ( count > 0 ) {
+
+                int bits = (int)Math.min( count, 63 );
+
+                write( 0, bits );
+                count -= bits;
+
+            }
+
+        }
+
+        /**
+         * Write out the last partial word.
+         */
+        public void flush() throws IOException {
+
+            if ( used > 0 )
+                out.writeLong( word );
+
+            word = 0;
+            used = 0;
+
+            out.flush();
+
+        }
+
+    }
+
+    /**
+     * A section buffered in a temp file until it can be appended to the
+     * output.
+     */
+    static class Spool extends FilterOutputStream {
+
+        private File file = null;
+
+        public Spool() throws IOException {
+
+            super( null );
+
+            file = File.createTempFile( "flatmap", ".spool" );
+            file.deleteOnExit();
+
+            out = new BufferedOutputStream( new FileOutputStream( file ), 65536 );
+
+        }
+
+        public void write( byte[] b, int off, int len ) throws IOException {
+            out.write( b, off, len );
+        }
+
+        /**
+         * Read back what has been written so far.  No more writes are
+         * possible.
+         */
+        public InputStream read() throws IOException {
+
+            out.close();
+            return new FileInputStream( file );
+
+        }
+
+        public void delete() throws IOException {
+
+            out.close();
+            file.delete();
+
+        }
+
+        public void copyTo( OutputStream target ) throws IOException {
+
+            out.close();
+
+            InputStream in = new FileInputStream( file );
+
+            try {
+
+                byte[] buff = new byte[ 65536 ];
+                int count;
+
+                while ( (count = in.read( buff )) > 0 ) {
+                    target.write( buff, 0, count );
+                }
+
+            } finally {
+                in.close();
+                file.delete();
+            }
+
+        }
+
+    }
+
+}
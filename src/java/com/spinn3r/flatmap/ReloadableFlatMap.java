@@ -0,0 +1,413 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A FlatMap at a fixed path which can be replaced by a new generation of the
+ * file while readers keep going.
+ *
+ * The new file is written elsewhere and renamed over the path (all the
+ * writers in this package do this).  reload() then opens and validates it
+ * and swaps it in with a single atomic reference update, so every lookup
+ * after the swap sees the new generation and none sees a mix.  The old
+ * generation can't be unmapped straight away since lookups which started
+ * before the swap may still be reading it, so each generation carries a
+ * reference count: every lookup holds a reference for its duration and the
+ * handle holds one for the current generation.  Whoever drops the last
+ * reference to a retired generation unmaps it.
+ *
+ * Single lookups can go through get and friends, which take and drop a
+ * reference around each call.  That's an atomic increment and decrement on
+ * a counter shared by every thread, so a thread doing many lookups in a row
+ * should hold a Lease for the batch instead:
+ *
+ * <pre>
+ * try ( ReloadableFlatMap.Lease&lt;Long,Long&gt; lease = handle.acquire() ) {
+ *     FlatMap&lt;Long,Long&gt; map = lease.get();
+ *     ...
+ * }
+ * </pre>
+ *
+ * Nothing read through the lease (in particular a buffer from
+ * getValueBuffer or a Cursor) may be used after it's closed.
+ *
+ * startWatching polls the path and reloads in a background thread when a
+ * new file is renamed into place.  A file which fails to open leaves the
+ * current generation in place; see getLastError.
+ */
+public class ReloadableFlatMap<K,V> implements Closeable {
+
+    private File file;
+
+    private OpenOptions options;
+
+    private AtomicReference<Generation<K,V>> current = new AtomicReference();
+
+    private long generations = 0;
+
+    private volatile IOException last_error = null;
+
+    /**
+     * The file which last failed to open, so the watcher doesn't keep
+     * retrying it.
+     */
+    private Object failed_stamp = null;
+
+    private Watcher watcher = null;
+
+    public ReloadableFlatMap( File file ) throws IOException {
+        this( file, new OpenOptions() );
+    }
+
+    public ReloadableFlatMap( File file, OpenOptions options ) throws IOException {
+
+        this.file     = file;
+        this.options  = options;
+
+        reload();
+
+    }
+
+    /**
+     * Take a reference to the current generation.  It stays mapped until the
+     * lease is closed even if a newer generation is swapped in meanwhile.
+     */
+    public Lease<K,V> acquire() {
+        return new Lease( retain() );
+    }
+
+    /**
+     * Take a reference without the Lease wrapper so that single lookups
+     * don't allocate.
+     */
+    private Generation<K,V> retain() {
+
+        while ( true ) {
+
+            Generation<K,V> generation = current.get();
+
+            if ( generation == null )
+                throw new IllegalStateException( "Closed: " + file.getPath() );
+
+            int refs = generation.refs.get();
+
+            //zero means it was retired and unmapped after we read it, in
+            //which case current has already moved on.
+            if ( refs > 0 && generation.refs.compareAndSet( refs, refs + 1 ) )
+                return generation;
+
+        }
+
+    }
+
+    public V get( Object key ) {
+
+        Generation<K,V> generation = retain();
+
+        try {
+            return generation.map.get( key );
+        } finally {
+            release( generation );
+        }
+
+    }
+
+    public boolean containsKey( Object key ) {
+
+        Generation<K,V> generation = retain();
+
+        try {
+            return generation.map.containsKey( key );
+        } finally {
+            release( generation );
+        }
+
+    }
+
+    /**
+     * See FlatMap.getLong.
+     */
+    public long getLong( long key, long defaultValue ) {
+
+        Generation<K,V> generation = retain();
+
+        try {
+            return generation.map.getLong( key, defaultValue );
+        } finally {
+            release( generation );
+        }
+
+    }
+
+    /**
+     * See FlatMap.getInt.
+     */
+    public int getInt( long key, int defaultValue ) {
+
+        Generation<K,V> generation = retain();
+
+        try {
+            return generation.map.getInt( key, defaultValue );
+        } finally {
+            release( generation );
+        }
+
+    }
+
+    /**
+     * Open the file at the path and make it the current generation.  The
+     * previous generation is unmapped once its last lease is closed.  If the
+     * file can't be opened the current generation is kept and the error is
+     * thrown.
+     */
+    public synchronized void reload() throws IOException {
+
+        if ( generations > 0 && current.get() == null )
+            throw new IllegalStateException( "Closed: " + file.getPath() );
+
+        Object stamp = stamp( file );
+
+        Generation<K,V> generation;
+
+        try {
+            generation = new Generation( new FlatMap( file, options ), generations + 1, stamp );
+        } catch ( IOException e ) {
+            failed_stamp = stamp;
+            last_error = e;
+            throw e;
+        } catch ( RuntimeException e ) {
+            //e.g. an unknown type in a damaged header.
+            failed_stamp = stamp;
+            last_error = new IOException( "Unable to open " + file.getPath(), e );
+            throw last_error;
+        }
+
+        ++generations;
+        failed_stamp = null;
+        last_error = null;
+
+        retire( current.getAndSet( generation ) );
+
+    }
+
+    /**
+     * Reload only if a different file has been put at the path since the
+     * current generation was opened.  Returns true if it reloaded.
+     */
+    public synchronized boolean reloadIfChanged() throws IOException {
+
+        Generation<K,V> generation = current.get();
+
+        if ( generation == null )
+            return false;
+
+        Object stamp = stamp( file );
+
+        if ( stamp.equals( generation.stamp ) || stamp.equals( failed_stamp ) )
+            return false;
+
+        reload();
+
+        return true;
+
+    }
+
+    /**
+     * Check the path every interval_millis in a background thread and reload
+     * when it changes.
+     */
+    public synchronized void startWatching( long interval_millis ) {
+
+        if ( watcher != null )
+            return;
+
+        watcher = new Watcher( interval_millis );
+        watcher.start();
+
+    }
+
+    /**
+     * Number of generations opened so far.  The first one is 1.
+     */
+    public long getGeneration() {
+
+        Generation<K,V> generation = current.get();
+
+        return generation == null ? 0 : generation.number;
+
+    }
+
+    /**
+     * The error from the last reload if it failed, otherwise null.
+     */
+    public IOException getLastError() {
+        return last_error;
+    }
+
+    /**
+     * Stop watching and drop the current generation.  It's unmapped once
+     * any leases still open on it are closed.
+     */
+    public void close() {
+
+        Watcher stopped;
+
+        synchronized( this ) {
+            stopped = watcher;
+            watcher = null;
+        }
+
+        if ( stopped != null ) {
+
+            stopped.interrupt();
+
+            try {
+                stopped.join();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+
+        }
+
+        synchronized( this ) {
+            retire( current.getAndSet( null ) );
+        }
+
+    }
+
+    private void retire( Generation<K,V> generation ) {
+
+        if ( generation != null )
+            release( generation );
+
+    }
+
+    private static void release( Generation generation ) {
+
+        if ( generation.refs.decrementAndGet() == 0 )
+            generation.map.close();
+
+    }
+
+    /**
+     * What identifies the file at the path: a rename puts a new inode there
+     * and a write in place changes the modification time or the length.
+     */
+    private static Object stamp( File file ) throws IOException {
+
+        BasicFileAttributes attrs = Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+
+        return Arrays.asList( attrs.fileKey(), attrs.lastModifiedTime(), attrs.size() );
+
+    }
+
+    static class Generation<K,V> {
+
+        FlatMap<K,V> map;
+
+        long number;
+
+        Object stamp;
+
+        /**
+         * One for the handle while this is the current generation plus one
+         * per open lease.
+         */
+        AtomicInteger refs = new AtomicInteger( 1 );
+
+        Generation( FlatMap<K,V> map, long number, Object stamp ) {
+            this.map     = map;
+            this.number  = number;
+            this.stamp   = stamp;
+        }
+
+    }
+
+    /**
+     * A reference to one generation.  Not thread safe; each thread should
+     * take its own.
+     */
+    public static class Lease<K,V> implements Closeable {
+
+        private Generation<K,V> generation;
+
+        private boolean closed = false;
+
+        Lease( Generation<K,V> generation ) {
+            this.generation = generation;
+        }
+
+        public FlatMap<K,V> get() {
+
+            if ( closed )
+                throw new IllegalStateException( "Lease closed" );
+
+            return generation.map;
+
+        }
+
+        /**
+         * Which generation this lease holds.
+         */
+        public long getGeneration() {
+            return generation.number;
+        }
+
+        public void close() {
+
+            if ( closed )
+                return;
+
+            closed = true;
+
+            release( generation );
+
+        }
+
+    }
+
+    /**
+     * Polls the path for a new file.
+     */
+    class Watcher extends Thread {
+
+        private long interval_millis;
+
+        Watcher( long interval_millis ) {
+
+            super( "flatmap-reload: " + file.getName() );
+            setDaemon( true );
+
+            this.interval_millis = interval_millis;
+
+        }
+
+        public void run() {
+
+            while ( ! isInterrupted() ) {
+
+                try {
+                    Thread.sleep( interval_millis );
+                } catch ( InterruptedException e ) {
+                    return;
+                }
+
+                try {
+                    reloadIfChanged();
+                } catch ( IOException e ) {
+                    //kept in last_error until a new file shows up.
+                } catch ( IllegalStateException e ) {
+                    return;
+                }
+
+            }
+
+        }
+
+    }
+
+}
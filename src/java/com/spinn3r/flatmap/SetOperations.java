@@ -0,0 +1,471 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Set algebra over sorted files.  Both inputs are in the same key order so
+ * every operation is a single linear merge of the two mapped files.  Where
+ * one side can skip ahead (intersections, joins) it gallops: it steps 1, 2,
+ * 4... positions and then binary searches, so a small set intersected with
+ * a huge one costs log of the gaps rather than a scan of the huge one.
+ *
+ * Results are written straight to a new file as they're found; nothing is
+ * collected on the heap.  Keys and values are copied in their encoded form
+ * without being decoded.
+ *
+ * For example, URLs seen today but not yesterday:
+ *
+ * <pre>
+ * SetOperations.difference( today, yesterday, new File( "new.fst" ) );
+ * </pre>
+ */
+public class SetOperations {
+
+    /**
+     * Receives each key present in both maps of a join along with the two
+     * values.
+     */
+    public interface JoinVisitor<K,A,B> {
+
+        void visit( K key, A left, B right );
+
+    }
+
+    /**
+     * Write the values present in both a and b to a new FlatSet.  Returns the
+     * number of values written.
+     */
+    public static long intersect( FlatSet a, FlatSet b, File file ) throws IOException {
+
+        requireSameKeys( a, b );
+
+        Output output = new Output( a, file, false );
+
+        try {
+
+            MergeCursor x = new MergeCursor( a );
+            MergeCursor y = new MergeCursor( b );
+
+            while ( x.valid() && y.valid() ) {
+
+                int cmp = x.compareTo( y );
+
+                if ( cmp < 0 ) {
+                    x.skipTo( y );
+                } else if ( cmp > 0 ) {
+                    y.skipTo( x );
+                } else {
+                    output.add( x );
+                    x.next();
+                    y.next();
+                }
+
+            }
+
+            return output.close();
+
+        } finally {
+            //does nothing once it's closed.
+            output.abort();
+        }
+
+    }
+
+    /**
+     * Write the values present in a or b (or both) to a new FlatSet.
+     */
+    public static long union( FlatSet a, FlatSet b, File file ) throws IOException {
+
+        requireSameKeys( a, b );
+
+        Output output = new Output( a, file, false );
+
+        try {
+
+            MergeCursor x = new MergeCursor( a );
+            MergeCursor y = new MergeCursor( b );
+
+            while ( x.valid() || y.valid() ) {
+
+                int cmp;
+
+                if ( ! y.valid() )
+                    cmp = -1;
+                else if ( ! x.valid() )
+                    cmp = 1;
+                else
+                    cmp = x.compareTo( y );
+
+                if ( cmp <= 0 ) {
+
+                    output.add( x );
+                    x.next();
+
+                    if ( cmp == 0 )
+                        y.next();
+
+                } else {
+                    output.add( y );
+                    y.next();
+                }
+
+            }
+
+            return output.close();
+
+        } finally {
+            //does nothing once it's closed.
+            output.abort();
+        }
+
+    }
+
+    /**
+     * Write the values present in a but not in b to a new FlatSet.
+     */
+    public static long difference( FlatSet a, FlatSet b, File file ) throws IOException {
+
+        requireSameKeys( a, b );
+
+        Output output = new Output( a, file, false );
+
+        try {
+
+            MergeCursor x = new MergeCursor( a );
+            MergeCursor y = new MergeCursor( b );
+
+            while ( x.valid() ) {
+
+                int cmp = y.valid() ? x.compareTo( y ) : -1;
+
+                if ( cmp < 0 ) {
+                    output.add( x );
+                    x.next();
+                } else if ( cmp > 0 ) {
+                    y.skipTo( x );
+                } else {
+                    x.next();
+                    y.next();
+                }
+
+            }
+
+            return output.close();
+
+        } finally {
+            //does nothing once it's closed.
+            output.abort();
+        }
+
+    }
+
+    /**
+     * Number of values present in both a and b, without writing them
+     * anywhere.  The sizes of the union and difference follow from it.
+     */
+    public static long intersectionSize( BaseFlatCollection a, BaseFlatCollection b ) {
+
+        requireSameKeys( a, b );
+
+        MergeCursor x = new MergeCursor( a );
+        MergeCursor y = new MergeCursor( b );
+
+        long count = 0;
+
+        while ( x.valid() && y.valid() ) {
+
+            int cmp = x.compareTo( y );
+
+            if ( cmp < 0 ) {
+                x.skipTo( y );
+            } else if ( cmp > 0 ) {
+                y.skipTo( x );
+            } else {
+                ++count;
+                x.next();
+                y.next();
+            }
+
+        }
+
+        return count;
+
+    }
+
+    /**
+     * Write the entries of map whose keys are in keys to a new FlatMap.
+     */
+    public static long join( FlatMap map, FlatSet keys, File file ) throws IOException {
+
+        requireSameKeys( map, keys );
+
+        Output output = new Output( map, file, true );
+
+        try {
+
+            MergeCursor x = new MergeCursor( map );
+            MergeCursor y = new MergeCursor( keys );
+
+            while ( x.valid() && y.valid() ) {
+
+                int cmp = x.compareTo( y );
+
+                if ( cmp < 0 ) {
+                    x.skipTo( y );
+                } else if ( cmp > 0 ) {
+                    y.skipTo( x );
+                } else {
+                    output.add( x );
+                    x.next();
+                    y.next();
+                }
+
+            }
+
+            return output.close();
+
+        } finally {
+            //does nothing once it's closed.
+            output.abort();
+        }
+
+    }
+
+    /**
+     * Inner join of two maps on their keys.  The visitor is called in key
+     * order for every key present in both.  Returns the number of keys
+     * visited.
+     */
+    public static <K,A,B> long join( FlatMap<K,A> left, FlatMap<K,B> right, JoinVisitor<K,A,B> visitor ) {
+
+        requireSameKeys( left, right );
+
+        MergeCursor x = new MergeCursor( left );
+        MergeCursor y = new MergeCursor( right );
+
+        long count = 0;
+
+        while ( x.valid() && y.valid() ) {
+
+            int cmp = x.compareTo( y );
+
+            if ( cmp < 0 ) {
+                x.skipTo( y );
+            } else if ( cmp > 0 ) {
+                y.skipTo( x );
+            } else {
+
+                visitor.visit( (K)left.getKeyObjectFromPosition( x.pos ),
+                               left.getValueFromPosition( x.pos ),
+                               right.getValueFromPosition( y.pos ) );
+
+                ++count;
+                x.next();
+                y.next();
+
+            }
+
+        }
+
+        return count;
+
+    }
+
+    private static void requireSameKeys( BaseFlatCollection a, BaseFlatCollection b ) {
+
+        if ( a.key_type != b.key_type )
+            throw new RuntimeException( "Key type mismatch: " + a.key_type + " vs " + b.key_type );
+
+    }
+
+    /**
+     * Writes the result of an operation.  The number of records isn't known
+     * up front so the header is fixed up once the writer is closed, and then
+     * the temp file is renamed into place.
+     */
+    static class Output {
+
+        private File file;
+
+        private File temp;
+
+        private RecordWriter writer;
+
+        private boolean values;
+
+        private boolean closed = false;
+
+        Output( BaseFlatCollection source, File file, boolean values ) throws IOException {
+
+            this.file    = file;
+            this.values  = values;
+
+            temp = AtomicFile.temp( file );
+
+            writer = new RecordWriter( new FileOutputStream( temp ),
+                                       values ? FlatMap.MAGIC : FlatSet.MAGIC,
+                                       FlatMapWriter.layoutOf( source.key_type_handler ),
+                                       -1,
+                                       source.key_type,
+                                       values ? source.value_type : 0,
+                                       //the data section can't grow.
+                                       source.region.length() );
+
+        }
+
+        void add( MergeCursor cursor ) throws IOException {
+            writer.add( cursor.key(), values ? cursor.value() : null );
+        }
+
+        long close() throws IOException {
+
+            try {
+
+                writer.close();
+
+                RecordWriter.writeSize( temp, writer.getCount() );
+
+                AtomicFile.commit( temp, file );
+
+            } finally {
+                closed = true;
+                temp.delete();
+            }
+
+            return writer.getCount();
+
+        }
+
+        /**
+         * Throw away a result which failed part way through.
+         */
+        void abort() {
+
+            if ( closed )
+                return;
+
+            closed = true;
+
+            writer.abort();
+            temp.delete();
+
+        }
+
+    }
+
+}
+
+/**
+ * Walks the keys of a file in order for SetOperations.  Fixed width keys
+ * are compared as sort keys read straight from the region and skipping
+ * ahead gallops.  Variable width keys are decoded sequentially from their
+ * blocks and skipping ahead steps through them.
+ */
+class MergeCursor {
+
+    BaseFlatCollection collection;
+
+    long pos = 0;
+
+    private long size;
+
+    /**
+     * The current sort key for fixed width keys.
+     */
+    private long sort_key;
+
+    /**
+     * The current key for LAYOUT_BLOCKED.
+     */
+    private BlockIndex.Scanner scanner = null;
+
+    MergeCursor( BaseFlatCollection collection ) {
+
+        collection.checkOpen();
+
+        this.collection = collection;
+
+        size = collection.size;
+
+        load();
+
+    }
+
+    boolean valid() {
+        return pos < size;
+    }
+
+    void next() {
+        ++pos;
+        load();
+    }
+
+    int compareTo( MergeCursor other ) {
+
+        if ( scanner == null )
+            return Long.compare( sort_key, other.sort_key );
+
+        return ByteArrayComparator.compare( scanner.key, 0, scanner.length,
+                                            other.scanner.key, 0, other.scanner.length );
+
+    }
+
+    /**
+     * Move forward to the first key which isn't less than other's key.
+     */
+    void skipTo( MergeCursor other ) {
+
+        if ( scanner == null ) {
+            pos = collection.gallop( other.sort_key, pos );
+            load();
+            return;
+        }
+
+        while ( valid() && compareTo( other ) < 0 ) {
+            next();
+        }
+
+    }
+
+    /**
+     * The current key as encoded in the file.
+     */
+    byte[] key() {
+
+        if ( scanner == null )
+            return collection.getKeyFromPosition( pos );
+
+        byte[] key = new byte[ scanner.length ];
+        System.arraycopy( scanner.key, 0, key, 0, scanner.length );
+
+        return key;
+
+    }
+
+    byte[] value() {
+        return collection.getEncodedValueFromPosition( pos );
+    }
+
+    private void load() {
+
+        if ( pos >= size )
+            return;
+
+        BlockIndex block_index = collection.block_index;
+
+        if ( block_index == null ) {
+            sort_key = collection.getSortKeyFromPosition( pos );
+            return;
+        }
+
+        if ( pos % block_index.getBlockSize() == 0 ) {
+            scanner = block_index.newScanner( pos );
+            scanner.next( true );
+        } else {
+            scanner.next( false );
+        }
+
+    }
+
+}
@@ -0,0 +1,425 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * A map split across a directory of FlatMap files (shards) by
+ * ShardedFlatMapWriter.  Every key belongs to exactly one shard, so a lookup
+ * routes the key and searches that one file.
+ *
+ * Keys are either partitioned by hash (PARTITION_HASH), which spreads them
+ * evenly whatever their distribution, or by range (PARTITION_RANGE), which
+ * keeps each shard a contiguous run of the key order with its first key
+ * recorded in the manifest.  The manifest also holds the types and the size
+ * of each shard as written.
+ *
+ * Every rewrite of the directory is a new generation: its shards are
+ * written under new names carrying the generation number and nothing
+ * changes for readers until the manifest naming that generation is renamed
+ * into place.  A shard which doesn't match the manifest is refused.
+ * Readers already open keep the generation they opened; open the
+ * directory again to see a rewrite.
+ *
+ * Each shard is a ReloadableFlatMap, so a single shard can be rebuilt and
+ * swapped in without touching the others:
+ *
+ * <pre>
+ * new FlatMapWriter().write( entries, sharded.getShardFile( 3 ) );
+ * sharded.reload( 3 );
+ * </pre>
+ *
+ * The rebuilt shard must only hold keys for which shardOf returns its
+ * number; keys anywhere else are never looked up.
+ */
+public class ShardedFlatMap<K,V> implements Closeable {
+
+    public static final byte[] MAGIC = "FSH1".getBytes();
+
+    public static final int PARTITION_HASH = 1;
+
+    public static final int PARTITION_RANGE = 2;
+
+    static final String MANIFEST = "manifest";
+
+    private File directory;
+
+    private long generation;
+
+    private int partitioning;
+
+    private int key_type;
+
+    private int value_type;
+
+    private TypeHandler key_type_handler = null;
+
+    private int key_width;
+
+    private ReloadableFlatMap<K,V>[] shards;
+
+    /**
+     * Sort keys of the first key of every shard but the first, for fixed
+     * width keys partitioned by range.
+     */
+    private long[] sort_key_bounds = null;
+
+    /**
+     * The same for variable width keys, encoded.
+     */
+    private byte[][] key_bounds = null;
+
+    public ShardedFlatMap( File directory ) throws IOException {
+        this( directory, new OpenOptions() );
+    }
+
+    public ShardedFlatMap( File directory, OpenOptions options ) throws IOException {
+
+        this.directory = directory;
+
+        File manifest = new File( directory, MANIFEST );
+
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( manifest ) ) );
+
+        byte[][] bounds;
+
+        try {
+
+            byte[] magic = new byte[ MAGIC.length ];
+            in.readFully( magic );
+
+            if ( ! Arrays.equals( magic, MAGIC ) )
+                throw new IOException( "Invalid magic number in: " + manifest.getPath() );
+
+            generation    = in.readLong();
+            partitioning  = in.readInt();
+            key_type      = in.readInt();
+            value_type    = in.readInt();
+
+            int count = in.readInt();
+
+            if ( count < 0 || ( partitioning != PARTITION_HASH && partitioning != PARTITION_RANGE ) )
+                throw new IOException( "Invalid manifest: " + manifest.getPath() );
+
+            shards = new ReloadableFlatMap[ count ];
+
+            //sizes as written; the shards themselves are authoritative.
+            for( int i = 0; i < count; ++i ) {
+                in.readLong();
+            }
+
+            bounds = new byte[ partitioning == PARTITION_RANGE ? Math.max( count - 1, 0 ) : 0 ][];
+
+            for( int i = 0; i < bounds.length; ++i ) {
+                bounds[i] = new byte[ in.readInt() ];
+                in.readFully( bounds[i] );
+            }
+
+        } catch ( EOFException e ) {
+            throw new IOException( "Truncated manifest: " + manifest.getPath(), e );
+        } finally {
+            in.close();
+        }
+
+        //an empty map has no shards and no types.
+        if ( shards.length == 0 )
+            return;
+
+        key_type_handler = lookupTypeHandler( key_type );
+        key_width        = key_type_handler.sizeOf();
+
+        if ( partitioning == PARTITION_RANGE ) {
+
+            if ( key_width == VARIABLE ) {
+
+                key_bounds = bounds;
+
+            } else {
+
+                sort_key_bounds = new long[ bounds.length ];
+
+                for( int i = 0; i < bounds.length; ++i ) {
+                    sort_key_bounds[i] = ByteArrayComparator.sortKey( TypeManager.toRawLong( bounds[i] ), key_width );
+                }
+
+            }
+
+        }
+
+        boolean opened = false;
+
+        try {
+
+            for( int i = 0; i < shards.length; ++i ) {
+
+                File file = shardFile( directory, generation, i );
+
+                shards[i] = new ReloadableFlatMap( file, options );
+
+                try ( ReloadableFlatMap.Lease<K,V> lease = shards[i].acquire() ) {
+
+                    FlatMap<K,V> shard = lease.get();
+
+                    if ( shard.key_type != key_type || shard.value_type != value_type )
+                        throw new IOException( "Shard doesn't match the manifest: " + file.getPath() );
+
+                }
+
+            }
+
+            opened = true;
+
+        } finally {
+
+            //don't leave the shards opened so far mapped.
+            if ( ! opened )
+                close();
+
+        }
+
+    }
+
+    /**
+     * The shard the given key belongs to.
+     */
+    public int shardOf( Object key ) {
+
+        if ( key_width == VARIABLE ) {
+
+            byte[] bytes = key_type_handler.toByteArray( key );
+
+            if ( partitioning == PARTITION_HASH )
+                return hashShard( BloomFilter.hash( bytes ), shards.length );
+
+            return rangeShard( bytes );
+
+        }
+
+        return shardOfRaw( key_type_handler.toRawLong( key ) );
+
+    }
+
+    private int shardOfRaw( long raw ) {
+
+        if ( partitioning == PARTITION_HASH )
+            return hashShard( BloomFilter.hash( raw ), shards.length );
+
+        long sort_key = ByteArrayComparator.sortKey( raw, key_width );
+
+        //number of shards starting at or before the key.
+        int low = 0;
+        int high = sort_key_bounds.length;
+
+        while ( low < high ) {
+
+            int mid = ( low + high ) >>> 1;
+
+            if ( sort_key_bounds[mid] <= sort_key )
+                low = mid + 1;
+            else
+                high = mid;
+
+        }
+
+        return low;
+
+    }
+
+    private int rangeShard( byte[] key ) {
+
+        int low = 0;
+        int high = key_bounds.length;
+
+        while ( low < high ) {
+
+            int mid = ( low + high ) >>> 1;
+
+            if ( ByteArrayComparator.compare( key_bounds[mid], key ) <= 0 )
+                low = mid + 1;
+            else
+                high = mid;
+
+        }
+
+        return low;
+
+    }
+
+    /**
+     * Map a hash onto [0, shards) using its top bits, so the low bits stay
+     * independent for the Bloom filters within a shard.
+     */
+    static int hashShard( long hash, int shards ) {
+        return (int)( ( ( hash >>> 32 ) * shards ) >>> 32 );
+    }
+
+    /**
+     * The hash a key is partitioned by.
+     */
+    static long hashOf( TypeHandler key_type_handler, Object key ) {
+
+        if ( key_type_handler.sizeOf() == VARIABLE )
+            return BloomFilter.hash( key_type_handler.toByteArray( key ) );
+
+        return BloomFilter.hash( key_type_handler.toRawLong( key ) );
+
+    }
+
+    public V get( Object key ) {
+
+        if ( shards.length == 0 )
+            return null;
+
+        return shards[ shardOf( key ) ].get( key );
+
+    }
+
+    public boolean containsKey( Object key ) {
+
+        if ( shards.length == 0 )
+            return false;
+
+        return shards[ shardOf( key ) ].containsKey( key );
+
+    }
+
+    /**
+     * Lookup for a ShardedFlatMap&lt;Long,Long&gt; without boxing.
+     */
+    public long getLong( long key, long defaultValue ) {
+
+        if ( shards.length == 0 )
+            return defaultValue;
+
+        requireKeyType( TYPE_LONG );
+
+        return shards[ shardOfRaw( key ) ].getLong( key, defaultValue );
+
+    }
+
+    /**
+     * Lookup for a ShardedFlatMap&lt;Long,Integer&gt; without boxing.
+     */
+    public int getInt( long key, int defaultValue ) {
+
+        if ( shards.length == 0 )
+            return defaultValue;
+
+        requireKeyType( TYPE_LONG );
+
+        return shards[ shardOfRaw( key ) ].getInt( key, defaultValue );
+
+    }
+
+    private void requireKeyType( int type ) {
+
+        if ( key_type != type )
+            throw new RuntimeException( "Key type mismatch: " + key_type + " vs " + type );
+
+    }
+
+    /**
+     * Total number of entries across the shards as currently loaded.
+     */
+    public long size() {
+
+        long size = 0;
+
+        for( ReloadableFlatMap<K,V> shard : shards ) {
+
+            try ( ReloadableFlatMap.Lease<K,V> lease = shard.acquire() ) {
+                size += lease.get().size();
+            }
+
+        }
+
+        return size;
+
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * PARTITION_HASH or PARTITION_RANGE.
+     */
+    public int getPartitioning() {
+        return partitioning;
+    }
+
+    /**
+     * The given shard, e.g. to iterate over it under a Lease.
+     */
+    public ReloadableFlatMap<K,V> getShard( int shard ) {
+        return shards[ shard ];
+    }
+
+    /**
+     * The generation of the directory this was opened at.
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * The path of the given shard, for writing a new generation of it.
+     */
+    public File getShardFile( int shard ) {
+        return shardFile( directory, generation, shard );
+    }
+
+    /**
+     * Swap in a new generation of one shard.  See ReloadableFlatMap.reload.
+     */
+    public void reload( int shard ) throws IOException {
+        shards[ shard ].reload();
+    }
+
+    /**
+     * Reload each shard in the background when its file changes.
+     */
+    public void startWatching( long interval_millis ) {
+
+        for( ReloadableFlatMap<K,V> shard : shards ) {
+            shard.startWatching( interval_millis );
+        }
+
+    }
+
+    public void close() {
+
+        for( ReloadableFlatMap<K,V> shard : shards ) {
+
+            if ( shard != null )
+                shard.close();
+
+        }
+
+    }
+
+    static File shardFile( File directory, long generation, int shard ) {
+        return new File( directory, String.format( "%d-%05d.fmp", generation, shard ) );
+    }
+
+    /**
+     * The generation in the name of a shard file, or -1 if it isn't one.
+     */
+    static long generationOf( String name ) {
+
+        int dash = name.indexOf( '-' );
+
+        if ( dash <= 0 || ! name.endsWith( ".fmp" ) )
+            return -1;
+
+        try {
+            return Long.parseLong( name.substring( 0, dash ) );
+        } catch ( NumberFormatException e ) {
+            return -1;
+        }
+
+    }
+
+}
@@ -0,0 +1,327 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.spinn3r.flatmap.TypeManager.*;
+
+/**
+ * Writes a Map as a directory of FlatMap shards for ShardedFlatMap.
+ *
+ * The keys are split into shards by hash or by range (see
+ * setPartitioning), then the shards are written concurrently, each by the
+ * FlatMapWriter given to the constructor, so all the layout and index
+ * options apply to every shard.  Range partitioning splits the sorted keys
+ * into shards of equal size.  Hash partitioning needs no sort up front but
+ * every shard covers the whole key range.
+ *
+ * Each write is a new generation of the directory.  The shards are
+ * written under names carrying the generation number, beside the ones
+ * readers are using, and renaming the manifest into place switches to them
+ * all at once.  Earlier generations are deleted after that.  A crash before
+ * the manifest is committed leaves the previous generation intact, and its
+ * partly written successor is deleted by the next write.
+ */
+public class ShardedFlatMapWriter {
+
+    private FlatMapWriter writer;
+
+    private int partitioning = ShardedFlatMap.PARTITION_HASH;
+
+    private int shards = 16;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    public ShardedFlatMapWriter() {
+        this( new FlatMapWriter() );
+    }
+
+    /**
+     * Write each shard with the given writer (it's used from several
+     * threads at once, which is fine as long as it isn't reconfigured
+     * meanwhile).
+     */
+    public ShardedFlatMapWriter( FlatMapWriter writer ) {
+        this.writer = writer;
+    }
+
+    /**
+     * ShardedFlatMap.PARTITION_HASH (the default) or PARTITION_RANGE.
+     */
+    public void setPartitioning( int partitioning ) {
+
+        if ( partitioning != ShardedFlatMap.PARTITION_HASH && partitioning != ShardedFlatMap.PARTITION_RANGE )
+            throw new IllegalArgumentException( "Unknown partitioning: " + partitioning );
+
+        this.partitioning = partitioning;
+
+    }
+
+    /**
+     * Number of shards.  A range partitioned map with fewer entries than
+     * this gets one shard per entry.
+     */
+    public void setShards( int shards ) {
+
+        if ( shards < 1 )
+            throw new IllegalArgumentException( "At least one shard: " + shards );
+
+        this.shards = shards;
+
+    }
+
+    /**
+     * Number of shards to write at once.  Defaults to the number of cores.
+     */
+    public void setThreads( int threads ) {
+        this.threads = threads;
+    }
+
+    public void write( Map map, File directory ) throws IOException {
+
+        if ( ! directory.isDirectory() && ! directory.mkdirs() )
+            throw new IOException( "Unable to create " + directory.getPath() );
+
+        int key_type = -1;
+        int value_type = -1;
+
+        List<Map> parts = new ArrayList();
+        List<byte[]> bounds = new ArrayList();
+
+        if ( map.size() > 0 ) {
+
+            Map.Entry first = (Map.Entry)map.entrySet().iterator().next();
+
+            key_type   = typeOf( first.getKey() );
+            value_type = typeOf( first.getValue() );
+
+            TypeHandler key_type_handler = lookupTypeHandler( key_type );
+
+            if ( partitioning == ShardedFlatMap.PARTITION_HASH )
+                partitionByHash( map, key_type_handler, parts );
+            else
+                partitionByRange( map, key_type_handler, parts, bounds );
+
+        }
+
+        long generation = nextGeneration( directory );
+
+        writeShards( parts, directory, generation, key_type, value_type );
+
+        writeManifest( directory, generation, key_type, value_type, parts, bounds );
+
+        //nothing reads the other generations once the manifest is in place.
+        for( File file : listFiles( directory ) ) {
+
+            long other = ShardedFlatMap.generationOf( file.getName() );
+
+            if ( other >= 0 && other != generation )
+                file.delete();
+
+        }
+
+    }
+
+    /**
+     * One past any generation in the directory, including one left partly
+     * written by a crash, so that a new generation never shares a name with
+     * a file a reader might have open.
+     */
+    private static long nextGeneration( File directory ) throws IOException {
+
+        long max = 0;
+
+        for( File file : listFiles( directory ) ) {
+            max = Math.max( max, ShardedFlatMap.generationOf( file.getName() ) );
+        }
+
+        return max + 1;
+
+    }
+
+    private static File[] listFiles( File directory ) throws IOException {
+
+        File[] files = directory.listFiles();
+
+        if ( files == null )
+            throw new IOException( "Unable to list " + directory.getPath() );
+
+        return files;
+
+    }
+
+    private void partitionByHash( Map map, TypeHandler key_type_handler, List<Map> parts ) {
+
+        for( int i = 0; i < shards; ++i ) {
+            parts.add( new HashMap() );
+        }
+
+        for( Object o : map.entrySet() ) {
+
+            Map.Entry entry = (Map.Entry)o;
+
+            long hash = ShardedFlatMap.hashOf( key_type_handler, entry.getKey() );
+
+            parts.get( ShardedFlatMap.hashShard( hash, shards ) ).put( entry.getKey(), entry.getValue() );
+
+        }
+
+    }
+
+    private void partitionByRange( Map map, TypeHandler key_type_handler, List<Map> parts, List<byte[]> bounds ) {
+
+        List keys = new ArrayList( map.keySet() );
+
+        Collections.sort( keys, new ByteArrayComparator( key_type_handler ) );
+
+        int count = Math.min( shards, keys.size() );
+
+        for( int i = 0; i < count; ++i ) {
+
+            int start = (int)( (long)keys.size() * i / count );
+            int end   = (int)( (long)keys.size() * ( i + 1 ) / count );
+
+            //in order, so the shard writer's sort has nothing to do.
+            Map part = new LinkedHashMap();
+
+            for( Object key : keys.subList( start, end ) ) {
+                part.put( key, map.get( key ) );
+            }
+
+            parts.add( part );
+
+            if ( i > 0 )
+                bounds.add( key_type_handler.toByteArray( keys.get( start ) ) );
+
+        }
+
+    }
+
+    /**
+     * Write every shard, threads at a time.  A shard with no keys (possible
+     * with hash partitioning) is still written so that it can be reloaded
+     * later like the others.
+     */
+    private void writeShards( List<Map> parts, final File directory, long generation, final int key_type, final int value_type ) throws IOException {
+
+        ForkJoinPool pool = new ForkJoinPool( Math.max( 1, threads ) );
+
+        try {
+
+            List<Future> futures = new ArrayList();
+
+            for( int i = 0; i < parts.size(); ++i ) {
+
+                final Map part = parts.get( i );
+                final File file = ShardedFlatMap.shardFile( directory, generation, i );
+
+                futures.add( pool.submit( new Callable<Object>() {
+
+                    public Object call() throws IOException {
+
+                        if ( part.isEmpty() )
+                            writeEmpty( file, key_type, value_type );
+                        else
+                            writer.write( part, file );
+
+                        return null;
+
+                    }
+
+                } ) );
+
+            }
+
+            for( Future future : futures ) {
+
+                try {
+                    future.get();
+                } catch ( InterruptedException e ) {
+                    throw new InterruptedIOException();
+                } catch ( ExecutionException e ) {
+
+                    if ( e.getCause() instanceof IOException )
+                        throw (IOException)e.getCause();
+
+                    throw new RuntimeException( e.getCause() );
+
+                }
+
+            }
+
+        } finally {
+            pool.shutdown();
+        }
+
+    }
+
+    /**
+     * FlatMapWriter takes the types from the first entry, so an empty shard
+     * is written directly.
+     */
+    private static void writeEmpty( File file, int key_type, int value_type ) throws IOException {
+
+        File temp = AtomicFile.temp( file );
+
+        try {
+
+            RecordWriter writer = new RecordWriter( new FileOutputStream( temp ),
+                                                    FlatMap.MAGIC,
+                                                    FlatMapWriter.layoutOf( lookupTypeHandler( key_type ) ),
+                                                    0,
+                                                    key_type,
+                                                    value_type,
+                                                    0 );
+
+            writer.close();
+
+            AtomicFile.commit( temp, file );
+
+        } finally {
+            temp.delete();
+        }
+
+    }
+
+    private void writeManifest( File directory, long generation, int key_type, int value_type, List<Map> parts, List<byte[]> bounds ) throws IOException {
+
+        File file = new File( directory, ShardedFlatMap.MANIFEST );
+
+        File temp = AtomicFile.temp( file );
+
+        try {
+
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+
+            try {
+
+                out.write( ShardedFlatMap.MAGIC );
+                out.writeLong( generation );
+                out.writeInt( partitioning );
+                out.writeInt( key_type );
+                out.writeInt( value_type );
+                out.writeInt( parts.size() );
+
+                for( Map part : parts ) {
+                    out.writeLong( part.size() );
+                }
+
+                for( byte[] bound : bounds ) {
+                    out.writeInt( bound.length );
+                    out.write( bound );
+                }
+
+            } finally {
+                out.close();
+            }
+
+            AtomicFile.commit( temp, file );
+
+        } finally {
+            temp.delete();
+        }
+
+    }
+
+}
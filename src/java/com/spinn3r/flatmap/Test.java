@@ -4,6 +4,9 @@ import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 import static com.spinn3r.flatmap.TypeManager.*;
 
@@ -56,16 +59,3039 @@ public class Test {
         }
 
         for( int i = start; i < end; ++i ) {
-            if ( fset.contains( i ) )
+            if ( ! fset.contains( i ) )
                 throw new Exception( "missing value: " + i );
         }
 
     }
+
+    public static void test3() throws Exception {
+
+        //primitive lookups have to agree with the boxed ones across the
+        //whole signed range.
+        
+        Map<Long, Integer> map = new TreeMap();
+        Set<Long> set = new TreeSet();
+
+        for( long i = -1000; i < 1000; ++i ) {
+            map.put( i * 7919, (int)i );
+            set.add( i * 7919 );
+        }
+
+        map.put( Long.MAX_VALUE, 1 );
+        map.put( Long.MIN_VALUE, 2 );
+        set.add( Long.MAX_VALUE );
+        set.add( Long.MIN_VALUE );
+
+        File mfile = new File( "test3.fmp" );
+        new FlatMapWriter().write( map, mfile );
+        FlatMap<Long, Integer> fmap = new FlatMap( mfile );
+
+        File sfile = new File( "test3.fst" );
+        new FlatSetWriter().write( set, sfile );
+        FlatSet<Long> fset = new FlatSet( sfile );
+
+        for( long key : map.keySet() ) {
+
+            if ( fmap.getInt( key, -1 ) != map.get( key ) )
+                throw new Exception( "wrong value for: " + key );
+
+            if ( ! fmap.get( key ).equals( map.get( key ) ) )
+                throw new Exception( "wrong boxed value for: " + key );
+
+            if ( ! fset.containsLong( key ) )
+                throw new Exception( "missing value: " + key );
+
+        }
+
+        for( long i = -1000; i < 1000; ++i ) {
+
+            long key = i * 7919 + 1;
+            
+            if ( fmap.getInt( key, -1 ) != -1 || fmap.containsKey( key ) )
+                throw new Exception( "unexpected key: " + key );
+
+            if ( fset.containsLong( key ) )
+                throw new Exception( "unexpected value: " + key );
+
+        }
+
+    }
     
+    public static void test4() throws Exception {
+
+        //reads have to work across segment boundaries.  Use tiny 4k segments
+        //so that we don't need a multi-GB file for this.
+
+        File file = new File( "test4.bin" );
+
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+
+        int count = 10000;
+        
+        for( long i = 0; i < count; ++i ) {
+            out.writeLong( i );
+        }
+
+        out.close();
+
+        MappedRegion region = new MappedRegion( file, 12 );
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+        for( long offset = 0; offset < count * 8 - 8; offset += 3 ) {
+
+            raf.seek( offset );
+
+            if ( region.getLong( offset ) != raf.readLong() )
+                throw new Exception( "wrong value at: " + offset );
+
+        }
+
+        byte[] all = region.get( 0, count * 8 );
+
+        for( int i = 0; i < count; ++i ) {
+
+            if ( toLong( all, i * 8 ) != i )
+                throw new Exception( "wrong bulk value at: " + i );
+
+        }
+
+        //slices which run past the overlap have to be copied.
+        ByteBuffer slice = region.slice( 4000, 8192 );
+
+        for( int i = 0; i < 1024; ++i ) {
+
+            if ( slice.getLong( i * 8 ) != region.getLong( 4000 + i * 8 ) )
+                throw new Exception( "wrong slice value at: " + i );
+
+        }
+
+        //a corrupt length has to fail rather than spin at the end.
+        try {
+            region.slice( count * 8 - 100, 200 );
+            throw new Exception( "read past the end" );
+        } catch ( IndexOutOfBoundsException e ) {
+            //expected.
+        }
+
+        raf.close();
+
+        //version 1 files still have to be readable.
+        File legacy = new File( "test.fmap" );
+
+        if ( legacy.exists() ) {
+
+            FlatMap<Long,Integer> fmap = new FlatMap( legacy );
+
+            for( long i = -1000; i < 1000; ++i ) {
+
+                if ( fmap.getInt( i, -1 ) != (int)i )
+                    throw new Exception( "wrong legacy value for: " + i );
+
+            }
+
+        }
+
+    }
+
+    public static void test5() throws Exception {
+
+        //variable width values go through the data section.
+
+        Map<Integer,String> strings = new TreeMap();
+        Map<Integer,byte[]> bytes = new TreeMap();
+        Map<Integer,ArrayList> objects = new TreeMap();
+
+        for( int i = -500; i < 500; ++i ) {
+
+            StringBuffer buff = new StringBuffer();
+
+            for( int j = 0; j < Math.abs( i ) % 300; ++j ) {
+                buff.append( (char)('a' + (j % 26)) );
+            }
+
+            buff.append( "\u00e9" );
+
+            strings.put( i, buff.toString() );
+            bytes.put( i, buff.toString().getBytes( "UTF-8" ) );
+
+            ArrayList list = new ArrayList();
+            list.add( i );
+            objects.put( i, list );
+
+        }
+
+        new FlatMapWriter().write( strings, new File( "test5-strings.fmp" ) );
+        new FlatMapWriter().write( bytes, new File( "test5-bytes.fmp" ) );
+        new FlatMapWriter().write( objects, new File( "test5-objects.fmp" ) );
+
+        FlatMap<Integer,String> fstrings = new FlatMap( new File( "test5-strings.fmp" ) );
+        FlatMap<Integer,byte[]> fbytes = new FlatMap( new File( "test5-bytes.fmp" ) );
+        FlatMap<Integer,ArrayList> fobjects = new FlatMap( new File( "test5-objects.fmp" ) );
+
+        for( int i = -500; i < 500; ++i ) {
+
+            if ( ! fstrings.get( i ).equals( strings.get( i ) ) )
+                throw new Exception( "wrong string for: " + i );
+
+            if ( ! Arrays.equals( fbytes.get( i ), bytes.get( i ) ) )
+                throw new Exception( "wrong bytes for: " + i );
+
+            if ( ! fobjects.get( i ).equals( objects.get( i ) ) )
+                throw new Exception( "wrong object for: " + i );
+
+            ByteBuffer buff = fstrings.getValueBuffer( i );
+
+            if ( buff.remaining() != bytes.get( i ).length || buff.get( buff.remaining() - 1 ) != bytes.get( i )[ bytes.get( i ).length - 1 ] )
+                throw new Exception( "wrong buffer for: " + i );
+
+        }
+
+        if ( fstrings.get( 1000 ) != null || fstrings.getValueBuffer( 1000 ) != null )
+            throw new Exception( "unexpected key" );
+
+    }
+
+    public static void test6() throws Exception {
+
+        //variable width keys are written as front coded blocks.
+
+        Map<String,Integer> urls = new HashMap();
+        Map<String,String> titles = new HashMap();
+        Set<String> seen = new HashSet();
+
+        for( int i = 0; i < 5000; ++i ) {
+
+            String url = "http://www.example.com/" + (i % 7) + "/post/" + i;
+
+            urls.put( url, i );
+            titles.put( url, "title " + i );
+            seen.add( url );
+
+        }
+
+        //keys which are prefixes of each other.
+        urls.put( "", -1 );
+        urls.put( "http://www.example.com/", -2 );
+        titles.put( "", "" );
+        seen.add( "http://www.example.com/" );
+
+        for( int block_size : new int[] { 1, 16, 100 } ) {
+
+            FlatMapWriter mwriter = new FlatMapWriter();
+            mwriter.setBlockSize( block_size );
+            mwriter.write( urls, new File( "test6-urls.fmp" ) );
+            mwriter.write( titles, new File( "test6-titles.fmp" ) );
+
+            FlatSetWriter swriter = new FlatSetWriter();
+            swriter.setBlockSize( block_size );
+            swriter.write( seen, new File( "test6-seen.fst" ) );
+
+            FlatMap<String,Integer> furls = new FlatMap( new File( "test6-urls.fmp" ) );
+            FlatMap<String,String> ftitles = new FlatMap( new File( "test6-titles.fmp" ) );
+            FlatSet<String> fseen = new FlatSet( new File( "test6-seen.fst" ) );
+
+            for( String url : urls.keySet() ) {
+
+                if ( ! furls.get( url ).equals( urls.get( url ) ) )
+                    throw new Exception( "wrong value for: " + url );
+
+            }
+
+            for( String url : titles.keySet() ) {
+
+                if ( ! ftitles.get( url ).equals( titles.get( url ) ) )
+                    throw new Exception( "wrong title for: " + url );
+
+            }
+
+            for( String url : seen ) {
+
+                if ( ! fseen.contains( url ) )
+                    throw new Exception( "missing: " + url );
+
+            }
+
+            String[] missing = { "a", "http://www.example.com", "http://www.example.com/0/post/", "zzz", "http://www.example.com/6/post/99999" };
+
+            for( String url : missing ) {
+
+                if ( furls.get( url ) != null || fseen.contains( url ) )
+                    throw new Exception( "unexpected: " + url );
+
+            }
+
+            //iteration has to come back in sorted order.
+            List<String> sorted = new ArrayList( seen );
+            Collections.sort( sorted, new ByteArrayComparator( new StringTypeHandler() ) );
+
+            Iterator it = fseen.iterator();
+
+            for( String url : sorted ) {
+
+                if ( ! url.equals( it.next() ) )
+                    throw new Exception( "out of order: " + url );
+
+            }
+
+        }
+
+    }
+
+    public static void test7() throws Exception {
+
+        //tiny memory budgets force lots of sorted runs to be merged.
+
+        Random r = new Random( 7 );
+
+        Map<Long,Integer> expected = new HashMap();
+        Map<String,String> expected_strings = new HashMap();
+        Set<Long> expected_set = new HashSet();
+
+        FlatMapBuilder<Long,Integer> builder = new FlatMapBuilder( new File( "test7.fmp" ), 16 * 1024 );
+        FlatMapBuilder<String,String> sbuilder = new FlatMapBuilder( new File( "test7-strings.fmp" ), 16 * 1024 );
+        FlatSetBuilder<Long> set_builder = new FlatSetBuilder( new File( "test7.fst" ), 16 * 1024 );
+
+        for( int i = 0; i < 20000; ++i ) {
+
+            //plenty of duplicates across runs; the last value wins.
+            long key = r.nextInt( 10000 ) - 5000;
+
+            builder.add( key, i );
+            expected.put( key, i );
+
+            set_builder.add( key );
+            expected_set.add( key );
+
+            String skey = "key-" + key;
+
+            sbuilder.add( skey, "value-" + i );
+            expected_strings.put( skey, "value-" + i );
+
+        }
+
+        builder.finish();
+        sbuilder.finish();
+        set_builder.finish();
+
+        FlatMap<Long,Integer> fmap = new FlatMap( new File( "test7.fmp" ) );
+        FlatMap<String,String> fstrings = new FlatMap( new File( "test7-strings.fmp" ) );
+        FlatSet<Long> fset = new FlatSet( new File( "test7.fst" ) );
+
+        if ( fmap.size() != expected.size() || fset.size() != expected_set.size() || fstrings.size() != expected_strings.size() )
+            throw new Exception( "wrong size: " + fmap.size() + " vs " + expected.size() );
+
+        for( long key : expected.keySet() ) {
+
+            if ( fmap.getInt( key, -1 ) != expected.get( key ) )
+                throw new Exception( "wrong value for: " + key );
+
+            if ( ! fset.containsLong( key ) )
+                throw new Exception( "missing: " + key );
+
+        }
+
+        for( String key : expected_strings.keySet() ) {
+
+            if ( ! fstrings.get( key ).equals( expected_strings.get( key ) ) )
+                throw new Exception( "wrong value for: " + key );
+
+        }
+
+        //runs are merged through a scanner without any keys on the heap.
+        OpenOptions options = new OpenOptions( OpenOptions.LAZY );
+        options.setSequential( true );
+
+        FlatMap<String,String> sequential = new FlatMap( new File( "test7-strings.fmp" ), options );
+
+        BlockIndex.Scanner scanner = sequential.block_index.newScanner();
+
+        for( long pos = 0; pos < fstrings.sizeAsLong(); ++pos ) {
+
+            scanner.next( pos % sequential.block_index.getBlockSize() == 0 );
+
+            if ( ! Arrays.equals( Arrays.copyOf( scanner.key, scanner.length ), fstrings.getKeyFromPosition( pos ) ) )
+                throw new Exception( "wrong sequential key at: " + pos );
+
+        }
+
+        try {
+            sequential.get( "key-1" );
+            throw new Exception( "lookup in a sequential file" );
+        } catch ( IllegalStateException e ) {
+            //expected.
+        }
+
+        long index_offset = sequential.getSectionOffset( BaseFlatCollection.SECTION_BLOCK_INDEX );
+
+        sequential.close();
+
+        //a zero block size would divide by zero on every lookup.
+        java.nio.file.Files.copy( new File( "test7-strings.fmp" ).toPath(), new File( "test7-corrupt.fmp" ).toPath(),
+                                  java.nio.file.StandardCopyOption.REPLACE_EXISTING );
+
+        RandomAccessFile raf = new RandomAccessFile( "test7-corrupt.fmp", "rw" );
+        raf.seek( index_offset );
+        raf.writeInt( 0 );
+        raf.close();
+
+        try {
+            new FlatMap( new File( "test7-corrupt.fmp" ) );
+            throw new Exception( "opened a corrupt block index" );
+        } catch ( IOException e ) {
+            //expected.
+        }
+
+    }
+
+    public static void test8() throws Exception {
+
+        //the parallel build path has to produce exactly the same file.
+
+        Random r = new Random( 8 );
+
+        Map<Long,Integer> map = new HashMap();
+        Set<Integer> set = new HashSet();
+
+        for( int i = 0; i < 300000; ++i ) {
+            map.put( r.nextLong(), r.nextInt() );
+            set.add( r.nextInt() );
+        }
+
+        FlatMapWriter writer = new FlatMapWriter();
+        writer.write( map, new File( "test8-sequential.fmp" ) );
+
+        writer.setThreads( 4 );
+        writer.write( map, new File( "test8-parallel.fmp" ) );
+
+        FlatSetWriter set_writer = new FlatSetWriter();
+        set_writer.write( set, new File( "test8-sequential.fst" ) );
+
+        set_writer.setThreads( 4 );
+        set_writer.write( set, new File( "test8-parallel.fst" ) );
+
+        assertSameFile( "test8-sequential.fmp", "test8-parallel.fmp" );
+        assertSameFile( "test8-sequential.fst", "test8-parallel.fst" );
+
+    }
+
+    public static void test9() throws Exception {
+
+        //LAYOUT_BTREE with trees of zero, one and several levels.
+
+        int[] sizes = { 1, 7, 8, 9, 64, 65, 1000, 5000 };
+        int[] node_sizes = { 16, 64, 4096 };
+
+        for( int size : sizes ) {
+
+            for( int node_size : node_sizes ) {
+
+                Map<Long,Integer> map = new HashMap();
+                Map<Integer,String> strings = new HashMap();
+                Set<Short> set = new HashSet();
+
+                //even keys only so that odd keys can be used for misses.
+                for( int i = 0; i < size; ++i ) {
+
+                    long key = (i - size / 2) * 2L;
+
+                    map.put( key * 1000000007L, i );
+                    strings.put( (int)key, "value-" + i );
+                    set.add( (short)key );
+
+                }
+
+                FlatMapWriter writer = new FlatMapWriter();
+                writer.setLayout( BaseFlatCollection.LAYOUT_BTREE );
+                writer.setNodeSize( node_size );
+
+                writer.write( map, new File( "test9.fmp" ) );
+                writer.write( strings, new File( "test9-strings.fmp" ) );
+
+                FlatSetWriter set_writer = new FlatSetWriter();
+                set_writer.setLayout( BaseFlatCollection.LAYOUT_BTREE );
+                set_writer.setNodeSize( node_size );
+
+                set_writer.write( set, new File( "test9.fst" ) );
+
+                FlatMap<Long,Integer> fmap = new FlatMap( new File( "test9.fmp" ) );
+                FlatMap<Integer,String> fstrings = new FlatMap( new File( "test9-strings.fmp" ) );
+                FlatSet<Short> fset = new FlatSet( new File( "test9.fst" ) );
+
+                if ( fmap.size() != size || fstrings.size() != size || fset.size() != size )
+                    throw new Exception( "wrong size: " + size );
+
+                for( int i = 0; i < size; ++i ) {
+
+                    long key = (i - size / 2) * 2L;
+
+                    if ( fmap.getInt( key * 1000000007L, -1 ) != i )
+                        throw new Exception( "wrong value for: " + key );
+
+                    if ( fmap.containsKey( (key + 1) * 1000000007L ) )
+                        throw new Exception( "unexpected key: " + (key + 1) );
+
+                    if ( ! strings.get( (int)key ).equals( fstrings.get( (int)key ) ) )
+                        throw new Exception( "wrong string for: " + key );
+
+                    if ( fstrings.get( (int)key + 1 ) != null )
+                        throw new Exception( "unexpected key: " + (key + 1) );
+
+                    if ( ! fset.contains( (short)key ) || fset.contains( (short)(key + 1) ) )
+                        throw new Exception( "wrong membership for: " + key );
+
+                }
+
+                if ( fmap.containsKey( Long.MIN_VALUE ) || fmap.containsKey( Long.MAX_VALUE ) )
+                    throw new Exception( "unexpected key at the ends" );
+
+                Set<Short> seen = new HashSet();
+                Iterator<Short> it = fset.iterator();
+
+                while( it.hasNext() ) {
+                    seen.add( it.next() );
+                }
+
+                if ( ! seen.equals( set ) )
+                    throw new Exception( "iterator doesn't match for size: " + size );
+
+            }
+
+        }
+
+    }
+
+    public static void test10() throws Exception {
+
+        //learned index over sequential IDs, hashes, very uneven gaps and a
+        //map too small to need one.
+
+        int size = 100000;
+
+        Random r = new Random( 10 );
+
+        Map<Long,Integer> sequential = new HashMap();
+        Map<Long,Integer> hashes = new HashMap();
+        Map<Long,Integer> clustered = new HashMap();
+        Map<Long,Integer> small = new HashMap();
+
+        long key = 0;
+
+        for( int i = 0; i < size; ++i ) {
+
+            sequential.put( 1000000L + i * 3, i );
+            hashes.put( r.nextLong(), i );
+
+            //gaps anywhere from 1 to 2^40 so no line fits for long.
+            key += 1L << r.nextInt( 40 );
+            clustered.put( key, i );
+
+            if ( i < LinearModel.MIN_SIZE / 2 )
+                small.put( r.nextLong(), i );
+
+        }
+
+        Map[] maps = { sequential, hashes, clustered, small };
+        boolean[] expect_model = { true, true, true, false };
+
+        for( int i = 0; i < maps.length; ++i ) {
+
+            File file = new File( "test10.fmp" );
+
+            new FlatMapWriter().write( maps[i], file );
+
+            FlatMap<Long,Integer> fmap = new FlatMap( file );
+
+            if ( ( fmap.model != null ) != expect_model[i] )
+                throw new Exception( "model present: " + ( fmap.model != null ) + " for map " + i );
+
+            Map<Long,Integer> map = maps[i];
+
+            for( Map.Entry<Long,Integer> entry : map.entrySet() ) {
+
+                key = entry.getKey();
+
+                if ( fmap.getInt( key, -1 ) != entry.getValue() )
+                    throw new Exception( "wrong value for: " + key );
+
+                if ( ! map.containsKey( key + 1 ) && fmap.containsKey( key + 1 ) )
+                    throw new Exception( "unexpected key: " + ( key + 1 ) );
+
+            }
+
+            if ( fmap.containsKey( Long.MIN_VALUE ) || fmap.containsKey( Long.MAX_VALUE ) )
+                throw new Exception( "unexpected key at the ends" );
+
+        }
+
+        //without the model the file is plain LAYOUT_SORTED.
+        FlatMapWriter writer = new FlatMapWriter();
+        writer.setLearnedIndex( false );
+        writer.write( hashes, new File( "test10.fmp" ) );
+
+        FlatMap<Long,Integer> fmap = new FlatMap( new File( "test10.fmp" ) );
+
+        if ( fmap.model != null || fmap.flags != 0 )
+            throw new Exception( "unexpected model" );
+
+    }
+
+    public static void test11() throws Exception {
+
+        //bloom filters on each layout: no false negatives and roughly the
+        //requested false positive rate.
+
+        int size = 20000;
+        double fpp = 0.01;
+
+        Random r = new Random( 11 );
+
+        Map<Long,Integer> longs = new HashMap();
+        Map<String,Integer> strings = new HashMap();
+        Set<Integer> ints = new HashSet();
+
+        for( int i = 0; i < size; ++i ) {
+            longs.put( r.nextLong(), i );
+            strings.put( "http://example.com/" + r.nextLong(), i );
+            ints.add( r.nextInt() );
+        }
+
+        FlatMapWriter writer = new FlatMapWriter();
+        writer.setBloomFilter( fpp );
+
+        writer.write( longs, new File( "test11.fmp" ) );
+        writer.write( strings, new File( "test11-strings.fmp" ) );
+
+        writer.setThreads( 4 );
+        writer.write( longs, new File( "test11-parallel.fmp" ) );
+
+        assertSameFile( "test11.fmp", "test11-parallel.fmp" );
+
+        FlatSetWriter set_writer = new FlatSetWriter();
+        set_writer.setBloomFilter( fpp );
+        set_writer.setLayout( BaseFlatCollection.LAYOUT_BTREE );
+        set_writer.write( ints, new File( "test11.fst" ) );
+
+        FlatMap<Long,Integer> flongs = new FlatMap( new File( "test11.fmp" ) );
+        FlatMap<String,Integer> fstrings = new FlatMap( new File( "test11-strings.fmp" ) );
+        FlatSet<Integer> fints = new FlatSet( new File( "test11.fst" ) );
+
+        if ( flongs.bloom == null || fstrings.bloom == null || fints.bloom == null )
+            throw new Exception( "missing bloom filter" );
+
+        for( Map.Entry<Long,Integer> entry : longs.entrySet() ) {
+
+            if ( flongs.getInt( entry.getKey(), -1 ) != entry.getValue() )
+                throw new Exception( "wrong value for: " + entry.getKey() );
+
+        }
+
+        for( Map.Entry<String,Integer> entry : strings.entrySet() ) {
+
+            if ( ! entry.getValue().equals( fstrings.get( entry.getKey() ) ) )
+                throw new Exception( "wrong value for: " + entry.getKey() );
+
+        }
+
+        for( int key : ints ) {
+
+            if ( ! fints.contains( key ) )
+                throw new Exception( "missing: " + key );
+
+        }
+
+        int misses = 100000;
+        int false_positives = 0;
+
+        for( int i = 0; i < misses; ++i ) {
+
+            long key = r.nextLong();
+
+            if ( longs.containsKey( key ) )
+                continue;
+
+            if ( flongs.containsKey( key ) )
+                throw new Exception( "unexpected key: " + key );
+
+            if ( flongs.bloom.mightContain( BloomFilter.hash( key ) ) )
+                ++false_positives;
+
+        }
+
+        if ( false_positives > misses * fpp * 2 )
+            throw new Exception( "too many false positives: " + false_positives );
+
+    }
+
+    public static void test12() throws Exception {
+
+        //batch lookups must agree with single lookups, including duplicate
+        //probes, misses and keys out of int range.
+
+        Random r = new Random( 12 );
+
+        Map<Long,Long> longs = new HashMap();
+        Set<Integer> ints = new HashSet();
+
+        for( int i = 0; i < 50000; ++i ) {
+            longs.put( (long)r.nextInt( 200000 ) - 100000, r.nextLong() );
+            ints.add( r.nextInt( 200000 ) - 100000 );
+        }
+
+        new FlatMapWriter().write( longs, new File( "test12.fmp" ) );
+
+        FlatSetWriter set_writer = new FlatSetWriter();
+        set_writer.setLayout( BaseFlatCollection.LAYOUT_BTREE );
+        set_writer.setBloomFilter( 0.05 );
+        set_writer.write( ints, new File( "test12.fst" ) );
+
+        FlatMap<Long,Long> flongs = new FlatMap( new File( "test12.fmp" ) );
+        FlatSet<Integer> fints = new FlatSet( new File( "test12.fst" ) );
+
+        int[] batch_sizes = { 0, 1, 10, 1000, 100000 };
+
+        for( int batch_size : batch_sizes ) {
+
+            long[] keys = new long[ batch_size ];
+
+            for( int i = 0; i < batch_size; ++i ) {
+
+                if ( i % 100 == 99 )
+                    keys[i] = r.nextLong();
+                else if ( i % 10 == 9 && i > 0 )
+                    keys[i] = keys[i - 1];
+                else
+                    keys[i] = r.nextInt( 220000 ) - 110000;
+
+            }
+
+            long[] values = new long[ batch_size ];
+            boolean[] contains = new boolean[ batch_size ];
+            boolean[] members = new boolean[ batch_size ];
+
+            flongs.getAll( keys, values, -1 );
+            flongs.containsAll( keys, contains );
+            fints.containsAll( keys, members );
+
+            for( int i = 0; i < batch_size; ++i ) {
+
+                if ( values[i] != flongs.getLong( keys[i], -1 ) )
+                    throw new Exception( "wrong value for: " + keys[i] );
+
+                if ( contains[i] != longs.containsKey( keys[i] ) )
+                    throw new Exception( "wrong containsAll for: " + keys[i] );
+
+                if ( members[i] != ( keys[i] == (int)keys[i] && ints.contains( (int)keys[i] ) ) )
+                    throw new Exception( "wrong membership for: " + keys[i] );
+
+            }
+
+        }
+
+    }
+
+    public static void test13() throws Exception {
+
+        //eager, lazy and background warm up all serve the same lookups.
+
+        Map<Long,Integer> map = new HashMap();
+
+        for( int i = 0; i < 100000; ++i ) {
+            map.put( (long)i * 7, i );
+        }
+
+        FlatMapWriter writer = new FlatMapWriter();
+        writer.setBloomFilter( 0.01 );
+        writer.write( map, new File( "test13.fmp" ) );
+
+        final List<long[]> progress = Collections.synchronizedList( new ArrayList() );
+
+        WarmupListener listener = new WarmupListener() {
+
+                public void progress( File file, long bytes, long total ) {
+                    progress.add( new long[] { bytes, total } );
+                }
+
+            };
+
+        int[] modes = { OpenOptions.EAGER, OpenOptions.LAZY, OpenOptions.WARM };
+
+        for( int mode : modes ) {
+
+            progress.clear();
+
+            OpenOptions options = new OpenOptions( mode );
+            options.setListener( listener );
+
+            FlatMap<Long,Integer> fmap = new FlatMap( new File( "test13.fmp" ), options );
+
+            for( Map.Entry<Long,Integer> entry : map.entrySet() ) {
+
+                if ( fmap.getInt( entry.getKey(), -1 ) != entry.getValue() )
+                    throw new Exception( "wrong value for: " + entry.getKey() );
+
+            }
+
+            fmap.awaitWarmup();
+
+            if ( ! fmap.isWarm() )
+                throw new Exception( "not warm after awaitWarmup" );
+
+            if ( mode == OpenOptions.LAZY ) {
+
+                if ( progress.size() != 0 )
+                    throw new Exception( "unexpected progress for a lazy open" );
+
+                continue;
+
+            }
+
+            long[] last = progress.get( progress.size() - 1 );
+
+            if ( last[0] != last[1] || last[1] != new File( "test13.fmp" ).length() )
+                throw new Exception( "incomplete progress: " + last[0] + " of " + last[1] );
+
+        }
+
+    }
+
+    public static void test14() throws Exception {
+
+        //prefix tables of every size over hashes, a narrow range of IDs in a
+        //64 bit key, keys spanning the whole range and a single key.
+
+        Random r = new Random( 14 );
+
+        Map<Long,Integer> hashes = new HashMap();
+        Map<Long,Integer> ids = new HashMap();
+        Map<Long,Integer> extremes = new HashMap();
+        Map<Long,Integer> single = new HashMap();
+
+        for( int i = 0; i < 20000; ++i ) {
+            hashes.put( r.nextLong(), i );
+            ids.put( 5000000000L + i * 2, i );
+        }
+
+        for( int i = 0; i < 100; ++i ) {
+            extremes.put( Long.MIN_VALUE + i, i );
+            extremes.put( Long.MAX_VALUE - i, i );
+            extremes.put( (long)i - 50, i );
+        }
+
+        single.put( 42L, 42 );
+
+        Map[] maps = { hashes, ids, extremes, single };
+
+        FlatMapWriter writer = new FlatMapWriter();
+        writer.setLearnedIndex( false );
+
+        for( Map m : maps ) {
+
+            Map<Long,Integer> map = m;
+
+            writer.write( map, new File( "test14.fmp" ) );
+
+            for( int bits = 0; bits <= 16; bits += 4 ) {
+
+                OpenOptions options = new OpenOptions( OpenOptions.LAZY );
+                options.setPrefixBits( bits );
+
+                FlatMap<Long,Integer> fmap = new FlatMap( new File( "test14.fmp" ), options );
+
+                if ( ( fmap.prefix_table != null ) != ( bits > 0 ) )
+                    throw new Exception( "prefix table doesn't match bits: " + bits );
+
+                for( Map.Entry<Long,Integer> entry : map.entrySet() ) {
+
+                    long key = entry.getKey();
+
+                    if ( fmap.getInt( key, -1 ) != entry.getValue() )
+                        throw new Exception( "wrong value for: " + key );
+
+                    if ( ! map.containsKey( key + 1 ) && fmap.containsKey( key + 1 ) )
+                        throw new Exception( "unexpected key: " + ( key + 1 ) );
+
+                    if ( ! map.containsKey( key - 1 ) && fmap.containsKey( key - 1 ) )
+                        throw new Exception( "unexpected key: " + ( key - 1 ) );
+
+                }
+
+            }
+
+        }
+
+    }
+
+    public static void test15() throws Exception {
+
+        //the NavigableMap views must agree with a TreeMap using the same
+        //comparator, including nested and descending range views.
+
+        Random r = new Random( 15 );
+
+        Map<Long,Long> longs = new HashMap();
+        Map<Integer,String> ints = new HashMap();
+        Map<String,Integer> strings = new HashMap();
+
+        for( int i = 0; i < 3000; ++i ) {
+            longs.put( (long)r.nextInt( 20000 ) - 10000, r.nextLong() );
+            ints.put( r.nextInt(), "v" + i );
+            strings.put( "key" + r.nextInt( 100000 ), i );
+        }
+
+        new FlatMapWriter().write( longs, new File( "test15a.fmp" ) );
+
+        FlatMapWriter btree_writer = new FlatMapWriter();
+        btree_writer.setLayout( BaseFlatCollection.LAYOUT_BTREE );
+        btree_writer.write( ints, new File( "test15b.fmp" ) );
+
+        new FlatMapWriter().write( strings, new File( "test15c.fmp" ) );
+
+        List<Long> long_probes = new ArrayList();
+        List<Integer> int_probes = new ArrayList();
+        List<String> string_probes = new ArrayList();
+
+        for( int i = 0; i < 200; ++i ) {
+            long_probes.add( (long)r.nextInt( 24000 ) - 12000 );
+            int_probes.add( r.nextInt() );
+            string_probes.add( "key" + r.nextInt( 100000 ) );
+        }
+
+        int_probes.addAll( new ArrayList( ints.keySet() ).subList( 0, 100 ) );
+        string_probes.add( "" );
+        string_probes.add( "kez" );
+
+        FlatMap<Long,Long> flongs = new FlatMap( new File( "test15a.fmp" ) );
+        FlatMap<Integer,String> fints = new FlatMap( new File( "test15b.fmp" ) );
+        FlatMap<String,Integer> fstrings = new FlatMap( new File( "test15c.fmp" ) );
+
+        TreeMap<Long,Long> tlongs = new TreeMap( flongs.comparator() );
+        tlongs.putAll( longs );
+
+        TreeMap<Integer,String> tints = new TreeMap( fints.comparator() );
+        tints.putAll( ints );
+
+        TreeMap<String,Integer> tstrings = new TreeMap( fstrings.comparator() );
+        tstrings.putAll( strings );
+
+        assertSameMap( tlongs, flongs, long_probes, r, 3 );
+        assertSameMap( tints, fints, int_probes, r, 3 );
+        assertSameMap( tstrings, fstrings, string_probes, r, 3 );
+
+        //the entry iterator reuses its entry.
+        Iterator<Map.Entry<Long,Long>> it = flongs.entrySet().iterator();
+
+        if ( it.next() != it.next() )
+            throw new Exception( "entry wasn't reused" );
+
+        try {
+            flongs.put( 1L, 1L );
+            throw new Exception( "put succeeded" );
+        } catch ( UnsupportedOperationException e ) { }
+
+        NavigableMap<Long,Long> empty = flongs.headMap( flongs.firstKey(), false );
+
+        if ( ! empty.isEmpty() || empty.firstEntry() != null )
+            throw new Exception( "head map before the first key isn't empty" );
+
+        try {
+            empty.lastKey();
+            throw new Exception( "lastKey of an empty map" );
+        } catch ( NoSuchElementException e ) { }
+
+    }
+
+    public static void test16() throws Exception {
+
+        //cursor scans must visit the same records as the map views, both
+        //over the whole file and over ranges.
+
+        Random r = new Random( 16 );
+
+        Map<Long,Long> longs = new HashMap();
+        Map<Integer,Integer> ints = new HashMap();
+        Map<String,String> strings = new HashMap();
+        Set<Long> members = new HashSet();
+
+        for( int i = 0; i < 5000; ++i ) {
+            longs.put( r.nextLong(), (long)i );
+            ints.put( r.nextInt( 100000 ) - 50000, i );
+            strings.put( "http://example.com/" + r.nextInt( 1000000 ), "v" + i );
+            members.add( (long)r.nextInt( 100000 ) );
+        }
+
+        new FlatMapWriter().write( longs, new File( "test16a.fmp" ) );
+
+        FlatMapWriter btree_writer = new FlatMapWriter();
+        btree_writer.setLayout( BaseFlatCollection.LAYOUT_BTREE );
+        btree_writer.write( ints, new File( "test16b.fmp" ) );
+
+        FlatMapWriter blocked_writer = new FlatMapWriter();
+        blocked_writer.setBlockSize( 7 );
+        blocked_writer.write( strings, new File( "test16c.fmp" ) );
+
+        new FlatSetWriter().write( members, new File( "test16.fst" ) );
+
+        FlatMap<Long,Long> flongs = new FlatMap( new File( "test16a.fmp" ) );
+        FlatMap<Integer,Integer> fints = new FlatMap( new File( "test16b.fmp" ) );
+        FlatMap<String,String> fstrings = new FlatMap( new File( "test16c.fmp" ) );
+        FlatSet<Long> fmembers = new FlatSet( new File( "test16.fst" ) );
+
+        //whole files.
+        Cursor cursor = flongs.cursor();
+
+        for( Map.Entry<Long,Long> entry : flongs.entrySet() ) {
+
+            if ( ! cursor.next() || cursor.keyAsLong() != entry.getKey() || cursor.valueAsLong() != entry.getValue() )
+                throw new Exception( "wrong record for: " + entry.getKey() );
+
+        }
+
+        if ( cursor.next() )
+            throw new Exception( "cursor didn't stop at the end" );
+
+        cursor = fstrings.cursor();
+
+        for( Map.Entry<String,String> entry : fstrings.entrySet() ) {
+
+            if ( ! cursor.next() || ! entry.getKey().equals( cursor.key() ) || ! entry.getValue().equals( cursor.value() ) )
+                throw new Exception( "wrong record for: " + entry.getKey() );
+
+        }
+
+        cursor = fmembers.cursor();
+
+        for( Iterator<Long> it = fmembers.iterator(); it.hasNext(); ) {
+
+            if ( ! cursor.next() || cursor.keyAsLong() != it.next() )
+                throw new Exception( "wrong member" );
+
+        }
+
+        if ( cursor.next() )
+            throw new Exception( "cursor didn't stop at the end" );
+
+        //ranges, both with primitive and boxed bounds.
+        for( int i = 0; i < 200; ++i ) {
+
+            int from = r.nextInt( 110000 ) - 55000;
+            int to = r.nextInt( 110000 ) - 55000;
+
+            if ( fints.comparator().compare( from, to ) > 0 ) {
+                int tmp = from;
+                from = to;
+                to = tmp;
+            }
+
+            cursor = fints.cursor();
+            cursor.seek( from );
+            cursor.setEnd( to );
+
+            for( Map.Entry<Integer,Integer> entry : fints.subMap( from, to ).entrySet() ) {
+
+                if ( ! cursor.next() || cursor.keyAsInt() != entry.getKey() || cursor.valueAsInt() != entry.getValue() )
+                    throw new Exception( "wrong record in range: " + from + " to " + to );
+
+            }
+
+            if ( cursor.next() )
+                throw new Exception( "cursor ran past: " + to );
+
+            String key = "http://example.com/" + r.nextInt( 1000000 );
+
+            cursor = fstrings.cursor();
+            cursor.seek( key );
+
+            for( String expected : fstrings.tailMap( key ).keySet() ) {
+
+                if ( ! cursor.next() || ! expected.equals( cursor.key() ) )
+                    throw new Exception( "wrong key after: " + key );
+
+            }
+
+        }
+
+        cursor = flongs.cursor();
+
+        try {
+            cursor.keyAsLong();
+            throw new Exception( "read before next()" );
+        } catch ( NoSuchElementException e ) { }
+
+    }
+
+    public static void test17() throws Exception {
+
+        //sequential and parallel streams must see every record once, in
+        //order where the stream is ordered.
+
+        Random r = new Random( 17 );
+
+        Map<Long,Integer> longs = new HashMap();
+        Map<String,Long> strings = new HashMap();
+        Set<Integer> ints = new HashSet();
+
+        for( int i = 0; i < 50000; ++i ) {
+            longs.put( r.nextLong(), r.nextInt() );
+            ints.add( r.nextInt() );
+        }
+
+        for( int i = 0; i < 5000; ++i ) {
+            strings.put( "key" + r.nextInt(), r.nextLong() );
+        }
+
+        new FlatMapWriter().write( longs, new File( "test17a.fmp" ) );
+        new FlatMapWriter().write( strings, new File( "test17b.fmp" ) );
+        new FlatSetWriter().write( ints, new File( "test17.fst" ) );
+
+        FlatMap<Long,Integer> flongs = new FlatMap( new File( "test17a.fmp" ) );
+        FlatMap<String,Long> fstrings = new FlatMap( new File( "test17b.fmp" ) );
+        FlatSet<Integer> fints = new FlatSet( new File( "test17.fst" ) );
+
+        List<Long> keys = new ArrayList( flongs.keySet() );
+        List<Integer> values = new ArrayList( flongs.values() );
+
+        long value_sum = 0;
+
+        for( int value : values ) {
+            value_sum += value;
+        }
+
+        if ( ! keys.equals( flongs.keySet().parallelStream().collect( Collectors.toList() ) ) )
+            throw new Exception( "wrong parallel keys" );
+
+        if ( ! values.equals( flongs.values().parallelStream().collect( Collectors.toList() ) ) )
+            throw new Exception( "wrong parallel values" );
+
+        if ( ! keys.equals( flongs.longKeyStream().parallel().boxed().collect( Collectors.toList() ) ) )
+            throw new Exception( "wrong primitive keys" );
+
+        if ( flongs.intValueStream().parallel().asLongStream().sum() != value_sum ||
+             flongs.longValueStream().sum() != value_sum )
+            throw new Exception( "wrong sum of values" );
+
+        List<Map.Entry<Long,Integer>> entries = flongs.parallelStream().collect( Collectors.toList() );
+
+        if ( entries.size() != longs.size() )
+            throw new Exception( "wrong number of entries" );
+
+        for( int i = 0; i < entries.size(); ++i ) {
+
+            Map.Entry<Long,Integer> entry = entries.get( i );
+
+            if ( ! entry.getKey().equals( keys.get( i ) ) || ! entry.getValue().equals( longs.get( entry.getKey() ) ) )
+                throw new Exception( "wrong entry at: " + i );
+
+        }
+
+        Map<String,Long> collected = fstrings.stream().collect( Collectors.toMap( Map.Entry::getKey, Map.Entry::getValue ) );
+
+        if ( ! collected.equals( strings ) )
+            throw new Exception( "wrong string entries" );
+
+        if ( fints.parallelStream().count() != ints.size() ||
+             fints.intStream().parallel().distinct().count() != ints.size() ||
+             ! new HashSet( fints.stream().collect( Collectors.toList() ) ).equals( ints ) )
+            throw new Exception( "wrong set stream" );
+
+        //a split must cover the range exactly.
+        Spliterator.OfLong right = flongs.longKeySpliterator( 0, flongs.sizeAsLong() );
+        Spliterator.OfLong left = right.trySplit();
+
+        if ( left == null || left.estimateSize() + right.estimateSize() != longs.size() )
+            throw new Exception( "bad split" );
+
+        if ( ! right.hasCharacteristics( Spliterator.SORTED | Spliterator.SUBSIZED ) )
+            throw new Exception( "missing characteristics" );
+
+        //descending views fall back to their iterators.
+        List<Long> descending = new ArrayList( keys );
+        Collections.reverse( descending );
+
+        if ( ! descending.equals( flongs.descendingKeySet().stream().collect( Collectors.toList() ) ) )
+            throw new Exception( "wrong descending stream" );
+
+    }
+
+    public static void test18() throws Exception {
+
+        //set operations must agree with the same operations on HashSets,
+        //for fixed and variable width keys and for empty results.
+
+        Random r = new Random( 18 );
+
+        Set<Long> today = new HashSet();
+        Set<Long> yesterday = new HashSet();
+        Set<Long> sparse = new HashSet();
+
+        for( int i = 0; i < 20000; ++i ) {
+            today.add( (long)r.nextInt( 50000 ) - 25000 );
+            yesterday.add( (long)r.nextInt( 50000 ) - 25000 );
+        }
+
+        for( int i = 0; i < 50; ++i ) {
+            sparse.add( (long)r.nextInt( 50000 ) - 25000 );
+        }
+
+        Set<String> urls_today = new HashSet();
+        Set<String> urls_yesterday = new HashSet();
+
+        for( int i = 0; i < 5000; ++i ) {
+            urls_today.add( "http://example.com/" + r.nextInt( 20000 ) );
+            urls_yesterday.add( "http://example.com/" + r.nextInt( 20000 ) );
+        }
+
+        FlatSetWriter btree_writer = new FlatSetWriter();
+        btree_writer.setLayout( BaseFlatCollection.LAYOUT_BTREE );
+
+        new FlatSetWriter().write( today, new File( "test18a.fst" ) );
+        btree_writer.write( yesterday, new File( "test18b.fst" ) );
+        new FlatSetWriter().write( sparse, new File( "test18c.fst" ) );
+        new FlatSetWriter().write( urls_today, new File( "test18d.fst" ) );
+        new FlatSetWriter().write( urls_yesterday, new File( "test18e.fst" ) );
+
+        FlatSet<Long> ftoday = new FlatSet( new File( "test18a.fst" ) );
+        FlatSet<Long> fyesterday = new FlatSet( new File( "test18b.fst" ) );
+        FlatSet<Long> fsparse = new FlatSet( new File( "test18c.fst" ) );
+        FlatSet<String> furls_today = new FlatSet( new File( "test18d.fst" ) );
+        FlatSet<String> furls_yesterday = new FlatSet( new File( "test18e.fst" ) );
+
+        assertSetOperations( ftoday, fyesterday, today, yesterday );
+        assertSetOperations( fyesterday, ftoday, yesterday, today );
+        assertSetOperations( fsparse, ftoday, sparse, today );
+        assertSetOperations( ftoday, fsparse, today, sparse );
+        assertSetOperations( ftoday, ftoday, today, today );
+        assertSetOperations( furls_today, furls_yesterday, urls_today, urls_yesterday );
+
+        //joins.
+        Map<Long,String> names = new HashMap();
+
+        for( long key : today ) {
+            names.put( key, "name" + key );
+        }
+
+        new FlatMapWriter().write( names, new File( "test18.fmp" ) );
+
+        FlatMap<Long,String> fnames = new FlatMap( new File( "test18.fmp" ) );
+
+        SetOperations.join( fnames, fsparse, new File( "test18-join.fmp" ) );
+
+        FlatMap<Long,String> joined = new FlatMap( new File( "test18-join.fmp" ) );
+
+        Map<Long,String> expected = new HashMap();
+
+        for( long key : sparse ) {
+
+            if ( names.containsKey( key ) )
+                expected.put( key, names.get( key ) );
+
+        }
+
+        if ( ! expected.equals( new HashMap( joined ) ) )
+            throw new Exception( "wrong join with a set" );
+
+        final Map<Long,String> visited = new HashMap();
+
+        long count = SetOperations.join( fnames, joined, ( key, left, right ) -> {
+
+            if ( ! left.equals( right ) )
+                throw new RuntimeException( "wrong values for: " + key );
+
+            visited.put( key, left );
+
+        } );
+
+        if ( count != expected.size() || ! expected.equals( visited ) )
+            throw new Exception( "wrong join of maps" );
+
+    }
+
+    public static void test19() throws Exception {
+
+        //compacting a base file, deltas and tombstones must give the same
+        //map as applying them in order, in one pass or in two with the
+        //tombstones kept in between.
+
+        Random r = new Random( 19 );
+
+        Map<Long,String> expected = new HashMap();
+
+        List<File> inputs = new ArrayList();
+
+        for( int i = 0; i < 6; ++i ) {
+
+            File file;
+
+            if ( i % 3 == 2 ) {
+
+                //tombstones
+                Set<Long> deletes = new HashSet();
+
+                for( int j = 0; j < 500; ++j ) {
+                    deletes.add( (long)r.nextInt( 20000 ) );
+                }
+
+                file = new File( "test19-" + i + ".fst" );
+                new FlatSetWriter().write( deletes, file );
+
+                expected.keySet().removeAll( deletes );
+
+            } else {
+
+                Map<Long,String> delta = new HashMap();
+
+                for( int j = 0; j < ( i == 0 ? 10000 : 2000 ); ++j ) {
+                    delta.put( (long)r.nextInt( 20000 ), "v" + i + "-" + j );
+                }
+
+                file = new File( "test19-" + i + ".fmp" );
+                new FlatMapWriter().write( delta, file );
+
+                expected.putAll( delta );
+
+            }
+
+            inputs.add( file );
+
+        }
+
+        Compactor compactor = new Compactor();
+
+        for( File input : inputs ) {
+            compactor.add( input );
+        }
+
+        long count = compactor.compact( new File( "test19.fmp" ) );
+
+        FlatMap<Long,String> compacted = new FlatMap( new File( "test19.fmp" ) );
+
+        if ( count != expected.size() || ! expected.equals( new HashMap( compacted ) ) )
+            throw new Exception( "wrong compaction" );
+
+        //the deltas alone, keeping the tombstones, then the base.
+        compactor = new Compactor();
+        compactor.setTombstoneOutput( new File( "test19-tombstones.fst" ) );
+
+        for( File input : inputs.subList( 1, inputs.size() ) ) {
+            compactor.add( input );
+        }
+
+        compactor.compact( new File( "test19-deltas.fmp" ) );
+
+        Compactor.main( new String[] { "test19-all.fmp",
+                                       inputs.get( 0 ).getPath(),
+                                       "test19-tombstones.fst",
+                                       "test19-deltas.fmp" } );
+
+        if ( ! expected.equals( new HashMap( new FlatMap( new File( "test19-all.fmp" ) ) ) ) )
+            throw new Exception( "wrong two step compaction" );
+
+        //variable width keys.
+        Map<String,Integer> a = new HashMap();
+        Map<String,Integer> b = new HashMap();
+
+        for( int i = 0; i < 3000; ++i ) {
+            a.put( "key" + r.nextInt( 5000 ), i );
+            b.put( "key" + r.nextInt( 5000 ), -i );
+        }
+
+        new FlatMapWriter().write( a, new File( "test19a.fmp" ) );
+        new FlatMapWriter().write( b, new File( "test19b.fmp" ) );
+
+        compactor = new Compactor();
+        compactor.add( new File( "test19a.fmp" ) );
+        compactor.add( new File( "test19b.fmp" ) );
+        compactor.compact( new File( "test19c.fmp" ) );
+
+        a.putAll( b );
+
+        if ( ! a.equals( new HashMap( new FlatMap( new File( "test19c.fmp" ) ) ) ) )
+            throw new Exception( "wrong compaction of string keys" );
+
+    }
+
+    public static void test20() throws Exception {
+
+        //a stack of a base file, deltas and tombstones must read the same
+        //as applying them in order.
+
+        Random r = new Random( 20 );
+
+        Map<Long,Long> expected = new HashMap();
+        Map<String,Integer> expected_strings = new HashMap();
+
+        List<File> files = new ArrayList();
+        List<File> string_files = new ArrayList();
+
+        for( int i = 0; i < 8; ++i ) {
+
+            if ( i % 4 == 3 ) {
+
+                Set<Long> deletes = new HashSet();
+                Set<String> string_deletes = new HashSet();
+
+                for( int j = 0; j < 300; ++j ) {
+                    deletes.add( (long)r.nextInt( 30000 ) );
+                    string_deletes.add( "key" + r.nextInt( 3000 ) );
+                }
+
+                files.add( new File( "test20-" + i + ".fst" ) );
+                string_files.add( new File( "test20-" + i + "s.fst" ) );
+
+                new FlatSetWriter().write( deletes, files.get( i ) );
+                new FlatSetWriter().write( string_deletes, string_files.get( i ) );
+
+                expected.keySet().removeAll( deletes );
+                expected_strings.keySet().removeAll( string_deletes );
+
+            } else {
+
+                Map<Long,Long> delta = new HashMap();
+                Map<String,Integer> string_delta = new HashMap();
+
+                //deltas cover narrow ranges so most are skipped.
+                int base = i == 0 ? 0 : r.nextInt( 25000 );
+                int range = i == 0 ? 30000 : 5000;
+
+                for( int j = 0; j < ( i == 0 ? 10000 : 1000 ); ++j ) {
+                    delta.put( (long)( base + r.nextInt( range ) ), r.nextLong() );
+                    string_delta.put( "key" + r.nextInt( 3000 ), j );
+                }
+
+                FlatMapWriter writer = new FlatMapWriter();
+                writer.setBloomFilter( i == 0 ? 0 : 0.01 );
+
+                files.add( new File( "test20-" + i + ".fmp" ) );
+                string_files.add( new File( "test20-" + i + "s.fmp" ) );
+
+                writer.write( delta, files.get( i ) );
+                writer.write( string_delta, string_files.get( i ) );
+
+                expected.putAll( delta );
+                expected_strings.putAll( string_delta );
+
+            }
+
+        }
+
+        FlatMapStack<Long,Long> stack = new FlatMapStack( files );
+        FlatMapStack<String,Integer> string_stack = new FlatMapStack( string_files );
+
+        for( long key = -10; key < 30010; ++key ) {
+
+            Long value = expected.get( key );
+
+            if ( ! eq( value, stack.get( key ) ) ||
+                 stack.containsKey( key ) != ( value != null ) ||
+                 stack.getLong( key, -1 ) != ( value == null ? -1 : value ) )
+                throw new Exception( "wrong value for: " + key );
+
+        }
+
+        for( int i = -10; i < 3010; ++i ) {
+
+            String key = "key" + i;
+
+            if ( ! eq( expected_strings.get( key ), string_stack.get( key ) ) ||
+                 string_stack.containsKey( key ) != expected_strings.containsKey( key ) )
+                throw new Exception( "wrong value for: " + key );
+
+        }
+
+        //a stack reads the same as the compacted file.
+        Compactor compactor = new Compactor();
+
+        for( File file : files ) {
+            compactor.add( file );
+        }
+
+        compactor.compact( new File( "test20.fmp" ) );
+
+        if ( ! expected.equals( new HashMap( new FlatMap( new File( "test20.fmp" ) ) ) ) )
+            throw new Exception( "stack doesn't match its compaction" );
+
+    }
+
+    private static <E> void assertSetOperations( FlatSet<E> a, FlatSet<E> b, Set<E> sa, Set<E> sb ) throws Exception {
+
+        Set<E> intersection = new HashSet( sa );
+        intersection.retainAll( sb );
+
+        Set<E> union = new HashSet( sa );
+        union.addAll( sb );
+
+        Set<E> difference = new HashSet( sa );
+        difference.removeAll( sb );
+
+        SetOperations.intersect( a, b, new File( "test18-out.fst" ) );
+        assertSameSet( intersection, new FlatSet( new File( "test18-out.fst" ) ) );
+
+        SetOperations.union( a, b, new File( "test18-out.fst" ) );
+        assertSameSet( union, new FlatSet( new File( "test18-out.fst" ) ) );
+
+        long written = SetOperations.difference( a, b, new File( "test18-out.fst" ) );
+        assertSameSet( difference, new FlatSet( new File( "test18-out.fst" ) ) );
+
+        if ( written != difference.size() || SetOperations.intersectionSize( a, b ) != intersection.size() )
+            throw new Exception( "wrong counts" );
+
+    }
+
+    private static <E> void assertSameSet( Set<E> expected, FlatSet<E> actual ) throws Exception {
+
+        if ( actual.sizeAsLong() != expected.size() )
+            throw new Exception( "wrong size: " + actual.sizeAsLong() + " vs " + expected.size() );
+
+        Set<E> seen = new HashSet();
+
+        for( Iterator<E> it = actual.iterator(); it.hasNext(); ) {
+            seen.add( it.next() );
+        }
+
+        if ( ! seen.equals( expected ) )
+            throw new Exception( "wrong values" );
+
+        for( E value : expected ) {
+
+            if ( ! actual.contains( value ) )
+                throw new Exception( "can't find: " + value );
+
+        }
+
+    }
+
+    private static <K,V> void assertSameMap( NavigableMap<K,V> expected,
+                                             NavigableMap<K,V> actual,
+                                             List<K> probes,
+                                             Random r,
+                                             int depth ) throws Exception {
+
+        if ( expected.size() != actual.size() )
+            throw new Exception( "wrong size: " + actual.size() + " vs " + expected.size() );
+
+        Iterator<Map.Entry<K,V>> it = actual.entrySet().iterator();
+
+        for( Map.Entry<K,V> entry : expected.entrySet() ) {
+
+            if ( ! it.hasNext() || ! entry.equals( it.next() ) )
+                throw new Exception( "wrong entry, expected: " + entry );
+
+        }
+
+        if ( it.hasNext() )
+            throw new Exception( "too many entries" );
+
+        if ( ! expected.equals( actual ) || ! actual.equals( expected ) || expected.hashCode() != actual.hashCode() )
+            throw new Exception( "maps aren't equal" );
+
+        if ( ! new ArrayList( expected.values() ).equals( new ArrayList( actual.values() ) ) )
+            throw new Exception( "wrong values" );
+
+        if ( ! new ArrayList( expected.descendingKeySet() ).equals( new ArrayList( actual.descendingKeySet() ) ) )
+            throw new Exception( "wrong descending keys" );
+
+        if ( ! expected.isEmpty() ) {
+
+            if ( ! expected.firstKey().equals( actual.firstKey() ) || ! expected.lastKey().equals( actual.lastKey() ) )
+                throw new Exception( "wrong first or last key" );
+
+            if ( ! expected.firstEntry().equals( actual.firstEntry() ) || ! expected.lastEntry().equals( actual.lastEntry() ) )
+                throw new Exception( "wrong first or last entry" );
+
+        }
+
+        for( K probe : probes ) {
+
+            if ( ! eq( expected.ceilingKey( probe ), actual.ceilingKey( probe ) ) ||
+                 ! eq( expected.floorKey( probe ), actual.floorKey( probe ) ) ||
+                 ! eq( expected.higherKey( probe ), actual.higherKey( probe ) ) ||
+                 ! eq( expected.lowerKey( probe ), actual.lowerKey( probe ) ) )
+                throw new Exception( "wrong navigation for: " + probe );
+
+            if ( ! eq( expected.ceilingEntry( probe ), actual.ceilingEntry( probe ) ) ||
+                 ! eq( expected.lowerEntry( probe ), actual.lowerEntry( probe ) ) )
+                throw new Exception( "wrong entry navigation for: " + probe );
+
+            if ( expected.containsKey( probe ) != actual.containsKey( probe ) ||
+                 ! eq( expected.get( probe ), actual.get( probe ) ) )
+                throw new Exception( "wrong lookup for: " + probe );
+
+        }
+
+        if ( depth == 0 || expected.size() < 2 )
+            return;
+
+        //bounds have to be within the view for TreeMap.
+        List<K> keys = new ArrayList( expected.keySet() );
+
+        K from = keys.get( r.nextInt( keys.size() ) );
+        K to = keys.get( r.nextInt( keys.size() ) );
+
+        if ( expected.comparator().compare( from, to ) > 0 ) {
+            K tmp = from;
+            from = to;
+            to = tmp;
+        }
+
+        boolean from_inclusive = r.nextBoolean();
+        boolean to_inclusive = r.nextBoolean();
+
+        assertSameMap( expected.subMap( from, from_inclusive, to, to_inclusive ),
+                       actual.subMap( from, from_inclusive, to, to_inclusive ),
+                       probes, r, depth - 1 );
+
+        assertSameMap( expected.headMap( to, to_inclusive ), actual.headMap( to, to_inclusive ), probes, r, depth - 1 );
+        assertSameMap( expected.tailMap( from, from_inclusive ), actual.tailMap( from, from_inclusive ), probes, r, depth - 1 );
+        assertSameMap( expected.descendingMap(), actual.descendingMap(), probes, r, depth - 1 );
+
+        if ( ! new ArrayList( expected.subMap( from, to ).keySet() ).equals( new ArrayList( actual.subMap( from, to ).keySet() ) ) )
+            throw new Exception( "wrong sorted sub map" );
+
+        if ( ! new ArrayList( expected.navigableKeySet().tailSet( from, false ) ).equals( new ArrayList( actual.navigableKeySet().tailSet( from, false ) ) ) )
+            throw new Exception( "wrong tail set" );
+
+    }
+
+    private static boolean eq( Object o1, Object o2 ) {
+        return o1 == null ? o2 == null : o1.equals( o2 );
+    }
+
+    private static void assertSameFile( String path1, String path2 ) throws Exception {
+
+        MappedRegion r1 = new MappedRegion( new File( path1 ) );
+        MappedRegion r2 = new MappedRegion( new File( path2 ) );
+
+        if ( r1.length() != r2.length() )
+            throw new Exception( "different lengths: " + path1 + " vs " + path2 );
+
+        for( long i = 0; i < r1.length(); ++i ) {
+
+            if ( r1.get( i ) != r2.get( i ) )
+                throw new Exception( "files differ at: " + i );
+
+        }
+
+    }
+
+    private static long toLong( byte[] b, int offset ) {
+
+        long v = 0;
+
+        for( int i = 0; i < 8; ++i ) {
+            v = (v << 8) | (b[offset + i] & 0xFF);
+        }
+
+        return v;
+
+    }
+
+    public static void test21() throws Exception {
+
+        //readers of a reloadable map always see one whole generation while
+        //new ones are renamed into place underneath them.
+
+        final File file = new File( "test21.fmp" );
+
+        writeGeneration( file, 1 );
+
+        final ReloadableFlatMap<Long,Long> handle = new ReloadableFlatMap( file );
+
+        final AtomicReference<Throwable> failure = new AtomicReference();
+        final AtomicBoolean done = new AtomicBoolean( false );
+
+        List<Thread> readers = new ArrayList();
+
+        for( int i = 0; i < 3; ++i ) {
+
+            final Random r = new Random( i );
+
+            Thread reader = new Thread() {
+
+                public void run() {
+
+                    try {
+
+                        while ( ! done.get() ) {
+
+                            try ( ReloadableFlatMap.Lease<Long,Long> lease = handle.acquire() ) {
+
+                                FlatMap<Long,Long> map = lease.get();
+
+                                long generation = map.getLong( 0L, -1 ) / 1000000;
+
+                                if ( generation != lease.getGeneration() )
+                                    throw new Exception( "wrong generation: " + generation + " vs " + lease.getGeneration() );
+
+                                for( int j = 0; j < 100; ++j ) {
+
+                                    long key = r.nextInt( 1000 );
+
+                                    if ( map.getLong( key, -1 ) != generation * 1000000 + key )
+                                        throw new Exception( "mixed generations at: " + key );
+
+                                }
+
+                            }
+
+                            if ( handle.getLong( 1L, -1 ) % 1000000 != 1 )
+                                throw new Exception( "wrong value" );
+
+                        }
+
+                    } catch ( Throwable t ) {
+                        failure.compareAndSet( null, t );
+                    }
+
+                }
+
+            };
+
+            reader.start();
+            readers.add( reader );
+
+        }
+
+        //a lease keeps its generation mapped across reloads.
+        ReloadableFlatMap.Lease<Long,Long> held = handle.acquire();
+
+        for( int g = 2; g <= 10; ++g ) {
+
+            writeGeneration( file, g );
+
+            if ( ! handle.reloadIfChanged() || handle.getGeneration() != g )
+                throw new Exception( "didn't reload generation " + g );
+
+            Thread.sleep( 10 );
+
+        }
+
+        if ( held.get().getLong( 5L, -1 ) != 1000005 )
+            throw new Exception( "held generation changed" );
+
+        held.close();
+
+        //now let the watcher pick them up.
+        handle.startWatching( 5 );
+
+        for( int g = 11; g <= 13; ++g ) {
+
+            writeGeneration( file, g );
+
+            long timeout = System.currentTimeMillis() + 10000;
+
+            while ( handle.getGeneration() != g ) {
+
+                if ( System.currentTimeMillis() > timeout )
+                    throw new Exception( "watcher didn't reload generation " + g );
+
+                Thread.sleep( 5 );
+
+            }
+
+        }
+
+        //a damaged file is rejected and the current generation kept.
+        byte[] data = java.nio.file.Files.readAllBytes( file.toPath() );
+
+        File damaged = new File( "test21-damaged.fmp" );
+
+        FileOutputStream out = new FileOutputStream( damaged );
+        out.write( data, 0, data.length / 2 );
+        out.close();
+
+        damaged.renameTo( file );
+
+        try {
+            handle.reload();
+            throw new Exception( "opened a truncated file" );
+        } catch ( IOException e ) { }
+
+        if ( handle.getGeneration() != 13 || handle.getLastError() == null || handle.getLong( 7L, -1 ) != 13000007 )
+            throw new Exception( "lost the current generation" );
+
+        done.set( true );
+
+        for( Thread reader : readers ) {
+            reader.join();
+        }
+
+        if ( failure.get() != null )
+            throw new Exception( "reader failed", failure.get() );
+
+        handle.close();
+
+        try {
+            handle.acquire();
+            throw new Exception( "acquired a closed map" );
+        } catch ( IllegalStateException e ) { }
+
+        //writers leave no temp files behind.
+        for( String name : file.getAbsoluteFile().getParentFile().list() ) {
+
+            if ( name.startsWith( ".test21" ) )
+                throw new Exception( "temp file left behind: " + name );
+
+        }
+
+    }
+
+    private static void writeGeneration( File file, long generation ) throws Exception {
+
+        Map<Long,Long> map = new HashMap();
+
+        for( long key = 0; key < 1000; ++key ) {
+            map.put( key, generation * 1000000 + key );
+        }
+
+        new FlatMapWriter().write( map, file );
+
+    }
+
+    public static void test22() throws Exception {
+
+        //closing releases the mapping right away and anything used after
+        //close fails cleanly instead of reading unmapped memory.
+
+        File file = new File( "test22.fmp" );
+
+        writeGeneration( file, 1 );
+
+        for( int i = 0; i < 200; ++i ) {
+
+            try ( FlatMap<Long,Long> map = new FlatMap( file, new OpenOptions( i % 2 == 0 ? OpenOptions.LAZY : OpenOptions.WARM ) ) ) {
+
+                if ( map.getLong( 5L, -1 ) != 1000005 )
+                    throw new Exception( "wrong value" );
+
+            }
+
+        }
+
+        if ( mappings( file ) != 0 )
+            throw new Exception( "closed maps are still mapped: " + mappings( file ) );
+
+        FlatMap<Long,Long> map = new FlatMap( file, new OpenOptions( OpenOptions.WARM ) );
+
+        Iterator<Long> it = map.keySet().iterator();
+        it.next();
+
+        Cursor cursor = map.cursor();
+        cursor.next();
+
+        PrimitiveIterator.OfLong values = map.longValueStream().iterator();
+        values.next();
+
+        map.close();
+        map.close();
+
+        if ( ! map.isClosed() || map.warmer.isAlive() )
+            throw new Exception( "not closed" );
+
+        if ( map.size() != 1000 )
+            throw new Exception( "lost the size" );
+
+        List<Runnable> uses = new ArrayList();
+
+        uses.add( () -> map.get( 5L ) );
+        uses.add( () -> map.containsKey( 5L ) );
+        uses.add( () -> map.getLong( 5L, -1 ) );
+        uses.add( () -> map.firstKey() );
+        uses.add( () -> map.ceilingKey( 5L ) );
+        uses.add( () -> map.entrySet().iterator().next() );
+        uses.add( () -> it.next() );
+        uses.add( () -> cursor.next() );
+        uses.add( () -> cursor.keyAsLong() );
+        uses.add( () -> cursor.valueAsLong() );
+        uses.add( () -> values.next() );
+        uses.add( () -> map.cursor() );
+        uses.add( () -> map.longValueStream().sum() );
+        uses.add( () -> map.getAll( new long[] { 1, 2 }, new long[2], -1 ) );
+
+        for( int i = 0; i < uses.size(); ++i ) {
+
+            try {
+                uses.get( i ).run();
+                throw new Exception( "used a closed map: " + i );
+            } catch ( IllegalStateException e ) { }
+
+        }
+
+        //a file which fails to open isn't left mapped.
+        byte[] data = java.nio.file.Files.readAllBytes( file.toPath() );
+
+        File damaged = new File( "test22-damaged.fmp" );
+
+        FileOutputStream out = new FileOutputStream( damaged );
+        out.write( data, 0, data.length - 100 );
+        out.close();
+
+        try {
+            new FlatMap( damaged );
+            throw new Exception( "opened a truncated file" );
+        } catch ( IOException e ) { }
+
+        if ( mappings( damaged ) != 0 )
+            throw new Exception( "rejected file is still mapped" );
+
+        //a write which fails part way leaves the old file alone and nothing
+        //behind.
+        Map<Long,Object> bad = new TreeMap();
+        bad.put( 1L, 1L );
+        bad.put( 2L, "not a long" );
+
+        try {
+            new FlatMapWriter().write( bad, file );
+            throw new Exception( "wrote a bad map" );
+        } catch ( ClassCastException e ) { }
+
+        try ( FlatMap<Long,Long> reopened = new FlatMap( file ) ) {
+
+            if ( reopened.getLong( 999L, -1 ) != 1000999 )
+                throw new Exception( "failed write damaged the file" );
+
+        }
+
+        for( String name : file.getAbsoluteFile().getParentFile().list() ) {
+
+            if ( name.startsWith( ".test22" ) )
+                throw new Exception( "temp file left behind: " + name );
+
+        }
+
+        //stacks close their files.
+        FlatMapStack<Long,Long> stack = new FlatMapStack( Arrays.asList( file, file ) );
+        stack.close();
+
+        if ( mappings( file ) != 0 )
+            throw new Exception( "stack still mapped" );
+
+    }
+
+    /**
+     * Number of mappings of the file in this process, or 0 where that can't
+     * be seen.
+     */
+    private static int mappings( File file ) throws Exception {
+
+        File maps = new File( "/proc/self/maps" );
+
+        if ( ! maps.exists() )
+            return 0;
+
+        int count = 0;
+
+        for( String line : java.nio.file.Files.readAllLines( maps.toPath() ) ) {
+
+            if ( line.endsWith( file.getCanonicalPath() ) )
+                ++count;
+
+        }
+
+        return count;
+
+    }
+
+    public static void test23() throws Exception {
+
+        //a mutable map reads the same as a HashMap given the same updates,
+        //across flushes, compactions and reopening.
+
+        File directory = new File( "test23" );
+
+        deleteDirectory( directory );
+
+        final MutableFlatMap<Long,Long> map = new MutableFlatMap( directory );
+        map.setFlushThreshold( 16 * 1024 );
+        map.setMaxFiles( 4 );
+
+        //keys below 1000 are written once and must read back the whole time
+        //while the rest change underneath.
+        for( long key = 0; key < 1000; ++key ) {
+            map.put( key, key * 7 );
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference();
+        final AtomicBoolean done = new AtomicBoolean( false );
+
+        Thread reader = new Thread() {
+
+            public void run() {
+
+                Random r = new Random( 23 );
+
+                try {
+
+                    while ( ! done.get() ) {
+
+                        long key = r.nextInt( 1000 );
+
+                        if ( map.getLong( key, -1 ) != key * 7 || ! eq( key * 7, map.get( key ) ) )
+                            throw new Exception( "lost stable key: " + key );
+
+                    }
+
+                } catch ( Throwable t ) {
+                    failure.compareAndSet( null, t );
+                }
+
+            }
+
+        };
+
+        reader.start();
+
+        Map<Long,Long> expected = new HashMap();
+
+        for( long key = 0; key < 1000; ++key ) {
+            expected.put( key, key * 7 );
+        }
+
+        Random r = new Random( 42 );
+
+        for( int i = 0; i < 50000; ++i ) {
+
+            long key = 1000 + r.nextInt( 5000 );
+
+            if ( r.nextInt( 4 ) == 0 ) {
+                map.remove( key );
+                expected.remove( key );
+            } else {
+                long value = r.nextLong();
+                map.put( key, value );
+                expected.put( key, value );
+            }
+
+        }
+
+        done.set( true );
+        reader.join();
+
+        if ( failure.get() != null )
+            throw new Exception( "reader failed", failure.get() );
+
+        assertSameMutableMap( expected, map );
+
+        map.flush();
+        assertSameMutableMap( expected, map );
+
+        map.compact();
+
+        if ( map.getFileCount() != 1 )
+            throw new Exception( "compaction left " + map.getFileCount() + " files" );
+
+        assertSameMutableMap( expected, map );
+
+        //updates after a compaction land on top of it.
+        map.remove( 5L );
+        map.put( 6L, 66L );
+        expected.remove( 5L );
+        expected.put( 6L, 66L );
+
+        //interrupting a writer fails its own sync but not the log.
+        Thread.currentThread().interrupt();
+
+        try {
+            map.put( 7L, 77L );
+            throw new Exception( "interrupted put synced" );
+        } catch ( RuntimeException e ) {
+            if ( ! ( e.getCause() instanceof InterruptedIOException ) )
+                throw e;
+        }
+
+        Thread.interrupted();
+        expected.put( 7L, 77L );
+
+        map.put( 8L, 88L );
+        expected.put( 8L, 88L );
+
+        map.close();
+
+        try {
+            map.get( 1L );
+            throw new Exception( "read a closed map" );
+        } catch ( IllegalStateException e ) { }
+
+        MutableFlatMap<Long,Long> reopened = new MutableFlatMap( directory );
+
+        assertSameMutableMap( expected, reopened );
+
+        reopened.close();
+
+        for( String name : directory.list() ) {
+
+            if ( name.endsWith( ".tmp" ) )
+                throw new Exception( "temp file left behind: " + name );
+
+        }
+
+        //variable width keys, removing everything.
+        File string_directory = new File( "test23s" );
+
+        deleteDirectory( string_directory );
+
+        MutableFlatMap<String,String> strings = new MutableFlatMap( string_directory );
+        strings.setFlushThreshold( 4096 );
+
+        for( int i = 0; i < 2000; ++i ) {
+            strings.put( "key" + i, "value" + i );
+        }
+
+        if ( ! "value1234".equals( strings.get( "key1234" ) ) )
+            throw new Exception( "wrong string value" );
+
+        for( int i = 0; i < 2000; ++i ) {
+            strings.remove( "key" + i );
+        }
+
+        strings.compact();
+
+        if ( strings.getFileCount() != 0 || strings.get( "key1" ) != null )
+            throw new Exception( "removed keys came back" );
+
+        strings.put( "key1", "again" );
+        strings.close();
+
+        strings = new MutableFlatMap( string_directory );
+
+        if ( ! "again".equals( strings.get( "key1" ) ) || strings.containsKey( "key2" ) )
+            throw new Exception( "wrong strings after reopening" );
+
+        strings.close();
+
+    }
+
+    public static void test24() throws Exception {
+
+        //writes which were never flushed come back from the write ahead log
+        //after a crash.  Copying the directory while the map is open is
+        //what a crash would leave on disk.
+
+        File directory = new File( "test24" );
+        File crashed = new File( "test24-crashed" );
+
+        deleteDirectory( directory );
+
+        final MutableFlatMap<Long,Long> map = new MutableFlatMap( directory );
+        map.setFlushThreshold( 16 * 1024 );
+
+        final Map<Long,Long> expected = new ConcurrentHashMap();
+
+        for( long key = 0; key < 2000; ++key ) {
+            map.put( key, key );
+            expected.put( key, key );
+        }
+
+        map.flush();
+
+        //no more flushes, so what follows is only in the log.
+        map.setFlushThreshold( Long.MAX_VALUE );
+
+        //concurrent writers share fsyncs.
+        Thread[] writers = new Thread[ 4 ];
+
+        final AtomicReference<Throwable> failure = new AtomicReference();
+
+        for( int i = 0; i < writers.length; ++i ) {
+
+            final int id = i;
+
+            writers[i] = new Thread() {
+
+                public void run() {
+
+                    try {
+
+                        for( long key = id; key < 6000; key += writers.length ) {
+
+                            if ( key % 5 == 0 ) {
+                                map.remove( key );
+                                expected.remove( key );
+                            } else {
+                                map.put( key, key * 3 );
+                                expected.put( key, key * 3 );
+                            }
+
+                        }
+
+                    } catch ( Throwable t ) {
+                        failure.compareAndSet( null, t );
+                    }
+
+                }
+
+            };
+
+            writers[i].start();
+
+        }
+
+        for( Thread writer : writers ) {
+            writer.join();
+        }
+
+        if ( failure.get() != null )
+            throw new Exception( "writer failed", failure.get() );
+
+        //the last record, which gets damaged below.
+        map.put( 1L, 1111L );
+
+        copyDirectory( directory, crashed );
+
+        File segment = null;
+
+        for( File file : crashed.listFiles() ) {
+
+            if ( file.getName().endsWith( ".log" ) )
+                segment = file;
+
+        }
+
+        if ( segment == null )
+            throw new Exception( "no log segment" );
+
+        //a torn write: a record header with only part of its body.
+        FileOutputStream out = new FileOutputStream( segment, true );
+        out.write( new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 1, 9 } );
+        out.close();
+
+        expected.put( 1L, 1111L );
+
+        MutableFlatMap<Long,Long> recovered = new MutableFlatMap( crashed );
+
+        assertSameMutableMap( expected, recovered );
+
+        for( String name : crashed.list() ) {
+
+            if ( name.endsWith( ".log" ) )
+                throw new Exception( "log left after recovery: " + name );
+
+        }
+
+        recovered.close();
+
+        //a damaged last record is dropped; its key keeps the older value.
+        copyDirectory( directory, crashed );
+
+        for( File file : crashed.listFiles() ) {
+
+            if ( file.getName().endsWith( ".log" ) ) {
+
+                RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+                raf.seek( raf.length() - 1 );
+                int last = raf.read();
+                raf.seek( raf.length() - 1 );
+                raf.write( last ^ 0xFF );
+                raf.close();
+
+            }
+
+        }
+
+        expected.put( 1L, 3L );
+
+        recovered = new MutableFlatMap( crashed );
+        assertSameMutableMap( expected, recovered );
+        recovered.close();
+
+        expected.put( 1L, 1111L );
+
+        //background sync: writes don't wait but are on disk within the
+        //interval.
+        map.setSyncInterval( 10 );
+
+        map.put( 2L, 2222L );
+        expected.put( 2L, 2222L );
+
+        Thread.sleep( 200 );
+
+        copyDirectory( directory, crashed );
+
+        recovered = new MutableFlatMap( crashed );
+        assertSameMutableMap( expected, recovered );
+        recovered.close();
+
+        //a clean close leaves no log behind.
+        map.close();
+
+        for( String name : directory.list() ) {
+
+            if ( name.endsWith( ".log" ) )
+                throw new Exception( "log left after close: " + name );
+
+        }
+
+        MutableFlatMap<Long,Long> reopened = new MutableFlatMap( directory );
+        assertSameMutableMap( expected, reopened );
+        reopened.close();
+
+        //a log with only string keys and no flushed files.
+        File string_directory = new File( "test24s" );
+
+        deleteDirectory( string_directory );
+
+        MutableFlatMap<String,String> strings = new MutableFlatMap( string_directory );
+
+        strings.put( "a", "1" );
+        strings.put( "b", "2" );
+        strings.remove( "a" );
+
+        copyDirectory( string_directory, crashed );
+
+        strings.close();
+
+        strings = new MutableFlatMap( crashed );
+
+        if ( strings.get( "a" ) != null || ! "2".equals( strings.get( "b" ) ) )
+            throw new Exception( "wrong strings after recovery" );
+
+        strings.close();
+
+    }
+
+    private static void copyDirectory( File from, File to ) throws Exception {
+
+        deleteDirectory( to );
+        to.mkdirs();
+
+        for( File file : from.listFiles() ) {
+            java.nio.file.Files.copy( file.toPath(), new File( to, file.getName() ).toPath() );
+        }
+
+    }
+
+    public static void test25() throws Exception {
+
+        //sharded maps read the same as the map they were written from, each
+        //key lives in the one shard it routes to, and a shard can be
+        //rebuilt on its own.
+
+        Map<Long,Long> map = new HashMap();
+
+        Random r = new Random( 25 );
+
+        for( int i = 0; i < 20000; ++i ) {
+            map.put( r.nextLong() % 1000000, r.nextLong() );
+        }
+
+        int[] partitionings = { ShardedFlatMap.PARTITION_HASH, ShardedFlatMap.PARTITION_RANGE };
+
+        for( int partitioning : partitionings ) {
+
+            File directory = new File( "test25-" + partitioning );
+
+            deleteDirectory( directory );
+
+            ShardedFlatMapWriter writer = new ShardedFlatMapWriter();
+            writer.setPartitioning( partitioning );
+            writer.setShards( 7 );
+            writer.setThreads( 3 );
+            writer.write( map, directory );
+
+            ShardedFlatMap<Long,Long> sharded = new ShardedFlatMap( directory );
+
+            if ( sharded.getShardCount() != 7 || sharded.size() != map.size() )
+                throw new Exception( "wrong shards: " + sharded.getShardCount() + " " + sharded.size() );
+
+            for( Map.Entry<Long,Long> entry : map.entrySet() ) {
+
+                if ( ! entry.getValue().equals( sharded.get( entry.getKey() ) ) ||
+                     sharded.getLong( entry.getKey(), -1 ) != entry.getValue() )
+                    throw new Exception( "wrong value for: " + entry.getKey() );
+
+            }
+
+            for( long key = 1000000; key < 1001000; ++key ) {
+
+                if ( sharded.containsKey( key ) || sharded.getLong( key, -1 ) != -1 )
+                    throw new Exception( "found missing key: " + key );
+
+            }
+
+            for( int shard = 0; shard < sharded.getShardCount(); ++shard ) {
+
+                try ( ReloadableFlatMap.Lease<Long,Long> lease = sharded.getShard( shard ).acquire() ) {
+
+                    FlatMap<Long,Long> part = lease.get();
+
+                    if ( part.size() == 0 )
+                        throw new Exception( "empty shard: " + shard );
+
+                    for( Long key : part.keySet() ) {
+
+                        if ( sharded.shardOf( key ) != shard )
+                            throw new Exception( "key in the wrong shard: " + key );
+
+                    }
+
+                }
+
+            }
+
+            //rebuild one shard with new values and reload just that one.
+            Map<Long,Long> rebuilt = new HashMap();
+
+            for( Map.Entry<Long,Long> entry : map.entrySet() ) {
+
+                if ( sharded.shardOf( entry.getKey() ) == 3 )
+                    rebuilt.put( entry.getKey(), -entry.getValue() );
+
+            }
+
+            long generation = sharded.getShard( 2 ).getGeneration();
+
+            new FlatMapWriter().write( rebuilt, sharded.getShardFile( 3 ) );
+            sharded.reload( 3 );
+
+            for( Map.Entry<Long,Long> entry : map.entrySet() ) {
+
+                long expected = sharded.shardOf( entry.getKey() ) == 3 ? -entry.getValue() : entry.getValue();
+
+                if ( sharded.getLong( entry.getKey(), -1 ) != expected )
+                    throw new Exception( "wrong value after reload for: " + entry.getKey() );
+
+            }
+
+            if ( sharded.getShard( 2 ).getGeneration() != generation )
+                throw new Exception( "reloaded the wrong shard" );
+
+            long before = sharded.getGeneration();
+
+            sharded.close();
+
+            //a generation left partly written by a crash is ignored and
+            //then cleaned up.
+            new FileOutputStream( new File( directory, ( before + 1 ) + "-00000.fmp" ) ).close();
+
+            sharded = new ShardedFlatMap( directory );
+
+            if ( sharded.getGeneration() != before )
+                throw new Exception( "opened the wrong generation" );
+
+            sharded.close();
+
+            //rewriting is a new generation, with fewer shards here, and
+            //drops the old one.
+            writer.setShards( 2 );
+            writer.write( map, directory );
+
+            for( String name : directory.list() ) {
+
+                if ( name.endsWith( ".fmp" ) && ! name.startsWith( ( before + 2 ) + "-" ) )
+                    throw new Exception( "old shard left behind: " + name );
+
+            }
+
+            sharded = new ShardedFlatMap( directory );
+
+            if ( sharded.getGeneration() != before + 2 )
+                throw new Exception( "wrong generation: " + sharded.getGeneration() );
+
+            if ( sharded.getShardCount() != 2 || sharded.size() != map.size() )
+                throw new Exception( "wrong map after rewriting" );
+
+            for( Map.Entry<Long,Long> entry : map.entrySet() ) {
+
+                if ( ! entry.getValue().equals( sharded.get( entry.getKey() ) ) )
+                    throw new Exception( "wrong value after rewriting for: " + entry.getKey() );
+
+            }
+
+            File shard_file = sharded.getShardFile( 1 );
+
+            sharded.close();
+
+            //a shard that doesn't match the manifest is refused.
+            Map<Long,String> other = new HashMap();
+            other.put( 1L, "one" );
+
+            new FlatMapWriter().write( other, shard_file );
+
+            try {
+                new ShardedFlatMap( directory );
+                throw new Exception( "opened a shard that doesn't match the manifest" );
+            } catch ( IOException e ) { }
+
+        }
+
+        //string keys by range, more shards than entries, and an empty map.
+        Map<String,String> strings = new HashMap();
+
+        for( int i = 0; i < 5; ++i ) {
+            strings.put( "key" + i, "value" + i );
+        }
+
+        File directory = new File( "test25s" );
+
+        deleteDirectory( directory );
+
+        ShardedFlatMapWriter writer = new ShardedFlatMapWriter();
+        writer.setPartitioning( ShardedFlatMap.PARTITION_RANGE );
+        writer.setShards( 8 );
+        writer.write( strings, directory );
+
+        ShardedFlatMap<String,String> sharded = new ShardedFlatMap( directory );
+
+        if ( sharded.getShardCount() != 5 )
+            throw new Exception( "wrong shard count: " + sharded.getShardCount() );
+
+        for( int i = 0; i < 5; ++i ) {
+
+            if ( ! ( "value" + i ).equals( sharded.get( "key" + i ) ) || sharded.shardOf( "key" + i ) != i )
+                throw new Exception( "wrong string value for: " + i );
+
+        }
+
+        if ( sharded.get( "a" ) != null || sharded.get( "zzz" ) != null )
+            throw new Exception( "found missing string" );
+
+        sharded.close();
+
+        //hash partitioned with most shards empty.
+        writer.setPartitioning( ShardedFlatMap.PARTITION_HASH );
+        writer.setShards( 64 );
+        writer.write( strings, directory );
+
+        sharded = new ShardedFlatMap( directory );
+
+        for( int i = 0; i < 5; ++i ) {
+
+            if ( ! ( "value" + i ).equals( sharded.get( "key" + i ) ) )
+                throw new Exception( "wrong string value for: " + i );
+
+        }
+
+        sharded.close();
+
+        writer.write( new HashMap(), directory );
+
+        sharded = new ShardedFlatMap( directory );
+
+        if ( sharded.getShardCount() != 0 || sharded.get( "key1" ) != null )
+            throw new Exception( "empty map has entries" );
+
+        sharded.close();
+
+    }
+
+    private static void assertSameMutableMap( Map<Long,Long> expected, MutableFlatMap<Long,Long> map ) throws Exception {
+
+        for( long key = -10; key < 6010; ++key ) {
+
+            Long value = expected.get( key );
+
+            if ( ! eq( value, map.get( key ) ) ||
+                 map.containsKey( key ) != ( value != null ) ||
+                 map.getLong( key, -1 ) != ( value == null ? -1 : value ) )
+                throw new Exception( "wrong value for: " + key );
+
+        }
+
+    }
+
+    private static void deleteDirectory( File directory ) {
+
+        if ( ! directory.exists() )
+            return;
+
+        for( File file : directory.listFiles() ) {
+            file.delete();
+        }
+
+        directory.delete();
+
+    }
+
+    public static void test26() throws Exception {
+
+        //LAYOUT_PACKED reads the same as LAYOUT_SORTED for sequential,
+        //random and extreme keys, is much smaller for dense IDs and decodes
+        //each block once while it stays in the cache.
+
+        Map<String,Map<Long,Long>> maps = new LinkedHashMap();
+
+        Random r = new Random( 26 );
+
+        Map<Long,Long> sequential = new HashMap();
+
+        for( long i = 0; i < 50000; ++i ) {
+            sequential.put( 1000000 + i, i % 1000 );
+        }
+
+        Map<Long,Long> random = new HashMap();
+
+        for( int i = 0; i < 20000; ++i ) {
+            random.put( r.nextLong(), r.nextLong() );
+        }
+
+        random.put( Long.MIN_VALUE, Long.MAX_VALUE );
+        random.put( Long.MAX_VALUE, Long.MIN_VALUE );
+        random.put( 0L, 0L );
+
+        Map<Long,Long> negative = new HashMap();
+
+        for( int i = 0; i < 1000; ++i ) {
+            negative.put( -5000L + i * 3, -i * 7L );
+        }
+
+        Map<Long,Long> single = new HashMap();
+        single.put( 42L, -42L );
+
+        maps.put( "sequential", sequential );
+        maps.put( "random", random );
+        maps.put( "negative", negative );
+        maps.put( "single", single );
+
+        for( Map.Entry<String,Map<Long,Long>> test : maps.entrySet() ) {
+
+            Map<Long,Long> map = test.getValue();
+
+            File sorted_file = new File( "test26-sorted.fmp" );
+            File packed_file = new File( "test26-packed.fmp" );
+
+            new FlatMapWriter().write( map, sorted_file );
+
+            FlatMapWriter writer = new FlatMapWriter();
+            writer.setLayout( BaseFlatCollection.LAYOUT_PACKED );
+            writer.write( map, packed_file );
+
+            FlatMap<Long,Long> sorted = new FlatMap( sorted_file );
+            FlatMap<Long,Long> packed = new FlatMap( packed_file );
+
+            if ( packed.layout != BaseFlatCollection.LAYOUT_PACKED || packed.size() != map.size() )
+                throw new Exception( "wrong layout or size: " + test.getKey() );
+
+            for( Map.Entry<Long,Long> entry : map.entrySet() ) {
+
+                if ( ! entry.getValue().equals( packed.get( entry.getKey() ) ) ||
+                     packed.getLong( entry.getKey(), -1 ) != entry.getValue() )
+                    throw new Exception( "wrong value for: " + entry.getKey() + " in " + test.getKey() );
+
+            }
+
+            for( int i = 0; i < 1000; ++i ) {
+
+                long key = r.nextLong();
+
+                if ( packed.containsKey( key ) != map.containsKey( key ) )
+                    throw new Exception( "wrong membership for: " + key + " in " + test.getKey() );
+
+                if ( ! Objects.equals( packed.ceilingKey( key ), sorted.ceilingKey( key ) ) ||
+                     ! Objects.equals( packed.higherKey( key ), sorted.higherKey( key ) ) ||
+                     ! Objects.equals( packed.floorKey( key ), sorted.floorKey( key ) ) ||
+                     ! Objects.equals( packed.lowerKey( key ), sorted.lowerKey( key ) ) )
+                    throw new Exception( "wrong neighbours of: " + key + " in " + test.getKey() );
+
+            }
+
+            for( Long key : map.keySet() ) {
+
+                if ( ! Objects.equals( packed.higherKey( key ), sorted.higherKey( key ) ) ||
+                     ! Objects.equals( packed.lowerKey( key ), sorted.lowerKey( key ) ) )
+                    throw new Exception( "wrong neighbours of: " + key + " in " + test.getKey() );
+
+            }
+
+            if ( ! new ArrayList( packed.entrySet() ).equals( new ArrayList( sorted.entrySet() ) ) )
+                throw new Exception( "iteration doesn't match: " + test.getKey() );
+
+            if ( ! Arrays.equals( packed.longValueStream().toArray(), sorted.longValueStream().toArray() ) )
+                throw new Exception( "value stream doesn't match: " + test.getKey() );
+
+            Long low = sorted.firstKey();
+            Long high = sorted.lastKey();
+
+            if ( ! new ArrayList( packed.subMap( low, false, high, true ).entrySet() ).equals(
+                   new ArrayList( sorted.subMap( low, false, high, true ).entrySet() ) ) )
+                throw new Exception( "wrong range: " + test.getKey() );
+
+            if ( test.getKey().equals( "sequential" ) && packed_file.length() * 4 > sorted_file.length() )
+                throw new Exception( "packed file isn't smaller: " + packed_file.length() + " vs " + sorted_file.length() );
+
+            sorted.close();
+            packed.close();
+
+        }
+
+        //int values and a set.
+        Map<Long,Integer> ints = new HashMap();
+        Set<Integer> set = new HashSet();
+
+        for( int i = 0; i < 10000; ++i ) {
+            ints.put( i * 17L, i % 2 == 0 ? i : -i );
+            set.add( i * 5 - 20000 );
+        }
+
+        FlatMapWriter writer = new FlatMapWriter();
+        writer.setLayout( BaseFlatCollection.LAYOUT_PACKED );
+        writer.write( ints, new File( "test26-ints.fmp" ) );
+
+        FlatSetWriter set_writer = new FlatSetWriter();
+        set_writer.setLayout( BaseFlatCollection.LAYOUT_PACKED );
+        set_writer.write( set, new File( "test26.fst" ) );
+
+        FlatMap<Long,Integer> fints = new FlatMap( new File( "test26-ints.fmp" ) );
+        FlatSet<Integer> fset = new FlatSet( new File( "test26.fst" ) );
+
+        for( int i = 0; i < 10000; ++i ) {
+
+            int expected = i % 2 == 0 ? i : -i;
+
+            if ( fints.getInt( i * 17L, 1 ) != expected || ! fints.get( i * 17L ).equals( expected ) ||
+                 fints.getInt( i * 17L + 1, 1 ) != 1 )
+                throw new Exception( "wrong int for: " + i );
+
+            if ( ! fset.contains( i * 5 - 20000 ) || fset.contains( i * 5 - 19999 ) )
+                throw new Exception( "wrong membership for: " + i );
+
+        }
+
+        new FlatSetWriter().write( set, new File( "test26-sorted.fst" ) );
+
+        FlatSet<Integer> sorted_set = new FlatSet( new File( "test26-sorted.fst" ) );
+
+        Iterator<Integer> it = fset.iterator();
+        Iterator<Integer> expected = sorted_set.iterator();
+
+        while( expected.hasNext() ) {
+
+            if ( ! it.hasNext() || ! it.next().equals( expected.next() ) )
+                throw new Exception( "set iteration doesn't match" );
+
+        }
+
+        sorted_set.close();
+
+        fints.close();
+        fset.close();
+
+        //an empty map (FlatMapWriter needs an entry for the types).
+        RecordWriter empty_writer = new RecordWriter( new FileOutputStream( "test26-empty.fmp" ),
+                                                      FlatMap.MAGIC,
+                                                      BaseFlatCollection.LAYOUT_PACKED,
+                                                      0,
+                                                      TypeManager.TYPE_LONG,
+                                                      TypeManager.TYPE_LONG,
+                                                      0 );
+        empty_writer.close();
+
+        FlatMap<Long,Long> empty = new FlatMap( new File( "test26-empty.fmp" ) );
+
+        if ( empty.size() != 0 || empty.containsKey( 1L ) || empty.ceilingKey( 0L ) != null )
+            throw new Exception( "empty map isn't empty" );
+
+        empty.close();
+
+        //hot lookups don't decode again and a small cache evicts.
+        File file = new File( "test26-packed.fmp" );
+
+        writer.write( sequential, file );
+
+        FlatMap<Long,Long> cached = new FlatMap( file );
+
+        for( int pass = 0; pass < 3; ++pass ) {
+
+            for( long i = 0; i < 50000; ++i ) {
+
+                if ( cached.getLong( 1000000 + i, -1 ) != i % 1000 )
+                    throw new Exception( "wrong cached value for: " + i );
+
+            }
+
+        }
+
+        int blocks = ( 50000 + PackedIndex.DEFAULT_RECORDS_PER_BLOCK - 1 ) / PackedIndex.DEFAULT_RECORDS_PER_BLOCK;
+
+        if ( cached.packed.decoded != blocks )
+            throw new Exception( "blocks decoded more than once: " + cached.packed.decoded );
+
+        cached.close();
+
+        OpenOptions options = new OpenOptions();
+        options.setBlockCacheSize( 8 * 1024 );
+
+        FlatMap<Long,Long> small = new FlatMap( file, options );
+
+        for( int pass = 0; pass < 3; ++pass ) {
+
+            for( long i = 0; i < 50000; ++i ) {
+
+                if ( small.getLong( 1000000 + i, -1 ) != i % 1000 )
+                    throw new Exception( "wrong evicted value for: " + i );
+
+            }
+
+        }
+
+        if ( small.packed.decoded <= blocks )
+            throw new Exception( "small cache didn't evict: " + small.packed.decoded );
+
+        small.close();
+
+        //variable width values fall back to LAYOUT_SORTED.
+        Map<Long,String> strings = new HashMap();
+        strings.put( 1L, "one" );
+        strings.put( 2L, "two" );
+
+        writer.write( strings, new File( "test26-strings.fmp" ) );
+
+        FlatMap<Long,String> fstrings = new FlatMap( new File( "test26-strings.fmp" ) );
+
+        if ( fstrings.layout != BaseFlatCollection.LAYOUT_SORTED || ! "two".equals( fstrings.get( 2L ) ) )
+            throw new Exception( "variable width values weren't written sorted" );
+
+        fstrings.close();
+
+    }
+
+    public static void test27() throws Exception {
+
+        //LAYOUT_ELIAS_FANO sets answer membership, seeks and iteration the
+        //same as LAYOUT_SORTED for dense, sparse, clustered and extreme
+        //values, and dense sets take a few bits per value.
+
+        Map<String,Set<Long>> sets = new LinkedHashMap();
+
+        Random r = new Random( 27 );
+
+        Set<Long> dense = new HashSet();
+
+        for( long i = 0; i < 100000; ++i ) {
+
+            if ( r.nextInt( 10 ) != 0 )
+                dense.add( 5000000 + i );
+
+        }
+
+        Set<Long> sparse = new HashSet();
+
+        for( int i = 0; i < 20000; ++i ) {
+            sparse.add( r.nextLong() );
+        }
+
+        sparse.add( Long.MIN_VALUE );
+        sparse.add( Long.MAX_VALUE );
+        sparse.add( 0L );
+        sparse.add( -1L );
+
+        //most values in a few runs so that buckets hold many values each.
+        Set<Long> clustered = new HashSet();
+
+        for( int run = 0; run < 5; ++run ) {
+
+            long start = r.nextLong() >> 8;
+
+            for( int i = 0; i < 5000; ++i ) {
+                clustered.add( start + i );
+            }
+
+        }
+
+        for( int i = 0; i < 100; ++i ) {
+            clustered.add( r.nextLong() );
+        }
+
+        Set<Long> single = new HashSet();
+        single.add( -42L );
+
+        sets.put( "dense", dense );
+        sets.put( "sparse", sparse );
+        sets.put( "clustered", clustered );
+        sets.put( "single", single );
+
+        for( Map.Entry<String,Set<Long>> test : sets.entrySet() ) {
+
+            Set<Long> set = test.getValue();
+
+            File sorted_file = new File( "test27-sorted.fst" );
+            File coded_file = new File( "test27-coded.fst" );
+
+            new FlatSetWriter().write( set, sorted_file );
+
+            FlatSetWriter writer = new FlatSetWriter();
+            writer.setLayout( BaseFlatCollection.LAYOUT_ELIAS_FANO );
+            writer.write( set, coded_file );
+
+            FlatSet<Long> sorted = new FlatSet( sorted_file );
+            FlatSet<Long> coded = new FlatSet( coded_file );
+
+            if ( coded.layout != BaseFlatCollection.LAYOUT_ELIAS_FANO || coded.size() != set.size() )
+                throw new Exception( "wrong layout or size: " + test.getKey() );
+
+            for( Long value : set ) {
+
+                if ( ! coded.contains( value ) || ! coded.containsLong( value ) )
+                    throw new Exception( "missing value: " + value + " in " + test.getKey() );
+
+                if ( coded.containsLong( value + 1 ) != set.contains( value + 1 ) ||
+                     coded.containsLong( value - 1 ) != set.contains( value - 1 ) )
+                    throw new Exception( "wrong neighbour of: " + value + " in " + test.getKey() );
+
+            }
+
+            List<Long> probes = new ArrayList();
+
+            for( int i = 0; i < 2000; ++i ) {
+                probes.add( r.nextLong() );
+            }
+
+            for( Long value : set ) {
+
+                probes.add( value );
+                probes.add( value + 1 );
+
+                if ( probes.size() > 20000 )
+                    break;
+
+            }
+
+            Cursor sorted_cursor = sorted.cursor();
+            Cursor coded_cursor = coded.cursor();
+
+            for( Long probe : probes ) {
+
+                if ( coded.containsLong( probe ) != set.contains( probe ) )
+                    throw new Exception( "wrong membership for: " + probe + " in " + test.getKey() );
+
+                sorted_cursor.seek( probe );
+                coded_cursor.seek( probe );
+
+                boolean found = sorted_cursor.next();
+
+                if ( coded_cursor.next() != found ||
+                     ( found && coded_cursor.keyAsLong() != sorted_cursor.keyAsLong() ) )
+                    throw new Exception( "wrong successor of: " + probe + " in " + test.getKey() );
+
+            }
+
+            if ( ! Arrays.equals( coded.longStream().toArray(), sorted.longStream().toArray() ) )
+                throw new Exception( "iteration doesn't match: " + test.getKey() );
+
+            Iterator<Long> it = coded.iterator();
+            Iterator<Long> expected = sorted.iterator();
+
+            while( expected.hasNext() ) {
+
+                if ( ! it.hasNext() || ! it.next().equals( expected.next() ) )
+                    throw new Exception( "iterator doesn't match: " + test.getKey() );
+
+            }
+
+            long[] batch = new long[ 1000 ];
+            boolean[] coded_result = new boolean[ batch.length ];
+            boolean[] sorted_result = new boolean[ batch.length ];
+
+            for( int i = 0; i < batch.length; ++i ) {
+                batch[i] = probes.get( r.nextInt( probes.size() ) );
+            }
+
+            coded.containsAll( batch, coded_result );
+            sorted.containsAll( batch, sorted_result );
+
+            if ( ! Arrays.equals( coded_result, sorted_result ) )
+                throw new Exception( "batch membership doesn't match: " + test.getKey() );
+
+            //under 3 bits per value rather than 64.
+            if ( test.getKey().equals( "dense" ) && coded_file.length() * 8 > set.size() * 3L + 4096 * 8 )
+                throw new Exception( "dense set isn't compact: " + coded_file.length() + " bytes" );
+
+            sorted.close();
+            coded.close();
+
+        }
+
+        //int values, including both signs.
+        Set<Integer> ints = new HashSet();
+
+        for( int i = 0; i < 10000; ++i ) {
+            ints.add( i * 3 - 15000 );
+        }
+
+        FlatSetWriter writer = new FlatSetWriter();
+        writer.setLayout( BaseFlatCollection.LAYOUT_ELIAS_FANO );
+        writer.write( ints, new File( "test27-ints.fst" ) );
+
+        FlatSet<Integer> fints = new FlatSet( new File( "test27-ints.fst" ) );
+
+        for( int i = -20000; i < 20000; ++i ) {
+
+            if ( fints.containsInt( i ) != ints.contains( i ) || fints.contains( i ) != ints.contains( i ) )
+                throw new Exception( "wrong int membership for: " + i );
+
+        }
+
+        if ( fints.intStream().count() != ints.size() || ! ints.containsAll( fints.intStream().boxed().collect( java.util.stream.Collectors.toSet() ) ) )
+            throw new Exception( "wrong int iteration" );
+
+        fints.close();
+
+        //an empty set (FlatSetWriter needs an entry for the type).
+        RecordWriter empty_writer = new RecordWriter( new FileOutputStream( "test27-empty.fst" ),
+                                                      FlatSet.MAGIC,
+                                                      BaseFlatCollection.LAYOUT_ELIAS_FANO,
+                                                      0,
+                                                      TypeManager.TYPE_LONG,
+                                                      0,
+                                                      0 );
+        empty_writer.close();
+
+        FlatSet<Long> empty = new FlatSet( new File( "test27-empty.fst" ) );
+
+        Cursor cursor = empty.cursor();
+        cursor.seek( 0L );
+
+        if ( empty.size() != 0 || empty.containsLong( 0 ) || cursor.next() )
+            throw new Exception( "empty set isn't empty" );
+
+        empty.close();
+
+        //values can't be coded, so maps are refused.
+        Map<Long,Long> map = new HashMap();
+        map.put( 1L, 1L );
+
+        FlatMapWriter map_writer = new FlatMapWriter();
+        map_writer.setLayout( BaseFlatCollection.LAYOUT_ELIAS_FANO );
+
+        try {
+            map_writer.write( map, new File( "test27.fmp" ) );
+            throw new Exception( "map written with LAYOUT_ELIAS_FANO" );
+        } catch ( IOException e ) {
+            //expected.
+        }
+
+        if ( new File( "test27.fmp" ).exists() )
+            throw new Exception( "failed write left a file" );
+
+    }
+
     public static void main( String[] args ) throws Exception {
 
         test1();
         test2();
+        test3();
+        test4();
+        test5();
+        test6();
+        test7();
+        test8();
+        test9();
+        test10();
+        test11();
+        test12();
+        test13();
+        test14();
+        test15();
+        test16();
+        test17();
+        test18();
+        test19();
+        test20();
+        test21();
+        test22();
+        test23();
+        test24();
+        test25();
+        test26();
+        test27();
         
         System.out.printf( "Testing flat map\n" );
 
@@ -0,0 +1,176 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+
+/**
+ * Static B+tree over the sorted key array of LAYOUT_BTREE files.
+ *
+ * The key array itself is the leaf level, cut into nodes of keys_per_node
+ * keys.  Each internal level holds the first key of every node of the level
+ * below it, so the root is a single node and a lookup reads one node per
+ * level.  With 8 byte keys and 64 byte nodes that's log8(n) cache lines
+ * instead of the log2(n) a binary search over the whole array touches, and
+ * the top levels are small enough to stay in cache.
+ *
+ * Everything is read straight from the mapping.  Nothing is copied to the
+ * heap and lookups don't allocate.
+ */
+class TreeIndex {
+
+    /**
+     * Above this many keys per node a node is binary searched rather than
+     * scanned.
+     */
+    private static final int SCAN_THRESHOLD = 16;
+
+    private MappedRegion region;
+
+    private long keys_offset;
+
+    private long size;
+
+    private int width;
+
+    private int keys_per_node;
+
+    /**
+     * Internal levels, root first.
+     */
+    private long[] level_offsets;
+
+    private long[] level_counts;
+
+    public TreeIndex( MappedRegion region, long tree_offset, long keys_offset, long size, int width ) throws IOException {
+
+        this.region       = region;
+        this.keys_offset  = keys_offset;
+        this.size         = size;
+        this.width        = width;
+
+        keys_per_node     = region.getInt( tree_offset );
+
+        int levels        = region.getInt( tree_offset + 4 );
+
+        if ( keys_per_node < 2 || levels < 0 )
+            throw new IOException( "Corrupt tree index" );
+
+        level_offsets     = new long[ levels ];
+        level_counts      = new long[ levels ];
+
+        for( int i = 0; i < levels; ++i ) {
+            level_offsets[i] = region.getLong( tree_offset + 8 + i * 16 );
+            level_counts[i]  = region.getLong( tree_offset + 16 + i * 16 );
+        }
+
+    }
+
+    public int getKeysPerNode() {
+        return keys_per_node;
+    }
+
+    /**
+     * Return the position of the given sort key or -1 if it isn't present.
+     */
+    public long find( long key ) {
+
+        if ( size == 0 )
+            return -1;
+
+        long node = 0;
+
+        for( int i = 0; i < level_offsets.length; ++i ) {
+
+            long start = node * keys_per_node;
+            long end = Math.min( start + keys_per_node, level_counts[i] );
+
+            node = lastLessOrEqual( level_offsets[i], start, end, key );
+
+            //sorts before the first key.
+            if ( node < 0 )
+                return -1;
+
+        }
+
+        long start = node * keys_per_node;
+        long end = Math.min( start + keys_per_node, size );
+
+        long pos = lastLessOrEqual( keys_offset, start, end, key );
+
+        if ( pos >= 0 && sortKey( keys_offset, pos ) == key )
+            return pos;
+
+        return -1;
+
+    }
+
+    /**
+     * Find the last entry in [start, end) of the array at base which is less
+     * than or equal to key, or -1 if key sorts before all of them.
+     */
+    private long lastLessOrEqual( long base, long start, long end, long key ) {
+
+        if ( end - start <= SCAN_THRESHOLD ) {
+
+            long result = start - 1;
+
+            for( long i = start; i < end; ++i ) {
+
+                if ( sortKey( base, i ) > key )
+                    break;
+
+                result = i;
+
+            }
+
+            return result < start ? -1 : result;
+
+        }
+
+        long low = start;
+        long high = end - 1;
+        long result = -1;
+
+        while ( low <= high ) {
+
+            long mid = (low + high) >>> 1;
+
+            if ( sortKey( base, mid ) <= key ) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+
+        }
+
+        return result;
+
+    }
+
+    private long sortKey( long base, long i ) {
+
+        long ptr = base + i * width;
+        long raw;
+
+        switch( width ) {
+
+            case 8:
+                raw = region.getLong( ptr );
+                break;
+            case 4:
+                raw = region.getInt( ptr );
+                break;
+            case 2:
+                raw = region.getShort( ptr );
+                break;
+            default:
+                raw = region.get( ptr );
+                break;
+
+        }
+
+        return ByteArrayComparator.sortKey( raw, width );
+
+    }
+
+}
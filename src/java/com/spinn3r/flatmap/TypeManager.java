@@ -8,7 +8,7 @@ import java.util.*;
  */
 public class TypeManager {
 
-    private static final TypeHandler[] TYPE_HANDLER_LOOKUP = new TypeHandler[ 10 ];
+    private static final TypeHandler[] TYPE_HANDLER_LOOKUP = new TypeHandler[ 16 ];
 
     public static final int TYPE_INT      = 1;
     public static final int TYPE_BYTE     = 2;
@@ -18,6 +18,17 @@ public class TypeManager {
     public static final int TYPE_BOOLEAN  = 6;
     public static final int TYPE_SHORT    = 7;
 
+    // variable width types.  These are stored through a pointer into a data
+    // section since records have to be fixed width.
+    public static final int TYPE_STRING      = 8;
+    public static final int TYPE_BYTES       = 9;
+    public static final int TYPE_SERIALIZED  = 10;
+
+    /**
+     * Returned by TypeHandler.sizeOf() for variable width types.
+     */
+    public static final int VARIABLE = -1;
+
     static {
         TYPE_HANDLER_LOOKUP[TYPE_INT]      = new IntegerTypeHandler();
         TYPE_HANDLER_LOOKUP[TYPE_BYTE]     = new ByteTypeHandler();
@@ -26,6 +37,10 @@ public class TypeManager {
         TYPE_HANDLER_LOOKUP[TYPE_FLOAT]    = new FloatTypeHandler();
         TYPE_HANDLER_LOOKUP[TYPE_BOOLEAN]  = new BooleanTypeHandler();
         TYPE_HANDLER_LOOKUP[TYPE_SHORT]    = new ShortTypeHandler();
+
+        TYPE_HANDLER_LOOKUP[TYPE_STRING]      = new StringTypeHandler();
+        TYPE_HANDLER_LOOKUP[TYPE_BYTES]       = new ByteArrayTypeHandler();
+        TYPE_HANDLER_LOOKUP[TYPE_SERIALIZED]  = new SerializedTypeHandler();
     }
 
     public static TypeHandler lookupTypeHandler( int key_type ) {
@@ -55,6 +70,16 @@ public class TypeManager {
         if ( o instanceof Short )
             return TYPE_SHORT;
 
+        if ( o instanceof String )
+            return TYPE_STRING;
+
+        if ( o instanceof byte[] )
+            return TYPE_BYTES;
+
+        //anything else we can still store as a blob.
+        if ( o instanceof Serializable )
+            return TYPE_SERIALIZED;
+
         throw new RuntimeException( "Type not supported: " + o.getClass().getName() );
         
     }
@@ -63,11 +88,43 @@ public class TypeManager {
         return new IntegerTypeHandler().toByteArray( new Integer( v ) );
     }
 
+    /**
+     * Big endian, as LongTypeHandler encodes it, without boxing.
+     */
+    public static byte[] toByteArray( long v ) {
+
+        byte[] b = new byte[8];
+
+        for( int i = 7; i >= 0; --i ) {
+            b[i] = (byte)v;
+            v >>= 8;
+        }
+
+        return b;
+
+    }
+
     public static int toInt( byte[] data ) {
         Integer i = (Integer)new IntegerTypeHandler().toValue( data );
         return i.intValue();
     }
 
+    /**
+     * Read an encoded fixed width value as a sign extended long, the same as
+     * TypeHandler.toRawLong would return for the decoded value.
+     */
+    public static long toRawLong( byte[] data ) {
+
+        long raw = data[0];
+
+        for( int i = 1; i < data.length; ++i ) {
+            raw = (raw << 8) | (data[i] & 0xFF);
+        }
+
+        return raw;
+
+    }
+
 }
 
 interface TypeHandler {
@@ -76,6 +133,19 @@ interface TypeHandler {
 
     public Object toValue( byte[] data );
 
+    /**
+     * Return the raw big endian bits of this value as a sign extended long.
+     * This is the same value that ByteBuffer.getLong/getInt/getShort/get
+     * would return when reading the encoded form back out of the buffer.
+     */
+    public long toRawLong( Object o );
+
+    /**
+     * Inverse of toRawLong.  Used to decode values read directly from the
+     * buffer without first copying them into a byte array.
+     */
+    public Object fromRawLong( long raw );
+
     /**
      * Size of this type (in bytes).
      */
@@ -118,6 +188,14 @@ class IntegerTypeHandler implements TypeHandler {
 
     }
 
+    public long toRawLong( Object o ) {
+        return ((Integer)o).intValue();
+    }
+
+    public Object fromRawLong( long raw ) {
+        return Integer.valueOf( (int)raw );
+    }
+
     public int sizeOf() {
         return 4;
     }
@@ -167,6 +245,14 @@ class LongTypeHandler implements TypeHandler {
 
     }
 
+    public long toRawLong( Object o ) {
+        return ((Long)o).longValue();
+    }
+
+    public Object fromRawLong( long raw ) {
+        return Long.valueOf( raw );
+    }
+
     public int sizeOf() {
         return 8;
     }
@@ -184,6 +270,14 @@ class DoubleTypeHandler extends LongTypeHandler {
     public Object toValue( byte[] b ) {
         return new Double( Double.longBitsToDouble( super.toValueAsPrimitive( b ) ) );
     }
+
+    public long toRawLong( Object o ) {
+        return Double.doubleToRawLongBits( ((Double)o).doubleValue() );
+    }
+
+    public Object fromRawLong( long raw ) {
+        return Double.valueOf( Double.longBitsToDouble( raw ) );
+    }
     
 }
 
@@ -199,6 +293,14 @@ class FloatTypeHandler extends IntegerTypeHandler {
     public Object toValue( byte[] b ) {
         return new Float( Float.intBitsToFloat( super.toValueAsPrimitive( b ) ) );
     }
+
+    public long toRawLong( Object o ) {
+        return Float.floatToRawIntBits( ((Float)o).floatValue() );
+    }
+
+    public Object fromRawLong( long raw ) {
+        return Float.valueOf( Float.intBitsToFloat( (int)raw ) );
+    }
     
 }
 
@@ -219,6 +321,14 @@ class ByteTypeHandler implements TypeHandler {
         return new Byte( b[0] );
     }
 
+    public long toRawLong( Object o ) {
+        return ((Byte)o).byteValue();
+    }
+
+    public Object fromRawLong( long raw ) {
+        return Byte.valueOf( (byte)raw );
+    }
+
     public int sizeOf() {
         return 1;
     }
@@ -242,6 +352,14 @@ class BooleanTypeHandler implements TypeHandler {
         return new Boolean( b[0] == 1 );
     }
 
+    public long toRawLong( Object o ) {
+        return ((Boolean)o).booleanValue() ? 1 : 0;
+    }
+
+    public Object fromRawLong( long raw ) {
+        return Boolean.valueOf( raw == 1 );
+    }
+
     public int sizeOf() {
         return 1;
     }
@@ -277,6 +395,14 @@ class ShortTypeHandler implements TypeHandler {
         return new Short( toValueAsPrimitive( b ) );
     }
 
+    public long toRawLong( Object o ) {
+        return ((Short)o).shortValue();
+    }
+
+    public Object fromRawLong( long raw ) {
+        return Short.valueOf( (short)raw );
+    }
+
     public int sizeOf() {
         return 2;
     }
@@ -286,6 +412,98 @@ class CharTypeHandler extends ShortTypeHandler {
 
 }
 
+/**
+ * Base class for variable width types.  These can't be read as a raw long.
+ */
+abstract class VariableTypeHandler implements TypeHandler {
+
+    public long toRawLong( Object o ) {
+        throw new RuntimeException( "Variable width type" );
+    }
+
+    public Object fromRawLong( long raw ) {
+        throw new RuntimeException( "Variable width type" );
+    }
+
+    public int sizeOf() {
+        return TypeManager.VARIABLE;
+    }
+
+}
+
+class StringTypeHandler extends VariableTypeHandler {
+
+    public byte[] toByteArray( Object o ) {
+
+        try {
+            return ((String)o).getBytes( "UTF-8" );
+        } catch ( UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+
+    }
+
+    public Object toValue( byte[] b ) {
+
+        try {
+            return new String( b, "UTF-8" );
+        } catch ( UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+
+    }
+
+}
+
+class ByteArrayTypeHandler extends VariableTypeHandler {
+
+    public byte[] toByteArray( Object o ) {
+        return (byte[])o;
+    }
+
+    public Object toValue( byte[] b ) {
+        return b;
+    }
+
+}
+
+/**
+ * Stores any Serializable value as a blob using Java serialization.
+ */
+class SerializedTypeHandler extends VariableTypeHandler {
+
+    public byte[] toByteArray( Object o ) {
+
+        try {
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream( bos );
+            out.writeObject( o );
+            out.close();
+
+            return bos.toByteArray();
+
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+
+    }
+
+    public Object toValue( byte[] b ) {
+
+        try {
+
+            ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( b ) );
+            return in.readObject();
+
+        } catch ( Exception e ) {
+            throw new RuntimeException( e );
+        }
+
+    }
+
+}
+
 // http://java.sun.com/docs/books/tutorial/java/nutsandbolts/datatypes.html
 
 //short
@@ -0,0 +1,145 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Background thread which touches every page of a mapped file so that it is
+ * read into the page cache without blocking the thread which opened it.
+ *
+ * Ranges are warmed in the order given, so the sections every lookup needs
+ * can be put ahead of the bulk of the keys and values.  Parts of a range
+ * already covered by an earlier one are skipped, so each byte is read and
+ * counted towards progress once.
+ */
+class Warmer extends Thread {
+
+    /**
+     * Report progress every this many bytes.
+     */
+    static final long REPORT_INTERVAL = 64L * 1024 * 1024;
+
+    private static final int PAGE_SIZE = 4096;
+
+    private File file;
+
+    private MappedRegion region;
+
+    private List<long[]> ranges;
+
+    private WarmupListener listener;
+
+    private volatile boolean warm = false;
+
+    /**
+     * Keeps the JIT from dropping the reads.
+     */
+    volatile int checksum = 0;
+
+    /**
+     * @param ranges (offset, length) pairs to warm, in order.  They may
+     * overlap.
+     */
+    Warmer( File file, MappedRegion region, List<long[]> ranges, WarmupListener listener ) {
+
+        super( "flatmap-warmup: " + file.getName() );
+        setDaemon( true );
+
+        this.file     = file;
+        this.region   = region;
+        this.ranges   = disjoint( ranges );
+        this.listener = listener;
+
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    public void run() {
+
+        long total = 0;
+
+        for( long[] range : ranges ) {
+            total += range[1];
+        }
+
+        long done = 0;
+        long reported = 0;
+        int sum = 0;
+
+        for( long[] range : ranges ) {
+
+            long end = range[0] + range[1];
+
+            for( long ptr = range[0]; ptr < end; ptr += PAGE_SIZE ) {
+
+                //stop quietly when asked to.
+                if ( isInterrupted() )
+                    return;
+
+                sum += region.get( ptr );
+
+                done += Math.min( PAGE_SIZE, end - ptr );
+
+                if ( listener != null && done - reported >= REPORT_INTERVAL ) {
+                    listener.progress( file, done, total );
+                    reported = done;
+                }
+
+            }
+
+        }
+
+        checksum = sum;
+        warm = true;
+
+        if ( listener != null )
+            listener.progress( file, total, total );
+
+    }
+
+    /**
+     * The same ranges in the same order with whatever an earlier range
+     * covers cut out of the later ones.
+     */
+    static List<long[]> disjoint( List<long[]> ranges ) {
+
+        List<long[]> result = new ArrayList();
+
+        for( long[] range : ranges ) {
+
+            List<long[]> pieces = new ArrayList();
+            pieces.add( new long[] { range[0], range[0] + range[1] } );
+
+            for( long[] taken : result ) {
+
+                long taken_end = taken[0] + taken[1];
+
+                List<long[]> remaining = new ArrayList();
+
+                for( long[] piece : pieces ) {
+
+                    if ( piece[0] < taken[0] )
+                        remaining.add( new long[] { piece[0], Math.min( piece[1], taken[0] ) } );
+
+                    if ( piece[1] > taken_end )
+                        remaining.add( new long[] { Math.max( piece[0], taken_end ), piece[1] } );
+
+                }
+
+                pieces = remaining;
+
+            }
+
+            for( long[] piece : pieces ) {
+                result.add( new long[] { piece[0], piece[1] - piece[0] } );
+            }
+
+        }
+
+        return result;
+
+    }
+
+}
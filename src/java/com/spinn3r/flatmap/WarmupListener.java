@@ -0,0 +1,17 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+
+/**
+ * Progress callback for loading or warming a file.  With OpenOptions.WARM
+ * it is called from the warm up thread.
+ */
+public interface WarmupListener {
+
+    /**
+     * Called periodically as pages are brought in and once more with bytes
+     * equal to total when the whole file is resident.
+     */
+    public void progress( File file, long bytes, long total );
+
+}
@@ -0,0 +1,619 @@
+package com.spinn3r.flatmap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+/**
+ * Append only log of the updates to a MutableFlatMap which haven't been
+ * flushed to a file yet, so they survive a crash.
+ *
+ * The log is a series of segments, one per memtable.  When a memtable is
+ * handed to the flush thread its segment is closed (roll) and a new one is
+ * started with the next write.  Once the memtable is in a file the segment
+ * is deleted.  Each segment is MAGIC followed by records:
+ *
+ * <pre>
+ * 4 bytes  length of the rest of the record
+ * 4 bytes  CRC32 of the rest of the record
+ * 1 byte   OP_PUT, OP_REMOVE or OP_TYPES
+ * varint   key length, then the encoded key
+ * varint   value length, then the encoded value (puts only)
+ * </pre>
+ *
+ * An OP_TYPES record holds the key and value types as two ints instead of a
+ * key.  One starts every segment and another follows whenever the map
+ * learns its value type (a map may start out with only removes).
+ *
+ * Replay stops at the first record which is cut short or fails its
+ * checksum, which is where a crash interrupted the last write.
+ *
+ * Appends only copy the record into a buffer.  Durability comes from
+ * sync(), which uses group commit: the log's own thread takes everything
+ * buffered so far (the record asked for and everyone else's) and forces it
+ * to disk, while writers arriving meanwhile append behind it and wait.  The
+ * next round then covers all of them with one more force, so the number of
+ * fsyncs depends on how long one takes rather than on the update rate.
+ *
+ * Only that thread writes to the channel.  A FileChannel is closed when a
+ * thread using it is interrupted, so interrupting a writer waiting in sync
+ * just makes its sync fail rather than breaking the log for everyone.
+ */
+class WriteAheadLog implements Closeable {
+
+    public static final byte[] MAGIC = "FW01".getBytes();
+
+    static final int HEADER_SIZE = 4;
+
+    static final byte OP_PUT = 1;
+
+    static final byte OP_REMOVE = 2;
+
+    static final byte OP_TYPES = 3;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile( "([0-9a-f]{16})\\.log" );
+
+    private File directory;
+
+    private int key_type;
+
+    private int value_type;
+
+    private long next_segment;
+
+    private File segment = null;
+
+    private FileChannel channel = null;
+
+    /**
+     * Records appended but not yet written to the channel.
+     */
+    private byte[] buffer = new byte[ 64 * 1024 ];
+
+    private int buffer_length = 0;
+
+    /**
+     * Handed back by the leader once its buffer has been written so the two
+     * are swapped rather than reallocated.
+     */
+    private byte[] spare = new byte[ 64 * 1024 ];
+
+    /**
+     * Bytes appended and bytes known to be on disk, counted across all
+     * segments.  sync( position ) waits for synced to reach position.
+     */
+    private long written = 0;
+
+    private long synced = 0;
+
+    /**
+     * Largest position a writer is waiting in sync for.
+     */
+    private long requested = 0;
+
+    /**
+     * Sync at least this often without being asked, or 0.
+     */
+    private long sync_interval = 0;
+
+    private long last_sync = System.currentTimeMillis();
+
+    private boolean stopping = false;
+
+    private IOException error = null;
+
+    private CRC32 crc = new CRC32();
+
+    private Syncer syncer;
+
+    WriteAheadLog( File directory, int key_type, int value_type ) {
+
+        this.directory   = directory;
+        this.key_type    = key_type;
+        this.value_type  = value_type;
+
+        next_segment = 1;
+
+        for( File file : segments( directory ) ) {
+            next_segment = Math.max( next_segment, sequenceOf( file ) + 1 );
+        }
+
+        syncer = new Syncer();
+        syncer.start();
+
+    }
+
+    /**
+     * The key and value types aren't known until the first put into a new
+     * map.  They have to be set before the first append.
+     */
+    synchronized void setTypes( int key_type, int value_type ) {
+
+        this.key_type    = key_type;
+        this.value_type  = value_type;
+
+        //otherwise it goes out when the next segment starts.
+        if ( channel != null )
+            appendTypes();
+
+    }
+
+    /**
+     * Sync in the background at least every interval_millis instead of
+     * having writers wait for it.
+     */
+    synchronized void setSyncInterval( long interval_millis ) {
+
+        sync_interval = Math.max( 0, interval_millis );
+
+        notifyAll();
+
+    }
+
+    /**
+     * Append a record and return the position sync has to reach for it to
+     * be durable.
+     */
+    synchronized long append( byte op, byte[] key, byte[] value ) throws IOException {
+
+        if ( error != null )
+            throw new IOException( "Write ahead log failed", error );
+
+        if ( channel == null )
+            open();
+
+        if ( op == OP_PUT && value == null )
+            throw new NullPointerException( "null value" );
+
+        int value_length = value == null ? 0 : value.length;
+
+        int length = 1 + varIntSize( key.length ) + key.length;
+
+        if ( op == OP_PUT )
+            length += varIntSize( value_length ) + value_length;
+
+        int start = startRecord( op, length );
+
+        writeVarInt( key.length );
+        System.arraycopy( key, 0, buffer, buffer_length, key.length );
+        buffer_length += key.length;
+
+        if ( op == OP_PUT ) {
+            writeVarInt( value_length );
+            System.arraycopy( value, 0, buffer, buffer_length, value_length );
+            buffer_length += value_length;
+        }
+
+        return endRecord( start, length );
+
+    }
+
+    private void appendTypes() {
+
+        int start = startRecord( OP_TYPES, 9 );
+
+        ByteBuffer.wrap( buffer, buffer_length, 8 ).putInt( key_type ).putInt( value_type );
+        buffer_length += 8;
+
+        endRecord( start, 9 );
+
+    }
+
+    /**
+     * Make room for a record with a body of the given length (including
+     * the op) and write the op.  Returns where the record starts.
+     */
+    private int startRecord( byte op, int length ) {
+
+        ensureCapacity( 8 + length );
+
+        int start = buffer_length;
+
+        buffer_length += 8;
+
+        buffer[buffer_length++] = op;
+
+        return start;
+
+    }
+
+    /**
+     * Fill in the length and checksum.  Returns the log position after the
+     * record.
+     */
+    private long endRecord( int start, int length ) {
+
+        crc.reset();
+        crc.update( buffer, start + 8, length );
+
+        ByteBuffer.wrap( buffer, start, 8 ).putInt( length ).putInt( (int)crc.getValue() );
+
+        written += 8 + length;
+
+        return written;
+
+    }
+
+    /**
+     * Block until everything up to position is on disk.
+     */
+    synchronized void sync( long position ) throws IOException {
+
+        if ( position > requested ) {
+            requested = position;
+            notifyAll();
+        }
+
+        while ( synced < position ) {
+
+            if ( error != null )
+                throw new IOException( "Write ahead log failed", error );
+
+            try {
+                wait();
+            } catch ( InterruptedException e ) {
+                //the record is still written by the next round.
+                throw new InterruptedIOException();
+            }
+
+        }
+
+    }
+
+    /**
+     * Sync and close the current segment.  The next append starts a new
+     * one.  Returns the closed segment, or null if nothing was written
+     * since the last roll.
+     */
+    File roll() throws IOException {
+
+        File closed;
+
+        synchronized( this ) {
+
+            if ( channel == null )
+                return null;
+
+            closed = segment;
+
+        }
+
+        sync( written() );
+
+        synchronized( this ) {
+
+            channel.close();
+
+            channel = null;
+            segment = null;
+
+        }
+
+        return closed;
+
+    }
+
+    public void close() throws IOException {
+
+        try {
+            roll();
+        } finally {
+            stop();
+        }
+
+    }
+
+    private void stop() {
+
+        synchronized( this ) {
+            stopping = true;
+            notifyAll();
+        }
+
+        try {
+            syncer.join();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    private synchronized long written() {
+        return written;
+    }
+
+    /**
+     * Start a new segment.  The header goes out with the first sync.
+     */
+    private void open() throws IOException {
+
+        segment = new File( directory, String.format( "%016x.log", next_segment++ ) );
+
+        channel = FileChannel.open( segment.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE );
+
+        //force() on the segment doesn't cover its directory entry, so
+        //without this a synced segment could vanish in a crash.
+        AtomicFile.syncDirectory( directory );
+
+        ensureCapacity( HEADER_SIZE );
+
+        System.arraycopy( MAGIC, 0, buffer, buffer_length, HEADER_SIZE );
+
+        buffer_length  += HEADER_SIZE;
+        written        += HEADER_SIZE;
+
+        appendTypes();
+
+    }
+
+    private void ensureCapacity( int length ) {
+
+        if ( buffer_length + length <= buffer.length )
+            return;
+
+        buffer = Arrays.copyOf( buffer, Math.max( buffer.length * 2, buffer_length + length ) );
+
+    }
+
+    private void writeVarInt( int v ) {
+
+        while ( ( v & ~0x7F ) != 0 ) {
+            buffer[buffer_length++] = (byte)( ( v & 0x7F ) | 0x80 );
+            v >>>= 7;
+        }
+
+        buffer[buffer_length++] = (byte)v;
+
+    }
+
+    private static int varIntSize( int v ) {
+
+        int size = 1;
+
+        while ( ( v & ~0x7F ) != 0 ) {
+            v >>>= 7;
+            ++size;
+        }
+
+        return size;
+
+    }
+
+    /**
+     * The log segments in the directory, oldest first.
+     */
+    static List<File> segments( File directory ) {
+
+        List<File> files = new ArrayList();
+
+        for( File file : directory.listFiles() ) {
+
+            if ( SEGMENT_NAME.matcher( file.getName() ).matches() )
+                files.add( file );
+
+        }
+
+        Collections.sort( files, new Comparator<File>() {
+
+            public int compare( File a, File b ) {
+                return Long.compare( sequenceOf( a ), sequenceOf( b ) );
+            }
+
+        } );
+
+        return files;
+
+    }
+
+    private static long sequenceOf( File file ) {
+        return Long.parseLong( file.getName().substring( 0, 16 ), 16 );
+    }
+
+    /**
+     * Receives the records of a segment in order.  types comes before any
+     * put or remove.
+     */
+    interface Visitor {
+
+        void types( int key_type, int value_type ) throws IOException;
+
+        void put( byte[] key, byte[] value );
+
+        void remove( byte[] key );
+
+    }
+
+    /**
+     * Read back a segment.  Returns the number of records replayed.
+     */
+    static long replay( File file, Visitor visitor ) throws IOException {
+
+        byte[] data = Files.readAllBytes( file.toPath() );
+
+        //cut off before the header made it out.
+        if ( data.length < HEADER_SIZE )
+            return 0;
+
+        ByteBuffer buff = ByteBuffer.wrap( data );
+
+        byte[] magic = new byte[ MAGIC.length ];
+        buff.get( magic );
+
+        if ( ! Arrays.equals( magic, MAGIC ) )
+            throw new IOException( "Invalid magic number in: " + file.getPath() );
+
+        CRC32 crc = new CRC32();
+
+        long count = 0;
+
+        while ( buff.remaining() >= 8 ) {
+
+            int length   = buff.getInt();
+            int checksum = buff.getInt();
+
+            if ( length <= 0 || length > buff.remaining() )
+                break;
+
+            crc.reset();
+            crc.update( data, buff.position(), length );
+
+            if ( (int)crc.getValue() != checksum )
+                break;
+
+            int end = buff.position() + length;
+
+            byte op = buff.get();
+
+            if ( op == OP_TYPES ) {
+                visitor.types( buff.getInt(), buff.getInt() );
+                continue;
+            }
+
+            byte[] key = new byte[ readVarInt( buff ) ];
+            buff.get( key );
+
+            if ( op == OP_PUT ) {
+                byte[] value = new byte[ readVarInt( buff ) ];
+                buff.get( value );
+                visitor.put( key, value );
+            } else {
+                visitor.remove( key );
+            }
+
+            buff.position( end );
+
+            ++count;
+
+        }
+
+        return count;
+
+    }
+
+    private static int readVarInt( ByteBuffer buff ) {
+
+        int v = 0;
+        int shift = 0;
+
+        while ( true ) {
+
+            byte b = buff.get();
+
+            v |= ( b & 0x7F ) << shift;
+
+            if ( ( b & 0x80 ) == 0 )
+                return v;
+
+            shift += 7;
+
+        }
+
+    }
+
+    /**
+     * Syncs in the background for setSyncInterval.
+     */
+    /**
+     * Writes and forces the log: everything buffered whenever a writer is
+     * waiting in sync, and with a sync interval everything at least that
+     * often.
+     */
+    class Syncer extends Thread {
+
+        Syncer() {
+
+            super( "flatmap-wal-sync: " + directory.getName() );
+            setDaemon( true );
+
+        }
+
+        public void run() {
+
+            while ( true ) {
+
+                byte[] data;
+                int length;
+                long target;
+                FileChannel target_channel;
+
+                synchronized( WriteAheadLog.this ) {
+
+                    while ( true ) {
+
+                        if ( error != null )
+                            return;
+
+                        long now = System.currentTimeMillis();
+
+                        if ( requested > synced )
+                            break;
+
+                        if ( sync_interval > 0 && written > synced && now >= last_sync + sync_interval )
+                            break;
+
+                        //roll() waits for anything outstanding before close() stops us.
+                        if ( stopping )
+                            return;
+
+                        try {
+                            WriteAheadLog.this.wait( sync_interval > 0 ? Math.max( 1, last_sync + sync_interval - now ) : 0 );
+                        } catch ( InterruptedException e ) {
+                            error = new InterruptedIOException( "Log thread interrupted" );
+                            WriteAheadLog.this.notifyAll();
+                            return;
+                        }
+
+                    }
+
+                    //take everything buffered so far.
+                    data            = buffer;
+                    length          = buffer_length;
+                    target          = written;
+                    target_channel  = channel;
+
+                    buffer          = spare;
+                    buffer_length   = 0;
+
+                }
+
+                IOException failure = null;
+
+                try {
+
+                    ByteBuffer buff = ByteBuffer.wrap( data, 0, length );
+
+                    while ( buff.hasRemaining() ) {
+                        target_channel.write( buff );
+                    }
+
+                    target_channel.force( false );
+
+                } catch ( IOException e ) {
+                    failure = e;
+                }
+
+                synchronized( WriteAheadLog.this ) {
+
+                    if ( failure != null )
+                        error = failure;
+                    else
+                        synced = target;
+
+                    last_sync = System.currentTimeMillis();
+                    spare = data;
+
+                    WriteAheadLog.this.notifyAll();
+
+                }
+
+            }
+
+        }
+
+    }
+
+}